@@ -1,199 +1,1686 @@
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class AggregationServer {
-	private final Object clockLock = new Object(); // lock for lamport
 	protected LamportClock lamport;
-	protected static ConcurrentHashMap<String, WeatherNode> weather = new ConcurrentHashMap<>();
+	protected static ConcurrentMap<String, WeatherNode> weather = new ConcurrentHashMap<>();
 
 	protected ServerSocket server;
 	protected static String DATA_FILE = "backup.txt";
-	private static final long EXPIRATION_TIME = 30 * 1000;
+	protected static WriteAheadLog wal; // change log on top of DATA_FILE, null when persisting snapshots only
+	protected static PersistenceStage persistence; // batches changes to wal or DATA_FILE
+	private static final Object persistLock = new Object(); // orders map changes with their log records
+	private static long compactBytes = 4 * 1024 * 1024;
+	private static ScheduledExecutorService compactTimer;
+	protected static ExpiryIndex expiry = new ExpiryIndex(); // when stored data expires
+	protected static volatile long ttl = 30 * 1000; // time stored data lives without an update (ms)
+	protected static EvictionIndex eviction = new EvictionIndex(); // stored data by lamport, guarded by persistLock
+	protected static volatile int capacity = 20; // most stations stored, 0 for no limit
+	protected static ResponseCache responseCache = new ResponseCache(); // GET body of all stations
+	protected static StationHistory history = new StationHistory(120); // recent readings per station
+	protected static StationIndex index = new StationIndex(); // state and location indexes, guarded by persistLock
+	protected static ChangeLog changes = new ChangeLog(10000); // recent changes for delta GETs, added under persistLock
+	protected static Subscriptions subscriptions = new Subscriptions(256, Subscriptions.OverflowPolicy.DROP); // push clients
+	protected static final long SSE_HEARTBEAT_MILLIS = 15000; // comment sent on an idle event stream
 	private static volatile boolean isRunning = true; // Ensure proper thread visibility
 
+	protected ServerConfig config;
+	protected ExecutorService connectionExecutor; // runs ClientHandlers
+	protected ExecutorService streamExecutor; // runs event streams, long-polls and replication streams
+	protected Semaphore connectionPermits; // admission limit for open connections
+	protected int keepAliveTimeout; // idle time before a persistent connection is closed (ms)
+	protected int maxRequestsPerConnection;
+	protected int streamThreshold; // stations above which GET streams the feed chunked
+	protected volatile Replicator replicator; // follows the primary, null on a primary
+	protected AtomicInteger replicaStreams = new AtomicInteger(); // replicas following this server
+
+	/**
+	 * Constructs the AggregationServer with default options.
+	 * 
+	 * @param serverSocket The server socket to listen on.
+	 * @throws IOException if an I/O error occurs when opening the socket.
+	 */
+	public AggregationServer(ServerSocket serverSocket) throws IOException {
+		this(serverSocket, new ServerConfig());
+	}
+
+	/**
+	 * Constructs the AggregationServer and initialises the server socket and the
+	 * connection handling executor.
+	 * 
+	 * Supported options:
+	 * - mode: "virtual" (default) runs each connection on a virtual thread, falling
+	 * back to "pool" when the runtime has no virtual threads; "pool" runs
+	 * connections on a fixed pool of platform threads
+	 * - workers: size of the platform thread pool (default 64)
+	 * - max-connections: connections handled at once before new ones are answered
+	 * with 503 Service Unavailable (default 1000 on virtual threads, the number
+	 * of workers on a thread pool)
+	 * - max-streams: event streams, long-polls and replication streams served
+	 * at once, each on its own thread outside the connection executor; further
+	 * ones are answered with 503 Service Unavailable (default 256)
+	 * - keep-alive-timeout: idle time in milliseconds before a persistent
+	 * connection is closed (default 5000)
+	 * - max-requests: requests served on one connection before it is closed
+	 * (default 100)
+	 * - stream-threshold: stations above which GET /weather.json streams the
+	 * feed with Transfer-Encoding: chunked instead of sending the cached body
+	 * (default 1000)
+	 * - ttl: milliseconds weather data is kept without an update from its content
+	 * server (default 30000)
+	 * - capacity: most stations stored; the data with the smallest Lamport
+	 * timestamp is evicted when a PUT goes over it (default 20, 0 for no limit)
+	 * - history-depth: readings kept per station for GET /weather/history
+	 * (default 120, 0 to keep none)
+	 * - change-log: changes kept for GET /weather.json?since=... (default 10000)
+	 * - subscriber-queue: events queued for each GET /weather/subscribe client
+	 * (default 256)
+	 * - slow-subscriber: when a subscriber's queue is full, "drop" (default) its
+	 * oldest event or "disconnect" it
+	 * - store: "heap" (default) keeps weather data in a ConcurrentHashMap;
+	 * "offheap" keeps it in direct memory outside the Java heap, for very large
+	 * station counts (the indexes and history stay on the heap)
+	 * - persistence: "wal" (default) appends each change to a write-ahead log
+	 * next to the backup file; "snapshot" rewrites the backup file on every change
+	 * - fsync: when log records are forced to disk, "always", "group" (default)
+	 * or "interval"
+	 * - fsync-interval: milliseconds between forces for "interval" (default 100)
+	 * - batch-size, batch-window: changes arriving within batch-window
+	 * milliseconds (default 2), up to batch-size (default 256), are persisted
+	 * together and acknowledged once durable
+	 * - compact-bytes: log size that triggers compaction into the backup file
+	 * (default 4 MB)
+	 * - compact-interval: milliseconds between periodic compactions (default
+	 * 60000)
+	 * - backup: backup file (default backup.txt), so several servers can run
+	 * in one directory
+	 * - replica-of: "hostname:port" of a primary to replicate; the server then
+	 * serves GETs from the replicated data and answers PUTs with 503 until it
+	 * is promoted
+	 * - replication-heartbeat: milliseconds between heartbeats on an idle
+	 * replication stream (default 1000)
+	 * 
+	 * @param serverSocket The server socket to listen on.
+	 * @param config       Server options.
+	 * @throws IOException if an I/O error occurs when opening the socket.
+	 */
+	public AggregationServer(ServerSocket serverSocket, ServerConfig config) throws IOException {
+		this.server = serverSocket;
+		this.config = config;
+		this.lamport = new LamportClock();
+		this.connectionExecutor = createConnectionExecutor(config);
+		// a pool's queued connections would wait unanswered, so by default only
+		// as many are admitted as it has threads
+		int admitted = connectionExecutor instanceof ThreadPoolExecutor
+				? ((ThreadPoolExecutor) connectionExecutor).getMaximumPoolSize()
+				: 1000;
+		this.connectionPermits = new Semaphore(config.getInt("max-connections", admitted));
+		this.streamExecutor = createStreamExecutor(config.getInt("max-streams", 256));
+		this.keepAliveTimeout = config.getInt("keep-alive-timeout", 5000);
+		this.maxRequestsPerConnection = config.getInt("max-requests", 100);
+		this.streamThreshold = config.getInt("stream-threshold", 1000);
+		ttl = config.getLong("ttl", 30 * 1000);
+		capacity = config.getInt("capacity", 20);
+		weather = createStore(config);
+		history = new StationHistory(config.getInt("history-depth", 120));
+		changes = new ChangeLog(config.getInt("change-log", 10000));
+		subscriptions.closeAll();
+		subscriptions = new Subscriptions(config.getInt("subscriber-queue", 256),
+				Subscriptions.OverflowPolicy.parse(config.getString("slow-subscriber", "drop")));
+		System.out.println("Server started");
+		DATA_FILE = config.getString("backup", DATA_FILE);
+		loadBackup();
+		openPersistence(config);
+		synchronized (persistLock) {
+			evictOverCapacity(null); // in case the capacity was lowered since the backup
+		}
+
+		String primary = config.getString("replica-of", "");
+		if (!primary.isEmpty()) {
+			int colon = primary.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Invalid primary, expected hostname:port: " + primary);
+			}
+			replicator = new Replicator(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)),
+					config.getLong("replication-heartbeat", 1000), new ReplicaApplier());
+			replicator.start();
+		}
+	}
+
+	/**
+	 * Applies changes replicated from the primary like local PUTs and removals,
+	 * so they are persisted, indexed and published to this server's clients.
+	 */
+	private class ReplicaApplier implements Replicator.Target {
+		@Override
+		public void put(List<String> ids, List<WeatherNode> nodes) throws IOException {
+			for (WeatherNode node : nodes) {
+				lamport.sync(node.getLamport()); // so a promoted replica orders after what it replicated
+			}
+			putStations(ids, nodes);
+		}
+
+		@Override
+		public void remove(String id) throws IOException {
+			WeatherNode node = weather.get(id);
+			if (node != null) {
+				removeStation(id, node);
+			}
+		}
+
+		@Override
+		public void retain(Set<String> ids) throws IOException {
+			for (String id : new ArrayList<>(weather.keySet())) {
+				if (!ids.contains(id)) {
+					remove(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the weather map selected by the "store" option.
+	 * 
+	 * @param config Server options.
+	 * @return an empty weather map
+	 */
+	protected static ConcurrentMap<String, WeatherNode> createStore(ServerConfig config) {
+		String store = config.getString("store", "heap");
+		if (store.equalsIgnoreCase("heap")) {
+			return new ConcurrentHashMap<>();
+		} else if (store.equalsIgnoreCase("offheap")) {
+			return new OffHeapStationStore();
+		}
+		throw new IllegalArgumentException("Unknown store: " + store);
+	}
+
+	/**
+	 * Opens the write-ahead log for the backup file (unless the "persistence"
+	 * option is "snapshot"), starts the persistence stage that batches changes
+	 * and schedules periodic compaction.
+	 * 
+	 * @param config Server options.
+	 * @throws IOException if the log cannot be opened.
+	 */
+	protected static void openPersistence(ServerConfig config) throws IOException {
+		closePersistence();
+		synchronized (persistLock) {
+			String mode = config.getString("persistence", "wal");
+			WriteAheadLog.SyncPolicy policy = WriteAheadLog.SyncPolicy.parse(config.getString("fsync", "group"));
+			if (mode.equalsIgnoreCase("wal")) {
+				wal = new WriteAheadLog(walPath(), policy, config.getLong("fsync-interval", 100));
+				compactBytes = config.getLong("compact-bytes", 4 * 1024 * 1024);
+			} else if (!mode.equalsIgnoreCase("snapshot")) {
+				throw new IllegalArgumentException("Unknown persistence mode: " + mode);
+			}
+			// forcing every write means one change per batch
+			int batchSize = policy == WriteAheadLog.SyncPolicy.ALWAYS ? 1 : config.getInt("batch-size", 256);
+			persistence = new PersistenceStage(new BackupWriter(), batchSize, config.getLong("batch-window", 2));
+		}
+		if (wal == null) {
+			return;
+		}
+
+		long interval = config.getLong("compact-interval", 60000);
+		compactTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "backup-compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactTimer.scheduleWithFixedDelay(() -> persistence.submitCompaction(), interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the persistence stage, after writing what is queued, and closes the
+	 * write-ahead log. Must not be called holding persistLock: the stage is
+	 * joined without it, since a compaction running on the stage thread takes
+	 * persistLock.
+	 */
+	protected static void closePersistence() {
+		PersistenceStage stage;
+		synchronized (persistLock) {
+			if (compactTimer != null) {
+				compactTimer.shutdownNow();
+				compactTimer = null;
+			}
+			stage = persistence;
+			persistence = null; // later changes rewrite the backup directly
+		}
+		if (stage != null) {
+			stage.close();
+		}
+		synchronized (persistLock) {
+			if (wal != null) {
+				try {
+					wal.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close write-ahead log: " + e.getMessage());
+				}
+				wal = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes batches from the persistence stage to the write-ahead log, or to the
+	 * backup file when persisting snapshots only.
+	 */
+	private static class BackupWriter implements PersistenceStage.Writer {
+		@Override
+		public void write(List<PersistenceStage.Mutation> batch) throws IOException {
+			WriteAheadLog log = wal;
+			if (log == null) {
+				writeSnapshot(); // one rewrite for the whole batch
+				return;
+			}
+			log.sync(log.appendAll(batch));
+			if (log.size() > compactBytes) {
+				compact();
+			}
+		}
+
+		@Override
+		public void compact() throws IOException {
+			AggregationServer.compact();
+		}
+	}
+
+	/**
+	 * Get the path of the write-ahead log belonging to the backup file.
+	 */
+	protected static Path walPath() {
+		return Paths.get(DATA_FILE + ".wal");
+	}
+
+	/**
+	 * Creates the executor that runs client handlers, based on the "mode" option.
+	 * 
+	 * @param config Server options.
+	 * @return executor for client connections
+	 */
+	protected static ExecutorService createConnectionExecutor(ServerConfig config) {
+		String mode = config.getString("mode", "virtual");
+		if (mode.equalsIgnoreCase("virtual")) {
+			try {
+				// looked up reflectively so the server still runs on runtimes before Java 21
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads not available, using a platform thread pool");
+			}
+		} else if (!mode.equalsIgnoreCase("pool")) {
+			throw new IllegalArgumentException("Unknown connection mode: " + mode);
+		}
+		return Executors.newFixedThreadPool(config.getInt("workers", 64));
+	}
+
+	/**
+	 * Creates the executor for long-lived requests (see isLongLived). Each runs
+	 * on its own daemon thread, up to max at once; beyond that the executor
+	 * rejects the request instead of queueing it, so it can be answered with 503.
+	 * 
+	 * @param max most long-lived requests served at once
+	 * @return executor for long-lived requests
+	 */
+	protected static ExecutorService createStreamExecutor(int max) {
+		AtomicInteger created = new AtomicInteger();
+		return new ThreadPoolExecutor(0, Math.max(1, max), 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				task -> {
+					Thread thread = new Thread(task, "stream-" + created.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Tells whether a request may be answered only after a long wait, or with a
+	 * body that lasts as long as the client stays: GET /weather/subscribe (an
+	 * event stream or a long-poll) and GET /replication/stream. The engines run
+	 * these on the stream executor, so they never hold a connection worker.
+	 * 
+	 * @param request The parsed request.
+	 * @return true if the request is long-lived
+	 */
+	public boolean isLongLived(HttpRequest request) {
+		return request.getMethod().equalsIgnoreCase("GET") && (request.getPath().equals("/weather/subscribe")
+				|| request.getPath().equals("/replication/stream"));
+	}
+
+	/**
+	 * Listens for client connections and hands each connection to the connection
+	 * executor. Connections beyond the admission limit are answered with 503.
+	 * 
+	 * @throws IOException if an I/O error occurs when waiting for a connection.
+	 */
+	public void listenSocket() {
+		while (isRunning && !Thread.currentThread().isInterrupted()) {
+			try {
+				Socket clientSocket = server.accept(); // Accept client connections
+				ClientHandler handler = new ClientHandler(clientSocket, this);
+				if (!connectionPermits.tryAcquire()) {
+					handler.reject(); // server saturated
+					continue;
+				}
+				try {
+					connectionExecutor.execute(() -> {
+						try {
+							handler.run();
+						} finally {
+							connectionPermits.release();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					connectionPermits.release();
+					handler.reject(); // executor shut down
+				}
+			} catch (SocketException e) {
+				if (!isRunning) {
+					System.out.println("Server stopped.");
+					break;
+				} else {
+					System.err.println("Listening socket exception" + e);
+
+				}
+			} catch (IOException e) {
+				System.err.println("Connection refused: " + e.getMessage());
+
+			}
+		}
+	}
+
+	/**
+	 * Stops the server and closes the server socket.
+	 * 
+	 * @throws IOException if an I/O error occurs when closing the socket.
+	 */
+	public void stop() throws IOException {
+		isRunning = false;
+		if (server != null && !server.isClosed()) {
+			server.close();
+		}
+		subscriptions.closeAll(); // ends event streams
+		Replicator following = replicator;
+		if (following != null) {
+			following.close();
+		}
+		if (connectionExecutor != null) {
+			connectionExecutor.shutdownNow();
+		}
+		if (streamExecutor != null) {
+			streamExecutor.shutdownNow();
+		}
+		closePersistence();
+		System.out.println("Server has been stopped.");
+	}
+
+	/**
+	 * Loads weather data from backup file into the weather map, then replays the
+	 * write-ahead log for changes made after the backup file was written.
+	 */
+	protected static void loadBackup() {
+		loadSnapshot();
+		try {
+			int replayed = WriteAheadLog.replay(walPath(), weather);
+			if (replayed > 0) {
+				System.out.println("Replayed " + replayed + " changes from write-ahead log");
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to replay write-ahead log: " + e.getMessage());
+		}
+		synchronized (persistLock) {
+			eviction.clear();
+			int newest = 0;
+			for (Map.Entry<String, WeatherNode> entry : weather.entrySet()) {
+				eviction.add(entry.getKey(), entry.getValue());
+				scheduleExpiry(entry.getKey(), entry.getValue());
+				newest = Math.max(newest, entry.getValue().getLamport());
+			}
+			index.rebuild(weather);
+			changes.reset(newest); // loaded data is only available as a snapshot
+			responseCache.invalidate();
+		}
+	}
+
+	/**
+	 * Loads weather data from backup file into the weather map. The backup is a
+	 * binary SnapshotFile; backups in the older text format are still read.
+	 */
+	protected static void loadSnapshot() {
+		Path path = Paths.get(DATA_FILE);
+		try {
+			if (!SnapshotFile.isSnapshot(path)) {
+				loadTextBackup();
+				return;
+			}
+			int loaded = SnapshotFile.read(path, weather);
+			System.out.println("Weather data loaded from backup (" + loaded + " stations)");
+		} catch (IOException e) {
+			System.err.println("Failed to load weather data from back up: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads weather data from a backup file in the older text format.
+	 * Each entry in the file corresponds to a weather station's data,
+	 * formatted to allow reconstruction of `WeatherNode` objects.
+	 */
+	protected static void loadTextBackup() {
+		try (BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE))) {
+			StringBuilder weatherJson = new StringBuilder();
+			String stationId = null;
+			String line;
+			boolean inEntry = false;
+
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+
+				if (line.equals("BEGIN_ENTRY")) {
+					inEntry = true;
+					weatherJson.setLength(0);
+				} else if (line.equals("END_ENTRY")) {
+					inEntry = false;
+					WeatherNode node = WeatherNode.toWeatherNode(weatherJson.toString());
+					stationId = JsonParser.getId(node.getData());
+					weather.put(stationId, node);
+				} else if (inEntry) {
+					weatherJson.append(line).append("\n");
+				}
+			}
+			System.out.println("Weather data loaded from backup");
+		} catch (Exception e) {
+			System.err.println("Failed to load weather data from back up: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Updates backup file with the current weather data from the weather map.
+	 * Errors are logged rather than thrown.
+	 */
+	protected static void updateBackup() {
+		try {
+			writeSnapshot();
+		} catch (IOException e) {
+			System.err.println("Failed to save weather data to back up: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the current weather data from the weather map to the backup file.
+	 * The snapshot replaces the backup file atomically, so a crash while writing
+	 * leaves the previous backup intact.
+	 * 
+	 * @throws IOException if the backup file cannot be written.
+	 */
+	protected static void writeSnapshot() throws IOException {
+		SnapshotFile.write(Paths.get(DATA_FILE), weather);
+		System.out.println("Weather data saved to backup.");
+	}
+
+	/**
+	 * Writes the whole weather map to the backup file and empties the
+	 * write-ahead log, so startup does not have to replay an ever-growing log.
+	 * Runs on the persistence stage thread, the only one appending to the log,
+	 * so every logged change is already in the map. Only the log's size is
+	 * read under persistLock: the map is written outside it while PUTs carry on,
+	 * so the snapshot holds at least every change logged by then, and the log
+	 * is truncated only if it still holds just those records.
+	 * 
+	 * @throws IOException if the backup file cannot be written or the log
+	 *                     cannot be truncated.
+	 */
+	protected static void compact() throws IOException {
+		WriteAheadLog log;
+		long covered;
+		Map<String, WeatherNode> stations;
+		synchronized (persistLock) {
+			log = wal;
+			if (log == null || log.size() == 0) {
+				return;
+			}
+			covered = log.size();
+			stations = weather;
+		}
+		SnapshotFile.write(Paths.get(DATA_FILE), stations);
+		System.out.println("Weather data saved to backup.");
+		synchronized (persistLock) {
+			if (wal == log) { // not closed meanwhile
+				log.truncate(covered);
+			}
+		}
+	}
+
+	/**
+	 * Stores weather data for a station and waits until the change is durable.
+	 * 
+	 * @param id   Station id.
+	 * @param node Weather data for the station.
+	 * @return the previous data for the station, or null if it is new
+	 * @throws IOException if the change cannot be persisted.
+	 */
+	protected static WeatherNode putStation(String id, WeatherNode node) throws IOException {
+		return putStations(Collections.singletonList(id), Collections.singletonList(node)).get(0);
+	}
+
+	/**
+	 * Stores weather data for several stations and waits until the changes are
+	 * durable. The map updates and queueing the changes for the persistence
+	 * stage happen under one lock, so changes are persisted in the order they
+	 * were applied and a whole batch lands in as few persistence batches as the
+	 * batch size allows; waiting happens outside the lock so concurrent PUTs
+	 * share one batch. If the server goes over capacity, the oldest data is
+	 * evicted right away.
+	 * 
+	 * @param ids   Station ids, a station may appear more than once.
+	 * @param nodes Weather data for each id, applied in order.
+	 * @return the previous data for each id, or null where the station was new
+	 * @throws IOException if the changes cannot be persisted.
+	 */
+	protected static List<WeatherNode> putStations(List<String> ids, List<WeatherNode> nodes) throws IOException {
+		return putStations(ids, nodes, null);
+	}
+
+	/**
+	 * Stores weather data for several stations like putStations(ids, nodes),
+	 * also collecting the stations evicted to get back under capacity.
+	 * 
+	 * @param ids     Station ids, a station may appear more than once.
+	 * @param nodes   Weather data for each id, applied in order.
+	 * @param evicted receives the ids of the stations evicted, or null
+	 * @return the previous data for each id, or null where the station was new
+	 * @throws IOException if the changes cannot be persisted.
+	 */
+	protected static List<WeatherNode> putStations(List<String> ids, List<WeatherNode> nodes, Set<String> evicted)
+			throws IOException {
+		List<WeatherNode> previous = new ArrayList<>(ids.size());
+		List<CompletableFuture<Void>> pending = new ArrayList<>(ids.size());
+		synchronized (persistLock) {
+			PersistenceStage stage = persistence;
+			for (int i = 0; i < ids.size(); i++) {
+				String id = ids.get(i);
+				WeatherNode node = nodes.get(i);
+				WeatherNode replaced = weather.put(id, node);
+				if (replaced != null) {
+					eviction.remove(id, replaced);
+				}
+				eviction.add(id, node);
+				history.record(id, node);
+				index.update(id, node.getObservation());
+				publishChange(id, "put", node);
+				previous.add(replaced);
+				if (stage != null) {
+					pending.add(stage.submitPut(id, node));
+				}
+			}
+			if (stage == null) {
+				updateBackup(); // one rewrite for the whole batch
+			}
+			evictOverCapacity(evicted);
+			responseCache.invalidate();
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			scheduleExpiry(ids.get(i), nodes.get(i));
+		}
+		for (CompletableFuture<Void> done : pending) {
+			PersistenceStage.await(done);
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes a station's weather data, if it is still the given node, and
+	 * waits until the removal is durable.
+	 * 
+	 * @param id       Station id.
+	 * @param expected Weather data expected to be stored for the station.
+	 * @return true if the data was removed
+	 * @throws IOException if the change cannot be persisted.
+	 */
+	protected static boolean removeStation(String id, WeatherNode expected) throws IOException {
+		CompletableFuture<Void> done;
+		synchronized (persistLock) {
+			if (!weather.remove(id, expected)) {
+				return false; // updated or removed in the meantime
+			}
+			eviction.remove(id, expected);
+			history.remove(id);
+			index.remove(id);
+			publishChange(id, "delete", null);
+			responseCache.invalidate();
+			done = persist(PersistenceStage.REMOVE, id, null);
+		}
+		PersistenceStage.await(done);
+		return true;
+	}
+
+	/**
+	 * Removes the stations of expired entries whose node is still the one
+	 * stored, and waits until the removals are durable. The removals are queued
+	 * together so they are persisted in one batch.
+	 * 
+	 * @param expired Entries taken from the expiry index.
+	 * @return number of stations removed
+	 * @throws IOException if the changes cannot be persisted.
+	 */
+	protected static int removeExpired(List<ExpiryIndex.Entry> expired) throws IOException {
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		synchronized (persistLock) {
+			PersistenceStage stage = persistence;
+			for (ExpiryIndex.Entry entry : expired) {
+				WeatherNode removed = removeIfCurrent(entry.getId(), entry.getLamport(), entry.getLastUpdate());
+				if (removed != null) {
+					eviction.remove(entry.getId(), removed);
+					history.remove(entry.getId());
+					index.remove(entry.getId());
+					publishChange(entry.getId(), "expire", null);
+					responseCache.invalidate();
+					pending.add(stage == null ? null : stage.submitRemove(entry.getId()));
+				}
+			}
+			if (stage == null && !pending.isEmpty()) {
+				updateBackup(); // one rewrite for all removals
+			}
+		}
+		for (CompletableFuture<Void> done : pending) {
+			if (done != null) {
+				PersistenceStage.await(done);
+			}
+		}
+		return pending.size();
+	}
+
+	/**
+	 * Queues a change for the persistence stage. Without a stage (server not
+	 * constructed) the backup file is rewritten directly.
+	 */
+	private static CompletableFuture<Void> persist(byte op, String id, WeatherNode node) {
+		PersistenceStage stage = persistence;
+		if (stage == null) {
+			updateBackup();
+			return CompletableFuture.completedFuture(null);
+		}
+		return op == PersistenceStage.PUT ? stage.submitPut(id, node) : stage.submitRemove(id);
+	}
+
+	/**
+	 * Removes a station if the node stored for it is still the version an
+	 * index entry recorded. Must be called holding persistLock.
+	 * 
+	 * @return the removed node, or null if the station was updated or removed
+	 */
+	private static WeatherNode removeIfCurrent(String id, int lamport, long lastUpdate) {
+		WeatherNode current = weather.get(id);
+		if (current == null || current.getLamport() != lamport || current.getLastUpdate() != lastUpdate) {
+			return null;
+		}
+		return weather.remove(id, current) ? current : null;
+	}
+
+	private static void scheduleExpiry(String id, WeatherNode node) {
+		expiry.schedule(id, node, node.getLastUpdate() + ttl);
+	}
+
+	/**
+	 * Manages content servers by removing weather data that has not been updated
+	 * for the TTL (30 seconds by default). Sleeps until the earliest entry in the
+	 * expiry index is due rather than scanning the weather map.
+	 */
+	public static void manageContentServers() {
+		while (true) {
+			try {
+				List<ExpiryIndex.Entry> expired = expiry.takeExpired();
+				int removed = removeExpired(expired);
+				if (removed > 0) {
+					System.out.println("Removed " + removed + " outdated weather data entries");
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to persist removal of outdated data: " + e.getMessage());
+			} catch (InterruptedException e) {
+				System.err.println("Manage Content Servers interrupted: " + e.getMessage());
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records a change in the change log and pushes it to subscribers, without
+	 * waiting for them. Must be called holding persistLock.
+	 * 
+	 * @param id   station id
+	 * @param type "put", or how the station was removed: "delete", "expire" or
+	 *             "evict"
+	 * @param node the data put, or null for a removal
+	 */
+	private static void publishChange(String id, String type, WeatherNode node) {
+		long stamp = node != null ? changes.record(id, ChangeLog.PUT, node.getLamport())
+				: changes.record(id, ChangeLog.REMOVE, 0);
+		if (!subscriptions.isEmpty()) {
+			subscriptions.publish(new Subscriptions.Event(stamp, type, id, node == null ? null : node.getData()));
+		}
+	}
+
+	/**
+	 * Removes the stations with the smallest Lamport timestamps until no more
+	 * than capacity stations are stored. Must be called holding persistLock. The
+	 * removals are queued for persistence but not waited for; if they are lost
+	 * in a crash, the stations are evicted again on restart.
+	 * 
+	 * @param evicted receives the ids of the stations evicted, or null
+	 */
+	private static void evictOverCapacity(Set<String> evicted) {
+		int limit = capacity;
+		EvictionIndex.Entry oldest;
+		while (limit > 0 && weather.size() > limit && (oldest = eviction.pollOldest()) != null) {
+			if (removeIfCurrent(oldest.getId(), oldest.getLamport(), oldest.getLastUpdate()) != null) {
+				history.remove(oldest.getId());
+				index.remove(oldest.getId());
+				publishChange(oldest.getId(), "evict", null);
+				if (evicted != null) {
+					evicted.add(oldest.getId());
+				}
+				responseCache.invalidate();
+				persist(PersistenceStage.REMOVE, oldest.getId(), null);
+				System.out.println("Removed oldest weather data due to size limit: " + oldest.getId());
+			}
+		}
+	}
+
+	/**
+	 * Processes a request received by either server engine and builds the
+	 * response.
+	 * 
+	 * @param request The parsed request.
+	 * @return response to send back to the client
+	 */
+	public HttpResponse handleRequest(HttpRequest request) {
+		if (request.getMethod().equalsIgnoreCase("PUT")) {
+			if (request.getPath().equals("/replication/promote")) {
+				return processPromote();
+			}
+			if (replicator != null) {
+				// a replica only changes through replication
+				return new HttpResponse(503).header("Retry-After", 1).header("Lamport-Clock", lamport.increment());
+			}
+			if (request.getPath().equals("/weather/batch")) {
+				return processBatchPut(request);
+			}
+			return processPut(request);
+		} else if (request.getMethod().equalsIgnoreCase("GET")) {
+			System.out.println("Handling GET Request");
+			return processGet(request);
+		}
+		// send 400 for invalid/unsupported method
+		System.out.println("Invalid method");
+		return new HttpResponse(400);
+	}
+
+	/**
+	 * Decides whether the connection stays open after this response and sets the
+	 * Connection and Keep-Alive headers accordingly. Connections are kept open
+	 * when the client asks for it (HTTP/1.1 default), the request was valid, the
+	 * per-connection request limit has not been reached and the server is running.
+	 * 
+	 * @param request  The request being answered.
+	 * @param response The response to the request.
+	 * @param handled  Number of requests handled on the connection so far,
+	 *                 including this one.
+	 * @return true if the connection should stay open
+	 */
+	public boolean applyConnectionHeaders(HttpRequest request, HttpResponse response, int handled) {
+		boolean keepAlive = isRunning && request.isKeepAlive() && response.getStatus() != 400
+				&& handled < maxRequestsPerConnection;
+		if (keepAlive) {
+			response.header("Connection", "keep-alive").header("Keep-Alive",
+					"timeout=" + (keepAliveTimeout / 1000) + ", max=" + (maxRequestsPerConnection - handled));
+		} else {
+			response.header("Connection", "close");
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Processes a GET request, updates lamport value and builds the response with
+	 * the appropriate HTTP status code.
+	 * - 200 OK: data retrieved successfully
+	 * - 304 Not Modified: If-None-Match holds the current ETag (or a station
+	 * has not changed since If-Modified-Since), sent without a body
+	 * - 400 Bad Request: history requested without a station ID or with an
+	 * invalid since time
+	 * - 404 Not Found: data the requested station ID does not exist
+	 * - 500 Internal Server Error: if the Lamport clock header is missing or an
+	 * error occurs
+	 * 
+	 * GET /weather/history?id=...&since=... returns the station's readings last
+	 * updated at or after since (ms since epoch, default 0), oldest first.
+	 * 
+	 * GET /weather.json with state, bbox, limit or cursor parameters is answered
+	 * from the secondary indexes by processQuery(), and with since from the
+	 * change log by processDelta(). GET /weather/subscribe is handled by
+	 * processSubscribe(), GET /replication/stream by
+	 * processReplicationStream(), and GET /replication/status answers with the
+	 * replication status and lag.
+	 * 
+	 * @param request The GET request.
+	 * @return response to send back to the client
+	 */
+	public HttpResponse processGet(HttpRequest request) {
+		try {
+			String stationId = null;
+			// get stationId if given
+			if (request.getPath().equals("/weather.json")) {
+				stationId = request.getQueryParam("id");
+			}
+
+			int receivedLamportValue = request.getIntHeader("Lamport-Clock", 0);
+			// send 500 if lamport clock not provided
+			if (receivedLamportValue == 0) {
+				return new HttpResponse(500);
+			}
+			lamport.sync(receivedLamportValue);
+
+			if (request.getPath().equals("/weather/subscribe")) {
+				return processSubscribe(request);
+			} else if (request.getPath().equals("/replication/stream")) {
+				return processReplicationStream(request);
+			} else if (request.getPath().equals("/replication/status")) {
+				return replicationStatus();
+			}
+
+			// a station is tagged by its own Lamport timestamp, everything else
+			// by the weather map version, read before any body is built so a
+			// change during the build leaves the tag stale rather than wrong
+			WeatherNode node = null;
+			String etag;
+			if (stationId != null) {
+				node = weather.get(stationId);
+				if (node == null) {
+					return new HttpResponse(404); // return 404 if data not found
+				}
+				etag = "\"" + node.getLamport() + "-" + node.getLastUpdate() + "\"";
+			} else {
+				etag = responseCache.getETag();
+			}
+			if (isNotModified(request, etag, node)) {
+				HttpResponse response = new HttpResponse(304).header("ETag", etag);
+				if (node != null) {
+					response.header("Last-Modified", HttpResponse.formatDate(node.getLastUpdate()));
+				}
+				return response.header("Lamport-Clock", lamport.increment());
+			}
+
+			byte[] data;
+			if (request.getPath().equals("/weather/history")) {
+				stationId = request.getQueryParam("id");
+				if (stationId == null) {
+					return new HttpResponse(400);
+				}
+				long since;
+				try {
+					String sinceParam = request.getQueryParam("since");
+					since = sinceParam == null ? 0 : Long.parseLong(sinceParam);
+				} catch (NumberFormatException e) {
+					return new HttpResponse(400);
+				}
+				List<StationHistory.Reading> readings = history.since(stationId, since);
+				if (readings == null) {
+					return new HttpResponse(404);
+				}
+				if (request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+					data = StationHistory.toJson(readings);
+				} else {
+					// written reading by reading instead of built in memory
+					return new HttpResponse(200)
+							.header("Content-Type", "application/json")
+							.header("ETag", etag)
+							.stream(out -> StationHistory.write(readings, out))
+							.header("Lamport-Clock", lamport.increment());
+				}
+			} else if (node != null) {
+				// retrieve data with given stationId
+				data = node.getData().getBytes(StandardCharsets.UTF_8);
+			} else if (stationId == null && request.getPath().equals("/weather.json")
+					&& request.getQueryParam("since") != null) {
+				HttpResponse response = processDelta(request);
+				return response.getStatus() == 200 ? response.header("ETag", etag) : response;
+			} else if (isQuery(request)) {
+				HttpResponse response = processQuery(request);
+				return response.getStatus() == 200 ? response.header("ETag", etag) : response;
+			} else if (weather.size() > streamThreshold && !request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+				// stream large feeds from the map instead of building them
+				Map<String, WeatherNode> stations = weather;
+				System.out.println("Streaming weather data of " + stations.size() + " stations");
+				return new HttpResponse(200)
+						.header("Content-Type", "application/json")
+						.header("ETag", etag)
+						.stream(out -> ResponseCache.write(stations, out))
+						.header("Lamport-Clock", lamport.increment());
+			} else {
+				// retrieve all data if stationId not specified, rebuilt only
+				// when the weather map has changed
+				data = responseCache.get(weather);
+			}
+
+			System.out.println("Sending " + data.length + " bytes of weather data");
+
+			HttpResponse response = new HttpResponse(200)
+					.header("Content-Type", "application/json")
+					.header("ETag", etag);
+			if (node != null) {
+				response.header("Last-Modified", HttpResponse.formatDate(node.getLastUpdate()));
+			}
+			int timestamp = lamport.increment(); // increment lamport
+			return response.body(data).header("Lamport-Clock", timestamp);
+		} catch (Exception e) {
+			return new HttpResponse(500);
+		}
+	}
+
+	/**
+	 * Checks whether the client's cached copy is current: its If-None-Match
+	 * holds the entity tag, or, without If-None-Match, the station has not
+	 * changed since If-Modified-Since (HTTP dates are in whole seconds).
+	 */
+	private static boolean isNotModified(HttpRequest request, String etag, WeatherNode node) {
+		if (request.getHeader("If-None-Match") != null) {
+			return request.matchesETag(etag);
+		}
+		long since = node == null ? -1 : request.getDateHeader("If-Modified-Since");
+		return since >= 0 && node.getLastUpdate() / 1000 <= since / 1000;
+	}
+
+	/**
+	 * Processes a GET /weather.json?since=... request from the change log. The
+	 * body is a JSON array of the stations changed after since, oldest change
+	 * first and each station once: "op" is "put" with the station's current
+	 * data and its Lamport timestamp as "lamport", or "delete". The
+	 * Change-Lamport header holds the cursor to pass as since next time (see
+	 * ChangeLog: "epoch-stamp"). If the log no longer reaches back to since, or
+	 * since is from another epoch (e.g. before a restart), the body instead
+	 * holds every station as a put, with the Change-Log header "snapshot"
+	 * rather than "delta". Clients start with since=0.
+	 * 
+	 * @param request The GET request, with its Lamport clock already synced.
+	 * @return response to send back to the client
+	 */
+	protected HttpResponse processDelta(HttpRequest request) {
+		long since;
+		try {
+			since = changes.stampOf(request.getQueryParam("since"));
+		} catch (NumberFormatException e) {
+			return new HttpResponse(400);
+		}
+		return deltaResponse(request, since, null);
+	}
+
+	/**
+	 * Builds the response of a delta GET: the changes after since, or a
+	 * snapshot if the change log no longer reaches back to since.
+	 * 
+	 * @param request The GET request.
+	 * @param since   Change log stamp the client has seen, or ChangeLog.STALE.
+	 * @param ids     Stations to include, or null for all.
+	 * @return response to send back to the client
+	 */
+	private HttpResponse deltaResponse(HttpRequest request, long since, Set<String> ids) {
+		// read before the map, so the data sent is at least as new as the stamp
+		long latest = changes.latest();
+		List<ChangeLog.Change> log = changes.since(since);
+		if (log == null) {
+			System.out.println("Change log truncated past " + since + ", sending snapshot");
+			HttpResponse response = new HttpResponse(200)
+					.header("Content-Type", "application/json")
+					.header("Change-Log", "snapshot")
+					.header("Change-Lamport", changes.cursor(latest));
+			Map<String, WeatherNode> stations = weather;
+			if (ids != null) {
+				stations = new LinkedHashMap<>();
+				for (String id : ids) {
+					WeatherNode node = weather.get(id);
+					if (node != null) {
+						stations.put(id, node);
+					}
+				}
+			}
+			if (ids == null && weather.size() > streamThreshold && !request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+				response.stream(out -> writePuts(weather, out));
+			} else {
+				// built from the map, not the cache, which may be older than latest
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				try {
+					writePuts(stations, body);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e); // not thrown by ByteArrayOutputStream
+				}
+				response.body(body.toByteArray());
+			}
+			return response.header("Lamport-Clock", lamport.increment());
+		}
+
+		List<Map<String, String>> objects = new ArrayList<>();
+		for (ChangeLog.Change change : lastChanges(log, ids)) {
+			// a put removed since is sent as a removal, which follows in the log
+			WeatherNode node = change.getOp() == ChangeLog.PUT ? weather.get(change.getId()) : null;
+			objects.add(changeObject(change.getId(), node));
+		}
+		long next = log.isEmpty() ? since : log.get(log.size() - 1).getLamport();
+		System.out.println("Sending " + objects.size() + " changes since " + since);
+
+		return new HttpResponse(200)
+				.header("Content-Type", "application/json")
+				.header("Change-Log", "delta")
+				.header("Change-Lamport", changes.cursor(next))
+				.body(JsonParser.toJsonArray(objects).getBytes(StandardCharsets.UTF_8))
+				.header("Lamport-Clock", lamport.increment());
+	}
+
+	/**
+	 * Builds the object of one station in a delta or its snapshot: a put with
+	 * the station's Lamport timestamp and data, or a delete.
+	 * 
+	 * @param id   Station id.
+	 * @param node The station's data, or null if it was removed.
+	 * @return the object's fields
+	 */
+	private static Map<String, String> changeObject(String id, WeatherNode node) {
+		Map<String, String> fields = new LinkedHashMap<>();
+		if (node != null) {
+			fields.put("lamport", Integer.toString(node.getLamport()));
+		}
+		fields.put("op", node == null ? "delete" : "put");
+		fields.put("id", id);
+		Observation observation = node == null ? null : node.getObservation();
+		if (observation != null) {
+			for (Map.Entry<String, String> field : observation.toMap().entrySet()) {
+				fields.putIfAbsent(field.getKey(), field.getValue());
+			}
+		}
+		return fields;
+	}
+
 	/**
-	 * Constructs the AggregationServer and initialises the server socket.
+	 * Writes stations as a JSON array of puts, formatted like a delta, one
+	 * station at a time as the map is iterated.
 	 * 
-	 * @param port The port number to listen on.
-	 * @throws IOException if an I/O error occurs when opening the socket.
+	 * @param stations Stations to write.
+	 * @param out      Stream the array is written to.
+	 * @throws IOException if writing fails
 	 */
-	public AggregationServer(ServerSocket serverSocket) throws IOException {
-		this.server = serverSocket;
-		this.lamport = new LamportClock();
-		System.out.println("Server started");
-		loadBackup();
+	private static void writePuts(Map<String, WeatherNode> stations, OutputStream out) throws IOException {
+		boolean first = true;
+		for (Map.Entry<String, WeatherNode> station : stations.entrySet()) {
+			String object = JsonParser.toJson(changeObject(station.getKey(), station.getValue()));
+			out.write(((first ? "[\n    " : ",\n    ") + object.replace("\n", "\n    "))
+					.getBytes(StandardCharsets.UTF_8));
+			first = false;
+		}
+		out.write((first ? "[]\n" : "\n]\n").getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
-	 * Listens for client connections and starts a new thread to handle each
-	 * connection.
+	 * Get the last change of each station in a part of the change log, in the
+	 * order of those changes, so a station changed several times is sent once.
 	 * 
-	 * @throws IOException if an I/O error occurs when waiting for a connection.
+	 * @param log Changes, oldest first.
+	 * @param ids Stations to include, or null for all.
+	 * @return the stations' last changes
 	 */
-	public void listenSocket() {
-		while (isRunning && !Thread.currentThread().isInterrupted()) {
-			try {
-				Socket clientSocket = server.accept(); // Accept client connections
-				new Thread(new ClientHandler(clientSocket, this)).start(); // Pass LamportClock to ClientHandler
-			} catch (SocketException e) {
-				if (!isRunning) {
-					System.out.println("Server stopped.");
-					break;
-				} else {
-					System.err.println("Listening socket exception" + e);
+	private static Collection<ChangeLog.Change> lastChanges(List<ChangeLog.Change> log, Set<String> ids) {
+		Map<String, ChangeLog.Change> changed = new LinkedHashMap<>();
+		for (ChangeLog.Change change : log) {
+			if (ids == null || ids.contains(change.getId())) {
+				changed.remove(change.getId());
+				changed.put(change.getId(), change);
+			}
+		}
+		return changed.values();
+	}
 
-				}
-			} catch (IOException e) {
-				System.err.println("Connection refused: " + e.getMessage());
+	/**
+	 * Processes GET /weather/subscribe, which tells the client about changes
+	 * as they happen instead of it polling. Parameters:
+	 * - id: comma-separated stations to follow (default all)
+	 * - since: change log cursor the client has seen (or the Last-Event-ID
+	 * header); default the latest, so only new changes are sent
+	 * - timeout: longest long-poll wait in milliseconds (default 30000)
+	 * 
+	 * With "Accept: text/event-stream" the response is a Server-Sent Events
+	 * stream, see sendEvents(). Otherwise it is a long-poll: answered as soon as
+	 * a followed station changes after since, in the format of processDelta(),
+	 * or with no changes once the timeout passes. Either way the client's
+	 * subscription has a bounded queue, so a slow client never holds up a PUT.
+	 * 
+	 * @param request The GET request, with its Lamport clock already synced.
+	 * @return response to send back to the client
+	 */
+	protected HttpResponse processSubscribe(HttpRequest request) {
+		Set<String> ids = null;
+		String idParam = request.getQueryParam("id");
+		if (idParam != null && !idParam.isEmpty()) {
+			ids = new HashSet<>(Arrays.asList(idParam.split(",")));
+		}
+		long since;
+		long timeout;
+		try {
+			String sinceParam = request.getQueryParam("since");
+			if (sinceParam == null) {
+				sinceParam = request.getHeader("Last-Event-ID");
+			}
+			since = sinceParam == null ? -1 : changes.stampOf(sinceParam);
+			String timeoutParam = request.getQueryParam("timeout");
+			timeout = timeoutParam == null ? 30000 : Long.parseLong(timeoutParam);
+		} catch (NumberFormatException e) {
+			return new HttpResponse(400);
+		}
+		if (timeout < 0) {
+			return new HttpResponse(400);
+		}
+
+		String accept = request.getHeader("Accept");
+		if (accept != null && accept.contains("text/event-stream")
+				&& !request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+			Set<String> followed = ids;
+			System.out.println("Streaming events to a subscriber");
+			return new HttpResponse(200)
+					.header("Content-Type", "text/event-stream")
+					.header("Cache-Control", "no-cache")
+					.stream(out -> sendEvents(followed, since, out))
+					.header("Lamport-Clock", lamport.increment());
+		}
 
+		// subscribe before reading the log, so a change in between wakes the poll
+		Subscriptions.Subscriber subscriber = subscriptions.subscribe(ids);
+		try {
+			long from = since != -1 ? since : changes.latest();
+			long deadline = System.currentTimeMillis() + timeout;
+			List<ChangeLog.Change> log = changes.since(from);
+			while (log != null && lastChanges(log, ids).isEmpty() && !subscriber.isClosed()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				subscriber.next(remaining);
+				log = changes.since(from);
 			}
+			return deltaResponse(request, from, ids);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new HttpResponse(503);
+		} finally {
+			subscriber.close();
 		}
 	}
 
 	/**
-	 * Stops the server and closes the server socket.
+	 * Writes a Server-Sent Events stream until the client goes away or the
+	 * server stops. Each change is one event, with its change log cursor as
+	 * the event id:
+	 * - "put": data is the station's JSON
+	 * - "delete", "expire", "evict": the station was removed, data is its id
+	 * - "dropped": data is the number of events dropped because the client
+	 * fell behind; it should refetch the feed
+	 * - "reset": since is no longer in the change log, or from another epoch;
+	 * refetch the feed
+	 * When since is given, the changes after it are sent first from the change
+	 * log. A comment is sent every SSE_HEARTBEAT_MILLIS to keep the connection
+	 * open and detect clients that have gone away.
 	 * 
-	 * @throws IOException if an I/O error occurs when closing the socket.
+	 * @param ids   Stations to follow, or null for all.
+	 * @param since Change log stamp the client has seen, ChangeLog.STALE, or
+	 *              -1.
+	 * @param out   Stream the events are written to.
+	 * @throws IOException if writing fails, e.g. the client went away.
 	 */
-	public void stop() throws IOException {
-		isRunning = false;
-		if (server != null && !server.isClosed()) {
-			server.close();
+	private void sendEvents(Set<String> ids, long since, OutputStream out) throws IOException {
+		Subscriptions.Subscriber subscriber = subscriptions.subscribe(ids);
+		try {
+			out.write(": subscribed\n\n".getBytes(StandardCharsets.UTF_8));
+			long replayed = since; // changes up to this stamp were sent from the log
+			if (since != -1) {
+				long latest = changes.latest();
+				List<ChangeLog.Change> log = changes.since(since);
+				if (log == null) {
+					writeEvent(out, changes.cursor(latest), "reset", null);
+					replayed = latest;
+				} else {
+					for (ChangeLog.Change change : lastChanges(log, ids)) {
+						WeatherNode node = change.getOp() == ChangeLog.PUT ? weather.get(change.getId()) : null;
+						writeEvent(out, changes.cursor(change.getLamport()), node == null ? "delete" : "put",
+								node == null ? change.getId() : node.getData());
+					}
+					if (!log.isEmpty()) {
+						replayed = log.get(log.size() - 1).getLamport();
+					}
+				}
+			}
+			out.flush();
+			while (!subscriber.isClosed()) {
+				Subscriptions.Event event = subscriber.next(SSE_HEARTBEAT_MILLIS);
+				long dropped = subscriber.takeDropped();
+				if (dropped > 0) {
+					writeEvent(out, null, "dropped", Long.toString(dropped));
+				}
+				if (event != null && event.getLamport() > replayed) {
+					writeEvent(out, changes.cursor(event.getLamport()), event.getType(),
+							event.getData() != null ? event.getData() : event.getId());
+				} else if (event == null && !subscriber.isClosed()) {
+					out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+				}
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			subscriber.close();
 		}
-		System.out.println("Server has been stopped.");
 	}
 
 	/**
-	 * Loads weather data from backup file into the weather map.
-	 * Each entry in the file corresponds to a weather station's data,
-	 * formatted to allow reconstruction of `WeatherNode` objects.
+	 * Writes one Server-Sent Event, with a data line for each line of data.
 	 */
-	protected static void loadBackup() {
-		try (BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE))) {
-			StringBuilder weatherJson = new StringBuilder();
-			String stationId = null;
-			String line;
-			boolean inEntry = false;
+	private static void writeEvent(OutputStream out, String id, String type, String data) throws IOException {
+		StringBuilder event = new StringBuilder();
+		if (id != null) {
+			event.append("id: ").append(id).append('\n');
+		}
+		event.append("event: ").append(type).append('\n');
+		for (String line : (data == null ? "" : data).split("\r?\n")) {
+			event.append("data: ").append(line).append('\n');
+		}
+		out.write(event.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+	}
 
-			while ((line = reader.readLine()) != null) {
-				line = line.trim();
+	/**
+	 * Processes GET /replication/stream, which a replica keeps open to follow
+	 * this server. Parameters:
+	 * - since: change log cursor of the last change the replica applied, or -1
+	 * for a snapshot
+	 * - heartbeat: milliseconds between heartbeats when idle (default 1000)
+	 * The body is a stream of replication records, see Replicator. Their stamps
+	 * belong to the change log epoch in the Change-Epoch header.
+	 * 
+	 * @param request The GET request, with its Lamport clock already synced.
+	 * @return response to send back to the replica
+	 */
+	protected HttpResponse processReplicationStream(HttpRequest request) {
+		long since;
+		long heartbeat;
+		try {
+			String sinceParam = request.getQueryParam("since");
+			since = sinceParam == null || sinceParam.equals("-1") ? -1 : changes.stampOf(sinceParam);
+			String heartbeatParam = request.getQueryParam("heartbeat");
+			heartbeat = heartbeatParam == null ? 1000 : Long.parseLong(heartbeatParam);
+		} catch (NumberFormatException e) {
+			return new HttpResponse(400);
+		}
+		if (heartbeat <= 0 || request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+			return new HttpResponse(400);
+		}
+		System.out.println("Replicating to a replica after " + since);
+		return new HttpResponse(200)
+				.header("Content-Type", "text/plain")
+				.header("Cache-Control", "no-cache")
+				.header("Change-Epoch", Long.toString(changes.getEpoch()))
+				.stream(out -> sendReplication(since, heartbeat, out))
+				.header("Lamport-Clock", lamport.increment());
+	}
 
-				if (line.equals("BEGIN_ENTRY")) {
-					inEntry = true;
-					weatherJson.setLength(0);
-				} else if (line.equals("END_ENTRY")) {
-					inEntry = false;
-					WeatherNode node = WeatherNode.toWeatherNode(weatherJson.toString());
-					stationId = JsonParser.getId(node.getData());
-					weather.put(stationId, node);
-				} else if (inEntry) {
-					weatherJson.append(line).append("\n");
+	/**
+	 * Writes the replication stream until the replica goes away or the server
+	 * stops: the changes after since, or a snapshot, then each change as it is
+	 * published. A replica whose queue overflowed is sent a new snapshot.
+	 */
+	private void sendReplication(long since, long heartbeat, OutputStream out) throws IOException {
+		Subscriptions.Subscriber subscriber = subscriptions.subscribe(null);
+		replicaStreams.incrementAndGet();
+		try {
+			long replayed = replicateSince(since, out);
+			Replicator.writeHeartbeat(out, changes.latest());
+			out.flush();
+			while (!subscriber.isClosed()) {
+				Subscriptions.Event event = subscriber.next(heartbeat);
+				if (subscriber.takeDropped() > 0) {
+					replayed = replicateSince(-1, out); // missed changes, start over
+				} else if (event != null && event.getLamport() > replayed) {
+					replicateChange(out, event.getLamport(), event.getId(), event.getType().equals("put"));
+				} else if (event == null && !subscriber.isClosed()) {
+					Replicator.writeHeartbeat(out, changes.latest());
 				}
+				out.flush();
 			}
-			System.out.println("Weather data loaded from backup");
-		} catch (Exception e) {
-			System.err.println("Failed to load weather data from back up: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			replicaStreams.decrementAndGet();
+			subscriber.close();
 		}
 	}
 
 	/**
-	 * Updates backup file with the current weather data from the weather map.
-	 * This will be called after any changes made on weather map stored in
-	 * Aggregation Server.
+	 * Writes the changes after since from the change log, or a snapshot of the
+	 * weather map if the log no longer reaches back to since (or since is -1).
+	 * 
+	 * @return the stamp the replica is brought up to
 	 */
-	protected static void updateBackup() {
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(DATA_FILE))) {
-			Set<String> keys = weather.keySet();
+	private static long replicateSince(long since, OutputStream out) throws IOException {
+		// read before the map, so the data sent is at least as new as the stamp
+		long latest = changes.latest();
+		List<ChangeLog.Change> log = since < 0 ? null : changes.since(since);
+		if (log == null) {
+			Map<String, WeatherNode> stations = new LinkedHashMap<>(weather);
+			Replicator.writeSnapshot(out, latest, stations.size());
+			for (Map.Entry<String, WeatherNode> station : stations.entrySet()) {
+				Replicator.writePut(out, latest, station.getKey(), station.getValue());
+			}
+			return latest;
+		}
+		for (ChangeLog.Change change : lastChanges(log, null)) {
+			replicateChange(out, change.getLamport(), change.getId(), change.getOp() == ChangeLog.PUT);
+		}
+		return log.isEmpty() ? since : log.get(log.size() - 1).getLamport();
+	}
+
+	/**
+	 * Writes one change, sending a put with the station's current data (a
+	 * put removed since is sent as a removal, which follows in the log).
+	 */
+	private static void replicateChange(OutputStream out, long stamp, String id, boolean put) throws IOException {
+		WeatherNode node = put ? weather.get(id) : null;
+		if (node != null) {
+			Replicator.writePut(out, stamp, id, node);
+		} else {
+			Replicator.writeRemove(out, stamp, id);
+		}
+	}
+
+	/**
+	 * Processes PUT /replication/promote, which stops a replica following its
+	 * primary so it accepts PUTs itself. A primary is left as it is.
+	 * 
+	 * @return the replication status after the promotion
+	 */
+	protected HttpResponse processPromote() {
+		Replicator following = replicator;
+		if (following != null) {
+			replicator = null; // accept PUTs from now on
+			following.close();
+			System.out.println("Promoted to primary, was replicating from " + following.getPrimary());
+		}
+		return replicationStatus();
+	}
+
+	/**
+	 * Builds the replication status, for GET /replication/status: the server's
+	 * role, and for a replica its primary, whether it is connected, the
+	 * primary's epoch and last stamp applied, and the replication lag in milliseconds.
+	 */
+	private HttpResponse replicationStatus() {
+		Map<String, String> fields = new LinkedHashMap<>();
+		Replicator following = replicator;
+		if (following == null) {
+			fields.put("role", "primary");
+			fields.put("change_epoch", Long.toString(changes.getEpoch()));
+			fields.put("change_lamport", Long.toString(changes.latest()));
+			fields.put("replicas", Integer.toString(replicaStreams.get()));
+		} else {
+			fields.put("role", "replica");
+			fields.put("primary", following.getPrimary());
+			fields.put("connected", Boolean.toString(following.isConnected()));
+			fields.put("primary_epoch", Long.toString(following.getEpoch()));
+			fields.put("applied", Long.toString(following.getApplied()));
+			fields.put("primary_lamport", Long.toString(following.getPrimaryLatest()));
+			fields.put("lag_ms", Long.toString(following.getLagMillis()));
+		}
+		fields.put("stations", Integer.toString(weather.size()));
+		return new HttpResponse(200)
+				.header("Content-Type", "application/json")
+				.body(JsonParser.toJson(fields).getBytes(StandardCharsets.UTF_8))
+				.header("Lamport-Clock", lamport.increment());
+	}
+
+	private static boolean isQuery(HttpRequest request) {
+		return request.getPath().equals("/weather.json") && (request.getQueryParam("state") != null
+				|| request.getQueryParam("bbox") != null || request.getQueryParam("limit") != null
+				|| request.getQueryParam("cursor") != null);
+	}
 
-			for (String key : keys) {
-				String weatherData = weather.get(key).toFileFormat();
-				if (weatherData != null) {
-					writer.write(weatherData);
+	/**
+	 * Processes a filtered GET /weather.json query from the secondary indexes,
+	 * so the work done is proportional to the stations returned. Parameters:
+	 * - state: only stations in this state
+	 * - bbox: only stations within "lat1,lon1,lat2,lon2"
+	 * - limit: most stations returned; if more match, the Next-Cursor header
+	 * holds the cursor of the next page
+	 * - cursor: continue after the last station of the previous page
+	 * Stations are returned in id order. Invalid parameters get 400 Bad Request.
+	 * 
+	 * @param request The GET request, with its Lamport clock already synced.
+	 * @return response to send back to the client
+	 */
+	protected HttpResponse processQuery(HttpRequest request) {
+		StationIndex.Box box = null;
+		int limit = Integer.MAX_VALUE - 1;
+		try {
+			String bbox = request.getQueryParam("bbox");
+			if (bbox != null) {
+				box = StationIndex.Box.parse(bbox);
+			}
+			String limitParam = request.getQueryParam("limit");
+			if (limitParam != null) {
+				limit = Integer.parseInt(limitParam);
+				if (limit <= 0 || limit == Integer.MAX_VALUE) {
+					return new HttpResponse(400);
 				}
 			}
+		} catch (IllegalArgumentException e) {
+			return new HttpResponse(400);
+		}
+		String cursor = request.getQueryParam("cursor");
+		if (cursor != null && cursor.isEmpty()) {
+			cursor = null;
+		}
+
+		// one more than the limit tells whether there is a next page
+		List<String> ids = index.query(request.getQueryParam("state"), box, cursor, limit + 1);
+		Map<String, WeatherNode> page = new LinkedHashMap<>();
+		String last = null;
+		for (String id : ids.subList(0, Math.min(limit, ids.size()))) {
+			WeatherNode node = weather.get(id);
+			if (node != null) { // else removed since the index was read
+				page.put(id, node);
+			}
+			last = id;
+		}
+		String next = ids.size() > limit ? last : null;
+		byte[] data = ResponseCache.build(page);
+		System.out.println("Sending " + page.size() + " stations matching query");
 
-			System.out.println("Weather data saved to backup.");
-		} catch (IOException e) {
-			System.err.println("Failed to save weather data to back up: ");
+		HttpResponse response = new HttpResponse(200)
+				.header("Content-Type", "application/json")
+				.body(data);
+		if (next != null) {
+			response.header("Next-Cursor", next);
 		}
+		return response.header("Lamport-Clock", lamport.increment());
 	}
 
 	/**
-	 * Manages content servers by checking for outdated weather data.
-	 * Weather data entries expire if they haven't been updated for 30 seconds.
+	 * Processes a PUT request, updates lamport and builds the response with the
+	 * appropriate HTTP status code:
+	 * - 204 No Content: if the request has no content
+	 * - 500 Internal Server Error: if Lamport clock is missing or error occurs
+	 * - 201 Created: if the entry is new and successfully created
+	 * - 200 OK: if the entry is updated successfully
+	 * 
+	 * @param request The PUT request, including its body.
+	 * @return response to send back to the client
 	 */
-	public static void manageContentServers() {
-		while (true) {
-			try {
-				Thread.sleep(1000);
-				long currentTime = System.currentTimeMillis();
-				for (String id : weather.keySet()) {
-					long lastUpdate = weather.get(id).getLastUpdate();
-					// check if data expired (30 seconds)
-					if (currentTime - lastUpdate > EXPIRATION_TIME) {
-						weather.remove(id);
-						updateBackup();
-						System.out.println("Removed outdated weather data: " + id);
-					}
-				}
-			} catch (InterruptedException e) {
-				System.err.println("Manage Content Servers interrupted: " + e.getMessage());
-				Thread.currentThread().interrupt();
-				break;
+	public HttpResponse processPut(HttpRequest request) {
+		int contentLength;
+		int receivedLamportValue;
+		try {
+			contentLength = request.getIntHeader("Content-Length", 0);
+			receivedLamportValue = request.getIntHeader("Lamport-Clock", 0);
+		} catch (NumberFormatException e) {
+			return new HttpResponse(500);
+		}
+		int timestamp = receivedLamportValue != 0 ? lamport.sync(receivedLamportValue) : lamport.getTimestamp();
+
+		// return 204 if no content is provided
+		if (contentLength == 0) {
+			return new HttpResponse(204).header("Lamport-Clock", lamport.increment());
+		}
+
+		// return 500 if lamport is missing
+		if (receivedLamportValue == 0) {
+			return new HttpResponse(500);
+		}
+
+		String jsonData = request.getBody();
+		try {
+			// parse once; the typed observation is what gets stored
+			Observation observation = Observation.parse(jsonData);
+			if (observation == null || observation.getId() == null) {
+				return new HttpResponse(500);
 			}
+			WeatherNode node = new WeatherNode(observation, jsonData, timestamp, System.currentTimeMillis());
+			boolean isNewEntry = putStation(observation.getId(), node) == null;
+
+			// increment lamport before sending message
+			// return 201 for first-time connection, 200 for request success
+			return new HttpResponse(isNewEntry ? 201 : 200).header("Lamport-Clock", lamport.increment());
+		} catch (Exception e) {
+			return new HttpResponse(500);
 		}
 	}
 
 	/**
-	 * Manages outdated data by removing entries based on their Lamport order.
-	 * If the number of entries exceeds 20, it removes the oldest entry based on
-	 * the smallest Lamport clock value.
+	 * Processes a batch PUT request holding many stations' weather data, as a
+	 * JSON array of objects or as NDJSON (one object per line). All valid
+	 * objects are applied and persisted together, with one Lamport timestamp.
+	 * If the batch takes the server over capacity, the oldest data is evicted
+	 * as for single PUTs; stations at the same Lamport timestamp, such as the
+	 * whole batch, are evicted in station id order, smallest first.
+	 * The response status is:
+	 * - 204 No Content: if the request has no content
+	 * - 500 Internal Server Error: if Lamport clock is missing, the body is not a
+	 * batch of JSON objects or the changes cannot be persisted
+	 * - 200 OK: otherwise, with a JSON array giving each object's index, id and
+	 * status: 201 if the station is new, 200 if it was updated, 507 if it was
+	 * stored but evicted again to stay within capacity, 500 if the object is
+	 * invalid or has no id
+	 * 
+	 * @param request The PUT request, including its body.
+	 * @return response to send back to the client
 	 */
-	public static void manageOutdatedData() {
-		while (true) {
-			try {
-				Thread.sleep(1000);
-
-				// only stores 20 data in aggregation server
-				if (weather.size() > 20) {
-					String outdatedData = null;
-					int smallestLamportValue = Integer.MAX_VALUE;
-
-					for (String id : weather.keySet()) {
-						// remove oldest data, based on its lamport value
-						int lamportValue = weather.get(id).getLamport();
-						if (lamportValue < smallestLamportValue) {
-							smallestLamportValue = lamportValue;
-							outdatedData = id;
-						}
-					}
+	public HttpResponse processBatchPut(HttpRequest request) {
+		int contentLength;
+		int receivedLamportValue;
+		try {
+			contentLength = request.getIntHeader("Content-Length", 0);
+			receivedLamportValue = request.getIntHeader("Lamport-Clock", 0);
+		} catch (NumberFormatException e) {
+			return new HttpResponse(500);
+		}
+		int timestamp = receivedLamportValue != 0 ? lamport.sync(receivedLamportValue) : lamport.getTimestamp();
 
-					if (outdatedData != null) {
-						weather.remove(outdatedData);
-						updateBackup();
-						System.out.println("Removed oldest weather data due to size limit: " + outdatedData);
-					}
+		if (contentLength == 0) {
+			return new HttpResponse(204).header("Lamport-Clock", lamport.increment());
+		}
+		if (receivedLamportValue == 0) {
+			return new HttpResponse(500);
+		}
+
+		try {
+			List<String> objects = JsonParser.splitObjects(request.getBody());
+			List<Map<String, String>> results = new ArrayList<>(objects.size());
+			List<String> ids = new ArrayList<>(objects.size());
+			List<WeatherNode> nodes = new ArrayList<>(objects.size());
+			List<Map<String, String>> applied = new ArrayList<>(objects.size()); // results of ids, in order
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < objects.size(); i++) {
+				String jsonData = objects.get(i);
+				Map<String, String> result = new LinkedHashMap<>();
+				result.put("index", Integer.toString(i));
+				results.add(result);
+				Observation observation = Observation.parse(jsonData);
+				if (observation == null || observation.getId() == null) {
+					result.put("status", "500");
+					continue;
+				}
+				result.put("id", observation.getId());
+				ids.add(observation.getId());
+				nodes.add(new WeatherNode(observation, jsonData, timestamp, now));
+				applied.add(result);
+			}
+
+			Set<String> evicted = new HashSet<>();
+			List<WeatherNode> previous = putStations(ids, nodes, evicted);
+			int kept = 0;
+			for (int i = 0; i < applied.size(); i++) {
+				if (evicted.contains(ids.get(i))) {
+					applied.get(i).put("status", "507");
+				} else {
+					applied.get(i).put("status", previous.get(i) == null ? "201" : "200");
+					kept++;
 				}
-			} catch (InterruptedException e) {
-				System.err.println("Manage outdated data interrupted: " + e.getMessage());
-				Thread.currentThread().interrupt();
-				break;
 			}
+			System.out.println("Stored " + kept + " of " + objects.size() + " stations in batch");
+
+			return new HttpResponse(200)
+					.header("Content-Type", "application/json")
+					.body(JsonParser.toJsonArray(results).getBytes(StandardCharsets.UTF_8))
+					.header("Lamport-Clock", lamport.increment());
+		} catch (Exception e) {
+			return new HttpResponse(500);
 		}
 	}
 
 	/**
 	 * ClientHandler class to handle individual client connections.
+	 * 
+	 * Works on bytes: requests are read into a per-connection buffer and
+	 * parsed by an HttpRequestParser (Content-Length counts bytes, so multi-byte
+	 * UTF-8 bodies are read whole), and each response's head and body are
+	 * assembled in a per-connection buffer and sent with one write. Both
+	 * buffers are reused for every request on the connection.
 	 */
 	protected class ClientHandler implements Runnable {
+		protected static final int READ_BUFFER_BYTES = 8 * 1024;
+		protected static final int MAX_GATHERED_BYTES = 1024 * 1024; // larger bodies are sent with a second write
+
 		protected Socket clientSocket;
-		protected BufferedReader in;
-		protected PrintWriter out;
+		protected InputStream in; // raw socket input
+		protected OutputStream out; // raw socket output
 		protected AggregationServer server;
+		protected int handled = 0; // requests handled on this connection
+		private final HttpRequestParser parser = new HttpRequestParser();
+		private final byte[] readBuffer = new byte[READ_BUFFER_BYTES];
+		private byte[] writeBuffer = new byte[0]; // grown to the largest response sent, up to MAX_GATHERED_BYTES
+		private boolean handedOff = false; // connection passed to the stream executor, which closes it
 
 		/**
 		 * Constructs a ClientHandler for handling client connections.
@@ -204,262 +1691,225 @@ public class AggregationServer {
 		public ClientHandler(Socket clientSocket, AggregationServer server) throws IOException {
 			this.server = server;
 			this.clientSocket = clientSocket;
-			this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			this.out = new PrintWriter(clientSocket.getOutputStream(), true);
+			this.in = clientSocket.getInputStream();
+			this.out = clientSocket.getOutputStream();
 		}
 
+		/**
+		 * Serves requests on the connection until the client closes it, asks for
+		 * it to be closed, stays idle longer than the keep-alive timeout or reaches
+		 * the per-connection request limit. Pipelined requests are answered in
+		 * order.
+		 */
 		@Override
 		public void run() {
 			try {
-				String requestLine = in.readLine();
-				if (requestLine == null || requestLine.trim().isEmpty()) {
-					sendStatusCode(400); // bad request
-					this.clientSocket.close();
-					return;
-				}
-
-				String method = requestLine.split(" ")[0].trim();
-
-				// PUT
-				if (method.equalsIgnoreCase("PUT")) {
-					handlePutRequest();
-				}
-				// GET
-				else if (method.equalsIgnoreCase("GET")) {
-					handleGetRequest(requestLine);
-				} else {
-					// send 400 for invalid/unsupported method
-					System.out.println("Invalid method");
-					sendStatusCode(400);
+				this.clientSocket.setSoTimeout(server.keepAliveTimeout);
+				while (serveNext()) {
+					// keep serving the persistent connection
 				}
+			} catch (SocketTimeoutException e) {
+				// idle persistent connection, close it
 			} catch (IOException e) {
 				System.err.println("I/O Exception handles client request: " + e.getMessage());
 			} finally {
-				try {
-					this.clientSocket.close();
-				} catch (IOException e) {
-					System.err.println("Failed to close client socket" + e.getMessage());
+				if (!handedOff) {
+					close();
 				}
 			}
 		}
 
-		/**
-		 * Sends the appropriate HTTP status code based on the provided code.
-		 * 
-		 * @param code The HTTP status code to send.
-		 */
-		public void sendStatusCode(int code) {
-			switch (code) {
-				case 200:
-					out.println("HTTP/1.1 200 OK");
-					break;
-				case 201:
-					out.println("HTTP/1.1 201 Created");
-					break;
-				case 204:
-					out.println("HTTP/1.1 204 No Content");
-					break;
-				case 400:
-					out.println("HTTP/1.1 400 Bad Request");
-					break;
-				case 404:
-					out.println("HTTP/1.1 404 Not Found");
-					break;
-				case 500:
-					out.println("HTTP/1.1 500 Internal Server Error");
-					break;
-				default:
-					break;
+		private void close() {
+			try {
+				this.clientSocket.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close client socket" + e.getMessage());
 			}
-			out.flush();
 		}
 
 		/**
-		 * Handles a GET request from the client.
+		 * Reads the next request on the connection and sends its response.
 		 * 
-		 * This will process a GET request from clients, update lamport value and sends
-		 * corresponding response with appropriate HTTP status code.
-		 * - 200 OK: data retrieved successfully
-		 * - 404 Not Found: data the requested station ID does not exist
-		 * - 500 Internal Server Error: if the Lamport clock header is missing or an
-		 * error occurs
-		 * 
-		 * @param requestLine request line from the client containing the GET
-		 *                    request details.
+		 * @return true if the connection should stay open for another request
 		 * @throws IOException if an I/O error occurs while reading the request.
 		 */
-		public synchronized void handleGetRequest(String requestLine) throws IOException {
-			System.out.println("Handling GET Request");
+		protected boolean serveNext() throws IOException {
+			HttpRequest request;
 			try {
-				StringBuilder data = new StringBuilder();
-				String stationId = null;
-				int receivedLamportValue = 0;
-				// get stationId if given
-				if (requestLine.startsWith("GET /weather.json")) {
-					String[] parts = requestLine.split("\\?id=");
-					if (parts.length > 1) {
-						stationId = parts[1].split(" ")[0].trim();
-					}
-				}
-
-				String headerLine;
-				while (!(headerLine = in.readLine()).isEmpty()) {
-					if (headerLine.startsWith("Lamport-Clock:")) {
-						receivedLamportValue = Integer.parseInt(headerLine.split(":")[1].trim());
-						// lock lamport to ensure mutual exclusion
-						synchronized (server.clockLock) {
-							server.lamport.sync(receivedLamportValue);
-						}
-					}
-				}
-				// send 500 if lamport clock not provided
-				if (receivedLamportValue == 0) {
-					sendStatusCode(500);
-					return;
-				}
-
-				if (stationId != null) {
-					// retrieve data with given stationId
-					if (!weather.isEmpty()) {
-						WeatherNode node = weather.get(stationId);
-						if (node == null) {
-							sendStatusCode(404); // return 404 if data not found
-							return;
-						}
-						data.append(node.getData());
-					} else {
-						sendStatusCode(404);
-						return;
-					}
-				} else if (!weather.isEmpty()) {
-					// retrieve all data if stationId not specified
-					data.append("[\n");
-					int dataCount = 0;
-					for (WeatherNode node : weather.values()) {
-						if (dataCount > 0) {
-							data.append(",\n");
-						}
-						data.append(node.getDataFormatted());
-						dataCount++;
-					}
-					data.append("\n]\n");
-				} else {
-					// return empty array if weather map is empty
-					data.append("[]\n");
-				}
-
-				System.out.println(data);
-
-				// lock lamport to ensure mutual exclusion
-				synchronized (server.clockLock) {
-					server.lamport.increment(); // increment lamport
-					// send the response
-					sendStatusCode(200);
-					out.println("Content-Type: application/json");
-					out.println("Content-Length: " + data.length());
-					out.println("Lamport-Clock: " + server.lamport.getTimestamp());
-					out.println();
-					out.println(data);
+				request = readRequest();
+			} catch (IllegalArgumentException e) {
+				sendResponse(new HttpResponse(400).header("Connection", "close")); // malformed request
+				return false;
+			}
+			if (request == null) {
+				if (handled == 0) {
+					sendResponse(new HttpResponse(400).header("Connection", "close")); // bad request
 				}
-			} catch (Exception e) {
-				sendStatusCode(500);
+				return false;
 			}
+			System.out.println("Handling " + request.getMethod() + " Request");
+			if (server.isLongLived(request)) {
+				handedOff = handOff(request);
+				return false;
+			}
+			return respond(request, server.handleRequest(request));
 		}
 
 		/**
-		 * Handles a PUT request from the client.
-		 * 
-		 * This method reads PUT request from client, updates lamport and sends response
-		 * back to client. This will respond with appropriate HTTP status codes:
-		 * - 204 No Content: if the request has no content
-		 * - 500 Internal Server Error: if Lamport clock is missing or error occurs
-		 * - 201 Created: if the entry is new and successfully created
-		 * - 200 OK: if the entry is updated successfully
+		 * Passes a long-lived request to the stream executor, which answers it
+		 * and then closes the connection, so the connection worker is free for
+		 * other connections. Answers 503 Service Unavailable when the stream
+		 * executor is full.
 		 * 
-		 * @throws IOException if an I/O error occurs while reading the request.
+		 * @param request The long-lived request.
+		 * @return true if the stream executor took the connection
 		 */
-		public synchronized void handlePutRequest() throws IOException {
-			int contentLength = 0;
-			int receivedLamportValue = 0;
-			String headerLine;
-
-			while (!(headerLine = in.readLine()).isEmpty()) {
-				if (headerLine.startsWith("Content-Length:")) {
-					contentLength = Integer.parseInt(headerLine.split(":")[1].trim());
-				}
-				if (headerLine.startsWith("Lamport-Clock:")) {
-					receivedLamportValue = Integer.parseInt(headerLine.split(":")[1].trim());
-					synchronized (server.clockLock) {
-						server.lamport.sync(receivedLamportValue);
+		protected boolean handOff(HttpRequest request) {
+			try {
+				server.streamExecutor.execute(() -> {
+					try {
+						handled++;
+						sendResponse(server.handleRequest(request).header("Connection", "close"));
+					} finally {
+						close();
 					}
-				}
+				});
+				return true;
+			} catch (RejectedExecutionException e) {
+				System.out.println("Too many streams, rejecting request");
+				handled++;
+				sendResponse(new HttpResponse(503).header("Retry-After", 1).header("Connection", "close"));
+				return false;
 			}
+		}
 
-			// return 204 if no content is provided
-			if (contentLength == 0) {
-				synchronized (server.clockLock) {
-					server.lamport.increment();
-					sendStatusCode(204);
-					out.println("Lamport-Clock: " + server.lamport.getTimestamp());
+		/**
+		 * Reads from the socket until the parser has a complete request. Bytes of
+		 * pipelined requests read along with it stay in the parser.
+		 * 
+		 * @return the request, or null if the client closed the connection first
+		 * @throws IOException              if an I/O error occurs while reading.
+		 * @throws IllegalArgumentException if the request is malformed.
+		 */
+		protected HttpRequest readRequest() throws IOException {
+			HttpRequest request;
+			while ((request = parser.next()) == null) {
+				int read = in.read(readBuffer);
+				if (read < 0) {
+					return null; // an incomplete request is dropped
 				}
-				return;
+				parser.feed(ByteBuffer.wrap(readBuffer, 0, read));
 			}
+			return request;
+		}
 
-			// return 500 if lamport is missing
-			if (receivedLamportValue == 0) {
-				sendStatusCode(500);
-				return;
+		/**
+		 * Rejects the connection with 503 Service Unavailable and closes it. Used
+		 * when the server is at its connection limit.
+		 */
+		public void reject() {
+			System.out.println("Server busy, rejecting connection");
+			sendResponse(new HttpResponse(503).header("Retry-After", 1).header("Connection", "close"));
+			try {
+				this.clientSocket.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close client socket" + e.getMessage());
 			}
+		}
 
-			// read the request body (jsonData), based on content-length
-			char[] bodyChars = new char[contentLength];
-			in.read(bodyChars, 0, contentLength);
-			String jsonData = new String(bodyChars);
+		/**
+		 * Sends a full response: status line, headers and body. The head and
+		 * body are copied into the connection's write buffer and sent with one
+		 * write, unless the body is larger than MAX_GATHERED_BYTES, which is
+		 * written after the head without copying. A streamed body is written in
+		 * chunks as it is produced, the first one along with the head.
+		 * 
+		 * @param response The response to send.
+		 */
+		public void sendResponse(HttpResponse response) {
 			try {
-				String jsonId = JsonParser.getId(jsonData);
-				boolean isNewEntry = !weather.containsKey(jsonId);
-				weather.put(jsonId,
-						new WeatherNode(jsonData, server.lamport.getTimestamp(), System.currentTimeMillis()));
-				updateBackup();
-
-				// lock lamport to ensure mutual exclusion
-				synchronized (server.clockLock) {
-					server.lamport.increment(); // increment lamport before sending message
-					if (isNewEntry) {
-						sendStatusCode(201); // return 201 for first-time connection
-					} else {
-						sendStatusCode(200); // return 200 for request success
+				byte[] head = response.headBytes();
+				if (response.isStreamed()) {
+					BufferedOutputStream buffered = new BufferedOutputStream(out, HttpResponse.CHUNK_BYTES + 16);
+					buffered.write(head);
+					response.writeBody(buffered);
+					buffered.flush();
+					return;
+				}
+				byte[] body = response.getBodyBytes();
+				int length = head.length + body.length;
+				if (length <= MAX_GATHERED_BYTES) {
+					if (writeBuffer.length < length) {
+						writeBuffer = new byte[Math.min(MAX_GATHERED_BYTES, Math.max(length, writeBuffer.length * 2))];
 					}
-					out.println("Lamport-Clock: " + server.lamport.getTimestamp());
+					System.arraycopy(head, 0, writeBuffer, 0, head.length);
+					System.arraycopy(body, 0, writeBuffer, head.length, body.length);
+					out.write(writeBuffer, 0, length);
+				} else {
+					out.write(head);
+					out.write(body);
 				}
-
-			} catch (Exception e) {
-				sendStatusCode(500);
-
+				out.flush();
+			} catch (IOException e) {
+				System.err.println("Failed to send response: " + e.getMessage());
 			}
 		}
+
+		/**
+		 * Sends the response to a request, with Connection headers telling the
+		 * client whether the connection stays open.
+		 * 
+		 * @param request  The request being answered.
+		 * @param response The response to send.
+		 * @return true if the connection should stay open for another request
+		 */
+		protected boolean respond(HttpRequest request, HttpResponse response) {
+			handled++;
+			boolean keepAlive = server.applyConnectionHeaders(request, response, handled);
+			sendResponse(response);
+			return keepAlive;
+		}
 	}
 
 	/**
 	 * The main method to start the AggregationServer.
-	 * Initialises server socket and spawns 3 threads for managing outdated data,
-	 * content servers, and handling client connections.
+	 * Initialises the server and starts two threads: one removing expired
+	 * weather data, and one accepting client connections.
+	 * 
+	 * The "engine" option selects how connections are served: "blocking"
+	 * (default) accepts on a ServerSocket and runs one ClientHandler per
+	 * connection on the connection executor (virtual threads, or a pool of
+	 * workers); "nio" runs the SelectorServer's event loops, which hand each
+	 * request to the connection executor. With either engine, event streams,
+	 * long-polls and replication streams run on the stream executor's threads
+	 * (see isLongLived). The server itself runs the
+	 * persistence stage thread that writes changes, a compaction timer, and on
+	 * a replica the thread following the primary.
 	 * 
 	 * @param args Command line arguments for the server. The first argument
-	 *             specifies the port.
+	 *             specifies the port, followed by "--name=value" options (see
+	 *             ServerConfig).
 	 */
 	public static void main(String[] args) {
 		try {
-			int port = (args.length > 0) ? Integer.parseInt(args[0]) : 4567;
-			ServerSocket serverSocket = new ServerSocket(port);
-
-			// Start aggregation server socket
-			AggregationServer server = new AggregationServer(serverSocket);
+			ServerConfig config = ServerConfig.parse(args);
+			String engine = config.getString("engine", "blocking");
+			Runnable listener;
+			AggregationServer server;
 
-			// Manage outdated data
-			Thread outdatedDataThread = new Thread(() -> {
-				manageOutdatedData();
-			});
+			if (engine.equalsIgnoreCase("nio")) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.bind(new InetSocketAddress(config.getPort()));
+				server = new AggregationServer(channel.socket(), config);
+				SelectorServer selectorServer = new SelectorServer(server, channel, config);
+				listener = selectorServer::listen;
+			} else if (engine.equalsIgnoreCase("blocking")) {
+				// Start aggregation server socket
+				server = new AggregationServer(new ServerSocket(config.getPort()), config);
+				listener = server::listenSocket;
+			} else {
+				throw new IllegalArgumentException("Unknown server engine: " + engine);
+			}
 
 			// Manage outdated data
 			Thread contentThread = new Thread(() -> {
@@ -467,12 +1917,9 @@ public class AggregationServer {
 			});
 
 			// Listen to client sockets
-			Thread clientConnectionThread = new Thread(() -> {
-				server.listenSocket();
-			});
+			Thread clientConnectionThread = new Thread(listener);
 
 			// start multi-threading to handle multiple jobs at the same time
-			outdatedDataThread.start();
 			contentThread.start();
 			clientConnectionThread.start();
 
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded log of recent changes to the weather map, so clients can fetch only
+ * what changed since they last asked (GET /weather.json?since=...).
+ *
+ * Each record is (lamport, id, op), kept in a ring of primitive arrays; once
+ * full, a new record overwrites the oldest and the log is truncated past it.
+ * Records are stamped with strictly increasing Lamport timestamps: a PUT takes
+ * the data's own timestamp unless an earlier record already used it, and a
+ * removal takes the next one. A client passes the last stamp it has seen and
+ * gets the records after it, or null when records it has not seen were
+ * truncated and it needs a full snapshot instead.
+ *
+ * Stamps only order the changes of one log: after a restart the log starts
+ * again from the loaded data's newest Lamport timestamp, below removals that
+ * were stamped before. Clients are therefore given cursors, "epoch-stamp",
+ * where the epoch is chosen anew by each log and each reset(). A cursor from
+ * another epoch is stale and always needs a snapshot; "0" is the start of any
+ * epoch.
+ *
+ * Records are added under the lock that orders changes to the weather map;
+ * reads may come from any thread.
+ */
+public class ChangeLog {
+	protected static final byte PUT = 1;
+	protected static final byte REMOVE = 2;
+	protected static final long STALE = -2; // stamp of a cursor from another epoch
+
+	private final long[] lamports;
+	private final String[] ids;
+	private final byte[] ops;
+	private int start; // index of the oldest record
+	private int count;
+	private long latest; // stamp of the newest record
+	private long truncated; // newest stamp no longer in the log
+	private long epoch; // identifies this log's stamps
+
+	/**
+	 * @param capacity records kept, 0 to keep none
+	 */
+	public ChangeLog(int capacity) {
+		this.lamports = new long[capacity];
+		this.ids = new String[capacity];
+		this.ops = new byte[capacity];
+		newEpoch();
+	}
+
+	/**
+	 * Chooses a new epoch: the current time in milliseconds, so a log after a
+	 * restart does not reuse an epoch, and above the previous one.
+	 */
+	private void newEpoch() {
+		epoch = Math.max(epoch + 1, System.currentTimeMillis());
+	}
+
+	/**
+	 * One change of a station.
+	 */
+	public static class Change {
+		private final long lamport;
+		private final String id;
+		private final byte op;
+
+		Change(long lamport, String id, byte op) {
+			this.lamport = lamport;
+			this.id = id;
+			this.op = op;
+		}
+
+		public long getLamport() {
+			return this.lamport;
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		public byte getOp() {
+			return this.op;
+		}
+	}
+
+	/**
+	 * Appends a record, truncating the oldest if the log is full.
+	 *
+	 * @param id      station id
+	 * @param op      PUT or REMOVE
+	 * @param lamport Lamport timestamp of the data put, or 0 for a removal
+	 * @return the record's stamp
+	 */
+	public synchronized long record(String id, byte op, long lamport) {
+		latest = Math.max(latest + 1, lamport);
+		if (lamports.length == 0) {
+			truncated = latest;
+			return latest;
+		}
+		if (count == lamports.length) {
+			truncated = lamports[start];
+			start = (start + 1) % lamports.length;
+			count--;
+		}
+		int slot = (start + count) % lamports.length;
+		lamports[slot] = latest;
+		ids[slot] = id;
+		ops[slot] = op;
+		count++;
+		return latest;
+	}
+
+	/**
+	 * Empties the log, treating every change up to lamport as truncated. Used
+	 * after loading a backup, whose changes are not in the log.
+	 *
+	 * @param lamport newest Lamport timestamp in the loaded data
+	 */
+	public synchronized void reset(long lamport) {
+		start = 0;
+		count = 0;
+		Arrays.fill(ids, null);
+		latest = Math.max(latest, lamport);
+		truncated = latest;
+		newEpoch(); // stamps handed out before may be reused
+	}
+
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Get the cursor a client passes to resume after a stamp of this log.
+	 *
+	 * @param stamp a stamp of this log
+	 * @return the cursor, "epoch-stamp"
+	 */
+	public synchronized String cursor(long stamp) {
+		return epoch + "-" + stamp;
+	}
+
+	/**
+	 * Get the stamp of a cursor given by a client.
+	 *
+	 * @param cursor "epoch-stamp" as returned by cursor(), or "0" for the start
+	 * @return the stamp, or STALE if the cursor is from another epoch (e.g.
+	 *         before a restart), which since() answers with null
+	 * @throws NumberFormatException if the cursor is not valid
+	 */
+	public synchronized long stampOf(String cursor) {
+		cursor = cursor.trim();
+		int dash = cursor.indexOf('-');
+		if (dash < 0) {
+			if (Long.parseLong(cursor) != 0) {
+				return STALE; // a bare stamp does not say which epoch it is from
+			}
+			return 0;
+		}
+		long cursorEpoch = Long.parseLong(cursor.substring(0, dash));
+		long stamp = Long.parseLong(cursor.substring(dash + 1));
+		if (cursorEpoch < 0 || stamp < 0) {
+			throw new NumberFormatException("Invalid cursor: " + cursor);
+		}
+		return cursorEpoch == epoch ? stamp : STALE;
+	}
+
+	/**
+	 * Get the stamp of the newest change, which a client passes as since to
+	 * get the changes after this point.
+	 */
+	public synchronized long latest() {
+		return latest;
+	}
+
+	/**
+	 * Get the changes after a stamp, oldest first.
+	 *
+	 * @param since last stamp the client has seen, or STALE
+	 * @return the changes, or null if some of them were truncated, or since is
+	 *         ahead of the log or STALE (e.g. from before a restart)
+	 */
+	public synchronized List<Change> since(long since) {
+		if (since < truncated || since > latest) {
+			return null;
+		}
+		// stamps increase, so the first record after since is found by bisection
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (lamports[(start + mid) % lamports.length] <= since) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		List<Change> changes = new ArrayList<>(count - low);
+		for (int i = low; i < count; i++) {
+			int slot = (start + i) % lamports.length;
+			changes.add(new Change(lamports[slot], ids[slot], ops[slot]));
+		}
+		return changes;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+}
@@ -0,0 +1,103 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads an HTTP/1.1 chunked response body (Transfer-Encoding: chunked) as
+ * plain data. Reading stops after the last chunk and its trailer, so the
+ * underlying stream is left at the start of the next response.
+ */
+public class ChunkedInputStream extends InputStream {
+	private final InputStream in;
+	private int remaining; // bytes left in the current chunk
+	private boolean finished;
+
+	/**
+	 * @param in stream positioned at the start of the chunked body
+	 */
+	public ChunkedInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining == 0 && !nextChunk()) {
+			return -1;
+		}
+		int n = in.read(b, off, Math.min(len, remaining));
+		if (n < 0) {
+			throw new IOException("Chunked body ended early");
+		}
+		remaining -= n;
+		if (remaining == 0) {
+			readLine(in); // CRLF after the chunk data
+		}
+		return n;
+	}
+
+	/**
+	 * Reads the next chunk size line.
+	 *
+	 * @return false once the last chunk has been read
+	 */
+	private boolean nextChunk() throws IOException {
+		if (finished) {
+			return false;
+		}
+		String line = readLine(in);
+		if (line == null) {
+			throw new IOException("Chunked body ended early");
+		}
+		int extension = line.indexOf(';');
+		String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+		try {
+			remaining = Integer.parseInt(size, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+		if (remaining < 0) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+		if (remaining == 0) {
+			String trailer;
+			while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+				// trailer headers are not used
+			}
+			finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a line of an HTTP head or chunked body byte by byte, so nothing
+	 * after the line is consumed from the stream.
+	 *
+	 * @param in stream to read from
+	 * @return the line without its CRLF (or LF), or null at the end of the
+	 *         stream
+	 * @throws IOException if the stream cannot be read
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			line.write(b);
+		}
+		if (b < 0 && line.size() == 0) {
+			return null;
+		}
+		String text = line.toString(StandardCharsets.UTF_8);
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes an HTTP/1.1 chunked response body (Transfer-Encoding: chunked).
+ *
+ * Data is collected in a fixed-size buffer and sent as one chunk whenever the
+ * buffer is full, so a body of any size is streamed with bounded memory.
+ * close() sends the last chunk and flushes, but leaves the underlying stream
+ * open for the next response on the connection.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final byte[] buffer;
+	private int count;
+	private boolean closed;
+
+	/**
+	 * @param out        stream the encoded body is written to
+	 * @param bufferSize largest chunk sent, in bytes
+	 */
+	public ChunkedOutputStream(OutputStream out, int bufferSize) {
+		super(out);
+		this.buffer = new byte[bufferSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (closed) {
+			throw new IOException("Chunked stream closed");
+		}
+		if (count == buffer.length) {
+			writeChunk();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Chunked stream closed");
+		}
+		while (len > 0) {
+			if (count == buffer.length) {
+				writeChunk();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends the buffered data as a chunk and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Sends the buffered data and the last chunk. The underlying stream is
+	 * flushed, not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		closed = true;
+	}
+
+	private void writeChunk() throws IOException {
+		if (count == 0) {
+			return; // an empty chunk would end the body
+		}
+		out.write(Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		out.write(buffer, 0, count);
+		out.write(CRLF);
+		count = 0;
+	}
+}
@@ -3,9 +3,18 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class ContentServer {
-	protected static LamportClock lamport;
+	protected static LamportClock lamport = new LamportClock();
 	protected Socket contentSocket;
 
 	// constructor
@@ -46,7 +55,9 @@ public class ContentServer {
 	}
 
 	/**
-	 * Reads a file and converts it into a json formatted string.
+	 * Reads a file and converts it into a json formatted string. Each line is a
+	 * "key: value" pair split at its first colon, so values may contain colons;
+	 * lines without a key are skipped.
 	 * 
 	 * @param filepath path of file to read
 	 * @return JSON-formatted string of the file contents
@@ -54,28 +65,28 @@ public class ContentServer {
 	public static String convertToJSON(String filepath) {
 		// read file into LinkedHashMap
 		Map<String, String> jsonMap = new LinkedHashMap<>();
-		try {
-			File myObj = new File(filepath);
-			Scanner myReader = new Scanner(myObj);
-
-			while (myReader.hasNextLine()) {
-				String line = myReader.nextLine();
-				String[] parts = line.split(":");
-				if (parts.length == 2) {
-					String key = parts[0].trim();
-					String value = parts[1].trim();
-					jsonMap.put(key, value);
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(filepath), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					String key = line.substring(0, colon).trim();
+					if (!key.isEmpty()) {
+						jsonMap.put(key, line.substring(colon + 1).trim());
+					}
 				}
 			}
 			// return "" if file is empty/invalid form
 			if (jsonMap.isEmpty()) {
 				return "";
 			}
-			myReader.close();
 
-		} catch (FileNotFoundException e) {
+		} catch (NoSuchFileException e) {
 			System.err.println("File not Found: " + e.getMessage());
 			return "";
+		} catch (IOException e) {
+			System.err.println("Failed to read file: " + e.getMessage());
+			return "";
 		}
 
 		// Convert to JSON
@@ -93,16 +104,23 @@ public class ContentServer {
 	 * @param jsonString json formatted string to be sent to the server
 	 */
 	public void sendPutRequest(String jsonString) throws IOException {
+		sendPut("/weather.json", jsonString);
+	}
 
-		PrintWriter out = new PrintWriter(contentSocket.getOutputStream(), true);
-		lamport.increment();
-		// Format PUT request
-		String request = "PUT /weather.json HTTP/1.1\r\n" +
-				"User-Agent: ATOMClient/1/0\r\n" +
-				"Content-Type: application/json\r\n" +
-				"Content-Length: " + jsonString.length() + "\r\n" +
-				"Lamport-Clock: " + lamport.getTimestamp() + "\r\n\r\n" +
-				jsonString;
+	/**
+	 * Sends the weather data of several stations in one batch PUT request, as a
+	 * JSON array. The server answers with the status of each station.
+	 * 
+	 * @param jsonObjects json formatted strings, one per station
+	 */
+	public void sendBatchPutRequest(List<String> jsonObjects) throws IOException {
+		sendPut("/weather/batch", jsonObjects.isEmpty() ? "" : "[\n" + String.join(",\n", jsonObjects) + "\n]");
+	}
+
+	private void sendPut(String path, String jsonString) throws IOException {
+		PrintWriter out = new PrintWriter(
+				new OutputStreamWriter(contentSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+		String request = buildPutRequest(path, jsonString);
 
 		System.out.println(request);
 		System.out.println("\n");
@@ -114,6 +132,23 @@ public class ContentServer {
 		out.close();
 	}
 
+	/**
+	 * Formats a PUT request, ticking the Lamport clock for it.
+	 * 
+	 * @param path       request path
+	 * @param jsonString request body
+	 * @return the complete request
+	 */
+	protected static String buildPutRequest(String path, String jsonString) {
+		lamport.increment();
+		return "PUT " + path + " HTTP/1.1\r\n" +
+				"User-Agent: ATOMClient/1/0\r\n" +
+				"Content-Type: application/json\r\n" +
+				"Content-Length: " + jsonString.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+				"Lamport-Clock: " + lamport.getTimestamp() + "\r\n\r\n" +
+				jsonString;
+	}
+
 	/**
 	 * Reads and processes the server's response, updating the Lamport clock if
 	 * necessary.
@@ -126,15 +161,19 @@ public class ContentServer {
 			if (inputStream == null) {
 				throw new IOException("Input stream is null");
 			}
-			BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
+			InputStream in = new BufferedInputStream(inputStream);
 
 			String responseLine;
+			int contentLength = -1; // body runs until the server closes if not given
 
-			while ((responseLine = in.readLine()) != null) {
+			while ((responseLine = ChunkedInputStream.readLine(in)) != null) {
 				System.out.println(responseLine);
 				if (responseLine.isEmpty()) {
 					break;
 				}
+				if (responseLine.startsWith("Content-Length:")) {
+					contentLength = Integer.parseInt(responseLine.split(":")[1].trim());
+				}
 				// update lamport
 				if (responseLine.startsWith("Lamport-Clock:")) {
 					int receivedLamportValue = Integer.parseInt(responseLine.split(":")[1].trim());
@@ -142,10 +181,14 @@ public class ContentServer {
 				}
 			}
 
-			StringBuilder responseBody = new StringBuilder();
-			while ((responseLine = in.readLine()) != null) {
-				responseBody.append(responseLine).append("\n");
+			byte[] body;
+			if (contentLength >= 0) {
+				// the server may keep the connection open, so only read the announced body
+				body = in.readNBytes(contentLength);
+			} else {
+				body = in.readAllBytes();
 			}
+			String responseBody = new String(body, StandardCharsets.UTF_8);
 
 			System.out.println(responseBody);
 
@@ -156,21 +199,382 @@ public class ContentServer {
 		}
 	}
 
+	/**
+	 * Get a random delay before retry number attempt (from 0): up to baseMillis
+	 * doubled for each earlier attempt, capped at maxMillis. The "full jitter"
+	 * spreads out the retries of many content servers that lost the
+	 * Aggregation Server at the same time, so they do not all reconnect at once.
+	 * 
+	 * @param attempt    retries already made
+	 * @param baseMillis delay bound of the first retry
+	 * @param maxMillis  largest delay bound
+	 * @return delay in milliseconds, from 0 to the bound
+	 */
+	protected static long backoffDelay(int attempt, long baseMillis, long maxMillis) {
+		long bound = Math.min(maxMillis, baseMillis << Math.min(attempt, 30));
+		return ThreadLocalRandom.current().nextLong(Math.max(0, bound) + 1);
+	}
+
+	/**
+	 * Keeps uploading the files until interrupted. Files are checked every poll
+	 * interval; one is uploaded when it has changed, and again every upload
+	 * interval so its data does not expire on the server. The PUTs due at once
+	 * are pipelined on one persistent connection. When the server cannot be
+	 * reached or answers 503, uploads are retried after a jittered exponential
+	 * backoff.
+	 * 
+	 * Options:
+	 * - interval: milliseconds between uploads of an unchanged file (default
+	 * 10000)
+	 * - poll: milliseconds between checks for changed files (default 500)
+	 * - timeout: longest wait for a response in milliseconds (default 5000)
+	 * - backoff, max-backoff: delay bound of the first retry and largest delay
+	 * bound in milliseconds (default 1000 and 30000)
+	 * 
+	 * @param hostname server host
+	 * @param port     server port
+	 * @param files    data files, one station each
+	 * @param config   options
+	 * @throws InterruptedException when interrupted, which stops the uploads
+	 */
+	public static void watch(String hostname, int port, List<String> files, ServerConfig config)
+			throws InterruptedException {
+		long interval = config.getLong("interval", 10000);
+		long poll = config.getLong("poll", 500);
+		long backoff = config.getLong("backoff", 1000);
+		long maxBackoff = config.getLong("max-backoff", 30000);
+		Map<String, Long> modified = new HashMap<>(); // file -> modification time last read
+		Map<String, Long> uploaded = new HashMap<>(); // file -> time of last upload
+		int failures = 0;
+		long retryAt = 0;
+
+		try (KeepAliveConnection connection = new KeepAliveConnection(hostname, port,
+				config.getInt("timeout", 5000))) {
+			while (true) {
+				long now = System.currentTimeMillis();
+				List<String> due = new ArrayList<>();
+				for (String file : files) {
+					long lastModified = new File(file).lastModified();
+					if (!Objects.equals(modified.get(file), lastModified)
+							|| now - uploaded.getOrDefault(file, 0L) >= interval) {
+						due.add(file);
+					}
+				}
+				if (!due.isEmpty() && now >= retryAt) {
+					if (upload(connection, due, modified, uploaded)) {
+						failures = 0;
+					} else {
+						long delay = backoffDelay(failures++, backoff, maxBackoff);
+						System.out.println("Could not upload to server. Retrying in " + delay + " ms");
+						retryAt = System.currentTimeMillis() + delay;
+					}
+				}
+				Thread.sleep(poll); // throws once interrupted, ending the uploads
+			}
+		}
+	}
+
+	/**
+	 * Uploads files in pipelined PUT requests, recording the ones the server
+	 * accepted. An empty or unreadable file is recorded without an upload.
+	 * 
+	 * @return true unless the server could not be reached or was unavailable
+	 */
+	private static boolean upload(KeepAliveConnection connection, List<String> files, Map<String, Long> modified,
+			Map<String, Long> uploaded) {
+		List<String> sent = new ArrayList<>();
+		List<byte[]> requests = new ArrayList<>();
+		for (String file : files) {
+			long lastModified = new File(file).lastModified();
+			String jsonObject = convertToJSON(file);
+			modified.put(file, lastModified);
+			if (jsonObject == null || jsonObject.isEmpty()) {
+				uploaded.put(file, System.currentTimeMillis());
+				continue;
+			}
+			sent.add(file);
+			requests.add(buildPutRequest("/weather.json", jsonObject).getBytes(StandardCharsets.UTF_8));
+		}
+		if (requests.isEmpty()) {
+			return true;
+		}
+
+		List<KeepAliveConnection.Response> responses;
+		try {
+			responses = connection.send(requests);
+		} catch (IOException e) {
+			System.err.println("Failed to send to server: " + e.getMessage());
+			sent.forEach(modified::remove); // read again on the next attempt
+			return false;
+		}
+		boolean available = true;
+		for (int i = 0; i < responses.size(); i++) {
+			KeepAliveConnection.Response response = responses.get(i);
+			syncLamport(response);
+			System.out.println(sent.get(i) + ": " + response.getStatus());
+			if (response.getStatus() == 503) {
+				modified.remove(sent.get(i));
+				available = false;
+			} else {
+				uploaded.put(sent.get(i), System.currentTimeMillis());
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * Keeps uploading the station files in a directory until interrupted. The
+	 * directory is watched for files being created or changed; changed files
+	 * are parsed in parallel on a pool of workers, and their stations uploaded
+	 * in batch PUT requests (pipelined on one persistent connection). Every
+	 * file is uploaded again every upload interval so its data does not expire
+	 * on the server. Failed uploads, including stations the server reports it
+	 * could not store, are retried after a jittered exponential backoff.
+	 * 
+	 * Options, besides interval, timeout, backoff and max-backoff (see watch()):
+	 * - parsers: threads parsing files (default: number of processors)
+	 * - batch: most stations in one batch request (default 100)
+	 * - settle: milliseconds to wait for more changes after one is seen, so a
+	 * burst of writes is uploaded together (default 100)
+	 * 
+	 * @param hostname  server host
+	 * @param port      server port
+	 * @param directory directory of data files, one station each
+	 * @param config    options
+	 * @throws IOException          if the directory cannot be watched
+	 * @throws InterruptedException when interrupted, which stops the uploads
+	 */
+	public static void watchDirectory(String hostname, int port, Path directory, ServerConfig config)
+			throws IOException, InterruptedException {
+		long interval = config.getLong("interval", 10000);
+		long settle = config.getLong("settle", 100);
+		long backoff = config.getLong("backoff", 1000);
+		long maxBackoff = config.getLong("max-backoff", 30000);
+		int batchSize = Math.max(1, config.getInt("batch", 100));
+		Set<Path> dirty = new HashSet<>();
+		int failures = 0;
+		long retryAt = 0;
+		long nextRefresh = 0;
+
+		ExecutorService parsers = Executors.newFixedThreadPool(
+				config.getInt("parsers", Runtime.getRuntime().availableProcessors()));
+		try (WatchService watcher = directory.getFileSystem().newWatchService();
+				KeepAliveConnection connection = new KeepAliveConnection(hostname, port,
+						config.getInt("timeout", 5000))) {
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (now >= nextRefresh) {
+					dirty.addAll(listFiles(directory)); // upload everything again
+					nextRefresh = now + interval;
+				}
+				if (!dirty.isEmpty() && now >= retryAt) {
+					List<Path> files = new ArrayList<>(dirty);
+					List<Path> failed = uploadBatches(connection, parseAll(parsers, files), batchSize);
+					dirty.removeAll(files);
+					dirty.addAll(failed); // kept for the retry
+					if (failed.isEmpty()) {
+						failures = 0;
+					} else {
+						long delay = backoffDelay(failures++, backoff, maxBackoff);
+						System.out.println("Could not upload " + failed.size() + " files. Retrying in " + delay + " ms");
+						retryAt = System.currentTimeMillis() + delay;
+					}
+				}
+
+				long until = dirty.isEmpty() ? nextRefresh : Math.min(nextRefresh, Math.max(retryAt, now));
+				WatchKey key = watcher.poll(Math.max(1, until - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				while (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							dirty.addAll(listFiles(directory)); // events were lost
+						} else {
+							Path file = directory.resolve((Path) event.context());
+							if (Files.isRegularFile(file)) {
+								dirty.add(file);
+							}
+						}
+					}
+					key.reset();
+					key = watcher.poll(settle, TimeUnit.MILLISECONDS);
+				}
+			}
+		} finally {
+			parsers.shutdownNow();
+		}
+	}
+
+	private static List<Path> listFiles(Path directory) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file)) {
+					files.add(file);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Converts files to JSON on the parser pool.
+	 * 
+	 * @return the JSON of each file with data, by file in the order of files
+	 */
+	private static LinkedHashMap<Path, String> parseAll(ExecutorService parsers, List<Path> files)
+			throws InterruptedException {
+		List<Callable<String>> tasks = new ArrayList<>(files.size());
+		for (Path file : files) {
+			tasks.add(() -> convertToJSON(file.toString()));
+		}
+		LinkedHashMap<Path, String> jsonObjects = new LinkedHashMap<>();
+		List<Future<String>> results = parsers.invokeAll(tasks);
+		for (int i = 0; i < files.size(); i++) {
+			try {
+				String jsonObject = results.get(i).get();
+				if (jsonObject != null && !jsonObject.isEmpty()) {
+					jsonObjects.put(files.get(i), jsonObject);
+				}
+			} catch (ExecutionException e) {
+				System.err.println("Failed to parse file: " + e.getCause());
+			}
+		}
+		return jsonObjects;
+	}
+
+	/**
+	 * Uploads stations in batch PUT requests of up to batchSize stations each,
+	 * pipelined on the connection.
+	 * 
+	 * @param jsonObjects the JSON of each file to upload
+	 * @return the files whose station was not stored: every file if the server
+	 *         could not be reached, those of a batch that was not accepted, and
+	 *         those the server reported a failure for
+	 */
+	private static List<Path> uploadBatches(KeepAliveConnection connection, LinkedHashMap<Path, String> jsonObjects,
+			int batchSize) {
+		List<Path> files = new ArrayList<>(jsonObjects.keySet());
+		List<String> jsons = new ArrayList<>(jsonObjects.values());
+		List<byte[]> requests = new ArrayList<>();
+		for (int i = 0; i < jsons.size(); i += batchSize) {
+			List<String> batch = jsons.subList(i, Math.min(i + batchSize, jsons.size()));
+			String body = "[\n" + String.join(",\n", batch) + "\n]";
+			requests.add(buildPutRequest("/weather/batch", body).getBytes(StandardCharsets.UTF_8));
+		}
+		if (requests.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		List<KeepAliveConnection.Response> responses;
+		try {
+			responses = connection.send(requests);
+		} catch (IOException e) {
+			System.err.println("Failed to send to server: " + e.getMessage());
+			return files;
+		}
+		List<Path> failed = new ArrayList<>();
+		for (int b = 0; b < responses.size(); b++) {
+			KeepAliveConnection.Response response = responses.get(b);
+			syncLamport(response);
+			int first = b * batchSize;
+			int count = Math.min(batchSize, files.size() - first);
+			for (int index : failedItems(response, count)) {
+				failed.add(files.get(first + index));
+			}
+		}
+		System.out.println("Uploaded " + (files.size() - failed.size()) + " of " + files.size() + " stations in "
+				+ requests.size() + " batches");
+		return failed;
+	}
+
+	/**
+	 * Reads which stations of a batch PUT were not stored from its response: a
+	 * 200 response holds a JSON array with each station's index and status;
+	 * any other response means the batch as a whole failed.
+	 * 
+	 * @param response the batch PUT's response
+	 * @param count    stations in the batch
+	 * @return indexes of the stations that were not stored, in order
+	 */
+	protected static List<Integer> failedItems(KeepAliveConnection.Response response, int count) {
+		List<Integer> failed = new ArrayList<>();
+		Set<Integer> stored = new HashSet<>();
+		if (response.getStatus() == 200) {
+			try {
+				for (String item : JsonParser.splitObjects(response.getBody())) {
+					Map<String, String> result = JsonParser.parse(item);
+					String status = result.get("status");
+					if ("200".equals(status) || "201".equals(status)) {
+						stored.add(Integer.parseInt(result.get("index")));
+					}
+				}
+			} catch (Exception e) {
+				System.err.println("Invalid batch response: " + e.getMessage());
+				stored.clear();
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (!stored.contains(i)) {
+				failed.add(i);
+			}
+		}
+		return failed;
+	}
+
+	private static void syncLamport(KeepAliveConnection.Response response) {
+		String received = response.getHeader("Lamport-Clock");
+		if (received != null) {
+			try {
+				lamport.sync(Integer.parseInt(received.trim()));
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid Lamport-Clock: " + received);
+			}
+		}
+	}
+
 	/**
 	 * Main flow to start the content server and send a PUT request with a JSON
-	 * payload
+	 * payload. With more than one file, all stations are sent in one batch PUT
+	 * request. With --watch the files are uploaded until the process is stopped,
+	 * see watch(). Given a directory instead of a file, its station files are
+	 * uploaded until the process is stopped, see watchDirectory().
 	 * 
-	 * @param args command line input
+	 * @param args command line input: server URL, then one or more data files,
+	 *             and any "--name=value" options
 	 */
 	public static void main(String[] args) {
 		int retries = 3;
 		boolean success = false;
 
+		// options may appear anywhere; the rest are the URL and the files
+		List<String> positional = new ArrayList<>();
+		ServerConfig config = ServerConfig.parse(args, positional);
+		args = positional.toArray(new String[0]);
+
 		// get server address to connect from command line arrgs
 		Map<String, Object> address = getAddress(args[0]);
 		String hostname = (String) address.get("hostname");
 		int port = (int) address.get("port");
 
+		if (args.length == 2 && Files.isDirectory(Paths.get(args[1]))) {
+			try {
+				watchDirectory(hostname, port, Paths.get(args[1]), config);
+			} catch (IOException e) {
+				System.err.println("Failed to watch directory: " + e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		if (config.getBoolean("watch", false)) {
+			try {
+				watch(hostname, port, Arrays.asList(args).subList(1, args.length), config);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+
 		// retries 3 times if server not available
 		while (retries > 0 && !success) {
 			try {
@@ -179,9 +583,20 @@ public class ContentServer {
 				Socket contentSocket = new Socket(hostname, port);
 				ContentServer content = new ContentServer(contentSocket);
 
-				String filepath = args[1];
-				String jsonObject = convertToJSON(filepath);
-				content.sendPutRequest(jsonObject);
+				if (args.length > 2) {
+					List<String> jsonObjects = new ArrayList<>();
+					for (int i = 1; i < args.length; i++) {
+						String jsonObject = convertToJSON(args[i]);
+						if (jsonObject != null && !jsonObject.isEmpty()) {
+							jsonObjects.add(jsonObject);
+						}
+					}
+					content.sendBatchPutRequest(jsonObjects);
+				} else {
+					String filepath = args[1];
+					String jsonObject = convertToJSON(filepath);
+					content.sendPutRequest(jsonObject);
+				}
 				success = true; // set success if no exception are thrown
 
 			} catch (IOException i) {
@@ -190,7 +605,7 @@ public class ContentServer {
 				if (retries > 0) {
 					System.out.println("Retrying... (" + retries + " attempts left)");
 					try {
-						Thread.sleep(1000); // sleep before retry
+						Thread.sleep(backoffDelay(2 - retries, 1000, 30000)); // sleep before retry
 					} catch (InterruptedException t) {
 						t.printStackTrace();
 					}
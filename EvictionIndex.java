@@ -0,0 +1,82 @@
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of stored weather data ordered by Lamport timestamp, used to evict the
+ * oldest data when the server is over capacity.
+ *
+ * The index is updated on every PUT and removal, so finding the oldest entry
+ * is O(log n) instead of a scan of the weather map. Entries are ordered by
+ * Lamport timestamp and then station id, so each station has at most one
+ * entry as long as its previous node is removed before the new one is added.
+ * Entries hold only the station id and the node's version (Lamport timestamp
+ * and last update), not the node, so the index keeps no station data alive.
+ */
+public class EvictionIndex {
+	private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(
+			Comparator.comparingInt(Entry::getLamport).thenComparing(Entry::getId));
+
+	/**
+	 * The version of the node stored for one station.
+	 */
+	public static class Entry {
+		private final String id;
+		private final int lamport;
+		private final long lastUpdate;
+
+		Entry(String id, WeatherNode node) {
+			this.id = id;
+			this.lamport = node.getLamport();
+			this.lastUpdate = node.getLastUpdate();
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		public int getLamport() {
+			return this.lamport;
+		}
+
+		public long getLastUpdate() {
+			return this.lastUpdate;
+		}
+	}
+
+	/**
+	 * Adds the node stored for a station.
+	 *
+	 * @param id   station id
+	 * @param node node stored for the station
+	 */
+	public void add(String id, WeatherNode node) {
+		entries.add(new Entry(id, node));
+	}
+
+	/**
+	 * Removes the node previously stored for a station.
+	 *
+	 * @param id   station id
+	 * @param node node that was stored for the station
+	 */
+	public void remove(String id, WeatherNode node) {
+		entries.remove(new Entry(id, node));
+	}
+
+	/**
+	 * Takes the entry with the smallest Lamport timestamp out of the index.
+	 *
+	 * @return the oldest entry, or null if the index is empty
+	 */
+	public Entry pollOldest() {
+		return entries.pollFirst();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+}
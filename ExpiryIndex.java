@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline-ordered index of when stored weather data expires.
+ *
+ * Every stored WeatherNode is scheduled with the time it expires, so the
+ * expiry thread sleeps until the earliest deadline and then only looks at the
+ * entries that are actually due, instead of scanning the whole weather map.
+ *
+ * Entries are not removed when a station is updated; the newer node gets its
+ * own entry and the old one is skipped when it comes due, since it is no
+ * longer the node stored for the station. Entries hold only the station id and
+ * the node's version (Lamport timestamp and last update), not the node, so a
+ * replaced node is not kept alive until its old entry comes due.
+ */
+public class ExpiryIndex {
+	private final DelayQueue<Entry> queue = new DelayQueue<>();
+
+	/**
+	 * A scheduled expiry of one stored node.
+	 */
+	public static class Entry implements Delayed {
+		private final String id;
+		private final int lamport;
+		private final long lastUpdate;
+		private final long deadline; // epoch millis
+
+		Entry(String id, WeatherNode node, long deadline) {
+			this.id = id;
+			this.lamport = node.getLamport();
+			this.lastUpdate = node.getLastUpdate();
+			this.deadline = deadline;
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		public int getLamport() {
+			return this.lamport;
+		}
+
+		public long getLastUpdate() {
+			return this.lastUpdate;
+		}
+
+		public long getDeadline() {
+			return this.deadline;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(deadline, ((Entry) other).deadline);
+		}
+	}
+
+	/**
+	 * Schedules a stored node to expire at the given time.
+	 *
+	 * @param id       station id
+	 * @param node     node stored for the station
+	 * @param deadline time the node expires, in epoch milliseconds
+	 */
+	public void schedule(String id, WeatherNode node, long deadline) {
+		queue.add(new Entry(id, node, deadline));
+	}
+
+	/**
+	 * Waits until at least one entry is due, then takes every entry that is due.
+	 *
+	 * @return due entries, earliest first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<Entry> takeExpired() throws InterruptedException {
+		List<Entry> expired = new ArrayList<>();
+		expired.add(queue.take());
+		queue.drainTo(expired);
+		return expired;
+	}
+
+	/**
+	 * Get the number of scheduled entries, including ones for nodes that have
+	 * since been replaced.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	public void clear() {
+		queue.clear();
+	}
+}
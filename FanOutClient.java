@@ -0,0 +1,361 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads weather data from several Aggregation Servers at once, e.g. every
+ * server of a region, and merges it into one view.
+ *
+ * Each server is read on its own thread (a virtual thread where the runtime has
+ * them), with all of its requests pipelined on a persistent connection that is
+ * kept for the next fetch, so a fetch takes about one round trip to the
+ * slowest server. Given station ids, each station is requested from every
+ * server; otherwise each server's whole feed is requested from its change log
+ * (GET /weather.json?since=0). Where servers disagree about a station, the
+ * copy with the latest Lamport timestamp wins, the server given first on a
+ * tie. Only the stations' own Lamport timestamps are compared, never change
+ * log stamps, which each server counts on its own.
+ */
+public class FanOutClient implements Closeable {
+	private final List<String> servers;
+	private final int timeoutMillis;
+	private final ExecutorService executor;
+	private final LamportClock lamport = new LamportClock();
+	private final Map<String, KeepAliveConnection> connections = new ConcurrentHashMap<>();
+
+	/**
+	 * Options:
+	 * - timeout: longest wait for a response in milliseconds (default 5000)
+	 * - mode, workers: threads reading the servers, as for the Aggregation
+	 * Server's connections ("virtual" by default)
+	 *
+	 * @param servers server URLs, e.g. "http://localhost:4567"
+	 * @param config  options
+	 * @throws IllegalArgumentException if a URL cannot be parsed
+	 */
+	public FanOutClient(List<String> servers, ServerConfig config) {
+		this.servers = new ArrayList<>();
+		for (String url : servers) {
+			String server = serverOf(url);
+			if (!this.servers.contains(server)) { // a connection serves one thread
+				this.servers.add(server);
+			}
+		}
+		this.timeoutMillis = config.getInt("timeout", 5000);
+		this.executor = AggregationServer.createConnectionExecutor(config);
+	}
+
+	/**
+	 * Get the server a URL names, as "hostname:port", keeping the whole
+	 * hostname.
+	 *
+	 * @param url e.g. "http://weather.example.com:4567/weather.json?id=a"
+	 * @throws IllegalArgumentException if the URL has no port
+	 */
+	protected static String serverOf(String url) {
+		String server = url.contains("://") ? url.substring(url.indexOf("://") + 3) : url;
+		for (char end : new char[] { '/', '?' }) {
+			if (server.indexOf(end) >= 0) {
+				server = server.substring(0, server.indexOf(end));
+			}
+		}
+		int colon = server.lastIndexOf(':');
+		try {
+			if (colon <= 0) {
+				throw new NumberFormatException("no port");
+			}
+			return server.substring(0, colon) + ":" + Integer.parseInt(server.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Failed to get servername and port from URL: " + url, e);
+		}
+	}
+
+	/**
+	 * The merged copy of one station.
+	 */
+	public static class Station {
+		private final String id;
+		private final long lamport;
+		private final String server;
+		private final Map<String, String> fields;
+
+		Station(String id, long lamport, String server, Map<String, String> fields) {
+			this.id = id;
+			this.lamport = lamport;
+			this.server = server;
+			this.fields = fields;
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		/**
+		 * Get the Lamport timestamp the copy was chosen by, or -1 if the server
+		 * did not say.
+		 */
+		public long getLamport() {
+			return this.lamport;
+		}
+
+		/**
+		 * Get the server the copy came from, as "hostname:port".
+		 */
+		public String getServer() {
+			return this.server;
+		}
+
+		public Map<String, String> getFields() {
+			return this.fields;
+		}
+	}
+
+	/**
+	 * How one request went.
+	 */
+	public static class Timing {
+		private final String server;
+		private final String target;
+		private final int status;
+		private final long latencyMillis;
+
+		Timing(String server, String target, int status, long latencyMillis) {
+			this.server = server;
+			this.target = target;
+			this.status = status;
+			this.latencyMillis = latencyMillis;
+		}
+
+		public String getServer() {
+			return this.server;
+		}
+
+		/**
+		 * Get the request target, e.g. "/weather.json?id=IDS60901".
+		 */
+		public String getTarget() {
+			return this.target;
+		}
+
+		/**
+		 * Get the response status, or -1 if the server could not be reached.
+		 */
+		public int getStatus() {
+			return this.status;
+		}
+
+		public long getLatencyMillis() {
+			return this.latencyMillis;
+		}
+
+		@Override
+		public String toString() {
+			return server + " " + target + " " + (status < 0 ? "failed" : status) + " " + latencyMillis + " ms";
+		}
+	}
+
+	/**
+	 * The outcome of a fetch.
+	 */
+	public static class Result {
+		private final Map<String, Station> stations;
+		private final List<Timing> timings;
+
+		Result(Map<String, Station> stations, List<Timing> timings) {
+			this.stations = stations;
+			this.timings = timings;
+		}
+
+		/**
+		 * Get the merged stations, by id.
+		 */
+		public Map<String, Station> getStations() {
+			return this.stations;
+		}
+
+		/**
+		 * Get the timing of each request, grouped by server in the order given.
+		 */
+		public List<Timing> getTimings() {
+			return this.timings;
+		}
+
+		/**
+		 * Get the merged stations as a JSON array, in id order.
+		 */
+		public String toJson() {
+			List<Map<String, String>> objects = new ArrayList<>();
+			for (Station station : stations.values()) {
+				objects.add(station.getFields());
+			}
+			return JsonParser.toJsonArray(objects);
+		}
+	}
+
+	/**
+	 * Reads the stations from every server concurrently and merges them.
+	 * Servers that cannot be reached are left out, and shown as failed in the
+	 * timings.
+	 *
+	 * @param ids stations to read, or an empty list for every station
+	 * @return the merged stations and the timing of each request
+	 * @throws InterruptedException if interrupted while waiting for servers
+	 */
+	public synchronized Result fetch(List<String> ids) throws InterruptedException {
+		List<String> targets = new ArrayList<>();
+		if (ids.isEmpty()) {
+			targets.add("/weather.json?since=0");
+		} else {
+			for (String id : ids) {
+				targets.add("/weather.json?id=" + id);
+			}
+		}
+
+		List<Future<List<Timing>>> reads = new ArrayList<>();
+		Map<String, Station> merged = new ConcurrentHashMap<>();
+		for (String server : servers) {
+			reads.add(executor.submit(() -> read(server, targets, merged)));
+		}
+		List<Timing> timings = new ArrayList<>();
+		for (Future<List<Timing>> read : reads) {
+			try {
+				timings.addAll(read.get());
+			} catch (ExecutionException e) {
+				System.err.println("Failed to read server: " + e.getCause());
+			}
+		}
+
+		Map<String, Station> stations = new TreeMap<>(merged);
+		return new Result(stations, timings);
+	}
+
+	/**
+	 * Sends the requests to one server, pipelined, and merges the stations in
+	 * the responses.
+	 */
+	private List<Timing> read(String server, List<String> targets, Map<String, Station> merged) {
+		String hostname = server.substring(0, server.lastIndexOf(':'));
+		int port = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+		KeepAliveConnection connection = connections.computeIfAbsent(server,
+				key -> new KeepAliveConnection(hostname, port, timeoutMillis));
+
+		List<byte[]> requests = new ArrayList<>();
+		for (String target : targets) {
+			String request = "GET " + target + " HTTP/1.1\r\n" +
+					"Host: " + server + "\r\n" +
+					"User-Agent: ATOMClient/1/0\r\n" +
+					"Accept: application/json\r\n" +
+					"Lamport-Clock: " + lamport.increment() + "\r\n\r\n";
+			requests.add(request.getBytes(StandardCharsets.UTF_8));
+		}
+
+		List<Timing> timings = new ArrayList<>();
+		long start = System.nanoTime();
+		List<KeepAliveConnection.Response> responses;
+		try {
+			responses = connection.send(requests);
+		} catch (IOException e) {
+			long latency = (System.nanoTime() - start) / 1_000_000;
+			for (String target : targets) {
+				timings.add(new Timing(server, target, -1, latency));
+			}
+			return timings;
+		}
+
+		for (int i = 0; i < responses.size(); i++) {
+			KeepAliveConnection.Response response = responses.get(i);
+			timings.add(new Timing(server, targets.get(i), response.getStatus(),
+					(response.getReceivedNanos() - start) / 1_000_000));
+			String received = response.getHeader("Lamport-Clock");
+			if (received != null) {
+				try {
+					lamport.sync(Integer.parseInt(received.trim()));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid Lamport-Clock: " + received);
+				}
+			}
+			if (response.getStatus() == 200) {
+				try {
+					for (Station station : parse(server, response)) {
+						if (station.getId() == null) {
+							continue; // not a station
+						}
+						merged.merge(station.getId(), station, this::newer);
+					}
+				} catch (Exception e) {
+					System.err.println("Invalid response from " + server + ": " + e.getMessage());
+				}
+			}
+		}
+		return timings;
+	}
+
+	/**
+	 * Picks the copy of a station to keep: the later Lamport timestamp, or on a
+	 * tie the server given first.
+	 */
+	private Station newer(Station current, Station update) {
+		if (update.getLamport() != current.getLamport()) {
+			return update.getLamport() > current.getLamport() ? update : current;
+		}
+		return servers.indexOf(update.getServer()) < servers.indexOf(current.getServer()) ? update : current;
+	}
+
+	/**
+	 * Reads the stations in a response with their Lamport timestamps: a
+	 * station's own from its ETag, or from the "lamport" of each put in a delta
+	 * or snapshot. A deleted station is left out, as the server no longer has
+	 * it, and a station without a timestamp gets -1.
+	 *
+	 * @param server   server the response came from
+	 * @param response a 200 response
+	 * @return the stations
+	 * @throws Exception if the body is not valid JSON
+	 */
+	protected static Collection<Station> parse(String server, KeepAliveConnection.Response response)
+			throws Exception {
+		List<Station> stations = new ArrayList<>();
+		String etag = response.getHeader("ETag");
+		if (response.getHeader("Change-Log") == null) {
+			// one station, tagged "lamport-lastUpdate"
+			Map<String, String> fields = JsonParser.parse(response.getBody());
+			long lamport = -1;
+			if (etag != null && etag.indexOf('-') > 0) {
+				lamport = Long.parseLong(etag.substring(etag.startsWith("\"") ? 1 : 0, etag.indexOf('-')));
+			}
+			stations.add(new Station(fields.get("id"), lamport, server, fields));
+			return stations;
+		}
+
+		for (String object : JsonParser.splitObjects(response.getBody())) {
+			LinkedHashMap<String, String> fields = JsonParser.parse(object);
+			String lamport = fields.remove("lamport");
+			if ("delete".equals(fields.remove("op"))) {
+				continue;
+			}
+			stations.add(new Station(fields.get("id"), lamport == null ? -1 : Long.parseLong(lamport), server, fields));
+		}
+		return stations;
+	}
+
+	/**
+	 * Closes the connections and stops the threads.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		for (KeepAliveConnection connection : connections.values()) {
+			connection.close();
+		}
+	}
+}
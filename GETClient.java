@@ -1,5 +1,9 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -100,27 +104,41 @@ public class GETClient {
 	 * @param server Server socket object that is connected to
 	 */
 	public void processResponse(Socket clientSocket) {
-		try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+		try (InputStream in = new BufferedInputStream(clientSocket.getInputStream())) {
 			System.out.println("Server response:");
 
 			// Read in and output server response
 			String responseLine;
-			while ((responseLine = in.readLine()) != null) {
+			int contentLength = -1; // body runs until the server closes if not given
+			boolean chunked = false;
+			while ((responseLine = ChunkedInputStream.readLine(in)) != null) {
 				System.out.println(responseLine);
 				if (responseLine.isEmpty()) {
 					break;
 				}
+				if (responseLine.startsWith("Content-Length:")) {
+					contentLength = Integer.parseInt(responseLine.split(":")[1].trim());
+				}
+				if (responseLine.startsWith("Transfer-Encoding:")) {
+					chunked = responseLine.split(":")[1].trim().equalsIgnoreCase("chunked");
+				}
 				if (responseLine.startsWith("Lamport-Clock:")) {
 					// Update lamport value
 					int receivedLamportValue = Integer.parseInt(responseLine.split(":")[1].trim());
 					lamport.sync(receivedLamportValue);
 				}
 			}
-			StringBuilder responseBody = new StringBuilder();
-			while ((responseLine = in.readLine()) != null) {
-				responseBody.append(responseLine).append("\n");
+			byte[] responseBody;
+			if (chunked) {
+				// large feeds are streamed in chunks
+				responseBody = new ChunkedInputStream(in).readAllBytes();
+			} else if (contentLength >= 0) {
+				// the server may keep the connection open, so only read the announced body
+				responseBody = in.readNBytes(contentLength);
+			} else {
+				responseBody = in.readAllBytes();
 			}
-			System.out.println(responseBody);
+			System.out.println(new String(responseBody, StandardCharsets.UTF_8));
 
 			in.close(); // Close input stream after reading the response
 		} catch (IOException e) {
@@ -128,15 +146,61 @@ public class GETClient {
 		}
 	}
 
+	/**
+	 * Reads from several servers at once with a FanOutClient, then prints the
+	 * merged stations and how long each request took.
+	 * 
+	 * @param urls   server URLs; a "?id=" in a URL adds that station
+	 * @param config options, including "ids", a comma-separated list of stations
+	 *               (every station when there are none)
+	 */
+	public static void fanOut(List<String> urls, ServerConfig config) throws InterruptedException {
+		List<String> ids = new ArrayList<>();
+		String listed = config.getString("ids", "");
+		if (!listed.isEmpty()) {
+			ids.addAll(Arrays.asList(listed.split(",")));
+		}
+		for (String url : urls) {
+			String stationId = (String) getAddress(url).get("stationId");
+			if (stationId != null && !ids.contains(stationId)) {
+				ids.add(stationId);
+			}
+		}
+
+		try (FanOutClient client = new FanOutClient(urls, config)) {
+			long start = System.nanoTime();
+			FanOutClient.Result result = client.fetch(ids);
+			for (FanOutClient.Timing timing : result.getTimings()) {
+				System.out.println(timing);
+			}
+			System.out.println(result.getStations().size() + " stations from " + urls.size() + " servers in "
+					+ (System.nanoTime() - start) / 1_000_000 + " ms");
+			System.out.println(result.toJson());
+		}
+	}
+
 	/**
 	 * Main flow to run GETClient.
 	 * This takes arguments of address and port to create a GETClient, connect to
-	 * server and send formatted GET request to server
+	 * server and send formatted GET request to server. Given several URLs or an
+	 * "--ids=a,b" option, it reads them all at once instead, see fanOut().
 	 */
 	public static void main(String[] args) {
 		int retries = 3;
 		boolean success = false;
 
+		List<String> urls = new ArrayList<>();
+		ServerConfig config = ServerConfig.parse(args, urls);
+		if (urls.size() > 1 || !config.getString("ids", "").isEmpty()) {
+			try {
+				fanOut(urls, config);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		args = urls.toArray(new String[0]);
+
 		// get server address from command line args
 		Map<String, Object> address = getAddress(args[0]);
 		String hostname = (String) address.get("hostname");
@@ -0,0 +1,197 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A parsed HTTP request, independent of how it was read from the network.
+ * Both the blocking ClientHandler and the SelectorServer build these and pass
+ * them to the AggregationServer for processing.
+ */
+public class HttpRequest {
+	private final String method;
+	private final String target;
+	private final String version;
+	private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	private String body = "";
+
+	/**
+	 * Creates a request from its request line, e.g. "GET /weather.json HTTP/1.1".
+	 *
+	 * @param requestLine the first line of the request
+	 * @throws IllegalArgumentException if the request line is empty
+	 */
+	public HttpRequest(String requestLine) {
+		String[] parts = requestLine.trim().split(" +");
+		if (parts[0].isEmpty()) {
+			throw new IllegalArgumentException("Empty request line");
+		}
+		this.method = parts[0];
+		this.target = parts.length > 1 ? parts[1] : "/";
+		this.version = parts.length > 2 ? parts[2] : "HTTP/1.1";
+	}
+
+	/**
+	 * Adds a header from a raw "Name: value" header line. Lines without a colon
+	 * are ignored.
+	 *
+	 * @param headerLine raw header line
+	 */
+	public void addHeaderLine(String headerLine) {
+		int colon = headerLine.indexOf(':');
+		if (colon > 0) {
+			setHeader(headerLine.substring(0, colon).trim(), headerLine.substring(colon + 1).trim());
+		}
+	}
+
+	public void setHeader(String name, String value) {
+		headers.put(name, value);
+	}
+
+	public void setBody(String body) {
+		this.body = body;
+	}
+
+	public String getMethod() {
+		return this.method;
+	}
+
+	public String getTarget() {
+		return this.target;
+	}
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public String getBody() {
+		return this.body;
+	}
+
+	/**
+	 * Get a header value, case-insensitive.
+	 *
+	 * @param name header name
+	 * @return header value, or null if not present
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * Get a header as an integer.
+	 *
+	 * @param name         header name
+	 * @param defaultValue value used when the header is not present
+	 * @return header value
+	 * @throws NumberFormatException if the header is not a valid integer
+	 */
+	public int getIntHeader(String name, int defaultValue) {
+		String value = headers.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * Get a header holding an HTTP date, e.g. If-Modified-Since.
+	 *
+	 * @param name header name
+	 * @return the date in ms since epoch, or -1 if not present or invalid
+	 */
+	public long getDateHeader(String name) {
+		String value = headers.get(name);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks the If-None-Match header against the current entity tag of the
+	 * requested resource, using the weak comparison that applies to GET.
+	 *
+	 * @param etag current entity tag, quoted
+	 * @return true if the client already has this version
+	 */
+	public boolean matchesETag(String etag) {
+		String value = headers.get("If-None-Match");
+		if (value == null) {
+			return false;
+		}
+		for (String tag : value.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the client wants the connection kept open after this
+	 * request. HTTP/1.1 connections are persistent unless the client sends
+	 * "Connection: close"; HTTP/1.0 connections only with "Connection:
+	 * keep-alive".
+	 *
+	 * @return true if the connection may be reused
+	 */
+	public boolean isKeepAlive() {
+		String connection = headers.get("Connection");
+		if (connection != null) {
+			if (connection.equalsIgnoreCase("close")) {
+				return false;
+			}
+			if (connection.equalsIgnoreCase("keep-alive")) {
+				return true;
+			}
+		}
+		return !version.equalsIgnoreCase("HTTP/1.0");
+	}
+
+	/**
+	 * Get the path part of the request target, without the query string.
+	 *
+	 * @return request path, e.g. "/weather.json"
+	 */
+	public String getPath() {
+		int query = target.indexOf('?');
+		return query < 0 ? target : target.substring(0, query);
+	}
+
+	/**
+	 * Get a query string parameter from the request target.
+	 *
+	 * @param name parameter name
+	 * @return decoded parameter value, or null if not present
+	 */
+	public String getQueryParam(String name) {
+		int query = target.indexOf('?');
+		if (query < 0) {
+			return null;
+		}
+		for (String pair : target.substring(query + 1).split("&")) {
+			String[] keyValue = pair.split("=", 2);
+			if (keyValue[0].equals(name)) {
+				return keyValue.length > 1 ? decode(keyValue[1]) : "";
+			}
+		}
+		return null;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return value;
+		}
+	}
+}
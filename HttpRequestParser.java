@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP request parser for non-blocking connections.
+ *
+ * Bytes are fed in as they arrive from the socket, in chunks of any size, and
+ * complete requests are taken out with next(). Bytes belonging to a request
+ * that has not fully arrived yet stay buffered until the next feed.
+ */
+public class HttpRequestParser {
+	protected static final int MAX_HEADER_BYTES = 16 * 1024;
+	protected static final int MAX_BODY_BYTES = 8 * 1024 * 1024;
+
+	private byte[] buffer = new byte[0];
+	private int start = 0; // first unconsumed byte
+	private int end = 0; // end of buffered bytes
+
+	private HttpRequest pending; // request whose headers are parsed but body is incomplete
+	private int bodyLength;
+
+	/**
+	 * Appends the remaining bytes of the given buffer to the parser.
+	 *
+	 * @param src bytes read from the socket
+	 */
+	public void feed(ByteBuffer src) {
+		int length = src.remaining();
+		ensureCapacity(length);
+		src.get(buffer, end, length);
+		end += length;
+	}
+
+	/**
+	 * Checks whether there are unconsumed bytes buffered.
+	 */
+	public boolean hasBufferedBytes() {
+		return end > start;
+	}
+
+	/**
+	 * Get the number of unconsumed bytes buffered.
+	 */
+	public int buffered() {
+		return end - start;
+	}
+
+	/**
+	 * Takes the next complete request from the buffered bytes.
+	 *
+	 * @return the next request, or null if more bytes are needed
+	 * @throws IllegalArgumentException if the request is malformed or too large
+	 */
+	public HttpRequest next() {
+		if (pending == null && !parseHead()) {
+			return null;
+		}
+		if (end - start < bodyLength) {
+			return null; // body not fully received yet
+		}
+		HttpRequest request = pending;
+		request.setBody(new String(buffer, start, bodyLength, StandardCharsets.UTF_8));
+		start += bodyLength;
+		pending = null;
+		bodyLength = 0;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+		return request;
+	}
+
+	/**
+	 * Parses the request line and headers if they have fully arrived. Empty lines
+	 * before the request line are skipped.
+	 *
+	 * @return true if the head was parsed, false if more bytes are needed
+	 */
+	private boolean parseHead() {
+		HttpRequest request = null;
+		int pos = start;
+		while (true) {
+			int lineEnd = indexOf((byte) '\n', pos);
+			if (lineEnd < 0) {
+				if (end - start > MAX_HEADER_BYTES) {
+					throw new IllegalArgumentException("Request header too large");
+				}
+				return false;
+			}
+			int contentEnd = (lineEnd > pos && buffer[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+			String line = new String(buffer, pos, contentEnd - pos, StandardCharsets.UTF_8);
+			pos = lineEnd + 1;
+
+			if (request == null) {
+				if (line.trim().isEmpty()) {
+					start = pos; // skip empty lines between requests
+					continue;
+				}
+				request = new HttpRequest(line);
+			} else if (line.isEmpty()) {
+				break; // end of headers
+			} else {
+				request.addHeaderLine(line);
+			}
+		}
+
+		int contentLength;
+		try {
+			contentLength = request.getIntHeader("Content-Length", 0);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid Content-Length", e);
+		}
+		if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+			throw new IllegalArgumentException("Invalid Content-Length: " + contentLength);
+		}
+		pending = request;
+		bodyLength = contentLength;
+		start = pos;
+		return true;
+	}
+
+	private int indexOf(byte value, int from) {
+		for (int i = from; i < end; i++) {
+			if (buffer[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (end + extra <= buffer.length) {
+			return;
+		}
+		int used = end - start;
+		byte[] target = (used + extra <= buffer.length) ? buffer
+				: new byte[Math.max(used + extra, Math.max(buffer.length * 2, 1024))];
+		System.arraycopy(buffer, start, target, 0, used);
+		buffer = target;
+		start = 0;
+		end = used;
+	}
+}
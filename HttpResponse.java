@@ -0,0 +1,226 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP response produced by the AggregationServer, written to the client by
+ * whichever server engine received the request.
+ *
+ * The body is either a byte array sent with a Content-Length, or a BodyWriter
+ * that streams it with Transfer-Encoding: chunked while the response is sent.
+ */
+public class HttpResponse {
+	protected static final int CHUNK_BYTES = 8 * 1024;
+
+	private final int status;
+	private final Map<String, String> headers = new LinkedHashMap<>();
+	private byte[] body = new byte[0];
+	private BodyWriter bodyWriter; // streamed body, null for a byte array body
+
+	/**
+	 * Writes a streamed response body.
+	 */
+	public interface BodyWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	public HttpResponse(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * Adds a header to the response.
+	 *
+	 * @return this response, for chaining
+	 */
+	public HttpResponse header(String name, Object value) {
+		headers.put(name, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * Sets the response body and its Content-Length.
+	 *
+	 * @return this response, for chaining
+	 */
+	public HttpResponse body(String body) {
+		return body(body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sets an already encoded response body and its Content-Length. The array is
+	 * not copied, so it may be shared between responses (e.g. from the
+	 * ResponseCache) but must not be modified.
+	 *
+	 * @return this response, for chaining
+	 */
+	public HttpResponse body(byte[] body) {
+		this.body = body;
+		this.bodyWriter = null;
+		headers.remove("Transfer-Encoding");
+		headers.put("Content-Length", String.valueOf(body.length));
+		return this;
+	}
+
+	/**
+	 * Sets a body that is written while the response is sent, in chunks of at
+	 * most CHUNK_BYTES, instead of being built in memory first.
+	 *
+	 * @return this response, for chaining
+	 */
+	public HttpResponse stream(BodyWriter writer) {
+		this.body = new byte[0];
+		this.bodyWriter = writer;
+		headers.remove("Content-Length");
+		headers.put("Transfer-Encoding", "chunked");
+		return this;
+	}
+
+	public boolean isStreamed() {
+		return this.bodyWriter != null;
+	}
+
+	/**
+	 * Writes the body as sent on the connection: chunked if streamed, else the
+	 * bytes as they are.
+	 *
+	 * @param out connection output, flushed but not closed
+	 * @throws IOException if writing fails
+	 */
+	public void writeBody(OutputStream out) throws IOException {
+		if (bodyWriter != null) {
+			ChunkedOutputStream chunked = new ChunkedOutputStream(out, CHUNK_BYTES);
+			bodyWriter.writeTo(chunked);
+			chunked.close();
+		} else {
+			out.write(body);
+			out.flush();
+		}
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	public String getBody() {
+		return new String(this.body, StandardCharsets.UTF_8);
+	}
+
+	public byte[] getBodyBytes() {
+		return this.body;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * Get the status line, e.g. "HTTP/1.1 200 OK".
+	 */
+	public String statusLine() {
+		return "HTTP/1.1 " + status + " " + reasonPhrase(status);
+	}
+
+	/**
+	 * Get the header lines of the response. Content-Length is always included,
+	 * unless the body is chunked, so the client knows where the body ends.
+	 *
+	 * @return header lines formatted as "Name: value"
+	 */
+	public List<String> headerLines() {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, String> entry : headers.entrySet()) {
+			lines.add(entry.getKey() + ": " + entry.getValue());
+		}
+		if (!headers.containsKey("Content-Length") && bodyWriter == null) {
+			lines.add("Content-Length: 0");
+		}
+		return lines;
+	}
+
+	/**
+	 * Encodes the status line and headers, up to and including the empty line
+	 * before the body.
+	 *
+	 * @return encoded response head
+	 */
+	public byte[] headBytes() {
+		StringBuilder head = new StringBuilder(statusLine()).append("\r\n");
+		for (String line : headerLines()) {
+			head.append(line).append("\r\n");
+		}
+		head.append("\r\n");
+		return head.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encodes the whole response (status line, headers and body) as bytes. A
+	 * streamed body is written out in full, chunked.
+	 *
+	 * @return encoded response
+	 */
+	public byte[] toBytes() {
+		byte[] headBytes = headBytes();
+		if (bodyWriter != null) {
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			response.write(headBytes, 0, headBytes.length);
+			try {
+				writeBody(response);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to write response body", e); // not thrown by memory streams
+			}
+			return response.toByteArray();
+		}
+		byte[] response = new byte[headBytes.length + body.length];
+		System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+		System.arraycopy(body, 0, response, headBytes.length, body.length);
+		return response;
+	}
+
+	/**
+	 * Get the reason phrase for a status code.
+	 *
+	 * @param status HTTP status code
+	 * @return reason phrase, e.g. "Not Found"
+	 */
+	public static String reasonPhrase(int status) {
+		switch (status) {
+			case 200:
+				return "OK";
+			case 201:
+				return "Created";
+			case 204:
+				return "No Content";
+			case 304:
+				return "Not Modified";
+			case 400:
+				return "Bad Request";
+			case 404:
+				return "Not Found";
+			case 500:
+				return "Internal Server Error";
+			case 503:
+				return "Service Unavailable";
+			default:
+				return "Unknown";
+		}
+	}
+
+	/**
+	 * Formats a time as an HTTP date, e.g. for the Last-Modified header.
+	 *
+	 * @param millis time in ms since epoch
+	 * @return date such as "Fri, 16 Oct 2026 09:30:00 GMT"
+	 */
+	public static String formatDate(long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+	}
+}
@@ -1,48 +1,32 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Minimal JSON object reader and writer for weather data.
+ *
+ * Reading is a single pass over the text (or UTF-8 bytes) without splitting it
+ * into intermediate strings; only returned keys and values are allocated.
+ */
 public class JsonParser {
 
 	/**
 	 * Parses a JSON string and converts it into a map of key-value pairs.
 	 *
-	 * @param jsonString The JSON string to be parsed. The string must be in valid
-	 *                   JSON format, starting with "{" and ending with "}".
-	 *                   Each key-value pair in the JSON should be separated by
-	 *                   commas and formatted as "key": "value".
+	 * @param jsonString The JSON string to be parsed. The string must be a single
+	 *                   JSON object; whitespace between tokens is arbitrary.
 	 * @return A LinkedHashMap where keys and values from the JSON string are stored
-	 *         as string key-value pairs.
+	 *         as string key-value pairs. String values are unescaped, numbers and
+	 *         literals are kept as written and nested objects or arrays as raw
+	 *         JSON.
 	 * @throws Exception If the JSON string is not properly formatted or if a
 	 *                   key-value pair is malformed.
 	 */
 	public static LinkedHashMap<String, String> parse(String jsonString) throws Exception {
 		LinkedHashMap<String, String> jsonMap = new LinkedHashMap<>();
-
-		// Validate
-		jsonString = jsonString.trim();
-		if (jsonString.startsWith("{") && jsonString.endsWith("}")) {
-			jsonString = jsonString.substring(1, jsonString.length() - 1).trim();
-		} else {
-			throw new Exception("Invalid JSON format");
-		}
-
-		String[] fields = jsonString.split(",\n");
-
-		for (String field : fields) {
-			// Split each pair into key and value based on the colon
-			String[] pair = field.split(":", 2);
-
-			if (pair.length != 2) {
-				throw new Exception("Invalid JSON key-value field: " + field);
-			}
-
-			// Remove surrounding quotes and trim excess spaces from keys and values
-			String key = pair[0].trim().replace("\"", "");
-			String value = pair[1].trim().replace("\"", "");
-
-			jsonMap.put(key, value);
-		}
-
+		scanObject(new CharCursor(jsonString), jsonMap, null, null);
 		return jsonMap;
 	}
 
@@ -54,15 +38,20 @@ public class JsonParser {
 	 *                The map's keys and values are assumed to be non-null strings.
 	 * @return A string representing the input map in JSON format, with each
 	 *         key-value pair
-	 *         formatted as "key": "value" and enclosed in curly braces.
+	 *         formatted as "key": "value" and enclosed in curly braces. Quotes,
+	 *         backslashes and control characters in keys and values are
+	 *         escaped, so parse() reads back the same map.
 	 */
 	public static String toJson(Map<String, String> jsonMap) {
 		StringBuilder jsonBuilder = new StringBuilder();
 		jsonBuilder.append("{\n");
 
 		for (Map.Entry<String, String> entry : jsonMap.entrySet()) {
-			jsonBuilder.append("    \"").append(entry.getKey()).append("\": \"").append(entry.getValue())
-					.append("\",\n");
+			jsonBuilder.append("    \"");
+			appendEscaped(jsonBuilder, entry.getKey());
+			jsonBuilder.append("\": \"");
+			appendEscaped(jsonBuilder, entry.getValue());
+			jsonBuilder.append("\",\n");
 		}
 
 		// Remove the trailing comma and close the JSON object
@@ -74,42 +63,465 @@ public class JsonParser {
 		return jsonBuilder.toString();
 	}
 
+	/**
+	 * Converts a list of maps into a JSON array of objects, formatted like the
+	 * GET /weather.json response: each object on its own lines, indented.
+	 *
+	 * @param objects The objects to write, as string key-value pairs.
+	 * @return A string holding the JSON array, ending with a newline.
+	 */
+	public static String toJsonArray(List<Map<String, String>> objects) {
+		if (objects.isEmpty()) {
+			return "[]\n";
+		}
+		StringBuilder jsonBuilder = new StringBuilder();
+		jsonBuilder.append("[\n");
+		for (int i = 0; i < objects.size(); i++) {
+			if (i > 0) {
+				jsonBuilder.append(",\n");
+			}
+			jsonBuilder.append("    ").append(toJson(objects.get(i)).replace("\n", "\n    "));
+		}
+		jsonBuilder.append("\n]\n");
+		return jsonBuilder.toString();
+	}
+
 	/**
 	 * Extracts the value associated with the "id" key from a JSON string.
 	 *
 	 * @param jsonString The JSON string from which to extract the "id" value. The
-	 *                   string must be in valid JSON format, starting
-	 *                   with "{" and ending with "}" and containing an "id" key.
+	 *                   string must be a JSON object containing an "id" key.
+	 *                   Scanning stops at the "id" value, so only the id is
+	 *                   allocated.
 	 * @return The value associated with the "id" key in the JSON string.
 	 * @throws Exception If the JSON string is not properly formatted, if no "id"
 	 *                   key is present,
 	 *                   or if the key-value pair is malformed.
 	 */
 	public static String getId(String jsonString) throws Exception {
+		return requireId(scanObject(new CharCursor(jsonString), null, "id", null));
+	}
 
-		if (jsonString.startsWith("{") && jsonString.endsWith("}")) {
-			jsonString = jsonString.trim().substring(1, jsonString.length() - 1);
-		} else {
+	/**
+	 * Extracts the value associated with the "id" key from UTF-8 encoded JSON,
+	 * without decoding anything but the id itself.
+	 *
+	 * @param json   buffer holding the JSON object
+	 * @param offset start of the JSON object in the buffer
+	 * @param length length of the JSON object in bytes
+	 * @return The value associated with the "id" key.
+	 * @throws Exception If the JSON is not properly formatted or has no "id" key.
+	 */
+	public static String getId(byte[] json, int offset, int length) throws Exception {
+		return requireId(scanObject(new ByteCursor(json, offset, offset + length), null, "id", null));
+	}
+
+	/**
+	 * Extracts the values of a few keys from a JSON string, allocating only
+	 * those values. Scanning stops once every key has been found.
+	 *
+	 * @param jsonString The JSON string, a single JSON object.
+	 * @param keys       The keys to extract.
+	 * @return The values of the keys present, as parse() returns them.
+	 * @throws Exception If the JSON string is not properly formatted.
+	 */
+	public static LinkedHashMap<String, String> getFields(String jsonString, String... keys) throws Exception {
+		LinkedHashMap<String, String> jsonMap = new LinkedHashMap<>();
+		scanObject(new CharCursor(jsonString), jsonMap, null, keys);
+		return jsonMap;
+	}
+
+	/**
+	 * Splits a batch of JSON objects into the text of each object, without
+	 * parsing their contents, so a malformed object only fails on its own.
+	 *
+	 * @param json Either a JSON array of objects, or objects separated by
+	 *             whitespace (one per line in NDJSON).
+	 * @return The raw text of each object, in order.
+	 * @throws Exception If the batch is not a sequence of objects or an array of
+	 *                   them, or an object or string is unterminated.
+	 */
+	public static List<String> splitObjects(String json) throws Exception {
+		List<String> objects = new ArrayList<>();
+		CharCursor in = new CharCursor(json);
+		in.skipWhitespace();
+		boolean array = in.peek() == '[';
+		if (array) {
+			in.pos++;
+			in.skipWhitespace();
+		}
+		while (in.peek() >= 0 && !(array && in.peek() == ']' && objects.isEmpty())) {
+			if (in.peek() != '{') {
+				throw new Exception("Invalid JSON format: expected object at " + in.pos);
+			}
+			int start = in.pos;
+			in.skipValue();
+			objects.add(in.text(start, in.pos));
+			in.skipWhitespace();
+			if (array) {
+				int next = in.peek();
+				if (next == ']') {
+					break;
+				} else if (next != ',') {
+					throw new Exception("Invalid JSON format: expected ',' or ']' at " + in.pos);
+				}
+				in.pos++;
+				in.skipWhitespace();
+			}
+		}
+		if (array) {
+			if (in.peek() != ']') {
+				throw new Exception("Invalid JSON format: unterminated array");
+			}
+			in.pos++;
+			in.skipWhitespace();
+			if (in.pos != in.end) {
+				throw new Exception("Invalid JSON format: unexpected content after array");
+			}
+		}
+		return objects;
+	}
+
+	private static String requireId(String id) throws Exception {
+		if (id == null) {
+			throw new Exception("ID not found in the JSON string");
+		}
+		return id;
+	}
+
+	/**
+	 * Scans a JSON object in a single pass. Strings are only materialised for
+	 * the values that are returned; keys are compared in place.
+	 *
+	 * Values are stored as text: strings unescaped, numbers and literals as
+	 * written, nested objects and arrays as their raw JSON.
+	 *
+	 * @param in        input positioned at the start of the object
+	 * @param into      map to store every field in, or null
+	 * @param wantedKey key whose value is returned as soon as it is found, or
+	 *                  null to scan the whole object
+	 * @param keys      keys to store in into, which is then returned as soon
+	 *                  as it holds all of them, or null to store every field
+	 * @return the value of wantedKey, or null if not found (or not requested)
+	 * @throws Exception If the input is not a single well-formed JSON object.
+	 */
+	private static String scanObject(Cursor in, Map<String, String> into, String wantedKey, String[] keys)
+			throws Exception {
+		in.skipWhitespace();
+		if (in.peek() != '{') {
 			throw new Exception("Invalid JSON format");
 		}
-		String[] fields = jsonString.split(",\n");
+		in.pos++;
+		in.skipWhitespace();
+		if (in.peek() == '}') {
+			in.pos++;
+		} else {
+			while (true) {
+				if (in.peek() != '"') {
+					throw new Exception("Invalid JSON key-value field at " + in.pos);
+				}
+				int keyStart = in.pos + 1;
+				int keyEnd = in.scanString();
+				boolean keyEscaped = in.escaped;
+				in.skipWhitespace();
+				if (in.peek() != ':') {
+					throw new Exception("Invalid JSON key-value field: missing ':' at " + in.pos);
+				}
+				in.pos++;
+				in.skipWhitespace();
 
-		for (String field : fields) {
-			// Split each pair into key and value based on the colon
-			String[] pair = field.split(":", 2);
+				boolean wanted = wantedKey != null && in.textEquals(keyStart, keyEnd, keyEscaped, wantedKey);
+				boolean stored = into != null && (keys == null || in.textEqualsAny(keyStart, keyEnd, keyEscaped, keys));
+				if (wanted || stored) {
+					String value = in.scanValue();
+					if (wanted) {
+						return value;
+					}
+					into.put(in.stringAt(keyStart, keyEnd, keyEscaped), value);
+					if (keys != null && into.size() == keys.length) {
+						return null;
+					}
+				} else {
+					in.skipValue();
+				}
 
-			if (pair.length != 2) {
-				throw new Exception("Invalid JSON key-value field: " + field);
+				in.skipWhitespace();
+				int next = in.peek();
+				in.pos++;
+				if (next == '}') {
+					break;
+				} else if (next != ',') {
+					throw new Exception("Invalid JSON format: expected ',' or '}' at " + (in.pos - 1));
+				}
+				in.skipWhitespace();
 			}
+		}
+		in.skipWhitespace();
+		if (in.pos != in.end) {
+			throw new Exception("Invalid JSON format: unexpected content after object");
+		}
+		return null;
+	}
+
+	/**
+	 * Read position over JSON text, either characters or UTF-8 bytes. JSON
+	 * structure is plain ASCII, so both are scanned the same way.
+	 */
+	private abstract static class Cursor {
+		int pos;
+		final int end;
+		boolean escaped; // whether the last scanned string contained escapes
+
+		Cursor(int pos, int end) {
+			this.pos = pos;
+			this.end = end;
+		}
+
+		/** Character (or byte) at an index, or -1 past the end. */
+		abstract int at(int index);
+
+		/** Raw text between two indexes. */
+		abstract String text(int from, int to);
 
-			// Remove surrounding quotes and trim excess spaces from keys and values
-			String key = pair[0].trim().replace("\"", "");
-			String value = pair[1].trim().replace("\"", "");
+		int peek() {
+			return at(pos);
+		}
+
+		void skipWhitespace() {
+			int c;
+			while ((c = at(pos)) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+				pos++;
+			}
+		}
+
+		/**
+		 * Moves past a string starting at pos.
+		 *
+		 * @return index of the closing quote
+		 */
+		int scanString() throws Exception {
+			escaped = false;
+			pos++; // opening quote
+			while (true) {
+				int c = at(pos);
+				if (c == '"') {
+					return pos++;
+				} else if (c == '\\') {
+					escaped = true;
+					pos += 2;
+				} else if (c < 0) {
+					throw new Exception("Invalid JSON format: unterminated string");
+				} else {
+					pos++;
+				}
+			}
+		}
+
+		/**
+		 * Reads the value starting at pos as text.
+		 */
+		String scanValue() throws Exception {
+			int start = pos;
+			if (peek() == '"') {
+				int close = scanString();
+				return stringAt(start + 1, close, escaped);
+			}
+			skipValue();
+			return text(start, pos);
+		}
+
+		/**
+		 * Moves past the value starting at pos.
+		 */
+		void skipValue() throws Exception {
+			int c = peek();
+			if (c == '"') {
+				scanString();
+			} else if (c == '{' || c == '[') {
+				int depth = 0;
+				do {
+					c = peek();
+					if (c == '"') {
+						scanString();
+						continue;
+					} else if (c == '{' || c == '[') {
+						depth++;
+					} else if (c == '}' || c == ']') {
+						depth--;
+					} else if (c < 0) {
+						throw new Exception("Invalid JSON format: unterminated value");
+					}
+					pos++;
+				} while (depth > 0);
+			} else {
+				int start = pos;
+				while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && c != ' ' && c != '\n'
+						&& c != '\r' && c != '\t') {
+					if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && c != '-' && c != '+' && c != '.'
+							&& c != 'E') {
+						throw new Exception("Invalid JSON value at " + pos);
+					}
+					pos++;
+				}
+				if (pos == start) {
+					throw new Exception("Invalid JSON key-value field: missing value at " + pos);
+				}
+			}
+		}
+
+		/**
+		 * Compares string content in place with an ASCII key.
+		 */
+		boolean textEquals(int from, int to, boolean hasEscapes, String key) {
+			if (hasEscapes) {
+				return unescape(text(from, to)).equals(key);
+			}
+			if (to - from != key.length()) {
+				return false;
+			}
+			for (int i = 0; i < key.length(); i++) {
+				if (at(from + i) != key.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean textEqualsAny(int from, int to, boolean hasEscapes, String[] keys) {
+			for (String key : keys) {
+				if (textEquals(from, to, hasEscapes, key)) {
+					return true;
+				}
+			}
+			return false;
+		}
 
-			if (key.equals("id")) {
-				return value;
+		String stringAt(int from, int to, boolean hasEscapes) {
+			String raw = text(from, to);
+			return hasEscapes ? unescape(raw) : raw;
+		}
+	}
+
+	private static final class CharCursor extends Cursor {
+		private final CharSequence text;
+
+		CharCursor(CharSequence text) {
+			super(0, text.length());
+			this.text = text;
+		}
+
+		@Override
+		int at(int index) {
+			return index < end ? text.charAt(index) : -1;
+		}
+
+		@Override
+		String text(int from, int to) {
+			return text.subSequence(from, to).toString();
+		}
+	}
+
+	private static final class ByteCursor extends Cursor {
+		private final byte[] bytes;
+
+		ByteCursor(byte[] bytes, int from, int to) {
+			super(from, to);
+			this.bytes = bytes;
+		}
+
+		@Override
+		int at(int index) {
+			return index < end ? bytes[index] & 0xFF : -1;
+		}
+
+		@Override
+		String text(int from, int to) {
+			return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Appends string content with the characters JSON requires escaped.
+	 */
+	private static void appendEscaped(StringBuilder out, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\b':
+					out.append("\\b");
+					break;
+				case '\f':
+					out.append("\\f");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+	}
+
+	/**
+	 * Resolves backslash escapes in string content.
+	 */
+	private static String unescape(String raw) {
+		StringBuilder out = new StringBuilder(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			char c = raw.charAt(i);
+			if (c != '\\' || i + 1 >= raw.length()) {
+				out.append(c);
+				continue;
+			}
+			char escape = raw.charAt(++i);
+			switch (escape) {
+				case 'b':
+					out.append('\b');
+					break;
+				case 'f':
+					out.append('\f');
+					break;
+				case 'n':
+					out.append('\n');
+					break;
+				case 'r':
+					out.append('\r');
+					break;
+				case 't':
+					out.append('\t');
+					break;
+				case 'u':
+					if (i + 4 < raw.length()) {
+						try {
+							out.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+							i += 4;
+							break;
+						} catch (NumberFormatException e) {
+							// not a valid escape, keep it as written
+						}
+					}
+					out.append('\\').append(escape);
+					break;
+				default:
+					out.append(escape); // \" \\ \/
 			}
 		}
-		throw new Exception("ID not found in the JSON string");
+		return out.toString();
 	}
 }
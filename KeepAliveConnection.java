@@ -0,0 +1,225 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent HTTP/1.1 connection to the Aggregation Server, for clients that
+ * send requests again and again, like a ContentServer uploading on a schedule.
+ *
+ * Requests are pipelined: all of them are written at once, then their
+ * responses are read in order. The socket is opened on first use and kept open
+ * between calls. Requests are only sent again when the server cannot have
+ * processed them: a connection the server closed while idle (after its
+ * keep-alive timeout) is noticed before anything is written on it, and the
+ * requests after a response with "Connection: close" (its request limit) are
+ * sent on a new connection, as the server reads none of them. Any other
+ * failure is thrown without resending, since the server may have applied
+ * requests written before it; the caller decides whether to send them again.
+ */
+public class KeepAliveConnection implements Closeable {
+	private final String hostname;
+	private final int port;
+	private final int timeoutMillis;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	/**
+	 * @param hostname      server host
+	 * @param port          server port
+	 * @param timeoutMillis longest wait for a response, in milliseconds
+	 */
+	public KeepAliveConnection(String hostname, int port, int timeoutMillis) {
+		this.hostname = hostname;
+		this.port = port;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * A response read from the server.
+	 */
+	public static class Response {
+		private final int status;
+		private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private byte[] body = new byte[0];
+		private long receivedNanos; // System.nanoTime() once read
+
+		Response(int status) {
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * Get a header value, case-insensitive.
+		 */
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		public String getBody() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Get the System.nanoTime() at which the response was read, to measure
+		 * the latency of each pipelined request.
+		 */
+		public long getReceivedNanos() {
+			return this.receivedNanos;
+		}
+	}
+
+	/**
+	 * Sends requests pipelined on the connection and reads their responses.
+	 *
+	 * @param requests encoded requests, each a complete HTTP request
+	 * @return a response for each request, in order
+	 * @throws IOException if the server cannot be reached, or the connection
+	 *                     fails before every request is answered; requests
+	 *                     already written may have been applied
+	 */
+	public List<Response> send(List<byte[]> requests) throws IOException {
+		List<Response> responses = new ArrayList<>(requests.size());
+		while (responses.size() < requests.size()) {
+			if (socket != null && isClosedByServer()) {
+				close(); // nothing was written on it
+			}
+			try {
+				if (socket == null) {
+					open();
+				}
+				List<byte[]> pending = requests.subList(responses.size(), requests.size());
+				for (byte[] request : pending) {
+					out.write(request);
+				}
+				out.flush();
+				for (int i = 0; i < pending.size(); i++) {
+					Response response = readResponse(in);
+					if (response == null) {
+						throw new EOFException("Connection closed by server");
+					}
+					responses.add(response);
+					if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+						close(); // the rest were not read, send them on a new connection
+						break;
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * Tells whether the server has closed an idle connection, by reading from
+	 * it without waiting: a closed connection is at its end, a live one has
+	 * nothing to read. Unexpected bytes also make the connection unusable.
+	 */
+	private boolean isClosedByServer() {
+		try {
+			socket.setSoTimeout(1);
+			try {
+				in.read();
+				return true; // end of stream, or bytes no request asked for
+			} catch (SocketTimeoutException e) {
+				return false;
+			} finally {
+				socket.setSoTimeout(timeoutMillis);
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void open() throws IOException {
+		socket = new Socket(hostname, port);
+		socket.setSoTimeout(timeoutMillis);
+		in = new BufferedInputStream(socket.getInputStream());
+		out = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * Reads one response: status line, headers, and the body given by
+	 * Content-Length or chunked encoding.
+	 *
+	 * @param in connection input
+	 * @return the response, or null if the connection was closed before it
+	 * @throws IOException if the response cannot be read or is malformed
+	 */
+	protected static Response readResponse(InputStream in) throws IOException {
+		String statusLine = ChunkedInputStream.readLine(in);
+		while (statusLine != null && statusLine.isEmpty()) {
+			statusLine = ChunkedInputStream.readLine(in);
+		}
+		if (statusLine == null) {
+			return null;
+		}
+		String[] parts = statusLine.split(" ", 3);
+		Response response;
+		try {
+			response = new Response(Integer.parseInt(parts[1]));
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		String line;
+		while ((line = ChunkedInputStream.readLine(in)) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				response.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+		if ("chunked".equalsIgnoreCase(response.getHeader("Transfer-Encoding"))) {
+			response.body = new ChunkedInputStream(in).readAllBytes();
+		} else if (response.getHeader("Content-Length") != null) {
+			int length;
+			try {
+				length = Integer.parseInt(response.getHeader("Content-Length"));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + response.getHeader("Content-Length"));
+			}
+			response.body = in.readNBytes(length);
+			if (response.body.length < length) {
+				throw new EOFException("Response body ended early");
+			}
+		} else if (!"close".equalsIgnoreCase(response.getHeader("Connection"))) {
+			response.body = new byte[0]; // e.g. a status line only, nothing more is coming
+		} else {
+			response.body = in.readAllBytes();
+		}
+		response.receivedNanos = System.nanoTime();
+		return response;
+	}
+
+	/**
+	 * Closes the socket; the next send opens a new one.
+	 */
+	@Override
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close connection: " + e.getMessage());
+			}
+		}
+		socket = null;
+		in = null;
+		out = null;
+	}
+}
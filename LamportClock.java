@@ -1,32 +1,44 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Lamport Clock was used for maintaining orders between clients and servers
  * communication
+ * 
+ * The clock is lock-free: updates are compare-and-set on an AtomicInteger and
+ * return the new value, so callers can use the timestamp they produced without
+ * holding a lock around the update and the read.
  */
 public class LamportClock {
-	private int timestamp = 0;
+	private final AtomicInteger timestamp = new AtomicInteger();
 
-	/** Increment clock's timestamp */
-	public synchronized void increment() {
-		this.timestamp++;
+	/**
+	 * Increment clock's timestamp
+	 * 
+	 * @return the incremented timestamp
+	 */
+	public int increment() {
+		return this.timestamp.incrementAndGet();
 	};
 
 	/** Getter for lamport clock timestamp */
-	public synchronized int getTimestamp() {
-		return this.timestamp;
+	public int getTimestamp() {
+		return this.timestamp.get();
 	};
 
 	/**
 	 * Update clock timestamp with receieved lamport clokc value from other
 	 * components
+	 * 
+	 * @return the updated timestamp
 	 */
-	public synchronized void sync(int received) {
+	public int sync(int received) {
 		// Throws illegal argument exception if receiving negative value
 		if (received < 0) {
 			throw new IllegalArgumentException("Received timestamp cannot be negative");
 		}
 		// Take the maximum value of its own lamport clock value and received lamport
 		// value, incremented by 1
-		this.timestamp = Math.max(this.timestamp, received) + 1;
+		return this.timestamp.updateAndGet(current -> Math.max(current, received) + 1);
 	};
 
 }
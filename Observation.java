@@ -0,0 +1,327 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Typed representation of a station's weather observation, parsed once when
+ * the data is stored.
+ *
+ * Numeric observation fields are held as primitives and the fields with few
+ * distinct values (state, time zone, cloud, wind direction) as codes into a
+ * shared StringDictionary, so queries can read them without parsing JSON.
+ * Fields not listed here, and numeric values whose text would not come back
+ * the same from the number (e.g. "13.30" or "-"), are kept as text.
+ *
+ * toJson() writes the fields in the ContentServer format. When that matches
+ * the JSON that was sent, a WeatherNode keeps only the Observation.
+ */
+public class Observation {
+	protected static final StringDictionary DICTIONARY = new StringDictionary(65536);
+
+	// field order as sent by ContentServer
+	private static final String[] FIELDS = { "id", "name", "state", "time_zone", "lat", "lon",
+			"local_date_time", "local_date_time_full", "air_temp", "apparent_t", "cloud", "dewpt", "press",
+			"rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt" };
+	private static final int NO_CODE = -1;
+	private static final int NO_INT = Integer.MIN_VALUE;
+	private static final long NO_LONG = Long.MIN_VALUE;
+
+	private String id;
+	private String name;
+	private String localDateTime;
+	private int state = NO_CODE;
+	private int timeZone = NO_CODE;
+	private int cloud = NO_CODE;
+	private int windDir = NO_CODE;
+	private double lat = Double.NaN;
+	private double lon = Double.NaN;
+	private double airTemp = Double.NaN;
+	private double apparentT = Double.NaN;
+	private double dewpt = Double.NaN;
+	private double press = Double.NaN;
+	private int relHum = NO_INT;
+	private int windSpdKmh = NO_INT;
+	private int windSpdKt = NO_INT;
+	private long localDateTimeFull = NO_LONG;
+	private Map<String, String> other; // fields kept as text, in the order received, null if none
+
+	private Observation() {
+	}
+
+	/**
+	 * Parses weather data JSON.
+	 *
+	 * @param json weather data as sent by a content server
+	 * @return the observation, or null if the JSON is not a valid object
+	 */
+	public static Observation parse(String json) {
+		Map<String, String> fields;
+		try {
+			fields = JsonParser.parse(json);
+		} catch (Exception e) {
+			return null;
+		}
+		Observation observation = new Observation();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			if (!observation.set(field.getKey(), field.getValue())) {
+				if (observation.other == null) {
+					observation.other = new LinkedHashMap<>();
+				}
+				observation.other.put(field.getKey(), field.getValue());
+			}
+		}
+		return observation;
+	}
+
+	/**
+	 * Stores a field in its typed slot.
+	 *
+	 * @return false if the field has to be kept as text
+	 */
+	private boolean set(String key, String value) {
+		switch (key) {
+			case "id":
+				id = value;
+				return true;
+			case "name":
+				name = value;
+				return true;
+			case "local_date_time":
+				localDateTime = value;
+				return true;
+			case "state":
+				return (state = DICTIONARY.encode(value)) != NO_CODE;
+			case "time_zone":
+				return (timeZone = DICTIONARY.encode(value)) != NO_CODE;
+			case "cloud":
+				return (cloud = DICTIONARY.encode(value)) != NO_CODE;
+			case "wind_dir":
+				return (windDir = DICTIONARY.encode(value)) != NO_CODE;
+			case "lat":
+				return !Double.isNaN(lat = toDouble(value));
+			case "lon":
+				return !Double.isNaN(lon = toDouble(value));
+			case "air_temp":
+				return !Double.isNaN(airTemp = toDouble(value));
+			case "apparent_t":
+				return !Double.isNaN(apparentT = toDouble(value));
+			case "dewpt":
+				return !Double.isNaN(dewpt = toDouble(value));
+			case "press":
+				return !Double.isNaN(press = toDouble(value));
+			case "rel_hum":
+				return (relHum = toInt(value)) != NO_INT;
+			case "wind_spd_kmh":
+				return (windSpdKmh = toInt(value)) != NO_INT;
+			case "wind_spd_kt":
+				return (windSpdKt = toInt(value)) != NO_INT;
+			case "local_date_time_full":
+				return (localDateTimeFull = toLong(value)) != NO_LONG;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Get a typed field as the text it was sent as.
+	 *
+	 * @return field text, or null if the field is not stored typed
+	 */
+	private String text(String key) {
+		switch (key) {
+			case "id":
+				return id;
+			case "name":
+				return name;
+			case "local_date_time":
+				return localDateTime;
+			case "state":
+				return decode(state);
+			case "time_zone":
+				return decode(timeZone);
+			case "cloud":
+				return decode(cloud);
+			case "wind_dir":
+				return decode(windDir);
+			case "lat":
+				return format(lat);
+			case "lon":
+				return format(lon);
+			case "air_temp":
+				return format(airTemp);
+			case "apparent_t":
+				return format(apparentT);
+			case "dewpt":
+				return format(dewpt);
+			case "press":
+				return format(press);
+			case "rel_hum":
+				return relHum == NO_INT ? null : Integer.toString(relHum);
+			case "wind_spd_kmh":
+				return windSpdKmh == NO_INT ? null : Integer.toString(windSpdKmh);
+			case "wind_spd_kt":
+				return windSpdKt == NO_INT ? null : Integer.toString(windSpdKt);
+			case "local_date_time_full":
+				return localDateTimeFull == NO_LONG ? null : Long.toString(localDateTimeFull);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Writes the observation as JSON in the ContentServer format: typed fields
+	 * in their usual order, then the fields kept as text.
+	 *
+	 * @return JSON object string
+	 */
+	public String toJson() {
+		return JsonParser.toJson(toMap());
+	}
+
+	/**
+	 * Get the observation's fields as text, in the order toJson() writes them.
+	 *
+	 * @return field names to values
+	 */
+	public Map<String, String> toMap() {
+		Map<String, String> fields = new LinkedHashMap<>();
+		for (String key : FIELDS) {
+			String value = text(key);
+			if (value != null) {
+				fields.put(key, value);
+			}
+		}
+		if (other != null) {
+			fields.putAll(other);
+		}
+		return fields;
+	}
+
+	// GETTERS, NaN or null when the field was not sent as a typed value
+	public String getId() {
+		return this.id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getState() {
+		return decode(this.state);
+	}
+
+	public String getTimeZone() {
+		return decode(this.timeZone);
+	}
+
+	public String getCloud() {
+		return decode(this.cloud);
+	}
+
+	public String getWindDir() {
+		return decode(this.windDir);
+	}
+
+	public String getLocalDateTime() {
+		return this.localDateTime;
+	}
+
+	public long getLocalDateTimeFull() {
+		return this.localDateTimeFull;
+	}
+
+	public double getLat() {
+		return this.lat;
+	}
+
+	public double getLon() {
+		return this.lon;
+	}
+
+	public double getAirTemp() {
+		return this.airTemp;
+	}
+
+	public double getApparentT() {
+		return this.apparentT;
+	}
+
+	public double getDewpt() {
+		return this.dewpt;
+	}
+
+	public double getPress() {
+		return this.press;
+	}
+
+	public int getRelHum() {
+		return this.relHum;
+	}
+
+	public int getWindSpdKmh() {
+		return this.windSpdKmh;
+	}
+
+	public int getWindSpdKt() {
+		return this.windSpdKt;
+	}
+
+	/**
+	 * Get a field that is not stored typed.
+	 *
+	 * @param key field name
+	 * @return field text, or null if not present
+	 */
+	public String getOther(String key) {
+		return other == null ? null : other.get(key);
+	}
+
+	private static String decode(int code) {
+		return code == NO_CODE ? null : DICTIONARY.decode(code);
+	}
+
+	/**
+	 * Parses a double, only if formatting it gives back the same text.
+	 *
+	 * @return the number, or NaN if the text has to be kept as is
+	 */
+	private static double toDouble(String value) {
+		try {
+			double number = Double.parseDouble(value);
+			return value.equals(format(number)) ? number : Double.NaN;
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static int toInt(String value) {
+		try {
+			int number = Integer.parseInt(value);
+			return number != NO_INT && value.equals(Integer.toString(number)) ? number : NO_INT;
+		} catch (NumberFormatException e) {
+			return NO_INT;
+		}
+	}
+
+	private static long toLong(String value) {
+		try {
+			long number = Long.parseLong(value);
+			return number != NO_LONG && value.equals(Long.toString(number)) ? number : NO_LONG;
+		} catch (NumberFormatException e) {
+			return NO_LONG;
+		}
+	}
+
+	/**
+	 * Formats a number the way observations write it: whole numbers without a
+	 * decimal point.
+	 */
+	private static String format(double number) {
+		if (Double.isNaN(number)) {
+			return null;
+		}
+		if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+			return Long.toString((long) number);
+		}
+		return Double.toString(number);
+	}
+}
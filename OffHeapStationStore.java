@@ -0,0 +1,609 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Station store keeping weather data outside the Java heap, for servers holding
+ * millions of stations.
+ *
+ * Each station is one record in direct ByteBuffer slabs:
+ * [int id length][int data length][int lamport][long last update][id][data],
+ * with the id as UTF-8. The data is a format byte followed by the station's
+ * JSON as UTF-8, kept as it is included in the GET response array (see
+ * WeatherNode.getFormattedBytes()) unless formatting would lose some of it,
+ * so a node read back serves GETs without being formatted again. The JSON is
+ * stored as received, not as typed fields. Records are placed in power-of-two
+ * sized chunks; freed chunks are reused by later records of the same size
+ * class, so records never move. The index from station id to record is an
+ * open-addressing hash table of primitive arrays, so the store itself puts no
+ * per-station objects on the heap: its slots point into an array of record
+ * addresses, where a station keeps its position for as long as it is stored.
+ * WeatherNodes are created on the fly when read. The server's own indexes of
+ * the stations (expiry, eviction, history and query indexes) still live on
+ * the heap.
+ *
+ * Reads share a read lock, changes take the write lock. Values are compared by
+ * version (Lamport timestamp and last update) in remove(key, value) and
+ * replace(key, old, new), since nodes read back are new objects each time.
+ * Iteration walks the record addresses in place, a batch at a time under the
+ * read lock, so it holds nothing between batches and needs no closing. It is
+ * weakly consistent like ConcurrentHashMap's: it sees the stations present
+ * when it started and not removed since, with their latest data.
+ */
+public class OffHeapStationStore extends AbstractMap<String, WeatherNode>
+		implements ConcurrentMap<String, WeatherNode> {
+	protected static final int SLAB_BYTES = 4 * 1024 * 1024;
+	private static final int HEADER_BYTES = 20;
+	private static final int MIN_CHUNK_BITS = 6; // 64 byte chunks
+	private static final int MAX_CHUNK_BITS = 22; // chunks up to SLAB_BYTES, larger records get their own slab
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+	private static final long FREE = 0;
+	private static final byte RAW = 0; // data format: the JSON as stored
+	private static final byte FORMATTED = 1; // data format: WeatherNode.getFormattedBytes()
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// slabs, chunk allocation and free chunks per size class, guarded by lock
+	private ByteBuffer[] slabs = new ByteBuffer[16];
+	private int slabCount;
+	private int[] freeSlabs = new int[0]; // released dedicated slabs
+	private int freeSlabCount;
+	private int current = -1; // slab chunks are carved from
+	private int currentOffset;
+	private final long[][] freeChunks = new long[MAX_CHUNK_BITS + 1][];
+	private final int[] freeChunkCounts = new int[MAX_CHUNK_BITS + 1];
+	private int generation; // bumped by clear()
+
+	// index: slot holds entry + 1, EMPTY or DELETED; hashes mirror it
+	private int[] slots = new int[1024];
+	private int[] hashes = new int[1024];
+	private int size;
+	private int used; // slots that are not EMPTY, including DELETED
+
+	// entries: record address + 1 of each station, or FREE, in iteration order
+	private long[] entries = new long[1024];
+	private int[] added = new int[1024]; // insertion sequence of each entry
+	private int entryCount; // entries in use or FREE
+	private int[] freeEntries = new int[0];
+	private int freeEntryCount;
+	private int insertions;
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public WeatherNode get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		byte[] id = encode((String) key);
+		lock.readLock().lock();
+		try {
+			int slot = find(id, hash(id));
+			return slot < 0 ? null : readNode(recordAddress(slot));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public WeatherNode put(String key, WeatherNode value) {
+		byte[] id = encode(key);
+		byte[] data = recordData(value);
+		lock.writeLock().lock();
+		try {
+			return store(id, data, value, true);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public WeatherNode putIfAbsent(String key, WeatherNode value) {
+		byte[] id = encode(key);
+		byte[] data = recordData(value);
+		lock.writeLock().lock();
+		try {
+			return store(id, data, value, false);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public WeatherNode replace(String key, WeatherNode value) {
+		byte[] id = encode(key);
+		byte[] data = recordData(value);
+		lock.writeLock().lock();
+		try {
+			int slot = find(id, hash(id));
+			return slot < 0 ? null : store(id, data, value, true);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(String key, WeatherNode oldValue, WeatherNode newValue) {
+		byte[] id = encode(key);
+		byte[] data = recordData(newValue);
+		lock.writeLock().lock();
+		try {
+			int slot = find(id, hash(id));
+			if (slot < 0 || !sameVersion(recordAddress(slot), oldValue)) {
+				return false;
+			}
+			store(id, data, newValue, true);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public WeatherNode remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		byte[] id = encode((String) key);
+		lock.writeLock().lock();
+		try {
+			int slot = find(id, hash(id));
+			if (slot < 0) {
+				return null;
+			}
+			WeatherNode previous = readNode(recordAddress(slot));
+			delete(slot);
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (!(key instanceof String) || !(value instanceof WeatherNode)) {
+			return false;
+		}
+		byte[] id = encode((String) key);
+		lock.writeLock().lock();
+		try {
+			int slot = find(id, hash(id));
+			if (slot < 0 || !sameVersion(recordAddress(slot), (WeatherNode) value)) {
+				return false;
+			}
+			delete(slot);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			slabs = new ByteBuffer[16];
+			slabCount = 0;
+			freeSlabs = new int[0];
+			freeSlabCount = 0;
+			current = -1;
+			currentOffset = 0;
+			Arrays.fill(freeChunks, null);
+			Arrays.fill(freeChunkCounts, 0);
+			slots = new int[1024];
+			hashes = new int[1024];
+			size = 0;
+			used = 0;
+			entries = new long[1024];
+			added = new int[1024];
+			entryCount = 0;
+			freeEntries = new int[0];
+			freeEntryCount = 0;
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the off-heap bytes allocated for records, including free chunks.
+	 */
+	public long offHeapBytes() {
+		lock.readLock().lock();
+		try {
+			long total = 0;
+			for (int i = 0; i < slabCount; i++) {
+				if (slabs[i] != null) {
+					total += slabs[i].capacity();
+				}
+			}
+			return total;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, WeatherNode>> entrySet() {
+		return new AbstractSet<Map.Entry<String, WeatherNode>>() {
+			@Override
+			public Iterator<Map.Entry<String, WeatherNode>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return OffHeapStationStore.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the stations present when iteration started, reading each
+	 * station's current data as it goes, in batches so the whole store is never
+	 * copied onto the heap at once.
+	 *
+	 * A station keeps its entry while it is stored, so each one is returned at
+	 * most once; entries reused by stations added since iteration started are
+	 * skipped by their insertion sequence. Nothing is held between batches.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, WeatherNode>> {
+		private static final int BATCH = 1024;
+		private final int generation;
+		private final int started; // insertions when iteration started
+		private int position;
+		private boolean finished;
+		private final List<Map.Entry<String, WeatherNode>> batch = new ArrayList<>(BATCH);
+		private int batchPosition;
+		private String lastKey;
+
+		EntryIterator() {
+			lock.readLock().lock();
+			try {
+				generation = OffHeapStationStore.this.generation;
+				started = insertions;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (batchPosition < batch.size()) {
+				return true;
+			}
+			batch.clear();
+			batchPosition = 0;
+			while (batch.isEmpty() && !finished) {
+				fill();
+			}
+			return !batch.isEmpty();
+		}
+
+		private void fill() {
+			lock.readLock().lock();
+			try {
+				if (generation != OffHeapStationStore.this.generation) {
+					finished = true; // cleared since iteration started
+					return;
+				}
+				int end = Math.min(entryCount, position + BATCH);
+				for (; position < end; position++) {
+					long entry = entries[position];
+					if (entry != FREE && added[position] - started <= 0) {
+						long address = entry - 1;
+						batch.add(new SimpleImmutableEntry<>(new String(readIdBytes(address), StandardCharsets.UTF_8),
+								readNode(address)));
+					}
+				}
+				finished = position >= entryCount;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public Map.Entry<String, WeatherNode> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, WeatherNode> entry = batch.get(batchPosition++);
+			lastKey = entry.getKey();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			OffHeapStationStore.this.remove(lastKey);
+			lastKey = null;
+		}
+	}
+
+	/**
+	 * Writes a record and points the station's slot at it, freeing the
+	 * station's previous record. Called holding the write lock.
+	 *
+	 * @param replace whether an existing station is overwritten
+	 * @return the station's previous data, or null if it was absent
+	 */
+	private WeatherNode store(byte[] id, byte[] data, WeatherNode value, boolean replace) {
+		int hash = hash(id);
+		int slot = find(id, hash);
+		WeatherNode previous = null;
+		if (slot >= 0) {
+			long oldAddress = recordAddress(slot);
+			previous = readNode(oldAddress);
+			if (!replace) {
+				return previous;
+			}
+			long address = writeRecord(id, data, value);
+			entries[slots[slot] - 1] = address + 1;
+			release(oldAddress);
+			return previous;
+		}
+
+		if ((used + 1) * 4L > slots.length * 3L) {
+			rehash(size + 1 > slots.length / 2 ? slots.length * 2 : slots.length);
+		}
+		long address = writeRecord(id, data, value);
+		int mask = slots.length - 1;
+		int index = hash & mask;
+		while (slots[index] != EMPTY && slots[index] != DELETED) {
+			index = (index + 1) & mask;
+		}
+		if (slots[index] == EMPTY) {
+			used++;
+		}
+		int entry = freeEntryCount > 0 ? freeEntries[--freeEntryCount] : entryCount++;
+		if (entry == entries.length) {
+			entries = Arrays.copyOf(entries, entries.length * 2);
+			added = Arrays.copyOf(added, added.length * 2);
+		}
+		entries[entry] = address + 1;
+		added[entry] = ++insertions;
+		slots[index] = entry + 1;
+		hashes[index] = hash;
+		size++;
+		return null;
+	}
+
+	private void delete(int slot) {
+		int entry = slots[slot] - 1;
+		release(entries[entry] - 1);
+		entries[entry] = FREE;
+		if (freeEntryCount == freeEntries.length) {
+			freeEntries = Arrays.copyOf(freeEntries, Math.max(64, freeEntryCount * 2));
+		}
+		freeEntries[freeEntryCount++] = entry;
+		slots[slot] = DELETED;
+		size--;
+	}
+
+	private long recordAddress(int slot) {
+		return entries[slots[slot] - 1] - 1;
+	}
+
+	/**
+	 * Finds the slot of a station.
+	 *
+	 * @return slot index, or -1 if the station is not stored
+	 */
+	private int find(byte[] id, int hash) {
+		int mask = slots.length - 1;
+		int index = hash & mask;
+		int slot;
+		while ((slot = slots[index]) != EMPTY) {
+			if (slot != DELETED && hashes[index] == hash && idEquals(entries[slot - 1] - 1, id)) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Rebuilds the index with the given capacity, dropping deleted slots.
+	 */
+	private void rehash(int capacity) {
+		int[] oldSlots = slots;
+		int[] oldHashes = hashes;
+		slots = new int[capacity];
+		hashes = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != EMPTY && oldSlots[i] != DELETED) {
+				int index = oldHashes[i] & mask;
+				while (slots[index] != EMPTY) {
+					index = (index + 1) & mask;
+				}
+				slots[index] = oldSlots[i];
+				hashes[index] = oldHashes[i];
+			}
+		}
+		used = size;
+	}
+
+	private long writeRecord(byte[] id, byte[] data, WeatherNode value) {
+		int length = HEADER_BYTES + id.length + data.length;
+		long address = allocate(length);
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		slab.putInt(offset, id.length);
+		slab.putInt(offset + 4, data.length);
+		slab.putInt(offset + 8, value.getLamport());
+		slab.putLong(offset + 12, value.getLastUpdate());
+		slab.put(offset + HEADER_BYTES, id);
+		slab.put(offset + HEADER_BYTES + id.length, data);
+		return address;
+	}
+
+	private WeatherNode readNode(long address) {
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		int start = offset + HEADER_BYTES + slab.getInt(offset);
+		byte[] data = new byte[slab.getInt(offset + 4) - 1];
+		slab.get(start + 1, data);
+		int lamport = slab.getInt(offset + 8);
+		long lastUpdate = slab.getLong(offset + 12);
+		if (slab.get(start) == FORMATTED) {
+			return WeatherNode.fromFormatted(data, lamport, lastUpdate);
+		}
+		return new WeatherNode(new String(data, StandardCharsets.UTF_8), lamport, lastUpdate);
+	}
+
+	/**
+	 * Encodes a node's data for its record: the format byte, then the
+	 * formatted bytes, or the JSON itself when formatting would drop its
+	 * trailing newlines.
+	 */
+	private static byte[] recordData(WeatherNode value) {
+		String json = value.getData();
+		boolean formatted = !json.endsWith("\n");
+		byte[] bytes = formatted ? value.getFormattedBytes() : encode(json);
+		byte[] data = new byte[bytes.length + 1];
+		data[0] = formatted ? FORMATTED : RAW;
+		System.arraycopy(bytes, 0, data, 1, bytes.length);
+		return data;
+	}
+
+	private byte[] readIdBytes(long address) {
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		byte[] id = new byte[slab.getInt(offset)];
+		slab.get(offset + HEADER_BYTES, id);
+		return id;
+	}
+
+	private boolean idEquals(long address, byte[] id) {
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		if (slab.getInt(offset) != id.length) {
+			return false;
+		}
+		int start = offset + HEADER_BYTES;
+		for (int i = 0; i < id.length; i++) {
+			if (slab.get(start + i) != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean sameVersion(long address, WeatherNode node) {
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		return slab.getInt(offset + 8) == node.getLamport() && slab.getLong(offset + 12) == node.getLastUpdate();
+	}
+
+	/**
+	 * Allocates a chunk for a record of the given length.
+	 *
+	 * @return chunk address: slab index in the high 32 bits, offset in the low
+	 */
+	private long allocate(int length) {
+		int bits = chunkBits(length);
+		if (bits > MAX_CHUNK_BITS) {
+			return address(newSlab(length), 0); // dedicated slab
+		}
+		if (freeChunkCounts[bits] > 0) {
+			return freeChunks[bits][--freeChunkCounts[bits]];
+		}
+		int chunk = 1 << bits;
+		if (current < 0 || currentOffset + chunk > SLAB_BYTES) {
+			current = newSlab(SLAB_BYTES);
+			currentOffset = 0;
+		}
+		long address = address(current, currentOffset);
+		currentOffset += chunk;
+		return address;
+	}
+
+	private void release(long address) {
+		ByteBuffer slab = slab(address);
+		int offset = offset(address);
+		int length = HEADER_BYTES + slab.getInt(offset) + slab.getInt(offset + 4);
+		int bits = chunkBits(length);
+		if (bits > MAX_CHUNK_BITS) {
+			int index = (int) (address >>> 32);
+			slabs[index] = null; // released to the garbage collector
+			if (freeSlabCount == freeSlabs.length) {
+				freeSlabs = Arrays.copyOf(freeSlabs, Math.max(8, freeSlabCount * 2));
+			}
+			freeSlabs[freeSlabCount++] = index;
+			return;
+		}
+		long[] free = freeChunks[bits];
+		if (free == null || freeChunkCounts[bits] == free.length) {
+			free = free == null ? new long[64] : Arrays.copyOf(free, free.length * 2);
+			freeChunks[bits] = free;
+		}
+		free[freeChunkCounts[bits]++] = address;
+	}
+
+	private int newSlab(int capacity) {
+		ByteBuffer slab = ByteBuffer.allocateDirect(capacity);
+		if (freeSlabCount > 0) {
+			int index = freeSlabs[--freeSlabCount];
+			slabs[index] = slab;
+			return index;
+		}
+		if (slabCount == slabs.length) {
+			slabs = Arrays.copyOf(slabs, slabs.length * 2);
+		}
+		slabs[slabCount] = slab;
+		return slabCount++;
+	}
+
+	private ByteBuffer slab(long address) {
+		return slabs[(int) (address >>> 32)];
+	}
+
+	private static int offset(long address) {
+		return (int) address;
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int chunkBits(int length) {
+		int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return Math.max(MIN_CHUNK_BITS, bits);
+	}
+
+	private static int hash(byte[] id) {
+		int hash = Arrays.hashCode(id);
+		return hash ^ (hash >>> 16);
+	}
+
+	private static byte[] encode(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer thread that persists weather data changes in batches.
+ *
+ * Changes are queued by request handlers and the writer thread collects every
+ * change arriving within a short window (or until the batch is full) and hands
+ * them to the Writer in one go, so concurrent PUTs share one write and one
+ * force to disk instead of each doing their own. Each change carries a future
+ * that completes once its batch is durable; handlers wait on it before
+ * acknowledging the request.
+ */
+public class PersistenceStage implements Closeable {
+	protected static final byte PUT = 1;
+	protected static final byte REMOVE = 2;
+	private static final byte COMPACT = 3;
+	private static final byte STOP = 4;
+
+	/**
+	 * Persists batches of changes. Called only from the stage's writer thread.
+	 */
+	public interface Writer {
+		/**
+		 * Persists the changes durably, in order.
+		 */
+		void write(List<Mutation> batch) throws IOException;
+
+		/**
+		 * Folds persisted changes into a snapshot.
+		 */
+		void compact() throws IOException;
+	}
+
+	/**
+	 * A queued change to persist.
+	 */
+	public static class Mutation {
+		final byte op;
+		final String id;
+		final WeatherNode node;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Mutation(byte op, String id, WeatherNode node) {
+			this.op = op;
+			this.id = id;
+			this.node = node;
+		}
+
+		public byte getOp() {
+			return this.op;
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		public WeatherNode getNode() {
+			return this.node;
+		}
+	}
+
+	private final Writer writer;
+	private final int maxBatch;
+	private final long windowNanos;
+	private final BlockingQueue<Mutation> queue = new LinkedBlockingQueue<>();
+	private final Thread thread;
+
+	/**
+	 * Creates the stage and starts its writer thread.
+	 *
+	 * @param writer       persists batches
+	 * @param maxBatch     most changes written in one batch
+	 * @param windowMillis how long to wait for more changes after the first
+	 *                     change of a batch arrives (0 takes only what is queued)
+	 */
+	public PersistenceStage(Writer writer, int maxBatch, long windowMillis) {
+		this.writer = writer;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.thread = new Thread(this::run, "persistence-stage");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues a PUT of weather data for a station.
+	 *
+	 * @return future completed once the change is durable
+	 */
+	public CompletableFuture<Void> submitPut(String id, WeatherNode node) {
+		return submit(new Mutation(PUT, id, node));
+	}
+
+	/**
+	 * Queues the removal of a station.
+	 *
+	 * @return future completed once the change is durable
+	 */
+	public CompletableFuture<Void> submitRemove(String id) {
+		return submit(new Mutation(REMOVE, id, null));
+	}
+
+	/**
+	 * Queues a compaction, run on the writer thread after the changes queued
+	 * before it have been written.
+	 *
+	 * @return future completed once the compaction has run
+	 */
+	public CompletableFuture<Void> submitCompaction() {
+		return submit(new Mutation(COMPACT, null, null));
+	}
+
+	private CompletableFuture<Void> submit(Mutation mutation) {
+		queue.add(mutation);
+		// the writer thread may have drained the queue for the last time already
+		if (!thread.isAlive() && queue.remove(mutation)) {
+			mutation.done.completeExceptionally(new IOException("Persistence stage is closed"));
+		}
+		return mutation.done;
+	}
+
+	/**
+	 * Waits for a queued change to become durable.
+	 *
+	 * @param done future returned when the change was queued
+	 * @throws IOException if the change could not be persisted
+	 */
+	public static void await(CompletableFuture<Void> done) throws IOException {
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for persistence", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+	/**
+	 * Writes everything queued so far, then stops the writer thread.
+	 */
+	@Override
+	public void close() {
+		queue.add(new Mutation(STOP, null, null));
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<Mutation> batch = new ArrayList<>();
+		try {
+			while (true) {
+				Mutation first = queue.take();
+				Mutation control = null; // compaction or stop ending this batch
+				if (first.op == COMPACT || first.op == STOP) {
+					control = first;
+				} else {
+					batch.add(first);
+					long deadline = System.nanoTime() + windowNanos;
+					while (batch.size() < maxBatch) {
+						long remaining = deadline - System.nanoTime();
+						Mutation next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+						if (next == null) {
+							break;
+						}
+						if (next.op == COMPACT || next.op == STOP) {
+							control = next;
+							break;
+						}
+						batch.add(next);
+					}
+					writeBatch(batch);
+					batch.clear();
+				}
+
+				if (control != null && control.op == STOP) {
+					control.done.complete(null);
+					break;
+				} else if (control != null) {
+					try {
+						writer.compact();
+						control.done.complete(null);
+					} catch (IOException | RuntimeException e) {
+						System.err.println("Failed to compact backup: " + e.getMessage());
+						control.done.completeExceptionally(e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			IOException closed = new IOException("Persistence stage is closed");
+			for (Mutation mutation : batch) {
+				mutation.done.completeExceptionally(closed);
+			}
+			Mutation mutation;
+			while ((mutation = queue.poll()) != null) {
+				mutation.done.completeExceptionally(closed);
+			}
+		}
+	}
+
+	private void writeBatch(List<Mutation> batch) {
+		try {
+			writer.write(batch);
+			for (Mutation mutation : batch) {
+				mutation.done.complete(null);
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to persist weather data: " + e.getMessage());
+			for (Mutation mutation : batch) {
+				mutation.done.completeExceptionally(e);
+			}
+		}
+	}
+}
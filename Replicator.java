@@ -0,0 +1,374 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps a replica Aggregation Server's weather map in step with a primary.
+ *
+ * The replica opens GET /replication/stream?since=... on the primary, which
+ * answers with its changes in change log order, then keeps the response open
+ * and ships each new change as it is applied. Records are text lines, each
+ * put followed by the station's data:
+ * - "put stamp lamport lastUpdate length id", then length bytes of data and
+ * a newline
+ * - "remove stamp id"
+ * - "snapshot stamp count", then count puts: the primary's whole map, sent
+ * when the replica is new or further behind than the primary's change log;
+ * stations not in it are removed
+ * - "heartbeat stamp": the primary's latest stamp, sent when idle
+ * A stamp is the primary's change log stamp. Stamps restart with the
+ * primary, so the response's Change-Epoch header names the primary's change
+ * log epoch and a stamp is only compared with stamps of the same epoch. The
+ * replica reconnects with the cursor of the last stamp it applied, backing off
+ * while the primary is down; a primary with a new epoch sends a snapshot.
+ *
+ * Replication lag is the time since the replica last knew it had applied
+ * everything the primary had, or 0 while it has.
+ */
+public class Replicator implements Runnable, Closeable {
+	private final String hostname;
+	private final int port;
+	private final long heartbeatMillis;
+	private final Target target;
+	private volatile Socket socket;
+	private volatile Thread thread;
+	private volatile boolean closed;
+	private volatile boolean connected;
+	private volatile long epoch = -1; // primary's change log epoch
+	private volatile long applied = -1; // last primary stamp applied
+	private volatile long primaryLatest = -1; // latest primary stamp heard of
+	private volatile long caughtUpAt = System.currentTimeMillis();
+
+	/**
+	 * Where replicated changes are applied, i.e. the replica's weather map.
+	 */
+	public interface Target {
+		/**
+		 * Stores stations' data, in order.
+		 */
+		void put(List<String> ids, List<WeatherNode> nodes) throws IOException;
+
+		/**
+		 * Removes a station, if stored.
+		 */
+		void remove(String id) throws IOException;
+
+		/**
+		 * Removes every station not in ids.
+		 */
+		void retain(Set<String> ids) throws IOException;
+	}
+
+	/**
+	 * @param hostname        primary host
+	 * @param port            primary port
+	 * @param heartbeatMillis heartbeat interval the primary was asked for; a
+	 *                        stream silent for three of them is reconnected
+	 * @param target          where changes are applied
+	 */
+	public Replicator(String hostname, int port, long heartbeatMillis, Target target) {
+		this.hostname = hostname;
+		this.port = port;
+		this.heartbeatMillis = heartbeatMillis;
+		this.target = target;
+	}
+
+	/**
+	 * Starts following the primary on a daemon thread.
+	 */
+	public void start() {
+		Thread follower = new Thread(this, "replication");
+		follower.setDaemon(true);
+		this.thread = follower;
+		follower.start();
+	}
+
+	/**
+	 * Follows the primary until closed, reconnecting with a jittered backoff.
+	 */
+	@Override
+	public void run() {
+		int failures = 0;
+		while (!closed) {
+			try {
+				follow();
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println("Replication from " + getPrimary() + " interrupted: " + e.getMessage());
+				}
+			}
+			if (connected) {
+				failures = 0; // the primary was reached, retry soon
+			}
+			connected = false;
+			try {
+				Thread.sleep(ContentServer.backoffDelay(failures++, 100, 5000));
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void follow() throws IOException {
+		try (Socket primary = new Socket(hostname, port)) {
+			this.socket = primary;
+			if (closed) {
+				return;
+			}
+			primary.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 3 * heartbeatMillis));
+			long after = applied;
+			String since = epoch < 0 || after < 0 ? "-1" : epoch + "-" + after;
+			String request = "GET /replication/stream?since=" + since + "&heartbeat=" + heartbeatMillis
+					+ " HTTP/1.1\r\nHost: " + getPrimary() + "\r\nLamport-Clock: 1\r\n\r\n";
+			OutputStream out = primary.getOutputStream();
+			out.write(request.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			InputStream in = new BufferedInputStream(primary.getInputStream());
+			String statusLine = ChunkedInputStream.readLine(in);
+			if (statusLine == null || !statusLine.startsWith("HTTP/1.1 200")) {
+				throw new IOException("Primary answered " + statusLine);
+			}
+			boolean chunked = false;
+			long primaryEpoch = -1;
+			String line;
+			while ((line = ChunkedInputStream.readLine(in)) != null && !line.isEmpty()) {
+				chunked |= line.toLowerCase().startsWith("transfer-encoding:") && line.toLowerCase().contains("chunked");
+				if (line.toLowerCase().startsWith("change-epoch:")) {
+					try {
+						primaryEpoch = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+					} catch (NumberFormatException e) {
+						throw new IOException("Primary answered an invalid epoch: " + line);
+					}
+				}
+			}
+			setEpoch(primaryEpoch);
+			connected = true;
+			System.out.println("Replicating from " + getPrimary() + " after " + applied);
+			apply(chunked ? new ChunkedInputStream(in) : in);
+		} finally {
+			this.socket = null;
+		}
+	}
+
+	/**
+	 * Sets the primary's change log epoch for the stream being followed. Stamps
+	 * of another epoch say nothing about this one's, so they are forgotten: the
+	 * replica lags until the primary's snapshot is applied.
+	 *
+	 * @param primaryEpoch the primary's epoch, or -1 if it did not say
+	 */
+	protected void setEpoch(long primaryEpoch) {
+		if (primaryEpoch != epoch) {
+			epoch = primaryEpoch;
+			applied = -1;
+			primaryLatest = -1;
+		}
+	}
+
+	/**
+	 * Applies records from a replication stream until it ends.
+	 *
+	 * @param in the stream's body
+	 * @throws IOException if the stream fails or ends in the middle of a record,
+	 *                     or a change cannot be applied
+	 */
+	protected void apply(InputStream in) throws IOException {
+		List<String> snapshotIds = null; // stations of a snapshot being read
+		List<WeatherNode> snapshotNodes = null;
+		long snapshotStamp = 0;
+		int snapshotRemaining = 0;
+		String line;
+		while ((line = ChunkedInputStream.readLine(in)) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split(" ", 6);
+			long stamp;
+			try {
+				stamp = Long.parseLong(fields[1]);
+				switch (fields[0]) {
+					case "put": {
+						int length = Integer.parseInt(fields[4]);
+						byte[] data = in.readNBytes(length);
+						if (data.length < length || ChunkedInputStream.readLine(in) == null) {
+							throw new EOFException("Replication stream ended in a record");
+						}
+						String id = fields[5];
+						WeatherNode node = new WeatherNode(new String(data, StandardCharsets.UTF_8),
+								Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+						if (snapshotRemaining > 0) {
+							snapshotIds.add(id);
+							snapshotNodes.add(node);
+							if (--snapshotRemaining == 0) {
+								applySnapshot(snapshotIds, snapshotNodes, snapshotStamp);
+							}
+							continue;
+						}
+						target.put(List.of(id), List.of(node));
+						break;
+					}
+					case "remove":
+						target.remove(line.split(" ", 3)[2]);
+						break;
+					case "snapshot":
+						snapshotStamp = stamp;
+						snapshotRemaining = Integer.parseInt(fields[2]);
+						snapshotIds = new ArrayList<>(snapshotRemaining);
+						snapshotNodes = new ArrayList<>(snapshotRemaining);
+						if (snapshotRemaining == 0) {
+							applySnapshot(snapshotIds, snapshotNodes, snapshotStamp);
+						}
+						continue;
+					case "heartbeat":
+						primaryLatest = Math.max(primaryLatest, stamp);
+						updateLag();
+						continue;
+					default:
+						throw new IOException("Unknown replication record: " + line);
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Invalid replication record: " + line);
+			}
+			advance(stamp);
+		}
+	}
+
+	private void applySnapshot(List<String> ids, List<WeatherNode> nodes, long stamp) throws IOException {
+		target.put(ids, nodes);
+		target.retain(new HashSet<>(ids));
+		System.out.println("Replicated snapshot of " + ids.size() + " stations at " + stamp);
+		applied = stamp; // the whole map as of stamp, even if an earlier stamp was higher
+		primaryLatest = Math.max(primaryLatest, stamp);
+		updateLag();
+	}
+
+	private void advance(long stamp) {
+		applied = Math.max(applied, stamp);
+		primaryLatest = Math.max(primaryLatest, stamp);
+		updateLag();
+	}
+
+	private void updateLag() {
+		if (applied >= 0 && applied >= primaryLatest) {
+			caughtUpAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Writes a put record.
+	 *
+	 * @param out   replication stream
+	 * @param stamp change log stamp of the put
+	 * @param id    station id
+	 * @param node  the station's data
+	 */
+	protected static void writePut(OutputStream out, long stamp, String id, WeatherNode node) throws IOException {
+		byte[] data = node.getData().getBytes(StandardCharsets.UTF_8);
+		String head = "put " + stamp + " " + node.getLamport() + " " + node.getLastUpdate() + " " + data.length
+				+ " " + id + "\n";
+		out.write(head.getBytes(StandardCharsets.UTF_8));
+		out.write(data);
+		out.write('\n');
+	}
+
+	/**
+	 * Writes a remove record.
+	 */
+	protected static void writeRemove(OutputStream out, long stamp, String id) throws IOException {
+		out.write(("remove " + stamp + " " + id + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes a snapshot record, to be followed by count put records.
+	 */
+	protected static void writeSnapshot(OutputStream out, long stamp, int count) throws IOException {
+		out.write(("snapshot " + stamp + " " + count + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes a heartbeat record with the primary's latest stamp.
+	 */
+	protected static void writeHeartbeat(OutputStream out, long latest) throws IOException {
+		out.write(("heartbeat " + latest + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get the primary, as "hostname:port".
+	 */
+	public String getPrimary() {
+		return hostname + ":" + port;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Get the primary's change log epoch, or -1 before the first stream.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Get the last primary stamp applied in the current epoch, or -1 before the
+	 * first.
+	 */
+	public long getApplied() {
+		return applied;
+	}
+
+	/**
+	 * Get the latest primary stamp heard of in the current epoch, or -1 before
+	 * the first.
+	 */
+	public long getPrimaryLatest() {
+		return primaryLatest;
+	}
+
+	/**
+	 * Get the replication lag in milliseconds: 0 while connected with every
+	 * change heard of applied, otherwise the time since that was last so.
+	 */
+	public long getLagMillis() {
+		if (connected && applied >= 0 && applied >= primaryLatest) {
+			return 0;
+		}
+		return System.currentTimeMillis() - caughtUpAt;
+	}
+
+	/**
+	 * Stops following the primary and waits for the follower thread to end.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Socket current = socket;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close replication connection: " + e.getMessage());
+			}
+		}
+		Thread follower = thread;
+		if (follower != null) {
+			follower.interrupt();
+			try {
+				follower.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the GET /weather.json response body holding all stations.
+ *
+ * The weather map has a version number that is bumped on every change. The
+ * JSON array is built from the nodes' cached formatted bytes only when the
+ * version has moved since the last build; until then every GET is answered
+ * with the same byte array.
+ */
+public class ResponseCache {
+	private static final byte[] EMPTY = "[]\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OPEN = "[\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SEPARATOR = ",\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] CLOSE = "\n]\n".getBytes(StandardCharsets.UTF_8);
+
+	private final AtomicLong version = new AtomicLong();
+	// server start time, so entity tags are not reused after a restart
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	private volatile Entry cached;
+
+	/**
+	 * A built body and the map state it was built from.
+	 */
+	private static class Entry {
+		final long version;
+		final Map<String, WeatherNode> source;
+		final byte[] body;
+
+		Entry(long version, Map<String, WeatherNode> source, byte[] body) {
+			this.version = version;
+			this.source = source;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Marks the cached body as stale. Called after every change to the weather
+	 * map.
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Get the current version of the weather map.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Get the current version of the weather map as a quoted entity tag for
+	 * the ETag header. The tag changes with every change to the map, so a
+	 * client holding it can be answered 304 Not Modified without a body.
+	 */
+	public String getETag() {
+		return "\"" + epoch + "-" + version.get() + "\"";
+	}
+
+	/**
+	 * Get the response body listing every station in the weather map, building
+	 * it if the map changed since the last call.
+	 *
+	 * @param weather the weather map
+	 * @return JSON array body, shared between callers and must not be modified
+	 */
+	public byte[] get(Map<String, WeatherNode> weather) {
+		Entry entry = cached;
+		if (isCurrent(entry, weather)) {
+			return entry.body;
+		}
+		synchronized (this) {
+			entry = cached;
+			if (isCurrent(entry, weather)) {
+				return entry.body; // built by another thread while waiting
+			}
+			// a change during the build bumps the version past the one recorded
+			// here, so the next call builds again
+			long building = version.get();
+			entry = new Entry(building, weather, build(weather));
+			cached = entry;
+			return entry.body;
+		}
+	}
+
+	private boolean isCurrent(Entry entry, Map<String, WeatherNode> weather) {
+		return entry != null && entry.source == weather && entry.version == version.get();
+	}
+
+	/**
+	 * Builds the JSON array of all stations, in the same format GET has always
+	 * returned.
+	 */
+	protected static byte[] build(Map<String, WeatherNode> weather) {
+		if (weather.isEmpty()) {
+			return EMPTY;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			write(weather, body);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // not thrown by ByteArrayOutputStream
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Writes the JSON array of all stations to a stream as the map is
+	 * iterated, without building it in memory first.
+	 *
+	 * @param weather the weather map
+	 * @param out     stream the array is written to
+	 * @throws IOException if writing fails
+	 */
+	protected static void write(Map<String, WeatherNode> weather, OutputStream out) throws IOException {
+		boolean first = true;
+		for (WeatherNode node : weather.values()) {
+			out.write(first ? OPEN : SEPARATOR);
+			out.write(node.getFormattedBytes());
+			first = false;
+		}
+		out.write(first ? EMPTY : CLOSE); // empty, or emptied while iterating
+	}
+}
@@ -0,0 +1,537 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine for the AggregationServer.
+ *
+ * One acceptor thread accepts connections and hands them round-robin to a small
+ * number of event loops. Each event loop multiplexes its connections with a
+ * Selector, parses requests incrementally with an HttpRequestParser and writes
+ * responses back when the socket is writable, so idle connections do not hold
+ * a thread. Request processing itself (which may touch the backup file) runs
+ * on the AggregationServer's connection executor.
+ *
+ * Connections are persistent following the same rules as the blocking engine
+ * (see AggregationServer.applyConnectionHeaders). Pipelined requests are
+ * processed one at a time per connection so responses go out in request order.
+ * Once READ_AHEAD bytes are buffered behind the request in flight, the
+ * connection is not read until its response has been written.
+ *
+ * A streamed (chunked) response body is written by a worker thread, which
+ * hands the loop one buffer at a time and blocks while STREAM_WINDOW bytes are
+ * queued on the connection, so a slow client holds a bounded amount of memory.
+ * Long-lived requests (event streams, long-polls and replication streams, see
+ * AggregationServer.isLongLived) are processed and streamed on the
+ * AggregationServer's stream executor instead, so they never hold a worker.
+ * When the client of a long-lived request goes away, its connection is closed
+ * and the thread serving it is interrupted, which ends the wait for events
+ * and closes the subscription right away rather than at the next heartbeat.
+ * Such a connection is still read to notice that, but a client sending more
+ * than READ_AHEAD bytes behind its long-lived request is closed.
+ */
+public class SelectorServer {
+	private static final int STREAM_WINDOW = 64 * 1024; // streamed bytes queued per connection
+	protected static final int READ_AHEAD = 64 * 1024; // request bytes buffered behind a request in flight
+
+	private final AggregationServer server;
+	private final ServerSocketChannel acceptChannel;
+	private final EventLoop[] loops;
+	private final int maxConnections;
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	/**
+	 * Constructs the selector engine and starts its event loop threads.
+	 *
+	 * Supported options:
+	 * - loops: number of event loop threads (default: available processors)
+	 * - max-connections: open connections before new ones are answered with 503
+	 * (default 100000)
+	 *
+	 * @param server        Aggregation Server that processes requests
+	 * @param acceptChannel bound server socket channel
+	 * @param config        Server options
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public SelectorServer(AggregationServer server, ServerSocketChannel acceptChannel, ServerConfig config)
+			throws IOException {
+		this.server = server;
+		this.acceptChannel = acceptChannel;
+		this.maxConnections = config.getInt("max-connections", 100000);
+		int loopCount = Math.max(1, config.getInt("loops", Runtime.getRuntime().availableProcessors()));
+		this.loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "selector-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Accepts connections until the server channel is closed, registering each
+	 * connection with an event loop.
+	 */
+	public void listen() {
+		int next = 0;
+		try {
+			while (acceptChannel.isOpen() && !Thread.currentThread().isInterrupted()) {
+				SocketChannel channel = acceptChannel.accept();
+				if (openConnections.incrementAndGet() > maxConnections) {
+					openConnections.decrementAndGet();
+					reject(channel);
+					continue;
+				}
+				channel.configureBlocking(false);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		} catch (ClosedChannelException e) {
+			System.out.println("Server stopped.");
+		} catch (IOException e) {
+			System.err.println("Selector accept error: " + e.getMessage());
+		} finally {
+			for (EventLoop loop : loops) {
+				loop.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Answers a connection with 503 Service Unavailable and closes it.
+	 */
+	private void reject(SocketChannel channel) {
+		try (SocketChannel rejected = channel) {
+			System.out.println("Server busy, rejecting connection");
+			rejected.write(ByteBuffer.wrap(new HttpResponse(503).header("Retry-After", 1).header("Connection", "close")
+					.toBytes()));
+		} catch (IOException e) {
+			System.err.println("Failed to reject connection: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Per-connection state. Only touched by the owning event loop thread.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final HttpRequestParser parser = new HttpRequestParser();
+		final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+		boolean processing; // a request is being processed by a worker
+		boolean streaming; // a worker is writing a streamed response body
+		boolean longLived; // the request in flight is long-lived (see AggregationServer.isLongLived)
+		private Thread longLivedThread; // guarded by this: thread serving the long-lived request
+		final Semaphore window = new Semaphore(STREAM_WINDOW); // streamed bytes that may still be queued
+		final Set<ByteBuffer> windowed = Collections.newSetFromMap(new IdentityHashMap<>()); // queued streamed buffers
+		volatile boolean closed;
+		boolean closeAfterWrite;
+		boolean inputClosed; // client has shut down its side of the connection
+		int handled; // requests handled on this connection
+		long lastActivity = System.currentTimeMillis();
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		/**
+		 * Marks the current thread as serving the connection's long-lived
+		 * request, so it can be interrupted when the client goes away.
+		 */
+		synchronized void attach() {
+			longLivedThread = Thread.currentThread();
+			if (closed) {
+				longLivedThread.interrupt(); // the client went away before the request started
+			}
+		}
+
+		/**
+		 * Ends attach(), clearing an interrupt that came too late to matter so it
+		 * does not reach the thread's next task.
+		 */
+		synchronized void detach() {
+			longLivedThread = null;
+			Thread.interrupted();
+		}
+
+		/**
+		 * Interrupts the thread serving the long-lived request, if any, which
+		 * ends its wait for events and closes its subscription.
+		 */
+		synchronized void interruptLongLived() {
+			if (longLivedThread != null) {
+				longLivedThread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Event loop owning a Selector and the connections registered with it.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		private volatile boolean running = true;
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Registers a new connection with this loop. Safe to call from any thread.
+		 */
+		void register(SocketChannel channel) {
+			execute(() -> {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new Connection(channel, key));
+				} catch (IOException e) {
+					closeChannel(channel);
+				}
+			});
+		}
+
+		/**
+		 * Runs a task on the loop thread. Safe to call from any thread.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				long nextIdleCheck = System.currentTimeMillis() + server.keepAliveTimeout;
+				while (running) {
+					selector.select(Math.max(1, server.keepAliveTimeout / 2));
+					if (System.currentTimeMillis() >= nextIdleCheck) {
+						closeIdleConnections();
+						nextIdleCheck = System.currentTimeMillis() + server.keepAliveTimeout / 2;
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						if (!key.isValid() || connection == null) {
+							continue;
+						}
+						try {
+							if (key.isReadable()) {
+								read(connection);
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(connection);
+							}
+						} catch (IOException e) {
+							close(connection);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Selector loop error: " + e.getMessage());
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					closeChannel((SocketChannel) key.channel());
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close selector: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Closes connections that have been idle, with no request in flight and
+		 * nothing left to write, for longer than the keep-alive timeout.
+		 */
+		private void closeIdleConnections() {
+			long idleSince = System.currentTimeMillis() - server.keepAliveTimeout;
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				if (connection != null && !connection.processing && !connection.streaming
+						&& connection.pendingWrites.isEmpty() && connection.lastActivity < idleSince) {
+					close(connection);
+				}
+			}
+		}
+
+		private void read(Connection connection) throws IOException {
+			readBuffer.clear();
+			int read = connection.channel.read(readBuffer);
+			connection.lastActivity = System.currentTimeMillis();
+			if (read < 0) {
+				connection.inputClosed = true;
+				if (connection.longLived) {
+					// an event stream or long-poll has nobody to answer, free its thread now
+					close(connection);
+					connection.interruptLongLived();
+				} else if (connection.processing || connection.streaming) {
+					connection.key.interestOps(0); // answer the request in flight, then close
+				} else {
+					close(connection);
+				}
+				return;
+			}
+			readBuffer.flip();
+			connection.parser.feed(readBuffer);
+			if (readAheadFull(connection)) {
+				if (connection.longLived) {
+					close(connection); // nothing will read those bytes until the stream ends
+					connection.interruptLongLived();
+				} else {
+					connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+				}
+				return;
+			}
+			dispatch(connection);
+		}
+
+		/**
+		 * Checks whether a connection has READ_AHEAD bytes buffered behind its
+		 * request in flight, so it is not read until the response is written.
+		 */
+		private boolean readAheadFull(Connection connection) {
+			return (connection.processing || connection.streaming) && connection.parser.buffered() > READ_AHEAD;
+		}
+
+		/**
+		 * Hands the next complete request of a connection to a worker, unless one
+		 * is already being processed.
+		 */
+		private void dispatch(Connection connection) {
+			if (connection.processing || connection.streaming || connection.closeAfterWrite) {
+				return;
+			}
+			HttpRequest request;
+			try {
+				request = connection.parser.next();
+			} catch (IllegalArgumentException e) {
+				respond(connection, new HttpResponse(400).header("Connection", "close"), true, false);
+				return;
+			}
+			if (request == null) {
+				return;
+			}
+			connection.processing = true;
+			boolean longLived = server.isLongLived(request);
+			connection.longLived = longLived;
+			try {
+				(longLived ? server.streamExecutor : server.connectionExecutor).execute(() -> {
+					if (longLived) {
+						connection.attach();
+					}
+					try {
+						HttpResponse response = server.handleRequest(request);
+						// a long-lived body is written on this stream thread rather than a worker
+						boolean streamHere = longLived && response.isStreamed();
+						execute(() -> {
+							connection.processing = false;
+							connection.longLived = streamHere;
+							connection.handled++;
+							boolean keepAlive = server.applyConnectionHeaders(request, response, connection.handled);
+							respond(connection, response, !keepAlive || connection.inputClosed, streamHere);
+						});
+						if (streamHere) {
+							stream(connection, response); // its buffers are queued after the head
+						}
+					} finally {
+						if (longLived) {
+							connection.detach();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				connection.processing = false;
+				connection.longLived = false;
+				respond(connection, new HttpResponse(503).header("Retry-After", 1).header("Connection", "close"), true,
+						false);
+			}
+		}
+
+		/**
+		 * Queues a response for writing and enables write interest. The body
+		 * array is queued as it is, without copying it next to the head; a
+		 * streamed body is handed to a worker thread to write, unless the caller
+		 * writes it.
+		 */
+		private void respond(Connection connection, HttpResponse response, boolean close, boolean streamedByCaller) {
+			if (!connection.key.isValid()) {
+				return;
+			}
+			connection.pendingWrites.add(ByteBuffer.wrap(response.headBytes()));
+			if (response.isStreamed()) {
+				connection.streaming = true;
+				if (!streamedByCaller) {
+					try {
+						server.connectionExecutor.execute(() -> stream(connection, response));
+					} catch (RejectedExecutionException e) {
+						close(connection); // head already queued, the response cannot be completed
+						return;
+					}
+				}
+			} else if (response.getBodyBytes().length > 0) {
+				connection.pendingWrites.add(ByteBuffer.wrap(response.getBodyBytes()));
+			}
+			connection.closeAfterWrite = close;
+			connection.lastActivity = System.currentTimeMillis();
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				write(connection);
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+
+		/**
+		 * Writes a streamed response body on a worker thread. Ends the response
+		 * on the loop thread, or closes the connection if the body fails.
+		 */
+		private void stream(Connection connection, HttpResponse response) {
+			try (OutputStream out = new BufferedOutputStream(new StreamOutput(connection),
+					HttpResponse.CHUNK_BYTES + 16)) {
+				response.writeBody(out);
+				out.flush();
+				execute(() -> {
+					connection.streaming = false;
+					connection.longLived = false;
+					if (connection.key.isValid() && connection.pendingWrites.isEmpty()) {
+						try {
+							write(connection);
+						} catch (IOException e) {
+							close(connection);
+						}
+					}
+				});
+			} catch (IOException e) {
+				execute(() -> close(connection));
+			}
+		}
+
+		/**
+		 * Output stream of a streamed body, queueing each write as a buffer on
+		 * the connection. Blocks while the connection's window is used up.
+		 */
+		private class StreamOutput extends OutputStream {
+			private final Connection connection;
+
+			StreamOutput(Connection connection) {
+				this.connection = connection;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int n = Math.min(len, STREAM_WINDOW);
+					connection.window.acquireUninterruptibly(n);
+					if (connection.closed) {
+						throw new IOException("Connection closed");
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + n));
+					execute(() -> queueStreamed(connection, buffer));
+					off += n;
+					len -= n;
+				}
+			}
+		}
+
+		/**
+		 * Queues a buffer of a streamed body. Runs on the loop thread.
+		 */
+		private void queueStreamed(Connection connection, ByteBuffer buffer) {
+			if (!connection.key.isValid()) {
+				connection.window.release(buffer.capacity());
+				return;
+			}
+			connection.pendingWrites.add(buffer);
+			connection.windowed.add(buffer);
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				write(connection);
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+
+		private void write(Connection connection) throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = connection.pendingWrites.peek()) != null) {
+				connection.channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					return; // socket buffer full, wait for the next OP_WRITE
+				}
+				connection.pendingWrites.poll();
+				if (connection.windowed.remove(buffer)) {
+					connection.window.release(buffer.capacity());
+				}
+			}
+			if (connection.streaming) {
+				// wait for more body, and notice the client going away unless it has sent enough already
+				connection.key.interestOps(connection.inputClosed || readAheadFull(connection) ? 0 : SelectionKey.OP_READ);
+				return;
+			}
+			if (connection.closeAfterWrite) {
+				close(connection);
+			} else {
+				connection.key.interestOps(SelectionKey.OP_READ);
+				dispatch(connection); // next pipelined request, if already buffered
+				if (connection.key.isValid() && readAheadFull(connection)) {
+					connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+				}
+			}
+		}
+
+		private void close(Connection connection) {
+			connection.closed = true;
+			connection.window.release(STREAM_WINDOW); // wake a worker streaming to the connection
+			connection.key.cancel();
+			closeChannel(connection.channel);
+		}
+
+		private void closeChannel(SocketChannel channel) {
+			try {
+				if (channel.isOpen()) {
+					openConnections.decrementAndGet();
+				}
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close client channel: " + e.getMessage());
+			}
+		}
+	}
+}
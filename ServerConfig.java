@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Startup options for the Aggregation Server, also used by the Content Server
+ * and GET client so all three read options the same way.
+ *
+ * The first command line argument is the port (as before). Any further
+ * arguments are options in the form "--name=value", e.g.
+ * "java AggregationServer 4567 --mode=pool --workers=32". An option that is not
+ * given on the command line falls back to the system property
+ * "aggregation.name" and then to the default supplied by the caller.
+ */
+public class ServerConfig {
+	public static final int DEFAULT_PORT = 4567;
+
+	private int port = DEFAULT_PORT;
+	private final Map<String, String> options = new HashMap<>();
+
+	/**
+	 * Parses command line arguments into a ServerConfig.
+	 *
+	 * @param args command line arguments, port first followed by options
+	 * @return parsed configuration
+	 * @throws IllegalArgumentException if an argument is not a port or an option
+	 */
+	public static ServerConfig parse(String[] args) {
+		List<String> positional = new ArrayList<>();
+		ServerConfig config = parse(args, positional);
+		for (String arg : positional) {
+			try {
+				config.port = Integer.parseInt(arg.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid server argument: " + arg, e);
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Parses the "--name=value" options among command line arguments, leaving
+	 * the others (URLs, files, ...) to the caller. An option without a value is
+	 * "true".
+	 *
+	 * @param args       command line arguments
+	 * @param positional receives the arguments that are not options, in order
+	 * @return parsed configuration
+	 */
+	public static ServerConfig parse(String[] args, List<String> positional) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				String[] pair = arg.substring(2).split("=", 2);
+				config.set(pair[0], pair.length > 1 ? pair[1] : "true");
+			} else {
+				positional.add(arg);
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Sets an option value, overriding any system property.
+	 *
+	 * @param name  option name without the leading "--"
+	 * @param value option value
+	 * @return this config, for chaining
+	 */
+	public ServerConfig set(String name, String value) {
+		options.put(name, value);
+		return this;
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Get an option as a string.
+	 *
+	 * @param name         option name
+	 * @param defaultValue value used when the option is not set
+	 * @return option value
+	 */
+	public String getString(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			value = System.getProperty("aggregation." + name);
+		}
+		return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Get an option as an integer.
+	 *
+	 * @throws IllegalArgumentException if the option is not a valid integer
+	 */
+	public int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	/**
+	 * Get an option as a long.
+	 *
+	 * @throws IllegalArgumentException if the option is not a valid number
+	 */
+	public long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+		}
+	}
+
+	/**
+	 * Get an option as a boolean ("true" or "false").
+	 */
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the weather map, used as the backup file.
+ *
+ * A snapshot is written to a temporary file next to the backup, forced to disk
+ * and then renamed over the backup, so a crash mid-write leaves the previous
+ * snapshot in place. The directory is forced after the rename, so once write()
+ * returns the new snapshot survives a crash and the write-ahead log it covers
+ * may be truncated. Loading maps the file into memory and decodes it directly,
+ * without line splitting or string parsing.
+ *
+ * Format: [int magic "WSNP"][int version], then per station [id][int lamport]
+ * [long last update][data] with strings as int length + UTF-8, and finally
+ * [int station count][int CRC32 of everything before the checksum]. The count
+ * goes at the end so the map can be streamed out in one pass.
+ */
+public class SnapshotFile {
+	protected static final int MAGIC = 0x57534E50; // "WSNP"
+	protected static final int VERSION = 1;
+	private static final int HEADER_BYTES = 8;
+	private static final int TRAILER_BYTES = 8;
+
+	/**
+	 * Checks whether the file at the given path is a binary snapshot, as opposed
+	 * to a backup file in the older text format.
+	 *
+	 * @param path backup file
+	 * @return true if the file starts with the snapshot magic number
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isSnapshot(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while (magic.hasRemaining() && channel.read(magic) > 0) {
+				// read the first four bytes
+			}
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		}
+	}
+
+	/**
+	 * Writes the weather map to the given path atomically.
+	 *
+	 * @param path    backup file
+	 * @param weather weather data to write
+	 * @return number of stations written
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public static int write(Path path, Map<String, WeatherNode> weather) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		int count = 0;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<String, WeatherNode> entry : weather.entrySet()) {
+				WeatherNode node = entry.getValue();
+				writeString(out, entry.getKey());
+				out.writeInt(node.getLamport());
+				out.writeLong(node.getLastUpdate());
+				writeString(out, node.getData());
+				count++;
+			}
+			out.writeInt(count);
+			out.flush();
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			channel.force(true);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		forceDirectory(path.toAbsolutePath().getParent());
+		return count;
+	}
+
+	/**
+	 * Forces a directory's entries to disk, so a file renamed into it stays
+	 * renamed after a crash.
+	 *
+	 * @param directory directory to force
+	 * @throws IOException if the directory cannot be forced
+	 */
+	private static void forceDirectory(Path directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (AccessDeniedException e) {
+			// directories cannot be opened on Windows, which offers no way to force them
+		}
+	}
+
+	/**
+	 * Loads a snapshot into the weather map.
+	 *
+	 * @param path    backup file
+	 * @param weather map to load the stations into
+	 * @return number of stations loaded
+	 * @throws IOException if the file cannot be read or is not a valid snapshot
+	 */
+	public static int read(Path path, Map<String, WeatherNode> weather) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+				throw new IOException("Invalid snapshot size: " + size);
+			}
+			ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int bodyEnd = (int) size - TRAILER_BYTES;
+			CRC32 crc = new CRC32();
+			crc.update(snapshot.duplicate().limit(bodyEnd + 4));
+			if ((int) crc.getValue() != snapshot.getInt(bodyEnd + 4)) {
+				throw new IOException("Snapshot checksum mismatch");
+			}
+			if (snapshot.getInt() != MAGIC) {
+				throw new IOException("Not a snapshot file");
+			}
+			int version = snapshot.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version: " + version);
+			}
+			int count = snapshot.getInt(bodyEnd);
+			snapshot.limit(bodyEnd);
+			for (int i = 0; i < count; i++) {
+				String id = readString(snapshot);
+				int lamport = snapshot.getInt();
+				long lastUpdate = snapshot.getLong();
+				weather.put(id, new WeatherNode(readString(snapshot), lamport, lastUpdate));
+			}
+			return count;
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupted snapshot: " + e.getMessage(), e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,203 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent observations of each station, kept in a fixed-size ring buffer per
+ * station so memory stays bounded however often stations update.
+ *
+ * Each ring holds the last depth readings of a station: last update times
+ * and Lamport timestamps in primitive arrays, and the typed Observations. A
+ * new reading overwrites the oldest once the ring is full. A station's ring
+ * is dropped when the station is removed, so the history holds at most
+ * depth readings for each stored station.
+ */
+public class StationHistory {
+	private static final byte[] EMPTY = "[]\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OPEN = "[\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SEPARATOR = ",\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] CLOSE = "\n]\n".getBytes(StandardCharsets.UTF_8);
+
+	private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+	private final int depth;
+
+	/**
+	 * @param depth readings kept per station, 0 to keep no history
+	 */
+	public StationHistory(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * One reading of a station.
+	 */
+	public static class Reading {
+		private final long lastUpdate;
+		private final int lamport;
+		private final Observation observation;
+
+		Reading(long lastUpdate, int lamport, Observation observation) {
+			this.lastUpdate = lastUpdate;
+			this.lamport = lamport;
+			this.observation = observation;
+		}
+
+		public long getLastUpdate() {
+			return this.lastUpdate;
+		}
+
+		public int getLamport() {
+			return this.lamport;
+		}
+
+		public Observation getObservation() {
+			return this.observation;
+		}
+	}
+
+	/**
+	 * Readings of one station, oldest overwritten first.
+	 */
+	private static class Ring {
+		private final long[] lastUpdates;
+		private final int[] lamports;
+		private final Observation[] observations;
+		private int next; // slot the next reading is written to
+		private int count;
+
+		Ring(int depth) {
+			lastUpdates = new long[depth];
+			lamports = new int[depth];
+			observations = new Observation[depth];
+		}
+
+		synchronized void add(long lastUpdate, int lamport, Observation observation) {
+			lastUpdates[next] = lastUpdate;
+			lamports[next] = lamport;
+			observations[next] = observation;
+			next = (next + 1) % lastUpdates.length;
+			if (count < lastUpdates.length) {
+				count++;
+			}
+		}
+
+		synchronized List<Reading> since(long since) {
+			List<Reading> readings = new ArrayList<>(count);
+			int start = (next - count + lastUpdates.length) % lastUpdates.length;
+			for (int i = 0; i < count; i++) {
+				int slot = (start + i) % lastUpdates.length;
+				if (lastUpdates[slot] >= since) {
+					readings.add(new Reading(lastUpdates[slot], lamports[slot], observations[slot]));
+				}
+			}
+			return readings;
+		}
+	}
+
+	/**
+	 * Adds the data stored for a station as its newest reading. Data that is
+	 * not a JSON object has no observation and is not recorded.
+	 *
+	 * @param id   station id
+	 * @param node node stored for the station
+	 */
+	public void record(String id, WeatherNode node) {
+		if (depth <= 0) {
+			return;
+		}
+		Observation observation = node.getObservation();
+		if (observation == null) {
+			return;
+		}
+		rings.computeIfAbsent(id, key -> new Ring(depth)).add(node.getLastUpdate(), node.getLamport(),
+				observation);
+	}
+
+	/**
+	 * Drops the history of a removed station.
+	 *
+	 * @param id station id
+	 */
+	public void remove(String id) {
+		rings.remove(id);
+	}
+
+	/**
+	 * Get a station's readings last updated at or after a time.
+	 *
+	 * @param id    station id
+	 * @param since earliest last update time (ms since epoch)
+	 * @return readings oldest first, or null if the station has no history
+	 */
+	public List<Reading> since(String id, long since) {
+		Ring ring = rings.get(id);
+		return ring == null ? null : ring.since(since);
+	}
+
+	public int size() {
+		return rings.size();
+	}
+
+	public void clear() {
+		rings.clear();
+	}
+
+	/**
+	 * Writes readings as a JSON array in the GET response format. Each object
+	 * holds the reading's last_update and lamport, then the observation's
+	 * fields.
+	 *
+	 * @param readings readings to write
+	 * @return JSON array body
+	 */
+	public static byte[] toJson(List<Reading> readings) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(readings, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // not thrown by a ByteArrayOutputStream
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes readings as toJson() does, one object at a time, so a streamed
+	 * response never holds the whole array in memory.
+	 *
+	 * @param readings readings to write
+	 * @param out      where the JSON array is written
+	 * @throws IOException if writing fails
+	 */
+	public static void write(List<Reading> readings, OutputStream out) throws IOException {
+		if (readings.isEmpty()) {
+			out.write(EMPTY);
+			return;
+		}
+		out.write(OPEN);
+		for (int i = 0; i < readings.size(); i++) {
+			if (i > 0) {
+				out.write(SEPARATOR);
+			}
+			String object = JsonParser.toJson(fields(readings.get(i)));
+			out.write(("    " + object.replace("\n", "\n    ")).getBytes(StandardCharsets.UTF_8));
+		}
+		out.write(CLOSE);
+	}
+
+	private static Map<String, String> fields(Reading reading) {
+		Map<String, String> fields = new LinkedHashMap<>();
+		fields.put("last_update", Long.toString(reading.getLastUpdate()));
+		fields.put("lamport", Integer.toString(reading.getLamport()));
+		for (Map.Entry<String, String> field : reading.getObservation().toMap().entrySet()) {
+			fields.putIfAbsent(field.getKey(), field.getValue());
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,348 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Secondary indexes over the stored stations, so filtered GET queries touch
+ * only the matching stations instead of scanning the weather map.
+ *
+ * - all ids in order, for paging through every station
+ * - state: hash index from state to the ids in that state
+ * - location: grid of CELL_DEGREES cells over lat/lon, each holding the ids
+ * located in it
+ *
+ * Id sets are sorted so results come in id order and a page can resume after
+ * the last id returned (the cursor). Updated with every PUT and removal, under
+ * the lock that orders changes to the weather map; queries are not locked and
+ * see a weakly consistent view like the map's iterators.
+ */
+public class StationIndex {
+	protected static final double CELL_DEGREES = 1.0;
+	private static final int LON_CELLS = (int) Math.ceil(360 / CELL_DEGREES) + 1;
+
+	private final ConcurrentSkipListSet<String> ids = new ConcurrentSkipListSet<>();
+	private final ConcurrentHashMap<String, ConcurrentSkipListSet<String>> byState = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, ConcurrentSkipListSet<String>> byCell = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	protected final LongAdder examined = new LongAdder(); // ids read from cells by box queries
+
+	/**
+	 * Indexed fields of one station.
+	 */
+	private static class Entry {
+		final String state;
+		final double lat;
+		final double lon;
+		final Long cell; // null without a location
+
+		Entry(String state, double lat, double lon) {
+			this.state = state;
+			this.lat = lat;
+			this.lon = lon;
+			this.cell = Double.isNaN(lat) || Double.isNaN(lon) ? null : cellOf(lat, lon);
+		}
+	}
+
+	/**
+	 * A bounding box of latitudes and longitudes, inclusive.
+	 */
+	public static class Box {
+		final double minLat;
+		final double minLon;
+		final double maxLat;
+		final double maxLon;
+
+		/**
+		 * Creates a box from two opposite corners, in either order.
+		 */
+		public Box(double lat1, double lon1, double lat2, double lon2) {
+			this.minLat = Math.min(lat1, lat2);
+			this.maxLat = Math.max(lat1, lat2);
+			this.minLon = Math.min(lon1, lon2);
+			this.maxLon = Math.max(lon1, lon2);
+		}
+
+		/**
+		 * Parses a "lat1,lon1,lat2,lon2" query parameter.
+		 *
+		 * @throws IllegalArgumentException if it is not four numbers
+		 */
+		public static Box parse(String bbox) {
+			String[] parts = bbox.split(",");
+			if (parts.length != 4) {
+				throw new IllegalArgumentException("bbox needs lat1,lon1,lat2,lon2: " + bbox);
+			}
+			double[] values = new double[4];
+			for (int i = 0; i < 4; i++) {
+				values[i] = Double.parseDouble(parts[i].trim());
+				if (Double.isNaN(values[i])) {
+					throw new IllegalArgumentException("Invalid bbox: " + bbox);
+				}
+			}
+			return new Box(values[0], values[1], values[2], values[3]);
+		}
+
+		boolean contains(double lat, double lon) {
+			return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+		}
+	}
+
+	/**
+	 * Indexes a station's stored data, replacing what was indexed for it.
+	 *
+	 * @param id          station id
+	 * @param observation the station's data, or null if it is not a JSON
+	 *                    object
+	 */
+	public void update(String id, Observation observation) {
+		index(id, observation == null ? new Entry(null, Double.NaN, Double.NaN)
+				: new Entry(text(observation.getState(), observation.getOther("state")),
+						coordinate(observation.getLat(), observation.getOther("lat")),
+						coordinate(observation.getLon(), observation.getOther("lon"))));
+	}
+
+	/**
+	 * Indexes a station's stored JSON data, reading only the indexed fields
+	 * instead of parsing the whole observation.
+	 *
+	 * @param id   station id
+	 * @param data the station's JSON data
+	 */
+	public void updateFromJson(String id, String data) {
+		Map<String, String> fields;
+		try {
+			fields = JsonParser.getFields(data, "state", "lat", "lon");
+		} catch (Exception e) {
+			fields = Map.of(); // not a JSON object
+		}
+		index(id, new Entry(fields.get("state"), coordinate(Double.NaN, fields.get("lat")),
+				coordinate(Double.NaN, fields.get("lon"))));
+	}
+
+	private void index(String id, Entry entry) {
+		unindex(id, entries.put(id, entry));
+		ids.add(id);
+		if (entry.state != null) {
+			byState.computeIfAbsent(entry.state, key -> new ConcurrentSkipListSet<>()).add(id);
+		}
+		if (entry.cell != null) {
+			byCell.computeIfAbsent(entry.cell, key -> new ConcurrentSkipListSet<>()).add(id);
+		}
+	}
+
+	/**
+	 * Removes a station from the indexes.
+	 *
+	 * @param id station id
+	 */
+	public void remove(String id) {
+		unindex(id, entries.remove(id));
+		ids.remove(id);
+	}
+
+	private void unindex(String id, Entry old) {
+		if (old == null) {
+			return;
+		}
+		if (old.state != null) {
+			removeFrom(byState, old.state, id);
+		}
+		if (old.cell != null) {
+			removeFrom(byCell, old.cell, id);
+		}
+	}
+
+	private static <K> void removeFrom(ConcurrentHashMap<K, ConcurrentSkipListSet<String>> index, K key, String id) {
+		// drop emptied sets so the index does not keep every value ever seen
+		index.computeIfPresent(key, (k, set) -> set.remove(id) && set.isEmpty() ? null : set);
+	}
+
+	/**
+	 * Rebuilds the indexes from the weather map, e.g. at startup. Each
+	 * station's data is scanned for the indexed fields only, so the stations
+	 * are not parsed into Observations.
+	 *
+	 * @param weather the weather map
+	 */
+	public void rebuild(Map<String, WeatherNode> weather) {
+		clear();
+		for (Map.Entry<String, WeatherNode> entry : weather.entrySet()) {
+			updateFromJson(entry.getKey(), entry.getValue().getData());
+		}
+	}
+
+	public void clear() {
+		ids.clear();
+		byState.clear();
+		byCell.clear();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Finds stations matching the filters, in id order.
+	 *
+	 * @param state  state the stations are in, or null for any
+	 * @param box    area the stations are located in, or null for anywhere
+	 * @param cursor only ids after this one are returned, or null to start at
+	 *               the first
+	 * @param limit  most ids returned
+	 * @return matching station ids
+	 */
+	public List<String> query(String state, Box box, String cursor, int limit) {
+		if (state == null && box != null) {
+			return inCells(box, cursor, limit);
+		}
+		NavigableSet<String> candidates = state != null ? byState.get(state) : ids;
+		List<String> result = new ArrayList<>();
+		if (candidates == null) {
+			return result;
+		}
+		NavigableSet<String> page = cursor == null ? candidates : candidates.tailSet(cursor, false);
+		for (String id : page) {
+			if (result.size() >= limit) {
+				break;
+			}
+			if (box != null && !located(id, box)) {
+				continue;
+			}
+			result.add(id);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the stations in a box by merging the sorted ids of the grid cells
+	 * overlapping it from the cursor on, so a page reads about limit ids plus
+	 * one per cell rather than every station in the box. Walks the box's
+	 * cells, or the occupied cells if there are fewer of those.
+	 */
+	private List<String> inCells(Box box, String cursor, int limit) {
+		int minRow = row(box.minLat);
+		int maxRow = row(box.maxLat);
+		int minColumn = column(box.minLon);
+		int maxColumn = column(box.maxLon);
+		List<NavigableSet<String>> cells = new ArrayList<>();
+		long boxCells = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+		if (boxCells > byCell.size()) {
+			for (Map.Entry<Long, ConcurrentSkipListSet<String>> cell : byCell.entrySet()) {
+				int row = (int) (cell.getKey() / LON_CELLS);
+				int column = (int) (cell.getKey() % LON_CELLS);
+				if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+					cells.add(cell.getValue());
+				}
+			}
+		} else {
+			for (int row = minRow; row <= maxRow; row++) {
+				for (int column = minColumn; column <= maxColumn; column++) {
+					ConcurrentSkipListSet<String> cell = byCell.get((long) row * LON_CELLS + column);
+					if (cell != null) {
+						cells.add(cell);
+					}
+				}
+			}
+		}
+
+		PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, cells.size()));
+		for (NavigableSet<String> cell : cells) {
+			Head head = new Head((cursor == null ? cell : cell.tailSet(cursor, false)).iterator());
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		String last = null;
+		while (result.size() < limit && !heads.isEmpty()) {
+			Head head = heads.poll();
+			String id = head.id;
+			if (head.advance()) {
+				heads.add(head);
+			}
+			// a station moved between cells during the query can come up twice
+			if (!id.equals(last) && located(id, box)) {
+				result.add(id);
+				last = id;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The next id of one cell in a merge.
+	 */
+	private class Head implements Comparable<Head> {
+		private final Iterator<String> rest;
+		String id;
+
+		Head(Iterator<String> rest) {
+			this.rest = rest;
+		}
+
+		boolean advance() {
+			if (!rest.hasNext()) {
+				return false;
+			}
+			id = rest.next();
+			examined.increment();
+			return true;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			return id.compareTo(other.id);
+		}
+	}
+
+	private boolean located(String id, Box box) {
+		Entry entry = entries.get(id);
+		return entry != null && entry.cell != null && box.contains(entry.lat, entry.lon);
+	}
+
+	/**
+	 * Get a text field, also when the Observation kept it untyped (e.g. once the
+	 * dictionary is full).
+	 */
+	private static String text(String typed, String other) {
+		return typed != null ? typed : other;
+	}
+
+	/**
+	 * Get a coordinate, also from text the Observation could not keep typed
+	 * (e.g. "-34.90").
+	 */
+	private static double coordinate(double typed, String text) {
+		if (!Double.isNaN(typed) || text == null) {
+			return typed;
+		}
+		try {
+			return Double.parseDouble(text.trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static long cellOf(double lat, double lon) {
+		return (long) row(lat) * LON_CELLS + column(lon);
+	}
+
+	private static int row(double lat) {
+		return (int) Math.floor((clamp(lat, -90, 90) + 90) / CELL_DEGREES);
+	}
+
+	private static int column(double lon) {
+		return (int) Math.floor((clamp(lon, -180, 180) + 180) / CELL_DEGREES);
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of interned strings with small integer codes, for fields with few
+ * distinct values (state, time zone, wind direction, ...). Each station then
+ * stores a code instead of its own copy of the string.
+ *
+ * Codes are never reused. The dictionary stops growing at its capacity, so
+ * clients sending endless distinct values cannot grow it without bound.
+ */
+public class StringDictionary {
+	private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+	private final int capacity;
+	private volatile String[] values = new String[16]; // values by code, guarded by this for writes
+	private int size; // guarded by this
+
+	/**
+	 * @param capacity most distinct values stored
+	 */
+	public StringDictionary(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the code of a value, adding it to the dictionary if needed.
+	 *
+	 * @param value value to encode
+	 * @return the value's code, or -1 if the dictionary is full
+	 */
+	public int encode(String value) {
+		Integer code = codes.get(value);
+		if (code != null) {
+			return code;
+		}
+		synchronized (this) {
+			code = codes.get(value);
+			if (code != null) {
+				return code;
+			}
+			if (size >= capacity) {
+				return -1;
+			}
+			String[] current = values;
+			if (size == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+			}
+			current[size] = value;
+			values = current; // publish the value before its code
+			codes.put(value, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * Get the value of a code returned by encode().
+	 *
+	 * @param code value code
+	 * @return the value
+	 */
+	public String decode(int code) {
+		return values[code];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,202 @@
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fan-out of weather changes to subscribed clients (GET /weather/subscribe).
+ *
+ * Each subscriber has a bounded queue of events. Publishing only offers the
+ * event to the queues of matching subscribers and never waits, so a PUT is not
+ * held up by slow subscribers. When a subscriber's queue is full, the overflow
+ * policy either drops its oldest event (counting the drops, so the client can
+ * be told to resync) or disconnects it.
+ */
+public class Subscriptions {
+	private static final Event CLOSED = new Event(0, "closed", null, null); // wakes a waiting subscriber
+
+	private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	private final int queueSize;
+	private final OverflowPolicy policy;
+
+	/**
+	 * What happens to a subscriber whose queue is full.
+	 */
+	public enum OverflowPolicy {
+		DROP, // drop the subscriber's oldest event
+		DISCONNECT; // close the subscriber
+
+		public static OverflowPolicy parse(String name) {
+			switch (name.toLowerCase()) {
+				case "drop":
+					return DROP;
+				case "disconnect":
+					return DISCONNECT;
+				default:
+					throw new IllegalArgumentException("Unknown slow subscriber policy: " + name);
+			}
+		}
+	}
+
+	/**
+	 * @param queueSize events queued per subscriber
+	 * @param policy    what to do when a subscriber's queue is full
+	 */
+	public Subscriptions(int queueSize, OverflowPolicy policy) {
+		this.queueSize = Math.max(1, queueSize);
+		this.policy = policy;
+	}
+
+	/**
+	 * One change pushed to subscribers.
+	 */
+	public static class Event {
+		private final long lamport;
+		private final String type;
+		private final String id;
+		private final String data;
+
+		/**
+		 * @param lamport change log stamp of the change
+		 * @param type    "put", or how the station was removed: "delete",
+		 *                "expire" or "evict"
+		 * @param id      station id
+		 * @param data    the station's data for a put, otherwise null
+		 */
+		public Event(long lamport, String type, String id, String data) {
+			this.lamport = lamport;
+			this.type = type;
+			this.id = id;
+			this.data = data;
+		}
+
+		public long getLamport() {
+			return this.lamport;
+		}
+
+		public String getType() {
+			return this.type;
+		}
+
+		public String getId() {
+			return this.id;
+		}
+
+		public String getData() {
+			return this.data;
+		}
+	}
+
+	/**
+	 * A subscribed client's queue of events.
+	 */
+	public class Subscriber {
+		private final Set<String> ids;
+		private final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueSize);
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile boolean closed;
+
+		Subscriber(Set<String> ids) {
+			this.ids = ids;
+		}
+
+		boolean matches(String id) {
+			return ids == null || ids.contains(id);
+		}
+
+		/**
+		 * Waits for the next event.
+		 *
+		 * @param timeoutMillis longest wait
+		 * @return the event, or null on timeout or once the subscriber is closed
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public Event next(long timeoutMillis) throws InterruptedException {
+			if (closed) {
+				return null;
+			}
+			Event event = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+			return event == CLOSED ? null : event;
+		}
+
+		/**
+		 * Get the number of events dropped since the last call, and reset it.
+		 */
+		public long takeDropped() {
+			return dropped.getAndSet(0);
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Unsubscribes, waking a thread waiting for the next event.
+		 */
+		public void close() {
+			closed = true;
+			subscribers.remove(this);
+			queue.clear();
+			queue.offer(CLOSED);
+		}
+
+		private void offer(Event event) {
+			while (!closed && !queue.offer(event)) {
+				if (policy == OverflowPolicy.DISCONNECT) {
+					close();
+					return;
+				}
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subscribes a client.
+	 *
+	 * @param ids stations whose events are wanted, or null for all
+	 * @return the new subscriber, to be closed when the client is done
+	 */
+	public Subscriber subscribe(Set<String> ids) {
+		Subscriber subscriber = new Subscriber(ids);
+		subscribers.add(subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * Offers an event to every matching subscriber without waiting.
+	 *
+	 * @param event the event
+	 */
+	public void publish(Event event) {
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.matches(event.getId())) {
+				subscriber.offer(event);
+			}
+		}
+	}
+
+	/**
+	 * Checks for subscribers, so publishers can skip building events nobody
+	 * receives.
+	 */
+	public boolean isEmpty() {
+		return subscribers.isEmpty();
+	}
+
+	public int size() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Closes every subscriber, ending their streams.
+	 */
+	public void closeAll() {
+		for (Subscriber subscriber : subscribers) {
+			subscriber.close();
+		}
+	}
+}
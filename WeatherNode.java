@@ -1,3 +1,5 @@
+import java.nio.charset.StandardCharsets;
+
 /**
  * 
  * Helper class to store weather node informations in Aggregation Server.
@@ -6,11 +8,18 @@
  * This has helper function to convert/reverse weather node to formatted string
  * used for backup (replica) file.
  * 
+ * The data is also available as a typed Observation. Once parsed, the
+ * jsonString is dropped if the Observation writes back exactly the same JSON
+ * (as it does for ContentServer data), so only the compact typed form is kept.
+ * 
  */
 public class WeatherNode {
-	private String data; // jsonString
+	private volatile String data; // jsonString, null when observation reproduces it
+	private volatile Observation observation; // parsed on first use
+	private volatile boolean unparsable; // data is not a JSON object
 	private int lamport;
 	private long last_update;
+	private volatile byte[] formattedBytes; // getDataFormatted() as UTF-8, built on first use
 
 	// Constructor
 	public WeatherNode(String data, int lamport, long last_update) {
@@ -19,6 +28,31 @@ public class WeatherNode {
 		this.last_update = last_update;
 	}
 
+	/**
+	 * Creates a node from data that has already been parsed.
+	 * 
+	 * @param observation data parsed from the jsonString
+	 * @param data        jsonString the observation was parsed from
+	 */
+	public WeatherNode(Observation observation, String data, int lamport, long last_update) {
+		this(data, lamport, last_update);
+		setObservation(observation);
+	}
+
+	/**
+	 * Creates a node from data already formatted as in the GET response array,
+	 * e.g. read back from the OffHeapStationStore. The formatted bytes are
+	 * served as they are; the data is only rebuilt from them when asked for.
+	 * 
+	 * @param formattedBytes getFormattedBytes() of data not ending with a
+	 *                       newline, which formatting would drop
+	 */
+	public static WeatherNode fromFormatted(byte[] formattedBytes, int lamport, long last_update) {
+		WeatherNode node = new WeatherNode(null, lamport, last_update);
+		node.formattedBytes = formattedBytes;
+		return node;
+	}
+
 	// GETTERS
 	/**
 	 * Get the jsonString data stored in the WeatherNode.
@@ -26,12 +60,46 @@ public class WeatherNode {
 	 * @return jsonString data as a string.
 	 */
 	public String getData() {
-		return this.data;
+		String json = this.data;
+		if (json != null) {
+			return json;
+		}
+		// data is only dropped after observation is set, or never held when
+		// the node was created from formatted bytes
+		Observation parsed = this.observation;
+		return parsed != null ? parsed.toJson() : unformat(this.formattedBytes);
+	}
+
+	/**
+	 * Get the data as a typed Observation, parsing it on first use.
+	 * 
+	 * @return the observation, or null if the data is not a JSON object
+	 */
+	public Observation getObservation() {
+		Observation parsed = this.observation;
+		if (parsed != null || unparsable) {
+			return parsed;
+		}
+		parsed = Observation.parse(getData());
+		if (parsed == null) {
+			unparsable = true;
+		} else {
+			setObservation(parsed);
+		}
+		return parsed;
+	}
+
+	private void setObservation(Observation parsed) {
+		String json = this.data;
+		this.observation = parsed;
+		if (json != null && json.equals(parsed.toJson())) {
+			this.data = null; // typed form reproduces it exactly
+		}
 	}
 
 	public String getDataFormatted() {
 		StringBuilder formattedData = new StringBuilder();
-		String[] lines = this.data.split("\n"); // Split the stored data by line
+		String[] lines = getData().split("\n"); // Split the stored data by line
 
 		for (int i = 0; i < lines.length; i++) {
 			formattedData.append("    ").append(lines[i]); // Add a tab before each line
@@ -43,6 +111,29 @@ public class WeatherNode {
 		return formattedData.toString();
 	}
 
+	/**
+	 * Reverses getDataFormatted(): drops the indent before each line.
+	 */
+	private static String unformat(byte[] formatted) {
+		String text = new String(formatted, StandardCharsets.UTF_8);
+		return text.substring(Math.min(4, text.length())).replace("\n    ", "\n");
+	}
+
+	/**
+	 * Get the formatted data as UTF-8 bytes, as included in the GET response
+	 * array. Formatted once and cached, since the data never changes.
+	 * 
+	 * @return formatted data bytes, must not be modified
+	 */
+	public byte[] getFormattedBytes() {
+		byte[] bytes = this.formattedBytes;
+		if (bytes == null) {
+			bytes = getDataFormatted().getBytes(StandardCharsets.UTF_8);
+			this.formattedBytes = bytes;
+		}
+		return bytes;
+	}
+
 	/**
 	 * Get the lamport value stored in the WeatherNode.
 	 * 
@@ -69,7 +160,7 @@ public class WeatherNode {
 	 */
 	public String toFileFormat() {
 		return "BEGIN_ENTRY\n" +
-				"data = " + this.data + ";\n" +
+				"data = " + getData() + ";\n" +
 				"lamport = " + this.lamport + ";\n" +
 				"last_update = " + this.last_update + ";\n" +
 				"END_ENTRY\n\n";
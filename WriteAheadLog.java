@@ -0,0 +1,372 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of weather data changes.
+ *
+ * Every PUT and every removal is appended as one record instead of rewriting
+ * the whole backup file, so the cost of a change does not grow with the number
+ * of stations. On startup the log is replayed on top of the last snapshot, and
+ * the log is truncated whenever a new snapshot is written (compaction).
+ *
+ * Record format: [int payload length][int CRC32 of payload][payload], where the
+ * payload is a one byte operation followed by the station id and, for PUT, the
+ * WeatherNode fields. A torn or corrupted record at the end of the log (e.g.
+ * from a crash mid-write) ends the replay and is cut off.
+ */
+public class WriteAheadLog implements Closeable {
+	protected static final byte PUT = 1;
+	protected static final byte REMOVE = 2;
+	private static final int HEADER_BYTES = 8;
+
+	/**
+	 * When appended records are forced to disk.
+	 * - ALWAYS: every append is forced before it is acknowledged
+	 * - GROUP: appends waiting at the same time share one force (the
+	 * PersistenceStage batches changes for this)
+	 * - INTERVAL: a background thread forces every interval; appends are
+	 * acknowledged before they are durable
+	 */
+	public enum SyncPolicy {
+		ALWAYS, GROUP, INTERVAL;
+
+		public static SyncPolicy parse(String name) {
+			switch (name.toLowerCase()) {
+				case "always":
+				case "per-write":
+					return ALWAYS;
+				case "group":
+				case "group-commit":
+					return GROUP;
+				case "interval":
+					return INTERVAL;
+				default:
+					throw new IllegalArgumentException("Unknown fsync policy: " + name);
+			}
+		}
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final ScheduledExecutorService syncTimer;
+	private final Object syncLock = new Object();
+
+	private long size; // bytes in the log, guarded by this
+	private long appended; // sequence number of the last appended record, guarded by this
+	private volatile long synced; // sequence number of the last record forced to disk
+
+	/**
+	 * Opens the log for appending, creating it if needed. Any torn record at the
+	 * end of an existing log is cut off.
+	 *
+	 * @param path         log file
+	 * @param policy       when records are forced to disk
+	 * @param syncInterval milliseconds between forces for the INTERVAL policy
+	 * @throws IOException if the log cannot be opened
+	 */
+	public WriteAheadLog(Path path, SyncPolicy policy, long syncInterval) throws IOException {
+		this.path = path;
+		this.policy = policy;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.size = validLength(channel);
+		channel.truncate(size);
+		channel.position(size);
+
+		if (policy == SyncPolicy.INTERVAL) {
+			syncTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "wal-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncTimer.scheduleWithFixedDelay(this::syncQuietly, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		} else {
+			syncTimer = null;
+		}
+	}
+
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Get the size of the log in bytes.
+	 */
+	public synchronized long size() {
+		return this.size;
+	}
+
+	/**
+	 * Appends a PUT record. The record is written but not necessarily durable
+	 * until sync() is called with the returned sequence number.
+	 *
+	 * @param id   station id
+	 * @param node weather data stored for the station
+	 * @return sequence number of the record
+	 * @throws IOException if the record cannot be written
+	 */
+	public long appendPut(String id, WeatherNode node) throws IOException {
+		return append(encode(PUT, id, node));
+	}
+
+	/**
+	 * Appends a REMOVE record.
+	 *
+	 * @param id station id
+	 * @return sequence number of the record
+	 * @throws IOException if the record cannot be written
+	 */
+	public long appendRemove(String id) throws IOException {
+		return append(encode(REMOVE, id, null));
+	}
+
+	/**
+	 * Appends a batch of changes with a single write.
+	 *
+	 * @param batch changes queued by the PersistenceStage
+	 * @return sequence number of the last record
+	 * @throws IOException if the records cannot be written
+	 */
+	public long appendAll(List<PersistenceStage.Mutation> batch) throws IOException {
+		List<byte[]> payloads = new ArrayList<>(batch.size());
+		int total = 0;
+		for (PersistenceStage.Mutation mutation : batch) {
+			byte[] payload = mutation.getOp() == PersistenceStage.PUT
+					? encode(PUT, mutation.getId(), mutation.getNode())
+					: encode(REMOVE, mutation.getId(), null);
+			payloads.add(payload);
+			total += HEADER_BYTES + payload.length;
+		}
+		ByteBuffer records = ByteBuffer.allocate(total);
+		for (byte[] payload : payloads) {
+			putRecord(records, payload);
+		}
+		records.flip();
+		return write(records, payloads.size());
+	}
+
+	private long append(byte[] payload) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+		putRecord(record, payload);
+		record.flip();
+		return write(record, 1);
+	}
+
+	private static void putRecord(ByteBuffer target, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		target.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+	}
+
+	private synchronized long write(ByteBuffer records, int count) throws IOException {
+		int length = records.remaining();
+		while (records.hasRemaining()) {
+			channel.write(records);
+		}
+		size += length;
+		appended += count;
+		return appended;
+	}
+
+	/**
+	 * Makes the record with the given sequence number durable according to the
+	 * sync policy. With GROUP, a caller that finds another thread already
+	 * forcing waits for it and is usually covered by that force.
+	 *
+	 * @param sequence sequence number returned by an append
+	 * @throws IOException if the log cannot be forced to disk
+	 */
+	public void sync(long sequence) throws IOException {
+		if (policy == SyncPolicy.INTERVAL || synced >= sequence) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (synced >= sequence) {
+				return; // forced by another thread while waiting
+			}
+			long target;
+			synchronized (this) {
+				target = appended;
+			}
+			channel.force(false);
+			synced = target;
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			long target;
+			synchronized (this) {
+				target = appended;
+			}
+			if (synced < target) {
+				sync(target);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to sync write-ahead log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Empties the log. Called after a snapshot containing every logged change has
+	 * been written.
+	 *
+	 * @throws IOException if the log cannot be truncated
+	 */
+	public synchronized void truncate() throws IOException {
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(true);
+		size = 0;
+		synced = appended;
+	}
+
+	/**
+	 * Empties the log if nothing was appended after the first covered bytes,
+	 * i.e. if a snapshot taken when the log was that size covers every record.
+	 * Otherwise the log is kept whole: replaying it over the snapshot still ends
+	 * in the same state, and the next compaction truncates it.
+	 *
+	 * @param covered size of the log when the snapshot was taken
+	 * @return true if the log was emptied
+	 * @throws IOException if the log cannot be truncated
+	 */
+	public synchronized boolean truncate(long covered) throws IOException {
+		if (size != covered) {
+			return false;
+		}
+		truncate();
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (syncTimer != null) {
+			syncTimer.shutdownNow();
+		}
+		synchronized (this) {
+			if (channel.isOpen()) {
+				channel.force(false);
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Replays the log at the given path into the weather map. Replay stops at the
+	 * first torn or corrupted record.
+	 *
+	 * @param path    log file
+	 * @param weather map to apply the records to
+	 * @return number of records applied
+	 * @throws IOException if the log cannot be read
+	 */
+	public static int replay(Path path, Map<String, WeatherNode> weather) throws IOException {
+		if (!Files.exists(path)) {
+			return 0;
+		}
+		int applied = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			ByteBuffer payload;
+			while ((payload = nextRecord(log)) != null) {
+				byte op = payload.get();
+				String id = readString(payload);
+				if (op == PUT) {
+					int lamport = payload.getInt();
+					long lastUpdate = payload.getLong();
+					weather.put(id, new WeatherNode(readString(payload), lamport, lastUpdate));
+				} else if (op == REMOVE) {
+					weather.remove(id);
+				}
+				applied++;
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Finds the length of the valid prefix of a log, i.e. up to the first torn or
+	 * corrupted record.
+	 */
+	private static long validLength(FileChannel channel) throws IOException {
+		if (channel.size() == 0) {
+			return 0;
+		}
+		ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		while (nextRecord(log) != null) {
+			// skip over valid records
+		}
+		return log.position();
+	}
+
+	/**
+	 * Reads the next record from the log buffer and checks its checksum.
+	 *
+	 * @return the record payload, or null at the end of the valid log (the
+	 *         buffer position is then left at the start of the invalid record)
+	 */
+	private static ByteBuffer nextRecord(ByteBuffer log) {
+		int start = log.position();
+		if (log.remaining() < HEADER_BYTES) {
+			return null;
+		}
+		int length = log.getInt();
+		int checksum = log.getInt();
+		if (length <= 0 || length > log.remaining()) {
+			log.position(start);
+			return null;
+		}
+		byte[] payload = new byte[length];
+		log.get(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != checksum) {
+			log.position(start);
+			return null;
+		}
+		return ByteBuffer.wrap(payload);
+	}
+
+	private static byte[] encode(byte op, String id, WeatherNode node) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(node == null ? 32 : node.getData().length() + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		writeString(out, id);
+		if (node != null) {
+			out.writeInt(node.getLamport());
+			out.writeLong(node.getLastUpdate());
+			writeString(out, node.getData());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
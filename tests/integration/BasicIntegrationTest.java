@@ -3,13 +3,18 @@ import org.junit.AfterClass;
 
 import org.junit.Test;
 import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
 public class BasicIntegrationTest {
+	private static final int PORT = 3333;
 	private static Thread serverThread;
 	private static ByteArrayOutputStream outputStream;
 	private static PrintStream originalOut;
@@ -31,7 +36,7 @@ public class BasicIntegrationTest {
 
 		serverThread = new Thread(() -> {
 			try {
-				AggregationServer.main(new String[] { "3333" });
+				AggregationServer.main(new String[] { "3333", "--stream-threshold=0", "--max-streams=3" });
 				AggregationServer.DATA_FILE = "tests/mock_data/test_backup_basic.txt"; // refresh backup file
 
 			} catch (Exception e) {
@@ -192,4 +197,500 @@ public class BasicIntegrationTest {
 		assertTrue(output.contains("HTTP/1.1 200 OK"));
 
 	}
+
+	/**
+	 * Test two pipelined requests on one persistent connection are both answered,
+	 * in order, and the connection is closed after "Connection: close".
+	 */
+	@Test
+	public void testKeepAlivePipelining() throws Exception {
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			String requests = "GET /weather.json?id=nonexistent HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n"
+					+ "GET /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n";
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) { // server closes after the second response
+				response.write(buffer, 0, read);
+			}
+
+			String output = response.toString();
+			int notFound = output.indexOf("HTTP/1.1 404 Not Found");
+			int ok = output.indexOf("HTTP/1.1 200 OK");
+			assertTrue(notFound >= 0);
+			assertTrue(ok > notFound);
+			assertTrue(output.contains("Connection: keep-alive"));
+			assertTrue(output.contains("Connection: close"));
+		}
+	}
+	/**
+	 * Test GET /weather/history returns every reading of a station, oldest
+	 * first, and 400/404 for a missing or unknown station.
+	 */
+	@Test
+	public void testHistory() throws Exception {
+		String body = "{\"id\":\"history1\",\"air_temp\":\"13.3\"}";
+		String body2 = "{\"id\":\"history1\",\"air_temp\":\"14.1\"}";
+		String requests = "PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body
+				+ "PUT /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nContent-Length: " + body2.length()
+				+ "\r\n\r\n" + body2
+				+ "GET /weather/history?id=history1 HTTP/1.1\r\nLamport-Clock: 3\r\n\r\n"
+				+ "GET /weather/history?id=nonexistent HTTP/1.1\r\nLamport-Clock: 4\r\n\r\n"
+				+ "GET /weather/history HTTP/1.1\r\nLamport-Clock: 5\r\nConnection: close\r\n\r\n";
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				response.write(buffer, 0, read);
+			}
+
+			String output = response.toString();
+			int first = output.indexOf("\"air_temp\": \"13.3\"");
+			int second = output.indexOf("\"air_temp\": \"14.1\"");
+			assertTrue(first >= 0);
+			assertTrue(second > first);
+			assertTrue(output.contains("HTTP/1.1 404 Not Found"));
+			assertTrue(output.contains("HTTP/1.1 400 Bad Request"));
+		}
+	}
+
+	/**
+	 * Test the content server sends several files in one batch PUT and gets a
+	 * status for each station.
+	 */
+	@Test
+	public void testBatchPutContentServer() throws Exception {
+		Thread putThread = new Thread(() -> {
+			try {
+				ContentServer.main(new String[] {
+						"http://localhost:3333",
+						"tests/mock_data/data_test.txt",
+						"tests/mock_data/data_no_id.txt"
+				});
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		putThread.start();
+		putThread.join();
+
+		String output = outputStream.toString();
+		assertTrue(output.contains("PUT /weather/batch HTTP/1.1"));
+		assertTrue(output.contains("\"id\": \"testttt\""));
+		assertTrue(output.contains("\"index\": \"1\",\n        \"status\": \"500\""));
+	}
+
+	/**
+	 * Test a batch PUT with an NDJSON body stores every valid station and
+	 * reports the invalid one.
+	 */
+	@Test
+	public void testBatchPutNdjson() throws Exception {
+		String body = "{\"id\":\"batch1\",\"air_temp\":\"1\"}\n"
+				+ "{\"air_temp\":\"2\"}\n"
+				+ "{\"id\":\"batch2\",\"air_temp\":\"3\"}\n";
+		String requests = "PUT /weather/batch HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body
+				+ "GET /weather.json?id=batch2 HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n";
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				response.write(buffer, 0, read);
+			}
+
+			String output = response.toString();
+			assertTrue(output.contains("\"index\": \"0\",\n        \"id\": \"batch1\",\n        \"status\": \"201\""));
+			assertTrue(output.contains("\"index\": \"1\",\n        \"status\": \"500\""));
+			assertTrue(output.contains("\"id\": \"batch2\",\n        \"status\": \"201\""));
+			assertTrue(output.contains("\"air_temp\":\"3\""));
+		}
+	}
+
+	/**
+	 * Test the GET client reads a full feed streamed with chunked encoding.
+	 */
+	@Test
+	public void testStreamedGetClient() throws Exception {
+		ContentServer.main(new String[] { "http://localhost:3333", "tests/mock_data/data_test.txt" });
+		outputStream.reset();
+		GETClient.main(new String[] { "http://localhost:3333" });
+
+		String output = outputStream.toString();
+		assertTrue(output.contains("Transfer-Encoding: chunked"));
+		assertTrue(output.contains("\"id\": \"testttt\""));
+		assertTrue(output.contains("\n]\n"));
+	}
+
+	/**
+	 * Test filtered GET queries by state and bounding box, paged with limit
+	 * and the Next-Cursor header.
+	 */
+	@Test
+	public void testFilteredQuery() throws Exception {
+		String body = "{\"id\":\"query1\",\"state\":\"QX\",\"lat\":\"-34.9\",\"lon\":\"138.6\"}\n"
+				+ "{\"id\":\"query2\",\"state\":\"QX\",\"lat\":\"-37.8\",\"lon\":\"144.9\"}\n"
+				+ "{\"id\":\"query3\",\"state\":\"QY\",\"lat\":\"-34.8\",\"lon\":\"138.5\"}\n";
+		String requests = "PUT /weather/batch HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body
+				+ "GET /weather.json?state=QX&limit=1 HTTP/1.1\r\nLamport-Clock: 2\r\n\r\n"
+				+ "GET /weather.json?state=QX&limit=1&cursor=query1 HTTP/1.1\r\nLamport-Clock: 3\r\n\r\n"
+				+ "GET /weather.json?bbox=-35.5,138,-34,139 HTTP/1.1\r\nLamport-Clock: 4\r\n\r\n"
+				+ "GET /weather.json?bbox=1,2,3 HTTP/1.1\r\nLamport-Clock: 5\r\nConnection: close\r\n\r\n";
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				response.write(buffer, 0, read);
+			}
+
+			String[] responses = response.toString().split("(?=HTTP/1.1 )");
+			assertEquals(5, responses.length);
+			assertTrue(responses[1].contains("Next-Cursor: query1"));
+			assertTrue(bodyOf(responses[1]).contains("\"query1\""));
+			assertFalse(bodyOf(responses[1]).contains("\"query2\""));
+			assertFalse(responses[2].contains("Next-Cursor"));
+			assertTrue(bodyOf(responses[2]).contains("\"query2\""));
+			assertTrue(bodyOf(responses[3]).contains("\"query1\""));
+			assertTrue(bodyOf(responses[3]).contains("\"query3\""));
+			assertFalse(bodyOf(responses[3]).contains("\"query2\""));
+			assertTrue(responses[4].startsWith("HTTP/1.1 400"));
+		}
+	}
+
+
+	private static String bodyOf(String response) {
+		String[] parts = response.split("\r?\n\r?\n", 2); // the blocking engine ends head lines with \n
+		return parts.length > 1 ? parts[1] : "";
+	}
+
+	/**
+	 * Test a GET with the current ETag is answered 304 without a body until
+	 * the data changes, for the feed and for one station.
+	 */
+	@Test
+	public void testConditionalGet() throws Exception {
+		String body = "{\"id\":\"etag1\",\"air_temp\":\"1\"}";
+		String put = "PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body;
+		exchange(put);
+
+		String feed = exchange("GET /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n");
+		String etag = headerOf(feed, "ETag");
+		assertNotNull(etag);
+		String station = exchange("GET /weather.json?id=etag1 HTTP/1.1\r\nLamport-Clock: 3\r\nConnection: close\r\n\r\n");
+		String stationTag = headerOf(station, "ETag");
+		assertNotNull(headerOf(station, "Last-Modified"));
+
+		String notModified = exchange("GET /weather.json HTTP/1.1\r\nLamport-Clock: 4\r\nIf-None-Match: " + etag
+				+ "\r\nConnection: close\r\n\r\n");
+		assertTrue(notModified.startsWith("HTTP/1.1 304 Not Modified"));
+		assertEquals("", bodyOf(notModified));
+		String stationNotModified = exchange("GET /weather.json?id=etag1 HTTP/1.1\r\nLamport-Clock: 5\r\nIf-None-Match: "
+				+ stationTag + "\r\nConnection: close\r\n\r\n");
+		assertTrue(stationNotModified.startsWith("HTTP/1.1 304 Not Modified"));
+
+		exchange(put);
+		String modified = exchange("GET /weather.json HTTP/1.1\r\nLamport-Clock: 6\r\nIf-None-Match: " + etag
+				+ "\r\nConnection: close\r\n\r\n");
+		assertTrue(modified.startsWith("HTTP/1.1 200 OK"));
+		assertNotEquals(etag, headerOf(modified, "ETag"));
+		String stationModified = exchange("GET /weather.json?id=etag1 HTTP/1.1\r\nLamport-Clock: 7\r\nIf-None-Match: "
+				+ stationTag + "\r\nConnection: close\r\n\r\n");
+		assertTrue(stationModified.startsWith("HTTP/1.1 200 OK"));
+	}
+
+	/**
+	 * Test a delta GET returns only the changes after the given stamp, and a
+	 * snapshot when the stamp is not in the change log.
+	 */
+	@Test
+	public void testDeltaFeed() throws Exception {
+		String first = exchange("GET /weather.json?since=0 HTTP/1.1\r\nLamport-Clock: 1\r\nConnection: close\r\n\r\n");
+		assertTrue(first.startsWith("HTTP/1.1 200 OK"));
+		String since = headerOf(first, "Change-Lamport");
+
+		String body = "{\"id\":\"delta1\",\"air_temp\":\"1\"}";
+		exchange("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+		body = "{\"id\":\"delta1\",\"air_temp\":\"2\"}";
+		exchange("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+
+		String delta = exchange("GET /weather.json?since=" + since
+				+ " HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n");
+		assertEquals("delta", headerOf(delta, "Change-Log"));
+		String changes = bodyOf(delta);
+		assertTrue(changes.contains("\"lamport\": \""));
+		assertTrue(changes.contains("\"op\": \"put\",\n        \"id\": \"delta1\""));
+		assertTrue(changes.contains("\"air_temp\": \"2\""));
+		assertFalse(changes.contains("\"air_temp\": \"1\"")); // sent once, with the latest data
+		assertFalse(changes.contains("testttt"));
+		String next = headerOf(delta, "Change-Lamport");
+		String epoch = next.substring(0, next.indexOf('-'));
+		long stamp = Long.parseLong(next.substring(next.indexOf('-') + 1));
+		assertTrue(since.startsWith(epoch + "-"));
+		assertTrue(stamp > Long.parseLong(since.substring(since.indexOf('-') + 1)));
+
+		String none = exchange("GET /weather.json?since=" + next
+				+ " HTTP/1.1\r\nLamport-Clock: 3\r\nConnection: close\r\n\r\n");
+		assertEquals("[]\n", bodyOf(none));
+
+		String ahead = exchange("GET /weather.json?since=" + epoch + "-" + (stamp + 1000)
+				+ " HTTP/1.1\r\nLamport-Clock: 4\r\nConnection: close\r\n\r\n");
+		assertEquals("snapshot", headerOf(ahead, "Change-Log"));
+		assertTrue(bodyOf(ahead).contains("\"op\": \"put\",\n        \"id\": \"delta1\"")); // every station as a put
+
+		String stale = exchange("GET /weather.json?since=1-" + stamp
+				+ " HTTP/1.1\r\nLamport-Clock: 5\r\nConnection: close\r\n\r\n");
+		assertEquals("snapshot", headerOf(stale, "Change-Log")); // from another epoch
+
+		String invalid = exchange("GET /weather.json?since=x HTTP/1.1\r\nLamport-Clock: 5\r\nConnection: close\r\n\r\n");
+		assertTrue(invalid.startsWith("HTTP/1.1 400"));
+	}
+
+	/**
+	 * Test a Server-Sent Events subscription receives PUTs of the stations it
+	 * follows as they happen.
+	 */
+	@Test
+	public void testSubscribeEvents() throws Exception {
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET /weather/subscribe?id=sse1 HTTP/1.1\r\nLamport-Clock: 1\r\n"
+					+ "Accept: text/event-stream\r\n\r\n").getBytes());
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+			String line;
+			boolean eventStream = false;
+			while (!(line = ChunkedInputStream.readLine(in)).isEmpty()) {
+				eventStream |= line.equals("Content-Type: text/event-stream");
+			}
+			assertTrue(eventStream);
+			InputStream events = new ChunkedInputStream(in);
+			assertEquals(": subscribed", ChunkedInputStream.readLine(events));
+
+			for (String id : new String[] { "sse2", "sse1" }) {
+				String body = "{\"id\":\"" + id + "\",\"air_temp\":\"5\"}";
+				exchange("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+						+ "\r\n\r\n" + body);
+			}
+			assertEquals("", ChunkedInputStream.readLine(events));
+			assertTrue(ChunkedInputStream.readLine(events).startsWith("id: "));
+			assertEquals("event: put", ChunkedInputStream.readLine(events));
+			assertEquals("data: {\"id\":\"sse1\",\"air_temp\":\"5\"}", ChunkedInputStream.readLine(events));
+		}
+	}
+
+	/**
+	 * Test a long-poll is answered when a followed station changes, and with
+	 * no changes when the timeout passes.
+	 */
+	@Test
+	public void testSubscribeLongPoll() throws Exception {
+		Thread putter = new Thread(() -> {
+			try {
+				Thread.sleep(300);
+				String body = "{\"id\":\"poll1\",\"air_temp\":\"7\"}";
+				exchange("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+						+ "\r\n\r\n" + body);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		putter.start();
+		String response = exchange("GET /weather/subscribe?id=poll1&timeout=5000 HTTP/1.1\r\nLamport-Clock: 1\r\n"
+				+ "Connection: close\r\n\r\n");
+		putter.join();
+		assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+		assertTrue(bodyOf(response).contains("\"op\": \"put\",\n        \"id\": \"poll1\""));
+
+		String timedOut = exchange("GET /weather/subscribe?id=nothing&timeout=100 HTTP/1.1\r\nLamport-Clock: 1\r\n"
+				+ "Connection: close\r\n\r\n");
+		assertEquals("[]\n", bodyOf(timedOut));
+	}
+
+	/**
+	 * Test long-polls are handed to the stream executor, which answers 503 once
+	 * it is full, and closes each connection after its long-poll
+	 */
+	@Test
+	public void testStreamLimit() throws Exception {
+		List<Socket> polls = new ArrayList<>();
+		try {
+			String rejected = null;
+			for (int i = 0; i < 4 && rejected == null; i++) {
+				Socket poll = new Socket("localhost", PORT);
+				poll.getOutputStream().write(("GET /weather/subscribe?id=nothing&timeout=1000 HTTP/1.1\r\n"
+						+ "Lamport-Clock: 1\r\n\r\n").getBytes());
+				poll.setSoTimeout(300);
+				try {
+					rejected = ChunkedInputStream.readLine(new BufferedInputStream(poll.getInputStream()));
+					poll.close();
+				} catch (SocketTimeoutException e) {
+					polls.add(poll); // waiting on a stream thread
+				}
+			}
+			assertEquals("HTTP/1.1 503 Service Unavailable", rejected);
+
+			for (Socket poll : polls) {
+				poll.setSoTimeout(5000);
+				String response = new String(poll.getInputStream().readAllBytes()); // ends when the server closes
+				assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+				assertEquals("close", headerOf(response, "Connection"));
+			}
+		} finally {
+			for (Socket poll : polls) {
+				poll.close();
+			}
+		}
+	}
+
+	/**
+	 * Test the content server's watch mode uploads a file, and uploads it again
+	 * once it changes, until interrupted.
+	 */
+	@Test
+	public void testWatchMode() throws Exception {
+		File file = File.createTempFile("watch", ".txt");
+		Files.writeString(file.toPath(), "id:watch1\nair_temp:1.5\n");
+		ServerConfig config = new ServerConfig().set("interval", "60000").set("poll", "20");
+		Thread watcher = new Thread(() -> {
+			try {
+				ContentServer.watch("localhost", PORT, java.util.List.of(file.getPath()), config);
+			} catch (InterruptedException e) {
+				// stopped by the test
+			}
+		});
+		watcher.start();
+		try {
+			assertTrue(awaitStation("watch1", "\"1.5\""));
+
+			Files.writeString(file.toPath(), "id:watch1\nair_temp:2.5\n");
+			file.setLastModified(file.lastModified() + 2000); // coarse clocks may not see the write
+			assertTrue(awaitStation("watch1", "\"2.5\""));
+		} finally {
+			watcher.interrupt();
+			watcher.join(5000);
+			file.delete();
+		}
+		assertFalse(watcher.isAlive());
+	}
+
+	/**
+	 * Test the content server's directory mode uploads every station file in
+	 * the directory, then files added later.
+	 */
+	@Test
+	public void testDirectoryMode() throws Exception {
+		Path directory = Files.createTempDirectory("stations");
+		Files.writeString(directory.resolve("a.txt"), "id:dir1\nlocal_date_time:15/04:00pm\n");
+		Files.writeString(directory.resolve("b.txt"), "id:dir2\nair_temp:2\n");
+		ServerConfig config = new ServerConfig().set("interval", "60000").set("parsers", "2").set("batch", "1");
+		Thread watcher = new Thread(() -> {
+			try {
+				ContentServer.watchDirectory("localhost", PORT, directory, config);
+			} catch (IOException | InterruptedException e) {
+				// stopped by the test
+			}
+		});
+		watcher.start();
+		try {
+			assertTrue(awaitStation("dir1", "\"15/04:00pm\"")); // the value keeps its colon
+			assertTrue(awaitStation("dir2", "\"2\""));
+
+			Files.writeString(directory.resolve("c.txt"), "id:dir3\nair_temp:3\n");
+			assertTrue(awaitStation("dir3", "\"3\""));
+		} finally {
+			watcher.interrupt();
+			watcher.join(5000);
+			for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+				Files.deleteIfExists(directory.resolve(name));
+			}
+			Files.delete(directory);
+		}
+		assertFalse(watcher.isAlive());
+	}
+
+	/**
+	 * Test the fan-out client reads stations and the whole feed over one
+	 * connection, and the GET Client uses it given several stations.
+	 */
+	@Test
+	public void testFanOut() throws Exception {
+		for (String id : new String[] { "fan1", "fan2" }) {
+			String body = "{\"id\":\"" + id + "\",\"air_temp\":\"7\"}";
+			exchange("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+					+ "\r\nConnection: close\r\n\r\n" + body);
+		}
+
+		try (FanOutClient client = new FanOutClient(java.util.List.of("http://localhost:3333"), new ServerConfig())) {
+			FanOutClient.Result result = client.fetch(java.util.List.of("fan1", "fan2", "fan3"));
+			assertEquals(java.util.Set.of("fan1", "fan2"), result.getStations().keySet());
+			assertTrue(result.getStations().get("fan2").getLamport() > 0);
+			assertEquals(404, result.getTimings().get(2).getStatus());
+
+			result = client.fetch(java.util.List.of());
+			assertEquals("7", result.getStations().get("fan1").getFields().get("air_temp"));
+		}
+
+		outputStream.reset();
+		GETClient.main(new String[] { "http://localhost:3333?id=fan1", "--ids=fan2" });
+		String output = outputStream.toString();
+		assertTrue(output.contains("localhost:3333 /weather.json?id=fan2 200"));
+		assertTrue(output.contains("2 stations from 1 servers"));
+	}
+
+	private static boolean awaitStation(String id, String text) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			String response = exchange("GET /weather.json?id=" + id + " HTTP/1.1\r\nLamport-Clock: 1\r\n"
+					+ "Connection: close\r\n\r\n");
+			if (bodyOf(response).contains(text)) {
+				return true;
+			}
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
+	private static String exchange(String request) throws IOException {
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request.getBytes());
+			socket.getOutputStream().flush();
+			socket.shutdownOutput();
+			return new String(socket.getInputStream().readAllBytes());
+		}
+	}
+
+	private static String headerOf(String response, String name) {
+		for (String line : response.split("\r?\n\r?\n", 2)[0].split("\r?\n")) {
+			if (line.startsWith(name + ": ")) {
+				return line.substring(name.length() + 2);
+			}
+		}
+		return null;
+	}
 }
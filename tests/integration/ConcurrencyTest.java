@@ -27,6 +27,7 @@ public class ConcurrencyTest {
 			Files.delete(path);
 		}
 		Files.createFile(path);
+		Files.deleteIfExists(Paths.get("backup.txt.wal")); // and its write-ahead log
 
 		CountDownLatch latchServer = new CountDownLatch(1);
 
@@ -63,6 +64,7 @@ public class ConcurrencyTest {
 			Files.delete(path);
 		}
 		Files.createFile(path);
+		Files.deleteIfExists(Paths.get(testBackupFile + ".wal"));
 	}
 
 	/**
@@ -0,0 +1,126 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Integration tests for primary/replica replication. The servers keep their
+ * weather data in static fields, so the primary and the replica each run in
+ * their own JVM, on their own port and backup file.
+ */
+public class ReplicationTest {
+	private static final int PRIMARY = 3351;
+	private static final int REPLICA = 3352;
+	private static final String[] BACKUPS = { "tests/mock_data/test_backup_primary.txt",
+			"tests/mock_data/test_backup_replica.txt" };
+	private static Process primary;
+	private static Process replica;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		deleteBackups();
+		primary = startServer(PRIMARY, "--backup=" + BACKUPS[0]);
+		replica = startServer(REPLICA, "--backup=" + BACKUPS[1], "--replica-of=localhost:" + PRIMARY,
+				"--replication-heartbeat=200");
+		for (int port : new int[] { PRIMARY, REPLICA }) {
+			assertTrue(await(port, "GET /replication/status", "\"role\""));
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		for (Process process : new Process[] { replica, primary }) {
+			if (process != null) {
+				process.destroy();
+				process.waitFor();
+			}
+		}
+		deleteBackups();
+	}
+
+	private static void deleteBackups() throws IOException {
+		for (String backup : BACKUPS) {
+			Files.deleteIfExists(Paths.get(backup));
+			Files.deleteIfExists(Paths.get(backup + ".wal"));
+		}
+	}
+
+	private static Process startServer(int port, String... options) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("AggregationServer");
+		command.add(Integer.toString(port));
+		command.addAll(Arrays.asList(options));
+		return new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+	}
+
+	private static String exchange(int port, String request) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request.getBytes());
+			socket.getOutputStream().flush();
+			socket.shutdownOutput();
+			return new String(socket.getInputStream().readAllBytes());
+		}
+	}
+
+	private static String put(int port, String id, String temp) throws IOException {
+		String body = "{\"id\":\"" + id + "\",\"air_temp\":\"" + temp + "\"}";
+		return exchange(port, "PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: " + body.length()
+				+ "\r\nConnection: close\r\n\r\n" + body);
+	}
+
+	/**
+	 * Repeats a GET until its response contains text.
+	 */
+	private static boolean await(int port, String get, String text) throws Exception {
+		for (int i = 0; i < 100; i++) {
+			try {
+				if (exchange(port, get + " HTTP/1.1\r\nLamport-Clock: 1\r\nConnection: close\r\n\r\n").contains(text)) {
+					return true;
+				}
+			} catch (IOException e) {
+				// not listening yet
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	/**
+	 * Test PUTs and removals on the primary are replicated, the replica
+	 * refuses PUTs and reports no lag once caught up, and after promotion it
+	 * accepts PUTs.
+	 */
+	@Test
+	public void testReplicateAndPromote() throws Exception {
+		assertTrue(put(PRIMARY, "rep1", "1").startsWith("HTTP/1.1 201"));
+		put(PRIMARY, "rep2", "2");
+		assertTrue(await(REPLICA, "GET /weather.json?id=rep1", "\"air_temp\":\"1\""));
+		assertTrue(await(REPLICA, "GET /weather.json?id=rep2", "\"air_temp\":\"2\""));
+
+		put(PRIMARY, "rep1", "3");
+		assertTrue(await(REPLICA, "GET /weather.json?id=rep1", "\"air_temp\":\"3\""));
+
+		assertTrue(put(REPLICA, "rep3", "4").startsWith("HTTP/1.1 503"));
+		assertTrue(await(REPLICA, "GET /replication/status", "\"lag_ms\": \"0\""));
+		assertTrue(await(PRIMARY, "GET /replication/status", "\"replicas\": \"1\""));
+
+		String promoted = exchange(REPLICA, "PUT /replication/promote HTTP/1.1\r\nLamport-Clock: 1\r\n"
+				+ "Content-Length: 0\r\nConnection: close\r\n\r\n");
+		assertTrue(promoted.contains("\"role\": \"primary\""));
+		assertTrue(put(REPLICA, "rep3", "4").startsWith("HTTP/1.1 201"));
+		assertTrue(await(REPLICA, "GET /weather.json?id=rep2", "\"air_temp\":\"2\""));
+	}
+}
@@ -0,0 +1,308 @@
+import org.junit.BeforeClass;
+import org.junit.AfterClass;
+import org.junit.Test;
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Integration test for the non-blocking server engine (--engine=nio).
+ * Runs on port 5555, streaming every full feed (--stream-threshold=0), with
+ * two workers and room for three long-lived requests.
+ */
+public class SelectorServerTest {
+	private static final int PORT = 5555;
+	private static ByteArrayOutputStream outputStream;
+	private static PrintStream originalOut;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Path path = Paths.get("tests/mock_data/test_backup_nio.txt");
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(Paths.get("tests/mock_data/test_backup_nio.txt.wal"));
+		Files.createFile(path);
+		AggregationServer.DATA_FILE = "tests/mock_data/test_backup_nio.txt";
+
+		AggregationServer.main(new String[] { "5555", "--engine=nio", "--loops=2", "--stream-threshold=0", "--mode=pool",
+				"--workers=2", "--max-streams=3" });
+		Thread.sleep(1000);
+
+		outputStream = new ByteArrayOutputStream();
+		originalOut = System.out;
+		System.setOut(new PrintStream(outputStream));
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		System.setOut(originalOut);
+		Files.deleteIfExists(Paths.get("tests/mock_data/test_backup_nio.txt"));
+		Files.deleteIfExists(Paths.get("tests/mock_data/test_backup_nio.txt.wal"));
+	}
+
+	/**
+	 * Test PUT followed by GET for the same station over the selector engine
+	 */
+	@Test
+	public void testPutThenGet() throws Exception {
+		ContentServer.main(new String[] { "http://localhost:5555", "tests/mock_data/data_test.txt" });
+		String output = outputStream.toString();
+		assertTrue(output.contains("HTTP/1.1 201 Created") || output.contains("HTTP/1.1 200 OK"));
+
+		outputStream.reset();
+		GETClient.main(new String[] { "http://localhost:5555?id=testttt" });
+		output = outputStream.toString();
+		assertTrue(output.contains("HTTP/1.1 200 OK"));
+		assertTrue(output.contains("testttt"));
+	}
+
+	/**
+	 * Test GET for an unknown station returns 404
+	 */
+	@Test
+	public void testGet404() throws Exception {
+		GETClient.main(new String[] { "http://localhost:5555?id=nonexistent" });
+		assertTrue(outputStream.toString().contains("HTTP/1.1 404 Not Found"));
+	}
+
+	/**
+	 * Test two pipelined requests on one persistent connection are both answered,
+	 * in order, and the connection is closed after "Connection: close".
+	 */
+	@Test
+	public void testKeepAlivePipelining() throws Exception {
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			String requests = "GET /weather.json?id=nonexistent HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n"
+					+ "GET /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n";
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) { // server closes after the second response
+				response.write(buffer, 0, read);
+			}
+
+			String output = response.toString();
+			int notFound = output.indexOf("HTTP/1.1 404 Not Found");
+			int ok = output.indexOf("HTTP/1.1 200 OK");
+			assertTrue(notFound >= 0);
+			assertTrue(ok > notFound);
+			assertTrue(output.contains("Connection: keep-alive"));
+			assertTrue(output.contains("Connection: close"));
+		}
+	}
+
+	/**
+	 * Test more pipelined requests than the server reads ahead are all answered
+	 * in order: reading stops while they are waiting and resumes as each
+	 * response is written.
+	 */
+	@Test
+	public void testPipeliningPastReadAhead() throws Exception {
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < 2 * SelectorServer.READ_AHEAD / 100) {
+			padding.append('x');
+		}
+		StringBuilder requests = new StringBuilder();
+		for (int i = 0; i < 100; i++) { // the default max-requests per connection
+			requests.append("GET /weather.json?id=missing").append(i).append(" HTTP/1.1\r\nLamport-Clock: 1\r\n")
+					.append("X-Padding: ").append(padding).append("\r\n\r\n");
+		}
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			Thread writer = new Thread(() -> {
+				try {
+					socket.getOutputStream().write(requests.toString().getBytes());
+				} catch (IOException e) {
+					// the test fails on the responses
+				}
+			});
+			writer.start();
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) { // closed after max-requests
+				response.write(buffer, 0, read);
+			}
+			writer.join(5000);
+			assertEquals(100, response.toString().split("HTTP/1.1 404 Not Found", -1).length - 1);
+		}
+	}
+
+	/**
+	 * Test full feeds are streamed chunked, and a pipelined request after a
+	 * streamed response is answered on the same connection.
+	 */
+	@Test
+	public void testStreamedGet() throws Exception {
+		ContentServer.main(new String[] { "http://localhost:5555", "tests/mock_data/data_test.txt" });
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			String requests = "GET /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n"
+					+ "GET /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n";
+			socket.getOutputStream().write(requests.getBytes());
+			socket.getOutputStream().flush();
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			for (int i = 0; i < 2; i++) {
+				String line;
+				boolean chunked = false;
+				assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+				while (!(line = ChunkedInputStream.readLine(in)).isEmpty()) {
+					chunked |= line.equals("Transfer-Encoding: chunked");
+					assertFalse(line.startsWith("Content-Length"));
+				}
+				assertTrue(chunked);
+				String body = new String(new ChunkedInputStream(in).readAllBytes(), "UTF-8");
+				assertTrue(body.startsWith("[\n"));
+				assertTrue(body.endsWith("\n]\n"));
+				assertTrue(body.contains("testttt"));
+			}
+			assertEquals(-1, in.read()); // closed after the second response
+		}
+	}
+
+	/**
+	 * Test a Server-Sent Events subscription over the selector engine receives
+	 * a PUT as it happens.
+	 */
+	@Test
+	public void testSubscribeEvents() throws Exception {
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET /weather/subscribe HTTP/1.1\r\nLamport-Clock: 1\r\n"
+					+ "Accept: text/event-stream\r\n\r\n").getBytes());
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+			while (!ChunkedInputStream.readLine(in).isEmpty()) {
+				// headers
+			}
+			InputStream events = new ChunkedInputStream(in);
+			assertEquals(": subscribed", ChunkedInputStream.readLine(events));
+
+			String body = "{\"id\":\"nio_sse\",\"air_temp\":\"5\"}";
+			try (Socket put = new Socket("localhost", PORT)) {
+				put.getOutputStream().write(("PUT /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nContent-Length: "
+						+ body.length() + "\r\nConnection: close\r\n\r\n" + body).getBytes());
+				put.getInputStream().readAllBytes();
+			}
+			assertEquals("", ChunkedInputStream.readLine(events));
+			assertTrue(ChunkedInputStream.readLine(events).startsWith("id: "));
+			assertEquals("event: put", ChunkedInputStream.readLine(events));
+			assertEquals("data: " + body, ChunkedInputStream.readLine(events));
+		}
+	}
+
+	/**
+	 * Test a subscriber that disconnects is dropped at once, for an event
+	 * stream and a long-poll, rather than at the next heartbeat or timeout
+	 */
+	@Test
+	public void testDisconnectedSubscriberDropped() throws Exception {
+		int before = AggregationServer.subscriptions.size();
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET /weather/subscribe HTTP/1.1\r\nLamport-Clock: 1\r\n"
+					+ "Accept: text/event-stream\r\n\r\n").getBytes());
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+			assertEquals(before + 1, AggregationServer.subscriptions.size());
+		}
+		assertTrue(waitForSubscribers(before, 2000));
+
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.getOutputStream().write(("GET /weather/subscribe?id=nothing&timeout=10000 HTTP/1.1\r\n"
+					+ "Lamport-Clock: 1\r\n\r\n").getBytes());
+			assertTrue(waitForSubscribers(before + 1, 2000));
+		}
+		assertTrue(waitForSubscribers(before, 2000));
+	}
+
+	/**
+	 * Test a subscriber sending more than the read-ahead limit behind its event
+	 * stream is closed rather than buffered without bound
+	 */
+	@Test
+	public void testSubscriberFloodClosed() throws Exception {
+		int before = AggregationServer.subscriptions.size();
+		try (Socket socket = new Socket("localhost", PORT)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET /weather/subscribe HTTP/1.1\r\nLamport-Clock: 1\r\n"
+					+ "Accept: text/event-stream\r\n\r\n").getBytes());
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+			try {
+				socket.getOutputStream().write(new byte[2 * SelectorServer.READ_AHEAD]);
+			} catch (IOException e) {
+				// already closed
+			}
+			assertTrue(waitForSubscribers(before, 2000));
+		}
+	}
+
+	private static boolean waitForSubscribers(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (AggregationServer.subscriptions.size() != count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Test long-polls run on the stream executor: while it is full, further
+	 * ones are answered 503 and other requests are still served by the workers
+	 */
+	@Test
+	public void testLongPollsDoNotHoldWorkers() throws Exception {
+		List<Socket> polls = new ArrayList<>();
+		try {
+			String rejected = null;
+			for (int i = 0; i < 4 && rejected == null; i++) {
+				Socket poll = new Socket("localhost", PORT);
+				poll.setSoTimeout(5000);
+				poll.getOutputStream().write(("GET /weather/subscribe?id=nothing&timeout=2000 HTTP/1.1\r\n"
+						+ "Lamport-Clock: 1\r\nConnection: close\r\n\r\n").getBytes());
+				poll.setSoTimeout(300);
+				try {
+					rejected = ChunkedInputStream.readLine(new BufferedInputStream(poll.getInputStream()));
+					poll.close();
+				} catch (SocketTimeoutException e) {
+					poll.setSoTimeout(5000);
+					polls.add(poll); // waiting on a stream thread
+				}
+			}
+			assertEquals("HTTP/1.1 503 Service Unavailable", rejected);
+
+			try (Socket get = new Socket("localhost", PORT)) {
+				get.setSoTimeout(2000);
+				get.getOutputStream()
+						.write("GET /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\nConnection: close\r\n\r\n".getBytes());
+				String status = ChunkedInputStream.readLine(new BufferedInputStream(get.getInputStream()));
+				assertEquals("HTTP/1.1 200 OK", status);
+			}
+			for (Socket poll : polls) {
+				String status = ChunkedInputStream.readLine(new BufferedInputStream(poll.getInputStream()));
+				assertEquals("HTTP/1.1 200 OK", status);
+			}
+		} finally {
+			for (Socket poll : polls) {
+				poll.close();
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
@@ -16,8 +17,7 @@ public class AggregationServerTest {
 
 	private ServerSocket mockServerSocket;
 	private Socket mockSocket;
-	private BufferedReader mockReader;
-	private PrintWriter mockWriter;
+	private ByteArrayOutputStream socketOutput; // what the server wrote to mockSocket
 	private WeatherNode mockWeatherNode;
 	private AggregationServer server;
 	private LamportClock mockLamportClock;
@@ -28,10 +28,6 @@ public class AggregationServerTest {
 		mockServerSocket = mock(ServerSocket.class);
 		mockSocket = mock(Socket.class);
 
-		// Mock BufferedReader and PrintWriter
-		mockReader = mock(BufferedReader.class);
-		mockWriter = mock(PrintWriter.class);
-
 		InputStream mockInputStream = new ByteArrayInputStream("".getBytes());
 		when(mockSocket.getInputStream()).thenReturn(mockInputStream);
 		when(mockSocket.getOutputStream()).thenReturn(mock(OutputStream.class));
@@ -85,25 +81,42 @@ public class AggregationServerTest {
 
 		AggregationServer.updateBackup();
 
-		// Open the file and verify that the weather data was correctly written
-		BufferedReader reader = new BufferedReader(new FileReader(AggregationServer.DATA_FILE));
-		StringBuilder fileContent = new StringBuilder();
-		String line;
-		while ((line = reader.readLine()) != null) {
-			fileContent.append(line).append("\n");
-		}
-		reader.close();
-
-		// Ensure that the content contains the expected weather data
-		assertTrue(fileContent.toString().contains("\"id\":\"testId\""));
-		assertTrue(fileContent.toString().contains("\"data\":\"testData\""));
-		assertTrue(fileContent.toString().contains("lamport = 5;"));
-		assertTrue(fileContent.toString().contains("last_update = 1620000000000;"));
+		// Load the file back and verify that the weather data was correctly written
+		AggregationServer.weather = new ConcurrentHashMap<>();
+		AggregationServer.loadBackup();
+		WeatherNode loaded = AggregationServer.weather.get("testId");
+		assertNotNull(loaded);
+		assertEquals("{\"id\":\"testId\",\"data\":\"testData\"}", loaded.getData());
+		assertEquals(5, loaded.getLamport());
+		assertEquals(1620000000000L, loaded.getLastUpdate());
+		assertFalse(new File(AggregationServer.DATA_FILE + ".tmp").exists());
 
 		File testBackupFile = new File(AggregationServer.DATA_FILE);
 		assertTrue(testBackupFile.delete()); // clean up after test
 	}
 
+	/**
+	 * Test changes written to the write-ahead log are recovered by loadBackup
+	 */
+	@Test
+	public void testLoadBackup_ReplaysWriteAheadLog() throws Exception {
+		AggregationServer.DATA_FILE = "tests/mock_data/test_backup_wal.txt";
+		AggregationServer.openPersistence(new ServerConfig());
+
+		AggregationServer.putStation("a", new WeatherNode("{\n\"id\": \"a\"\n}", 1, 1620000000000L));
+		WeatherNode nodeB = new WeatherNode("{\n\"id\": \"b\"\n}", 2, 1620000000000L);
+		AggregationServer.putStation("b", nodeB);
+		AggregationServer.removeStation("b", nodeB);
+		AggregationServer.closePersistence();
+
+		AggregationServer.weather = new ConcurrentHashMap<>(); // simulate restart
+		AggregationServer.loadBackup();
+		assertEquals(1, AggregationServer.weather.size());
+		assertNotNull(AggregationServer.weather.get("a"));
+
+		new File(AggregationServer.DATA_FILE + ".wal").delete();
+	}
+
 	/**
 	 * Test for managing outdated data based on expiration time
 	 */
@@ -113,6 +126,7 @@ public class AggregationServerTest {
 		WeatherNode oldNode = mock(WeatherNode.class);
 		when(oldNode.getLastUpdate()).thenReturn(System.currentTimeMillis() - 40 * 1000); // mock last update time
 		AggregationServer.weather.put("expired", oldNode);
+		AggregationServer.expiry.schedule("expired", oldNode, oldNode.getLastUpdate() + 30 * 1000);
 
 		Thread contentThread = new Thread(AggregationServer::manageContentServers); // start thread
 		contentThread.start();
@@ -125,26 +139,87 @@ public class AggregationServerTest {
 	}
 
 	/**
-	 * Test managing outdated data when the size limit exceeds 20 entries
+	 * Test the oldest data is evicted as soon as a PUT goes over the 20 entry
+	 * capacity
 	 */
 	@Test
-	public void testManageOutdatedData() throws InterruptedException {
-		// add 25 weather nodes to the weather map
+	public void testCapacityEviction() throws Exception {
+		AggregationServer.DATA_FILE = "tests/mock_data/test_backup_capacity.txt";
+		AggregationServer.openPersistence(new ServerConfig());
+
+		// add 25 weather nodes to the weather map, in shuffled lamport order
 		for (int i = 0; i < 25; i++) {
-			WeatherNode mockNode = mock(WeatherNode.class);
-			when(mockNode.getLamport()).thenReturn(i); // mocks different Lamport values
-			AggregationServer.weather.put(String.valueOf(i), mockNode);
+			int lamport = (i * 7) % 25;
+			AggregationServer.putStation(String.valueOf(lamport),
+					new WeatherNode("{\n\"id\": \"" + lamport + "\"\n}", lamport, System.currentTimeMillis()));
+			assertTrue(AggregationServer.weather.size() <= 20);
 		}
 
-		// Start managing outdated data
-		Thread outdatedDataThread = new Thread(AggregationServer::manageOutdatedData);
-		outdatedDataThread.start();
-		Thread.sleep(6000); // wait for thread
+		// assert maximum 20 entries are kept, without the smallest lamports
+		assertEquals(20, AggregationServer.weather.size());
+		for (int lamport = 0; lamport < 25; lamport++) {
+			assertEquals(lamport >= 5, AggregationServer.weather.containsKey(String.valueOf(lamport)));
+		}
+		AggregationServer.closePersistence();
+		new File(AggregationServer.DATA_FILE + ".wal").delete();
+	}
 
-		// assert maximum 20 entries are kept
+	/**
+	 * Test a batch PUT larger than the capacity reports the stations evicted
+	 * again, which at one shared Lamport timestamp are the smallest ids
+	 */
+	@Test
+	public void testBatchPutOverCapacity() throws Exception {
+		AggregationServer.capacity = 20;
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 30; i++) {
+			body.append(String.format("{\"id\":\"b%02d\"}\n", i));
+		}
+		AggregationServer.ClientHandler handler = handlerFor("PUT /weather/batch HTTP/1.1\r\nContent-Length: "
+				+ body.length() + "\r\nLamport-Clock: 1\r\n\r\n" + body);
+
+		handler.serveNext();
+		String response = socketOutput.toString();
+		assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
 		assertEquals(20, AggregationServer.weather.size());
-		outdatedDataThread.interrupt();
-		outdatedDataThread.join();
+		for (int i = 0; i < 30; i++) {
+			String id = String.format("b%02d", i);
+			assertEquals(i >= 10, AggregationServer.weather.containsKey(id));
+			assertTrue(response.contains("\"id\": \"" + id + "\",\n        \"status\": \"" + (i >= 10 ? "201" : "507") + "\""));
+		}
+	}
+
+	/**
+	 * Test closing persistence does not deadlock with a compaction running on
+	 * the persistence stage, which takes the lock closing used to hold.
+	 */
+	@Test(timeout = 5000)
+	public void testClosePersistenceWhileCompacting() throws Exception {
+		AggregationServer.DATA_FILE = "tests/mock_data/test_backup_close.txt";
+		AggregationServer.openPersistence(new ServerConfig().set("compact-bytes", "1").set("batch-window", "500"));
+
+		AggregationServer.persistence.submitPut("a", new WeatherNode("{\n\"id\": \"a\"\n}", 1, 1620000000000L));
+		AggregationServer.closePersistence(); // the put's batch goes over compact-bytes
+
+		new File(AggregationServer.DATA_FILE).delete();
+		new File(AggregationServer.DATA_FILE + ".wal").delete();
+	}
+
+	/**
+	 * Test a platform thread pool admits only as many connections as it has
+	 * workers by default, so no connection waits in its queue unanswered.
+	 */
+	@Test
+	public void testPoolAdmissionLimit() throws Exception {
+		AggregationServer pooled = new AggregationServer(mockServerSocket,
+				new ServerConfig().set("mode", "pool").set("workers", "8"));
+		assertEquals(8, pooled.connectionPermits.availablePermits());
+		pooled.connectionExecutor.shutdownNow();
+
+		AggregationServer limited = new AggregationServer(mockServerSocket,
+				new ServerConfig().set("mode", "pool").set("workers", "8").set("max-connections", "20"));
+		assertEquals(20, limited.connectionPermits.availablePermits());
+		limited.connectionExecutor.shutdownNow();
 	}
 
 	/**
@@ -167,21 +242,50 @@ public class AggregationServerTest {
 		connectionThread.join();
 	}
 
+	/**
+	 * Test connections beyond the admission limit are rejected with 503
+	 */
+	@Test
+	public void testListenSocket_Saturated() throws Exception {
+		socketOutput = new ByteArrayOutputStream();
+		when(mockSocket.getOutputStream()).thenReturn(socketOutput);
+		when(mockServerSocket.accept()).thenReturn(mockSocket);
+
+		ServerConfig config = new ServerConfig().set("mode", "pool").set("max-connections", "0");
+		AggregationServer saturated = new AggregationServer(mockServerSocket, config);
+		Thread connectionThread = new Thread(() -> {
+			saturated.listenSocket();
+		});
+		connectionThread.start();
+
+		verify(mockSocket, timeout(1000).atLeastOnce()).close();
+		assertTrue(socketOutput.toString().contains("HTTP/1.1 503 Service Unavailable"));
+		assertTrue(socketOutput.toString().contains("Connection: close"));
+
+		connectionThread.interrupt();
+		connectionThread.join(1000);
+	}
+
+	/**
+	 * Creates a handler for a connection on which the client sends the given
+	 * bytes; what the server writes back is collected in socketOutput.
+	 */
+	private AggregationServer.ClientHandler handlerFor(String requests) throws IOException {
+		when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)));
+		socketOutput = new ByteArrayOutputStream();
+		when(mockSocket.getOutputStream()).thenReturn(socketOutput);
+		return server.new ClientHandler(mockSocket, server);
+	}
+
 	/**
 	 * Test for handling invalid HTTP methods
 	 */
 	@Test
 	public void testHandleInvalidMethod() throws Exception {
-		// Mock socket input for an invalid HTTP method
-		when(mockReader.readLine()).thenReturn("POST /weather.json", "");
-
-		AggregationServer.ClientHandler handler = server.new ClientHandler(mockSocket, server);
-		handler.in = mockReader;
-		handler.out = mockWriter;
+		AggregationServer.ClientHandler handler = handlerFor("POST /weather.json HTTP/1.1\r\n\r\n");
 
 		handler.run();
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 400 Bad Request"));
-
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 400 Bad Request\r\n"));
 	}
 
 	/**
@@ -189,17 +293,12 @@ public class AggregationServerTest {
 	 */
 	@Test
 	public void testHandleGetRequest_Success() throws Exception {
-		// Mock socket input for GET request
-		when(mockReader.readLine()).thenReturn("GET /weather.json", "Lamport-Clock: 5", "");
-
-		AggregationServer.ClientHandler handler = server.new ClientHandler(mockSocket, server);
-		handler.in = mockReader;
-		handler.out = mockWriter;
-
-		handler.handleGetRequest("GET /weather.json");
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 200 OK"));
-		verify(mockWriter, atLeast(1)).println(contains("Lamport-Clock: " + server.lamport.getTimestamp()));
+		AggregationServer.ClientHandler handler = handlerFor("GET /weather.json HTTP/1.1\r\nLamport-Clock: 5\r\n\r\n");
 
+		assertTrue(handler.serveNext());
+		String output = socketOutput.toString();
+		assertTrue(output.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(output.contains("Lamport-Clock: " + server.lamport.getTimestamp() + "\r\n"));
 	}
 
 	/**
@@ -207,15 +306,10 @@ public class AggregationServerTest {
 	 */
 	@Test
 	public void testHandleGetRequest_500() throws Exception {
-		// Mock socket input for GET request
-		when(mockReader.readLine()).thenReturn("GET /weather.json", "");
-
-		AggregationServer.ClientHandler handler = server.new ClientHandler(mockSocket, server);
-		handler.in = mockReader;
-		handler.out = mockWriter;
+		AggregationServer.ClientHandler handler = handlerFor("GET /weather.json HTTP/1.1\r\n\r\n");
 
-		handler.handleGetRequest("GET /weather.json");
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 500 Internal Server Error"));
+		handler.serveNext();
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
 	}
 
 	/**
@@ -223,15 +317,12 @@ public class AggregationServerTest {
 	 */
 	@Test
 	public void testHandlePutRequest_500() throws Exception {
-		// Mock socket input for PUT request
-		when(mockReader.readLine()).thenReturn("PUT /weather.json", "Content-Length: 30", "Lamport-Clock: 5", "");
+		String invalid = "this is not a json object at all";
+		AggregationServer.ClientHandler handler = handlerFor("PUT /weather.json HTTP/1.1\r\nContent-Length: "
+				+ invalid.length() + "\r\nLamport-Clock: 5\r\n\r\n" + invalid);
 
-		AggregationServer.ClientHandler handler = server.new ClientHandler(mockSocket, server);
-		handler.in = mockReader;
-		handler.out = mockWriter;
-
-		handler.handlePutRequest();
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 500 Internal Server Error"));
+		handler.serveNext();
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
 	}
 
 	/**
@@ -239,17 +330,6 @@ public class AggregationServerTest {
 	 */
 	@Test
 	public void testHandlePutRequest_Success() throws Exception {
-		// mock socket input for PUT request
-		when(mockReader.readLine())
-				.thenReturn(
-						"PUT /weather.json HTTP/1.1",
-						"User-Agent: ATOMClient/1/0",
-						"Content-Length: 419",
-						"Lamport-Clock: 1",
-						"" // End of headers
-				);
-
-		// Mock the body being read correctly as a stream of characters
 		String requestBody = "{\n" +
 				"    \"id\": \"bbbbb\",\n" +
 				"    \"name\": \"Adelaide (West Terrace /  ngayirdapira)\",\n" +
@@ -268,48 +348,65 @@ public class AggregationServerTest {
 				"    \"wind_spd_kmh\": \"15\",\n" +
 				"    \"wind_spd_kt\": \"8\"\n" +
 				"}";
+		String request = "PUT /weather.json HTTP/1.1\r\n" +
+				"User-Agent: ATOMClient/1/0\r\n" +
+				"Content-Length: 419\r\n" +
+				"Lamport-Clock: 1\r\n" +
+				"\r\n" + requestBody;
+
+		AggregationServer.ClientHandler handler = handlerFor(request);
+		handler.serveNext();
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 201 Created\r\n"));
+		assertTrue(socketOutput.toString().contains("Lamport-Clock: " + server.lamport.getTimestamp() + "\r\n"));
+
+		// second PUT request with the same content (should return 200 OK)
+		handler = handlerFor(request.replace("Lamport-Clock: 1", "Lamport-Clock: 2"));
+		handler.serveNext();
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(socketOutput.toString().contains("Lamport-Clock: " + server.lamport.getTimestamp() + "\r\n"));
+	}
 
-		// Mock the char[] reading for the body content
-		char[] bodyChars = requestBody.toCharArray();
-		when(mockReader.read(any(char[].class), eq(0), eq(419)))
-				.thenAnswer(invocation -> {
-					char[] buffer = invocation.getArgument(0);
-					System.arraycopy(bodyChars, 0, buffer, 0, 419);
-					return 419;
-				});
-
-		AggregationServer.ClientHandler handler = server.new ClientHandler(mockSocket, server);
-		handler.in = mockReader;
-		handler.out = mockWriter;
-
-		handler.handlePutRequest();
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 201 Created"));
-		verify(mockWriter, atLeast(1)).println(contains("Lamport-Clock: " + server.lamport.getTimestamp()));
-
-		// rest mock data streams
-		reset(mockWriter);
-		reset(mockReader);
-
-		// mock the second PUT request with the same content and headers
-		when(mockReader.readLine())
-				.thenReturn(
-						"PUT /weather.json HTTP/1.1",
-						"User-Agent: ATOMClient/1/0",
-						"Content-Length: 419",
-						"Lamport-Clock: 2",
-						"");
-
-		// Mock the body reading again
-		when(mockReader.read(any(char[].class), eq(0), eq(419)))
-				.thenAnswer(invocation -> {
-					char[] buffer = invocation.getArgument(0);
-					System.arraycopy(bodyChars, 0, buffer, 0, 419);
-					return 419;
-				});
-
-		// second PUT request (should return 200 OK)
-		handler.handlePutRequest();
-		verify(mockWriter, atLeast(1)).println(contains("HTTP/1.1 200 OK"));
-		verify(mockWriter, atLeast(1)).println(contains("Lamport-Clock: " + server.lamport.getTimestamp()));
+	/**
+	 * Test a body with multi-byte UTF-8 characters is read whole, since
+	 * Content-Length counts bytes
+	 */
+	@Test
+	public void testHandlePutRequest_MultiByteBody() throws Exception {
+		String requestBody = "{\"id\":\"utf8\",\"name\":\"M\u00e9t\u00e9o \u2600\"}";
+		int length = requestBody.getBytes(StandardCharsets.UTF_8).length;
+		AggregationServer.ClientHandler handler = handlerFor("PUT /weather.json HTTP/1.1\r\nContent-Length: " + length
+				+ "\r\nLamport-Clock: 1\r\n\r\n" + requestBody);
+
+		handler.serveNext();
+		assertTrue(socketOutput.toString().startsWith("HTTP/1.1 201 Created\r\n"));
+		assertEquals(requestBody, AggregationServer.weather.get("utf8").getData());
+	}
+
+	/**
+	 * Test pipelined requests are answered in order, and each response is
+	 * sent with a single write
+	 */
+	@Test
+	public void testPipelinedRequests_SingleWrite() throws Exception {
+		AggregationServer.ClientHandler handler = handlerFor(
+				"GET /weather.json?id=none HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n"
+						+ "GET /weather.json HTTP/1.1\r\nLamport-Clock: 2\r\nConnection: close\r\n\r\n");
+		int[] writes = new int[1];
+		handler.out = new FilterOutputStream(socketOutput) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writes[0]++;
+				out.write(b, off, len);
+			}
+		};
+
+		assertTrue(handler.serveNext());
+		assertEquals(1, writes[0]);
+		assertFalse(handler.serveNext());
+		assertEquals(2, writes[0]);
+
+		String output = socketOutput.toString();
+		assertTrue(output.startsWith("HTTP/1.1 404 Not Found\r\n"));
+		assertTrue(output.indexOf("HTTP/1.1 200 OK\r\n") > output.indexOf("404"));
 	}
 }
@@ -0,0 +1,128 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Unit tests for ChangeLog
+ */
+public class ChangeLogTest {
+
+	/**
+	 * Test changes after a stamp are returned oldest first
+	 */
+	@Test
+	public void testSince() {
+		ChangeLog log = new ChangeLog(10);
+		log.record("a", ChangeLog.PUT, 3);
+		log.record("b", ChangeLog.PUT, 5);
+		log.record("a", ChangeLog.REMOVE, 0);
+
+		List<ChangeLog.Change> changes = log.since(0);
+		assertEquals(3, changes.size());
+		assertEquals("a", changes.get(0).getId());
+		assertEquals(3, changes.get(0).getLamport());
+		assertEquals(ChangeLog.REMOVE, changes.get(2).getOp());
+
+		changes = log.since(3);
+		assertEquals(2, changes.size());
+		assertEquals("b", changes.get(0).getId());
+		assertTrue(log.since(log.latest()).isEmpty());
+	}
+
+	/**
+	 * Test stamps always increase, even when data arrives with an older
+	 * Lamport timestamp
+	 */
+	@Test
+	public void testStampsIncrease() {
+		ChangeLog log = new ChangeLog(10);
+		assertEquals(7, log.record("a", ChangeLog.PUT, 7));
+		assertEquals(8, log.record("b", ChangeLog.PUT, 4));
+		assertEquals(9, log.record("a", ChangeLog.REMOVE, 0));
+		assertEquals(20, log.record("c", ChangeLog.PUT, 20));
+		assertEquals(20, log.latest());
+	}
+
+	/**
+	 * Test a client behind the truncated records gets null for a snapshot
+	 */
+	@Test
+	public void testTruncated() {
+		ChangeLog log = new ChangeLog(3);
+		for (int i = 1; i <= 5; i++) {
+			log.record("s" + i, ChangeLog.PUT, i);
+		}
+		assertEquals(3, log.size());
+		assertNull(log.since(0));
+		assertNull(log.since(1));
+		assertEquals(3, log.since(2).size());
+		assertEquals("s3", log.since(2).get(0).getId());
+	}
+
+	/**
+	 * Test a client ahead of the log, e.g. from before a restart, gets null
+	 */
+	@Test
+	public void testAhead() {
+		ChangeLog log = new ChangeLog(10);
+		log.record("a", ChangeLog.PUT, 2);
+		assertNull(log.since(3));
+	}
+
+	/**
+	 * Test reset treats loaded data as truncated, and a log of capacity 0
+	 * always needs a snapshot once something changed
+	 */
+	@Test
+	public void testResetAndDisabled() {
+		ChangeLog log = new ChangeLog(10);
+		log.reset(12);
+		assertNull(log.since(0));
+		assertTrue(log.since(12).isEmpty());
+		assertEquals(13, log.record("a", ChangeLog.PUT, 1));
+		assertEquals(1, log.since(12).size());
+
+		ChangeLog disabled = new ChangeLog(0);
+		assertTrue(disabled.since(0).isEmpty());
+		disabled.record("a", ChangeLog.PUT, 1);
+		assertNull(disabled.since(0));
+		assertTrue(disabled.since(1).isEmpty());
+	}
+
+	/**
+	 * Test a removal stamped above the data is not lost across a restart: the
+	 * client's cursor from before it is stale and needs a snapshot, even where
+	 * its stamp matches the loaded data's newest Lamport timestamp
+	 */
+	@Test
+	public void testCursorAcrossRestart() throws Exception {
+		ChangeLog before = new ChangeLog(10);
+		long put = before.record("a", ChangeLog.PUT, 100);
+		String seenPut = before.cursor(put);
+		assertEquals(put, before.stampOf(seenPut));
+		assertEquals(101, before.record("a", ChangeLog.REMOVE, 0));
+
+		Thread.sleep(2); // a restart takes time
+		ChangeLog after = new ChangeLog(10);
+		after.reset(100); // newest Lamport timestamp of the loaded data
+		assertEquals(ChangeLog.STALE, after.stampOf(seenPut));
+		assertNull(after.since(after.stampOf(seenPut)));
+		assertNotEquals(before.getEpoch(), after.getEpoch());
+
+		// a reset within one run also starts a new epoch
+		String current = after.cursor(after.latest());
+		after.reset(100);
+		assertEquals(ChangeLog.STALE, after.stampOf(current));
+		assertEquals(0, after.stampOf("0"));
+		assertEquals(ChangeLog.STALE, after.stampOf("100"));
+	}
+
+	/**
+	 * Test invalid cursors are rejected
+	 */
+	@Test(expected = NumberFormatException.class)
+	public void testInvalidCursor() {
+		new ChangeLog(10).stampOf("1-x");
+	}
+}
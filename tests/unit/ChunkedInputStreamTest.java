@@ -0,0 +1,68 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for ChunkedInputStream
+ */
+public class ChunkedInputStreamTest {
+
+	private static InputStream stream(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test chunks are joined and the stream is left after the body
+	 */
+	@Test
+	public void testRead() throws Exception {
+		InputStream in = stream("5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\n\r\nHTTP/1.1 200 OK\r\n");
+		byte[] body = new ChunkedInputStream(in).readAllBytes();
+
+		assertEquals("hello, world", new String(body, StandardCharsets.UTF_8));
+		assertEquals("HTTP/1.1 200 OK", ChunkedInputStream.readLine(in));
+	}
+
+	/**
+	 * Test trailer headers after the last chunk are skipped
+	 */
+	@Test
+	public void testTrailer() throws Exception {
+		InputStream in = stream("A\r\n0123456789\r\n0\r\nExpires: never\r\n\r\nnext");
+		assertEquals("0123456789", new String(new ChunkedInputStream(in).readAllBytes(), StandardCharsets.UTF_8));
+		assertEquals("next", ChunkedInputStream.readLine(in));
+	}
+
+	/**
+	 * Test a body cut short or with an invalid size fails
+	 */
+	@Test
+	public void testInvalid() {
+		String[] invalid = { "5\r\nhel", "zz\r\nhello\r\n0\r\n\r\n", "5\r\nhello\r\n" };
+		for (String body : invalid) {
+			try {
+				new ChunkedInputStream(stream(body)).readAllBytes();
+				fail("Expected exception for " + body);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test readLine() accepts LF and CRLF line ends
+	 */
+	@Test
+	public void testReadLine() throws Exception {
+		InputStream in = stream("a\r\nb\n\r\nc");
+		assertEquals("a", ChunkedInputStream.readLine(in));
+		assertEquals("b", ChunkedInputStream.readLine(in));
+		assertEquals("", ChunkedInputStream.readLine(in));
+		assertEquals("c", ChunkedInputStream.readLine(in));
+		assertNull(ChunkedInputStream.readLine(in));
+	}
+}
@@ -0,0 +1,70 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for ChunkedOutputStream
+ */
+public class ChunkedOutputStreamTest {
+
+	/**
+	 * Test data is sent in chunks no larger than the buffer, ending with the
+	 * last chunk
+	 */
+	@Test
+	public void testChunks() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, 4);
+		chunked.write("abcdef".getBytes(StandardCharsets.US_ASCII));
+		chunked.write('g');
+		chunked.close();
+
+		assertEquals("4\r\nabcd\r\n3\r\nefg\r\n0\r\n\r\n", out.toString("US-ASCII"));
+	}
+
+	/**
+	 * Test an empty body is only the last chunk, and close() can be repeated
+	 */
+	@Test
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, 16);
+		chunked.flush(); // no empty chunk before the end
+		chunked.close();
+		chunked.close();
+
+		assertEquals("0\r\n\r\n", out.toString("US-ASCII"));
+	}
+
+	/**
+	 * Test writing after close() fails
+	 */
+	@Test(expected = java.io.IOException.class)
+	public void testWriteAfterClose() throws Exception {
+		ChunkedOutputStream chunked = new ChunkedOutputStream(new ByteArrayOutputStream(), 16);
+		chunked.close();
+		chunked.write(1);
+	}
+
+	/**
+	 * Test a large body is read back the same by ChunkedInputStream
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, HttpResponse.CHUNK_BYTES);
+		chunked.write(data, 0, 5000);
+		chunked.write(data, 5000, data.length - 5000);
+		chunked.close();
+
+		byte[] read = new ChunkedInputStream(new ByteArrayInputStream(out.toByteArray())).readAllBytes();
+		assertArrayEquals(data, read);
+	}
+}
@@ -4,6 +4,8 @@ import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -76,6 +78,26 @@ public class ContentServerTest {
 		testFile.delete(); // clean up test file
 	}
 
+	/**
+	 * Test convertToJson() splits each line at its first colon, keeping colons
+	 * in values, and skips lines without a key.
+	 */
+	@Test
+	public void testConvertToJsonColonInValue() throws IOException {
+		File testFile = new File("testFile.txt");
+		PrintWriter writer = new PrintWriter(testFile);
+		writer.println("local_time: 15:04:00");
+		writer.println("no colon here");
+		writer.println(": no key");
+		writer.println("empty:");
+		writer.close();
+
+		String jsonResult = ContentServer.convertToJSON("testFile.txt");
+
+		assertEquals("{\n    \"local_time\": \"15:04:00\",\n    \"empty\": \"\"\n}", jsonResult);
+		testFile.delete(); // clean up test file
+	}
+
 	/**
 	 * Test convertToJson() returns empty string when converting an empty file.
 	 */
@@ -148,6 +170,34 @@ public class ContentServerTest {
 		assertEquals(0, contentServer.lamport.getTimestamp()); // lamport is not updated as request failed
 	}
 
+	/**
+	 * Test that processResponse reads a multi-byte body by its Content-Length in
+	 * bytes, leaving the next pipelined response unread
+	 */
+	@Test
+	public void testProcessResponseMultiByteBody() throws Exception {
+		String body = "M\u00e9t\u00e9o \u2600";
+		int length = body.getBytes(StandardCharsets.UTF_8).length;
+		String response = "HTTP/1.1 200 OK\r\nContent-Length: " + length + "\r\nLamport-Clock: 15\r\n\r\n" + body
+				+ "HTTP/1.1 201 Created\r\n\r\n";
+		when(mockSocket.getInputStream())
+				.thenReturn(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+
+		PrintStream originalOut = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+		try {
+			contentServer.processResponse(mockSocket);
+		} finally {
+			System.setOut(originalOut);
+		}
+
+		String printed = output.toString(StandardCharsets.UTF_8);
+		assertTrue(printed.contains(body));
+		assertFalse(printed.contains("201 Created"));
+		assertEquals(16, contentServer.lamport.getTimestamp());
+	}
+
 	/**
 	 * Test that sendPutRequest correctly processes the server response
 	 * and updates the Lamport clock.
@@ -198,4 +248,35 @@ public class ContentServerTest {
 		assertTrue(output.contains("Failed to connect after multiple attempts. Exiting."));
 		System.setOut(originalOut);
 	}
+
+	/**
+	 * Test backoffDelay() stays within the doubling bound, capped at the
+	 * largest delay.
+	 */
+	@Test
+	public void testBackoffDelay() {
+		for (int i = 0; i < 100; i++) {
+			assertTrue(ContentServer.backoffDelay(0, 1000, 30000) <= 1000);
+			assertTrue(ContentServer.backoffDelay(2, 1000, 30000) <= 4000);
+			long delay = ContentServer.backoffDelay(40, 1000, 30000);
+			assertTrue(delay >= 0 && delay <= 30000);
+		}
+	}
+
+	/**
+	 * Test failedItems() reports the stations of a batch PUT the server did not
+	 * store, and the whole batch when the batch was not accepted
+	 */
+	@Test
+	public void testFailedItems() throws IOException {
+		String body = "[{\"index\": \"0\", \"id\": \"a\", \"status\": \"201\"},"
+				+ " {\"index\": \"1\", \"status\": \"500\"}, {\"index\": \"2\", \"id\": \"c\", \"status\": \"200\"}]";
+		KeepAliveConnection.Response ok = KeepAliveConnection.readResponse(new ByteArrayInputStream(
+				("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes()));
+		assertEquals(List.of(1, 3), ContentServer.failedItems(ok, 4)); // the fourth is missing
+
+		KeepAliveConnection.Response unavailable = KeepAliveConnection.readResponse(new ByteArrayInputStream(
+				"HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes()));
+		assertEquals(List.of(0, 1), ContentServer.failedItems(unavailable, 2));
+	}
 }
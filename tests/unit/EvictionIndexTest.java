@@ -0,0 +1,55 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for EvictionIndex
+ */
+public class EvictionIndexTest {
+
+	/**
+	 * Test entries are taken in lamport order
+	 */
+	@Test
+	public void testPollOldest() {
+		EvictionIndex index = new EvictionIndex();
+		index.add("b", new WeatherNode("{}", 5, 0L));
+		index.add("a", new WeatherNode("{}", 9, 0L));
+		index.add("c", new WeatherNode("{}", 1, 0L));
+
+		assertEquals("c", index.pollOldest().getId());
+		assertEquals("b", index.pollOldest().getId());
+		assertEquals("a", index.pollOldest().getId());
+		assertNull(index.pollOldest());
+	}
+
+	/**
+	 * Test replacing a station's node leaves one entry with the new lamport
+	 */
+	@Test
+	public void testReplace() {
+		EvictionIndex index = new EvictionIndex();
+		WeatherNode first = new WeatherNode("{}", 1, 0L);
+		WeatherNode second = new WeatherNode("{}", 10, 0L);
+		index.add("a", first);
+		index.add("b", new WeatherNode("{}", 5, 0L));
+		index.remove("a", first);
+		index.add("a", second);
+
+		assertEquals(2, index.size());
+		assertEquals("b", index.pollOldest().getId());
+		assertEquals(10, index.pollOldest().getLamport());
+	}
+
+	/**
+	 * Test stations with the same lamport are kept apart
+	 */
+	@Test
+	public void testSameLamport() {
+		EvictionIndex index = new EvictionIndex();
+		index.add("a", new WeatherNode("{}", 3, 0L));
+		index.add("b", new WeatherNode("{}", 3, 0L));
+
+		assertEquals(2, index.size());
+		assertEquals("a", index.pollOldest().getId());
+	}
+}
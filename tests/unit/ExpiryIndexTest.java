@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Unit tests for ExpiryIndex
+ */
+public class ExpiryIndexTest {
+
+	/**
+	 * Test all due entries are taken together, earliest first, and entries not
+	 * yet due stay in the index
+	 */
+	@Test
+	public void testTakeExpired() throws Exception {
+		ExpiryIndex index = new ExpiryIndex();
+		long now = System.currentTimeMillis();
+		index.schedule("b", new WeatherNode("{}", 2, 0L), now - 1000);
+		index.schedule("a", new WeatherNode("{}", 1, 0L), now - 2000);
+		index.schedule("c", new WeatherNode("{}", 3, 0L), now + 60 * 1000);
+
+		List<ExpiryIndex.Entry> expired = index.takeExpired();
+		assertEquals(2, expired.size());
+		assertEquals("a", expired.get(0).getId());
+		assertEquals("b", expired.get(1).getId());
+		assertEquals(1, index.size());
+	}
+
+	/**
+	 * Test takeExpired waits until the earliest deadline
+	 */
+	@Test
+	public void testWaitsForDeadline() throws Exception {
+		ExpiryIndex index = new ExpiryIndex();
+		long start = System.currentTimeMillis();
+		index.schedule("a", new WeatherNode("{}", 1, 0L), start + 200);
+
+		List<ExpiryIndex.Entry> expired = index.takeExpired();
+		assertEquals("a", expired.get(0).getId());
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	/**
+	 * Test takeExpired can be interrupted while waiting
+	 */
+	@Test
+	public void testInterrupt() throws Exception {
+		ExpiryIndex index = new ExpiryIndex();
+		Thread waiter = new Thread(() -> {
+			try {
+				index.takeExpired();
+				fail("Expected InterruptedException");
+			} catch (InterruptedException e) {
+				// expected
+			}
+		});
+		waiter.start();
+		Thread.sleep(100);
+		waiter.interrupt();
+		waiter.join(1000);
+		assertFalse(waiter.isAlive());
+	}
+}
@@ -0,0 +1,176 @@
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for FanOutClient, against scripted servers on local sockets.
+ */
+public class FanOutClientTest {
+	private final List<ServerSocket> serverSockets = new ArrayList<>();
+	private final List<Thread> serverThreads = new ArrayList<>();
+
+	@After
+	public void tearDown() throws Exception {
+		for (ServerSocket serverSocket : serverSockets) {
+			serverSocket.close();
+		}
+		for (Thread thread : serverThreads) {
+			thread.join(5000);
+		}
+	}
+
+	/**
+	 * Starts a server answering every request on a connection with the given
+	 * responses in turn.
+	 *
+	 * @return the server's URL
+	 */
+	private String serve(String... responses) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		serverSockets.add(serverSocket);
+		Thread thread = new Thread(() -> {
+			try {
+				while (true) {
+					try (Socket socket = serverSocket.accept()) {
+						InputStream in = new BufferedInputStream(socket.getInputStream());
+						for (String response : responses) {
+							String line;
+							while ((line = ChunkedInputStream.readLine(in)) != null && !line.isEmpty()) {
+								// skip the request head; GETs have no body
+							}
+							if (line == null) {
+								break;
+							}
+							socket.getOutputStream().write(response.getBytes(StandardCharsets.UTF_8));
+						}
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed by tearDown
+			}
+		});
+		thread.start();
+		serverThreads.add(thread);
+		return "http://localhost:" + serverSocket.getLocalPort();
+	}
+
+	private static String response(String headers, String body) {
+		return "HTTP/1.1 200 OK\r\nLamport-Clock: 5\r\n" + headers + "Content-Length: "
+				+ body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+	}
+
+	/**
+	 * Test each station is taken from the server with its latest Lamport
+	 * timestamp, read from the station's ETag.
+	 */
+	@Test
+	public void testMergeStationsByLamport() throws Exception {
+		String first = serve(
+				response("ETag: \"7-100\"\r\n", "{\"id\":\"a\",\"air_temp\":\"1\"}"),
+				"HTTP/1.1 404 Not Found\r\nLamport-Clock: 6\r\nContent-Length: 0\r\n\r\n");
+		String second = serve(
+				response("ETag: \"9-100\"\r\n", "{\"id\":\"a\",\"air_temp\":\"2\"}"),
+				response("ETag: \"3-100\"\r\n", "{\"id\":\"b\",\"air_temp\":\"3\"}"));
+
+		try (FanOutClient client = new FanOutClient(Arrays.asList(first, second), new ServerConfig())) {
+			FanOutClient.Result result = client.fetch(Arrays.asList("a", "b"));
+			Map<String, FanOutClient.Station> stations = result.getStations();
+			assertEquals(2, stations.size());
+			assertEquals("2", stations.get("a").getFields().get("air_temp"));
+			assertEquals(9, stations.get("a").getLamport());
+			assertEquals("3", stations.get("b").getFields().get("air_temp"));
+			assertEquals(4, result.getTimings().size());
+			assertEquals(404, result.getTimings().get(1).getStatus());
+		}
+	}
+
+	/**
+	 * Test a whole-feed fetch merges deltas and snapshots by the stations' own
+	 * Lamport timestamps, not the servers' change log stamps: a station one
+	 * server deleted is still taken from another that has it, and a server
+	 * that cannot be reached is reported as failed.
+	 */
+	@Test
+	public void testMergeFeeds() throws Exception {
+		String first = serve(response("Change-Log: delta\r\nChange-Lamport: 1-900\r\n",
+				"[{\"lamport\":\"4\",\"op\":\"put\",\"id\":\"a\",\"air_temp\":\"1\"},"
+						+ "{\"lamport\":\"5\",\"op\":\"put\",\"id\":\"b\",\"air_temp\":\"2\"}]"));
+		String second = serve(response("Change-Log: snapshot\r\nChange-Lamport: 2-3\r\n",
+				"[{\"lamport\":\"3\",\"op\":\"put\",\"id\":\"b\",\"air_temp\":\"3\"},"
+						+ "{\"op\":\"delete\",\"id\":\"a\"}]"));
+		ServerSocket closed = new ServerSocket(0);
+		String unreachable = "http://localhost:" + closed.getLocalPort();
+		closed.close();
+
+		try (FanOutClient client = new FanOutClient(Arrays.asList(first, second, unreachable), new ServerConfig())) {
+			FanOutClient.Result result = client.fetch(Collections.emptyList());
+			assertEquals(2, result.getStations().size());
+			assertEquals("1", result.getStations().get("a").getFields().get("air_temp"));
+			assertEquals("2", result.getStations().get("b").getFields().get("air_temp"));
+			assertEquals(5, result.getStations().get("b").getLamport());
+			assertNull(result.getStations().get("b").getFields().get("lamport"));
+			assertEquals(-1, result.getTimings().get(2).getStatus());
+			assertTrue(result.toJson().contains("\"air_temp\": \"2\""));
+		}
+	}
+
+	/**
+	 * Test copies with the same Lamport timestamp are taken from the server
+	 * given first.
+	 */
+	@Test
+	public void testMergeTie() throws Exception {
+		String first = serve(response("ETag: \"7-100\"\r\n", "{\"id\":\"a\",\"air_temp\":\"1\"}"));
+		String second = serve(response("ETag: \"7-200\"\r\n", "{\"id\":\"a\",\"air_temp\":\"2\"}"));
+
+		try (FanOutClient client = new FanOutClient(Arrays.asList(second, first), new ServerConfig())) {
+			FanOutClient.Station station = client.fetch(Arrays.asList("a")).getStations().get("a");
+			assertEquals("2", station.getFields().get("air_temp"));
+		}
+	}
+
+	/**
+	 * Test the stations of a snapshot take their own Lamport timestamps, and
+	 * deleted or untagged stations are handled.
+	 */
+	@Test
+	public void testParseSnapshot() throws Exception {
+		KeepAliveConnection.Response response = KeepAliveConnection.readResponse(new ByteArrayInputStream(
+				response("Change-Log: snapshot\r\n", "[{\"lamport\":\"12\",\"op\":\"put\",\"id\":\"a\"},"
+						+ "{\"op\":\"delete\",\"id\":\"b\"},{\"id\":\"c\"}]").getBytes(StandardCharsets.UTF_8)));
+		List<FanOutClient.Station> stations = new ArrayList<>(FanOutClient.parse("s:1", response));
+		assertEquals(2, stations.size());
+		assertEquals(12, stations.get(0).getLamport());
+		assertEquals("s:1", stations.get(0).getServer());
+		assertEquals("c", stations.get(1).getId());
+		assertEquals(-1, stations.get(1).getLamport());
+	}
+
+	/**
+	 * Test servers are named by their whole hostname, so servers in different
+	 * domains stay apart.
+	 */
+	@Test
+	public void testServerOf() {
+		assertEquals("10.0.0.5:4567", FanOutClient.serverOf("10.0.0.5:4567"));
+		assertEquals("a.r1.example.com:80", FanOutClient.serverOf("http://a.r1.example.com:80/weather.json?id=x"));
+		assertNotEquals(FanOutClient.serverOf("http://a.r1:4567"), FanOutClient.serverOf("http://a.r2:4567"));
+	}
+
+	/**
+	 * Test a URL without a port is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testServerOfNoPort() {
+		FanOutClient.serverOf("http://localhost/weather.json");
+	}
+}
@@ -0,0 +1,109 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for HttpRequestParser
+ */
+public class HttpRequestParserTest {
+	private HttpRequestParser parser;
+
+	@Before
+	public void setUp() {
+		parser = new HttpRequestParser();
+	}
+
+	private void feed(String data) {
+		parser.feed(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Test a complete GET request is parsed with its headers and query string
+	 */
+	@Test
+	public void testParseGet() {
+		feed("GET /weather.json?id=aaaaaa HTTP/1.1\r\nLamport-Clock: 3\r\n\r\n");
+
+		HttpRequest request = parser.next();
+		assertNotNull(request);
+		assertEquals("GET", request.getMethod());
+		assertEquals("/weather.json", request.getPath());
+		assertEquals("aaaaaa", request.getQueryParam("id"));
+		assertEquals(3, request.getIntHeader("lamport-clock", 0));
+		assertFalse(parser.hasBufferedBytes());
+	}
+
+	/**
+	 * Test a PUT request arriving in several pieces is only returned once the
+	 * whole body has arrived
+	 */
+	@Test
+	public void testParsePutInPieces() {
+		String body = "{\n    \"id\": \"bbbbb\"\n}";
+		feed("PUT /weather.json HTTP/1.1\r\nContent-Le");
+		assertNull(parser.next());
+		feed("ngth: " + body.length() + "\r\nLamport-Clock: 1\r\n\r\n" + body.substring(0, 5));
+		assertNull(parser.next());
+		feed(body.substring(5));
+
+		HttpRequest request = parser.next();
+		assertNotNull(request);
+		assertEquals("PUT", request.getMethod());
+		assertEquals(body, request.getBody());
+	}
+
+	/**
+	 * Test empty lines before a request line are skipped
+	 */
+	@Test
+	public void testSkipsEmptyLines() {
+		feed("\r\n\nGET /weather.json HTTP/1.1\nLamport-Clock: 1\n\n");
+		HttpRequest request = parser.next();
+		assertNotNull(request);
+		assertEquals("GET", request.getMethod());
+	}
+
+	/**
+	 * Test an invalid Content-Length is rejected
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidContentLength() {
+		feed("PUT /weather.json HTTP/1.1\r\nContent-Length: abc\r\n\r\n");
+		parser.next();
+	}
+
+	/**
+	 * Test If-None-Match lists, weak tags and "*" are matched against an
+	 * entity tag
+	 */
+	@Test
+	public void testMatchesETag() {
+		feed("GET /weather.json HTTP/1.1\r\nIf-None-Match: \"x-1\", W/\"x-2\"\r\n\r\n"
+				+ "GET /weather.json HTTP/1.1\r\nIf-None-Match: *\r\n\r\n"
+				+ "GET /weather.json HTTP/1.1\r\n\r\n");
+
+		HttpRequest listed = parser.next();
+		assertTrue(listed.matchesETag("\"x-1\""));
+		assertTrue(listed.matchesETag("\"x-2\""));
+		assertFalse(listed.matchesETag("\"x-3\""));
+		assertTrue(parser.next().matchesETag("\"x-3\""));
+		assertFalse(parser.next().matchesETag("\"x-1\""));
+	}
+
+	/**
+	 * Test HTTP date headers are parsed, and invalid or missing ones give -1
+	 */
+	@Test
+	public void testDateHeader() {
+		feed("GET /weather.json HTTP/1.1\r\nIf-Modified-Since: " + HttpResponse.formatDate(1700000000000L)
+				+ "\r\nDate: yesterday\r\n\r\n");
+
+		HttpRequest request = parser.next();
+		assertEquals(1700000000000L, request.getDateHeader("If-Modified-Since"));
+		assertEquals(-1, request.getDateHeader("Date"));
+		assertEquals(-1, request.getDateHeader("Last-Modified"));
+	}
+}
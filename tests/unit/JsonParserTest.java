@@ -1,6 +1,8 @@
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -71,6 +73,26 @@ public class JsonParserTest {
 		assertEquals(expectedJsonString, result);
 	}
 
+	/**
+	 * Test the toJson() method escapes quotes, backslashes and control
+	 * characters, so the output is valid JSON that parses back to the same map.
+	 * 
+	 * Expected input: A map whose key and values hold characters JSON escapes.
+	 * Expected output: The escaped JSON string, read back by parse() unchanged.
+	 */
+	@Test
+	public void testToJsonEscapes() throws Exception {
+		LinkedHashMap<String, String> jsonMap = new LinkedHashMap<>();
+		jsonMap.put("name", "Adelaide \"West\" Terrace");
+		jsonMap.put("path\\key", "line1\nline2\t\u0001");
+
+		String result = JsonParser.toJson(jsonMap);
+
+		assertEquals("{\n    \"name\": \"Adelaide \\\"West\\\" Terrace\",\n"
+				+ "    \"path\\\\key\": \"line1\\nline2\\t\\u0001\"\n}", result);
+		assertEquals(jsonMap, JsonParser.parse(result));
+	}
+
 	/**
 	 * Test the getId() method to ensure it correctly retrieves the 'id' field
 	 * from the provided JSON string.
@@ -88,6 +110,21 @@ public class JsonParserTest {
 		assertEquals(expectedId, result);
 	}
 
+	/**
+	 * Test the getFields() method returns only the requested keys.
+	 * 
+	 * Expected input: A JSON string and keys, one of them missing.
+	 * Expected output: The values of the keys present, unescaped.
+	 */
+	@Test
+	public void testGetFields() throws Exception {
+		String jsonString = "{\"id\": \"123\", \"lat\": -34.9, \"state\": \"S\\\"A\", \"name\": \"John\"}";
+
+		Map<String, String> result = JsonParser.getFields(jsonString, "state", "lat", "lon");
+
+		assertEquals(Map.of("lat", "-34.9", "state", "S\"A"), result);
+	}
+
 	/**
 	 * Test the getId() method when there is no 'id' field in the JSON.
 	 * 
@@ -111,4 +148,99 @@ public class JsonParserTest {
 		String invalidJsonString = "\"id\": \"123\", \"name\": \"John\", \"age\": \"30\""; // Not enclosed in {}
 		JsonParser.getId(invalidJsonString); // This should throw an Exception
 	}
+
+	/**
+	 * Test the parse() method with compact and irregular whitespace, escapes and
+	 * non-string values
+	 * 
+	 * Expected input: A valid JSON string not formatted like ContentServer output
+	 * Expected output: Values unescaped, numbers and nested values as written
+	 */
+	@Test
+	public void testParseArbitraryFormatting() throws Exception {
+		String jsonString = "{\"id\":\"IDS60901\",\"name\" :\t\"Adelaide, \\\"West\\\" \\u00e9\" ,"
+				+ "\r\n\"air_temp\": 13.3, \"wind\":{\"dir\": \"S\", \"spd\": [1, 2]},\"rain\":null}";
+
+		LinkedHashMap<String, String> result = JsonParser.parse(jsonString);
+
+		assertEquals("IDS60901", result.get("id"));
+		assertEquals("Adelaide, \"West\" \u00e9", result.get("name"));
+		assertEquals("13.3", result.get("air_temp"));
+		assertEquals("{\"dir\": \"S\", \"spd\": [1, 2]}", result.get("wind"));
+		assertEquals("null", result.get("rain"));
+		assertEquals(5, result.size());
+	}
+
+	/**
+	 * Test the getId() method with a numeric id and an id after other fields
+	 * 
+	 * Expected input: Compact JSON with the id as a number
+	 * Expected output: The id as written
+	 */
+	@Test
+	public void testGetIdCompact() throws Exception {
+		assertEquals("42", JsonParser.getId("{\"name\":\"a,b:c\",\"id\":42}"));
+	}
+
+	/**
+	 * Test the getId() method on UTF-8 bytes
+	 * 
+	 * Expected input: A UTF-8 encoded JSON object inside a larger buffer
+	 * Expected output: The value of the 'id' field.
+	 */
+	@Test
+	public void testGetIdBytes() throws Exception {
+		byte[] buffer = "xx{\"name\": \"M\u00fcnchen\", \"id\": \"\u00e9t\u00e9\"}yy".getBytes(StandardCharsets.UTF_8);
+		assertEquals("\u00e9t\u00e9", JsonParser.getId(buffer, 2, buffer.length - 4));
+	}
+
+	/**
+	 * Test the parse() method rejects content after the object and unterminated
+	 * strings
+	 */
+	@Test
+	public void testParseTrailingContent() {
+		String[] invalid = { "{\"id\": \"1\"} x", "{\"id\": \"1}", "{\"id\": }", "{\"id\": \"1\" \"a\": 2}" };
+		for (String json : invalid) {
+			try {
+				JsonParser.parse(json);
+				fail("Expected exception for " + json);
+			} catch (Exception e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test the splitObjects() method on a JSON array and on NDJSON
+	 * 
+	 * Expected output: the text of each object, in order, with nested values and
+	 * braces inside strings kept in their object.
+	 */
+	@Test
+	public void testSplitObjects() throws Exception {
+		String first = "{\"id\": \"a\", \"name\": \"x}{\"}";
+		String second = "{\"id\": \"b\", \"nested\": {\"k\": [1, 2]}}";
+		assertEquals(Arrays.asList(first, second), JsonParser.splitObjects("[\n" + first + ",\n" + second + "\n]\n"));
+		assertEquals(Arrays.asList(first, second), JsonParser.splitObjects(first + "\n" + second + "\n"));
+		assertEquals(Arrays.asList(), JsonParser.splitObjects("[ ]"));
+		assertEquals(Arrays.asList(), JsonParser.splitObjects(""));
+	}
+
+	/**
+	 * Test the splitObjects() method rejects batches that are not objects
+	 */
+	@Test
+	public void testSplitObjectsInvalid() {
+		String[] invalid = { "[{\"id\": \"a\"} {\"id\": \"b\"}]", "[{\"id\": \"a\"},]", "[{\"id\": \"a\"}",
+				"{\"id\": \"a\"} 5", "{\"id\": \"a}", "[{}] x" };
+		for (String json : invalid) {
+			try {
+				JsonParser.splitObjects(json);
+				fail("Expected exception for " + json);
+			} catch (Exception e) {
+				// expected
+			}
+		}
+	}
 }
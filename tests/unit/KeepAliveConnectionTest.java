@@ -0,0 +1,229 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for KeepAliveConnection, against a scripted server on a local
+ * socket.
+ */
+public class KeepAliveConnectionTest {
+	private ServerSocket serverSocket;
+	private Thread serverThread;
+	private final AtomicInteger accepted = new AtomicInteger();
+	private final List<String> received = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		serverSocket = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverSocket.close();
+		if (serverThread != null) {
+			serverThread.join(5000);
+		}
+	}
+
+	/**
+	 * Starts a server answering each request with 200 and the request path as
+	 * body. A connection is closed after closeAfter requests, with a
+	 * "Connection: close" header on the last response.
+	 */
+	private void serve(int closeAfter) {
+		serverThread = new Thread(() -> {
+			try {
+				while (true) {
+					try (Socket socket = serverSocket.accept()) {
+						accepted.incrementAndGet();
+						InputStream in = new BufferedInputStream(socket.getInputStream());
+						OutputStream out = socket.getOutputStream();
+						for (int i = 1; i <= closeAfter; i++) {
+							String path = readRequest(in);
+							if (path == null) {
+								break;
+							}
+							String headers = "Content-Length: " + path.length() + "\r\nLamport-Clock: " + i + "\r\n";
+							if (i == closeAfter) {
+								headers += "Connection: close\r\n";
+							}
+							out.write(("HTTP/1.1 200 OK\r\n" + headers + "\r\n" + path).getBytes(StandardCharsets.UTF_8));
+						}
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed by tearDown
+			}
+		});
+		serverThread.start();
+	}
+
+	private static String readRequest(InputStream in) throws IOException {
+		String requestLine = ChunkedInputStream.readLine(in);
+		if (requestLine == null) {
+			return null;
+		}
+		int length = 0;
+		String line;
+		while ((line = ChunkedInputStream.readLine(in)) != null && !line.isEmpty()) {
+			if (line.startsWith("Content-Length:")) {
+				length = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		in.readNBytes(length);
+		return requestLine.split(" ")[1];
+	}
+
+	private static List<byte[]> requests(String... paths) {
+		List<byte[]> requests = new ArrayList<>();
+		for (String path : paths) {
+			requests.add(("PUT " + path + " HTTP/1.1\r\nContent-Length: 2\r\n\r\n{}").getBytes(StandardCharsets.UTF_8));
+		}
+		return requests;
+	}
+
+	/**
+	 * Test pipelined requests are answered in order on one connection, which
+	 * stays open for the next send.
+	 */
+	@Test
+	public void testPipelinedRequests() throws IOException {
+		serve(100);
+		try (KeepAliveConnection connection = new KeepAliveConnection("localhost", serverSocket.getLocalPort(), 5000)) {
+			List<KeepAliveConnection.Response> responses = connection.send(requests("/a", "/b", "/c"));
+			assertEquals(3, responses.size());
+			assertEquals("/a", responses.get(0).getBody());
+			assertEquals("/c", responses.get(2).getBody());
+			assertEquals("3", responses.get(2).getHeader("lamport-clock")); // case-insensitive
+
+			responses = connection.send(requests("/d"));
+			assertEquals(200, responses.get(0).getStatus());
+			assertEquals("/d", responses.get(0).getBody());
+		}
+		assertEquals(1, accepted.get());
+	}
+
+	/**
+	 * Test requests left unanswered when the server closes the connection are
+	 * sent again on a new one.
+	 */
+	@Test
+	public void testReconnectAfterClose() throws IOException {
+		serve(2);
+		try (KeepAliveConnection connection = new KeepAliveConnection("localhost", serverSocket.getLocalPort(), 5000)) {
+			List<KeepAliveConnection.Response> responses = connection.send(requests("/a", "/b", "/c", "/d", "/e"));
+			assertEquals(5, responses.size());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("/" + (char) ('a' + i), responses.get(i).getBody());
+			}
+		}
+		assertEquals(3, accepted.get());
+	}
+
+	/**
+	 * Test a connection the server closed while idle is replaced before
+	 * anything is written on it, so each request reaches the server once.
+	 */
+	@Test
+	public void testIdleCloseDetected() throws Exception {
+		serveAndDrop(1, false);
+		try (KeepAliveConnection connection = new KeepAliveConnection("localhost", serverSocket.getLocalPort(), 5000)) {
+			assertEquals("/a", connection.send(requests("/a")).get(0).getBody());
+			Thread.sleep(200); // the server closes the connection meanwhile
+			assertEquals("/b", connection.send(requests("/b")).get(0).getBody());
+		}
+		assertEquals(List.of("/a", "/b"), received);
+	}
+
+	/**
+	 * Test a request the server read but never answered is not sent again,
+	 * since it may have been applied.
+	 */
+	@Test
+	public void testNoResendAfterFailure() throws Exception {
+		serveAndDrop(1, true);
+		try (KeepAliveConnection connection = new KeepAliveConnection("localhost", serverSocket.getLocalPort(), 5000)) {
+			connection.send(requests("/a"));
+			try {
+				connection.send(requests("/b"));
+				fail("expected the failure to be thrown");
+			} catch (IOException e) {
+				// the caller decides whether to send it again
+			}
+		}
+		assertEquals(List.of("/a", "/b"), received);
+		assertEquals(1, accepted.get());
+	}
+
+	/**
+	 * Starts a server that answers answered requests on each connection, then
+	 * closes it without a "Connection: close" header: at once, or after
+	 * reading one more request if readNext. Received paths are recorded.
+	 */
+	private void serveAndDrop(int answered, boolean readNext) {
+		serverThread = new Thread(() -> {
+			try {
+				while (true) {
+					try (Socket socket = serverSocket.accept()) {
+						accepted.incrementAndGet();
+						InputStream in = new BufferedInputStream(socket.getInputStream());
+						OutputStream out = socket.getOutputStream();
+						for (int i = 0; i < answered; i++) {
+							String path = readRequest(in);
+							if (path == null) {
+								break;
+							}
+							received.add(path);
+							out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + path.length() + "\r\n\r\n" + path)
+									.getBytes(StandardCharsets.UTF_8));
+						}
+						String path = readNext ? readRequest(in) : null;
+						if (path != null) {
+							received.add(path);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed by tearDown
+			}
+		});
+		serverThread.start();
+	}
+
+	/**
+	 * Test sending to a server that is not listening fails.
+	 */
+	@Test(expected = IOException.class)
+	public void testConnectionRefused() throws IOException {
+		int port = serverSocket.getLocalPort();
+		serverSocket.close();
+		try (KeepAliveConnection connection = new KeepAliveConnection("localhost", port, 1000)) {
+			connection.send(requests("/a"));
+		}
+	}
+
+	/**
+	 * Test reading a chunked response leaves the next one on the stream.
+	 */
+	@Test
+	public void testReadChunkedResponse() throws IOException {
+		InputStream in = new ByteArrayInputStream(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n"
+				+ "HTTP/1.1 304 Not Modified\r\nETag: \"1\"\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+		KeepAliveConnection.Response response = KeepAliveConnection.readResponse(in);
+		assertEquals("abcde", response.getBody());
+		response = KeepAliveConnection.readResponse(in);
+		assertEquals(304, response.getStatus());
+		assertEquals("", response.getBody());
+		assertNull(KeepAliveConnection.readResponse(in));
+	}
+}
@@ -2,6 +2,9 @@ import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Unit Testing for Lamport Clock
  */
@@ -80,4 +83,39 @@ public class LamportClockTest {
 		clock.sync(-5);
 
 	}
+
+	/**
+	 * Test increment() and sync() return the new timestamp
+	 */
+	@Test
+	public void testReturnedValues() {
+		assertEquals(1, clock.increment());
+		assertEquals(6, clock.sync(5));
+		assertEquals(7, clock.sync(2));
+		assertEquals(7, clock.getTimestamp());
+	}
+
+	/**
+	 * Test concurrent increments are never lost or handed out twice
+	 */
+	@Test
+	public void testConcurrentIncrement() throws InterruptedException {
+		int threads = 8;
+		int perThread = 10000;
+		Set<Integer> seen = ConcurrentHashMap.newKeySet();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				for (int j = 0; j < perThread; j++) {
+					seen.add(clock.increment());
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(threads * perThread, clock.getTimestamp());
+		assertEquals(threads * perThread, seen.size());
+	}
 }
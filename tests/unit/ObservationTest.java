@@ -0,0 +1,91 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for Observation
+ */
+public class ObservationTest {
+	private static final String CONTENT_SERVER_JSON = "{\n" +
+			"    \"id\": \"IDS60901\",\n" +
+			"    \"name\": \"Adelaide (West Terrace /  ngayirdapira)\",\n" +
+			"    \"state\": \"SA\",\n" +
+			"    \"time_zone\": \"CST\",\n" +
+			"    \"lat\": \"-34.9\",\n" +
+			"    \"lon\": \"138.6\",\n" +
+			"    \"local_date_time\": \"15/04:00pm\",\n" +
+			"    \"local_date_time_full\": \"20230715160000\",\n" +
+			"    \"air_temp\": \"13.3\",\n" +
+			"    \"apparent_t\": \"9.5\",\n" +
+			"    \"cloud\": \"Partly cloudy\",\n" +
+			"    \"dewpt\": \"5.7\",\n" +
+			"    \"press\": \"1023.9\",\n" +
+			"    \"rel_hum\": \"60\",\n" +
+			"    \"wind_dir\": \"S\",\n" +
+			"    \"wind_spd_kmh\": \"15\",\n" +
+			"    \"wind_spd_kt\": \"8\"\n" +
+			"}";
+
+	/**
+	 * Test numeric and dictionary fields are typed
+	 */
+	@Test
+	public void testTypedFields() {
+		Observation observation = Observation.parse(CONTENT_SERVER_JSON);
+
+		assertEquals("IDS60901", observation.getId());
+		assertEquals("SA", observation.getState());
+		assertEquals("CST", observation.getTimeZone());
+		assertEquals("Partly cloudy", observation.getCloud());
+		assertEquals("S", observation.getWindDir());
+		assertEquals(-34.9, observation.getLat(), 0.0);
+		assertEquals(138.6, observation.getLon(), 0.0);
+		assertEquals(13.3, observation.getAirTemp(), 0.0);
+		assertEquals(1023.9, observation.getPress(), 0.0);
+		assertEquals(60, observation.getRelHum());
+		assertEquals(15, observation.getWindSpdKmh());
+		assertEquals(20230715160000L, observation.getLocalDateTimeFull());
+	}
+
+	/**
+	 * Test ContentServer JSON is written back exactly
+	 */
+	@Test
+	public void testToJsonRoundTrip() {
+		assertEquals(CONTENT_SERVER_JSON, Observation.parse(CONTENT_SERVER_JSON).toJson());
+	}
+
+	/**
+	 * Test values whose text would change as numbers, and unknown fields, are
+	 * kept as text
+	 */
+	@Test
+	public void testKeptAsText() {
+		Observation observation = Observation.parse(
+				"{\"id\": \"a\", \"air_temp\": \"13.30\", \"rel_hum\": \"-\", \"uv\": \"3\"}");
+
+		assertTrue(Double.isNaN(observation.getAirTemp()));
+		assertEquals("13.30", observation.getOther("air_temp"));
+		assertEquals("-", observation.getOther("rel_hum"));
+		assertEquals("3", observation.getOther("uv"));
+		assertTrue(observation.toJson().contains("\"air_temp\": \"13.30\""));
+	}
+
+	/**
+	 * Test dictionary values are shared between observations
+	 */
+	@Test
+	public void testDictionaryShared() {
+		Observation first = Observation.parse("{\"id\": \"a\", \"state\": \"NSW\"}");
+		Observation second = Observation.parse("{\"id\": \"b\", \"state\": \"NSW\"}");
+
+		assertSame(first.getState(), second.getState());
+	}
+
+	/**
+	 * Test invalid JSON gives no observation
+	 */
+	@Test
+	public void testInvalid() {
+		assertNull(Observation.parse("not json"));
+	}
+}
@@ -0,0 +1,199 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Unit tests for OffHeapStationStore
+ */
+public class OffHeapStationStoreTest {
+
+	/**
+	 * Test stored data is read back with its lamport and last update
+	 */
+	@Test
+	public void testPutGet() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		assertNull(store.put("IDS60901", new WeatherNode("{\"id\":\"IDS60901\"}", 3, 1000L)));
+
+		WeatherNode node = store.get("IDS60901");
+		assertEquals("{\"id\":\"IDS60901\"}", node.getData());
+		assertEquals(3, node.getLamport());
+		assertEquals(1000L, node.getLastUpdate());
+		assertNull(store.get("missing"));
+		assertEquals(1, store.size());
+	}
+
+	/**
+	 * Test nodes read back carry the bytes GET responses use, and their data
+	 * as it was stored, including data formatting would change
+	 */
+	@Test
+	public void testFormattedData() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		String[] datas = { "{\n    \"id\": \"a\",\n\n        \"v\": \"1\"\n}", "{\"id\":\"b\"}\n\n", "" };
+		for (int i = 0; i < datas.length; i++) {
+			WeatherNode node = new WeatherNode(datas[i], i + 1, 100L);
+			store.put("s" + i, node);
+			WeatherNode read = store.get("s" + i);
+			assertArrayEquals(node.getFormattedBytes(), read.getFormattedBytes());
+			assertEquals(datas[i], read.getData());
+			assertEquals(i + 1, read.getLamport());
+		}
+		assertEquals("a", store.get("s0").getObservation().getId());
+	}
+
+	/**
+	 * Test put returns the previous data and keeps one entry per station
+	 */
+	@Test
+	public void testReplace() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		store.put("a", new WeatherNode("{\"v\":\"1\"}", 1, 0L));
+		WeatherNode previous = store.put("a", new WeatherNode("{\"v\":\"2\"}", 2, 0L));
+
+		assertEquals("{\"v\":\"1\"}", previous.getData());
+		assertEquals("{\"v\":\"2\"}", store.get("a").getData());
+		assertEquals(1, store.size());
+		assertEquals("{\"v\":\"2\"}", store.putIfAbsent("a", new WeatherNode("{}", 3, 0L)).getData());
+	}
+
+	/**
+	 * Test conditional removes compare the stored version, not the node object
+	 */
+	@Test
+	public void testConditionalRemove() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		WeatherNode node = new WeatherNode("{}", 5, 100L);
+		store.put("a", node);
+
+		assertFalse(store.remove("a", new WeatherNode("{}", 5, 200L)));
+		assertFalse(store.remove("a", new WeatherNode("{}", 4, 100L)));
+		assertTrue(store.remove("a", node));
+		assertNull(store.get("a"));
+		assertEquals(0, store.size());
+	}
+
+	/**
+	 * Test many stations are stored and freed chunks are reused
+	 */
+	@Test
+	public void testManyStations() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		for (int i = 0; i < 100000; i++) {
+			store.put("station" + i, new WeatherNode("{\"air_temp\":\"" + i + "\"}", i, i));
+		}
+		for (int i = 0; i < 100000; i += 2) {
+			assertNotNull(store.remove("station" + i));
+		}
+		long allocated = store.offHeapBytes();
+		for (int i = 0; i < 100000; i += 2) {
+			store.put("station" + i, new WeatherNode("{\"air_temp\":\"" + i + "\"}", i, i));
+		}
+
+		assertEquals(100000, store.size());
+		assertEquals(allocated, store.offHeapBytes());
+		for (int i = 0; i < 100000; i += 997) {
+			assertEquals(i, store.get("station" + i).getLamport());
+		}
+	}
+
+	/**
+	 * Test data larger than a slab is stored
+	 */
+	@Test
+	public void testLargeData() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		StringBuilder data = new StringBuilder();
+		while (data.length() <= OffHeapStationStore.SLAB_BYTES) {
+			data.append("\u00e9abcdefg");
+		}
+		store.put("large", new WeatherNode(data.toString(), 1, 0L));
+		store.put("small", new WeatherNode("{}", 2, 0L));
+
+		assertEquals(data.toString(), store.get("large").getData());
+		store.remove("large");
+		assertNull(store.get("large"));
+		assertEquals("{}", store.get("small").getData());
+	}
+
+	/**
+	 * Test iteration sees every station and can remove through the iterator
+	 */
+	@Test
+	public void testIteration() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		Map<String, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			store.put("s" + i, new WeatherNode("{}", i, 0L));
+			expected.put("s" + i, i);
+		}
+
+		Map<String, Integer> seen = new HashMap<>();
+		Iterator<Map.Entry<String, WeatherNode>> it = store.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, WeatherNode> entry = it.next();
+			seen.put(entry.getKey(), entry.getValue().getLamport());
+			if (entry.getValue().getLamport() % 2 == 0) {
+				it.remove();
+			}
+		}
+
+		assertEquals(expected, seen);
+		assertEquals(1500, store.size());
+	}
+
+	/**
+	 * Test iteration skips stations removed after it started
+	 */
+	@Test
+	public void testIterationAfterRemove() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		store.put("a", new WeatherNode("{}", 1, 0L));
+		store.put("b", new WeatherNode("{}", 2, 0L));
+		Iterator<Map.Entry<String, WeatherNode>> it = store.entrySet().iterator();
+		store.remove("a");
+		store.put("c", new WeatherNode("{}", 3, 0L)); // may reuse a's chunk
+
+		assertTrue(it.hasNext());
+		assertEquals("b", it.next().getKey());
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Test iteration returns each station once while stations are updated and
+	 * added, and an abandoned iterator holds no freed chunks
+	 */
+	@Test
+	public void testIterationDuringUpdates() {
+		OffHeapStationStore store = new OffHeapStationStore();
+		for (int i = 0; i < 3000; i++) {
+			store.put("s" + i, new WeatherNode("{}", i, 0L));
+		}
+		Iterator<Map.Entry<String, WeatherNode>> abandoned = store.entrySet().iterator();
+		assertTrue(abandoned.hasNext());
+
+		Map<String, Integer> seen = new HashMap<>();
+		Iterator<Map.Entry<String, WeatherNode>> it = store.entrySet().iterator();
+		for (int i = 0; i < 10; i++) {
+			Map.Entry<String, WeatherNode> entry = it.next();
+			seen.put(entry.getKey(), entry.getValue().getLamport());
+		}
+		long allocated = store.offHeapBytes();
+		for (int i = 0; i < 3000; i++) {
+			store.put("s" + i, new WeatherNode("{}", i + 10000, 0L));
+		}
+		assertEquals(allocated, store.offHeapBytes());
+		for (int i = 0; i < 5000; i++) {
+			store.put("new" + i, new WeatherNode("{}", i, 0L)); // rehashes the index
+		}
+		while (it.hasNext()) {
+			Map.Entry<String, WeatherNode> entry = it.next();
+			assertNull(seen.put(entry.getKey(), entry.getValue().getLamport()));
+		}
+
+		assertEquals(3000, seen.size());
+	}
+}
@@ -0,0 +1,140 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for PersistenceStage
+ */
+public class PersistenceStageTest {
+
+	/**
+	 * Records the batches handed to it
+	 */
+	private static class RecordingWriter implements PersistenceStage.Writer {
+		final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+		volatile boolean fail = false;
+
+		@Override
+		public void write(List<PersistenceStage.Mutation> batch) throws IOException {
+			if (fail) {
+				throw new IOException("disk full");
+			}
+			List<String> ids = new ArrayList<>();
+			for (PersistenceStage.Mutation mutation : batch) {
+				ids.add(mutation.getId());
+				events.add((mutation.getOp() == PersistenceStage.PUT ? "put " : "remove ") + mutation.getId());
+			}
+			batches.add(ids);
+		}
+
+		@Override
+		public void compact() {
+			events.add("compact");
+		}
+	}
+
+	/**
+	 * Test concurrent changes share batches and every change completes
+	 */
+	@Test
+	public void testConcurrentChangesAreBatched() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		PersistenceStage stage = new PersistenceStage(writer, 256, 50);
+		int threads = 20;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < threads; i++) {
+			String id = "station" + i;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					PersistenceStage.await(stage.submitPut(id, new WeatherNode("{}", 1, 0L)));
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			});
+			workers.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : workers) {
+			thread.join();
+		}
+		stage.close();
+
+		assertTrue(errors.isEmpty());
+		int written = 0;
+		for (List<String> batch : writer.batches) {
+			written += batch.size();
+		}
+		assertEquals(threads, written);
+		assertTrue(writer.batches.size() < threads);
+	}
+
+	/**
+	 * Test the batch size limit is respected
+	 */
+	@Test
+	public void testMaxBatch() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		PersistenceStage stage = new PersistenceStage(writer, 1, 50);
+		CompletableFuture<Void> first = stage.submitPut("a", new WeatherNode("{}", 1, 0L));
+		CompletableFuture<Void> second = stage.submitPut("b", new WeatherNode("{}", 2, 0L));
+		PersistenceStage.await(first);
+		PersistenceStage.await(second);
+		stage.close();
+
+		assertEquals(2, writer.batches.size());
+	}
+
+	/**
+	 * Test a compaction runs after the changes queued before it
+	 */
+	@Test
+	public void testCompactionOrder() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		PersistenceStage stage = new PersistenceStage(writer, 256, 20);
+		stage.submitPut("a", new WeatherNode("{}", 1, 0L));
+		stage.submitRemove("b");
+		PersistenceStage.await(stage.submitCompaction());
+		stage.close();
+
+		assertEquals(List.of("put a", "remove b", "compact"), writer.events);
+	}
+
+	/**
+	 * Test a failed write fails every change in the batch
+	 */
+	@Test
+	public void testWriteFailure() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		writer.fail = true;
+		PersistenceStage stage = new PersistenceStage(writer, 256, 0);
+		try {
+			PersistenceStage.await(stage.submitPut("a", new WeatherNode("{}", 1, 0L)));
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertEquals("disk full", e.getMessage());
+		} finally {
+			stage.close();
+		}
+	}
+
+	/**
+	 * Test changes submitted after close fail instead of hanging
+	 */
+	@Test(expected = IOException.class)
+	public void testSubmitAfterClose() throws Exception {
+		PersistenceStage stage = new PersistenceStage(new RecordingWriter(), 256, 0);
+		stage.close();
+		PersistenceStage.await(stage.submitPut("a", new WeatherNode("{}", 1, 0L)));
+	}
+}
@@ -0,0 +1,164 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for Replicator: the replication record format and applying a
+ * stream of records.
+ */
+public class ReplicatorTest {
+	private final Map<String, WeatherNode> stations = new LinkedHashMap<>();
+	private int puts;
+	private Replicator replicator;
+
+	/**
+	 * Replicates into a map, counting put calls.
+	 */
+	@Before
+	public void setUp() {
+		replicator = new Replicator("localhost", 1, 1000, new Replicator.Target() {
+			@Override
+			public void put(List<String> ids, List<WeatherNode> nodes) {
+				puts++;
+				for (int i = 0; i < ids.size(); i++) {
+					stations.put(ids.get(i), nodes.get(i));
+				}
+			}
+
+			@Override
+			public void remove(String id) {
+				stations.remove(id);
+			}
+
+			@Override
+			public void retain(Set<String> ids) {
+				stations.keySet().retainAll(ids);
+			}
+		});
+	}
+
+	private static WeatherNode node(String id, int lamport) {
+		return new WeatherNode("{\n    \"id\": \"" + id + "\",\n    \"name\": \"A: B\"\n}", lamport, 1000 + lamport);
+	}
+
+	private void apply(ByteArrayOutputStream stream) throws IOException {
+		replicator.apply(new ByteArrayInputStream(stream.toByteArray()));
+	}
+
+	/**
+	 * Test puts and removes written by the primary are applied in order, with
+	 * the data, Lamport timestamp and last update of each station.
+	 */
+	@Test
+	public void testApplyChanges() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Replicator.writePut(stream, 5, "a", node("a", 5));
+		Replicator.writePut(stream, 6, "b c", node("b c", 6)); // ids may hold spaces
+		Replicator.writeRemove(stream, 7, "a");
+		Replicator.writeHeartbeat(stream, 7);
+		apply(stream);
+
+		assertEquals(Set.of("b c"), stations.keySet());
+		WeatherNode node = stations.get("b c");
+		assertEquals(node("b c", 6).getData(), node.getData());
+		assertEquals(6, node.getLamport());
+		assertEquals(1006, node.getLastUpdate());
+		assertEquals(7, replicator.getApplied());
+		assertEquals(7, replicator.getPrimaryLatest());
+	}
+
+	/**
+	 * Test a snapshot is applied in one put and removes the stations not in
+	 * it.
+	 */
+	@Test
+	public void testApplySnapshot() throws IOException {
+		stations.put("old", node("old", 1));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Replicator.writeSnapshot(stream, 9, 2);
+		Replicator.writePut(stream, 9, "a", node("a", 3));
+		Replicator.writePut(stream, 9, "b", node("b", 4));
+		apply(stream);
+
+		assertEquals(Set.of("a", "b"), stations.keySet());
+		assertEquals(1, puts);
+		assertEquals(9, replicator.getApplied());
+
+		stream = new ByteArrayOutputStream();
+		Replicator.writeSnapshot(stream, 12, 0);
+		apply(stream);
+		assertTrue(stations.isEmpty());
+		assertEquals(12, replicator.getApplied());
+	}
+
+	/**
+	 * Test the replica lags while the primary has changes it has not applied,
+	 * and also while it is not connected.
+	 */
+	@Test
+	public void testLag() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Replicator.writePut(stream, 5, "a", node("a", 5));
+		Replicator.writeHeartbeat(stream, 8); // the primary has changes not yet received
+		apply(stream);
+		Thread.sleep(20);
+
+		assertEquals(5, replicator.getApplied());
+		assertEquals(8, replicator.getPrimaryLatest());
+		assertTrue(replicator.getLagMillis() >= 20);
+		assertFalse(replicator.isConnected());
+	}
+
+	/**
+	 * Test a restarted primary's stamps start over: the replica forgets the old
+	 * epoch's stamps and takes the snapshot's stamp even though it is lower.
+	 */
+	@Test
+	public void testPrimaryRestart() throws Exception {
+		replicator.setEpoch(1);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Replicator.writePut(stream, 101, "a", node("a", 100));
+		Replicator.writeHeartbeat(stream, 101);
+		apply(stream);
+		assertEquals(101, replicator.getApplied());
+
+		replicator.setEpoch(2);
+		assertEquals(-1, replicator.getApplied());
+		assertEquals(-1, replicator.getPrimaryLatest());
+		stream = new ByteArrayOutputStream();
+		Replicator.writeHeartbeat(stream, 100);
+		apply(stream);
+		Thread.sleep(20);
+		assertTrue(replicator.getLagMillis() >= 20); // nothing of the new epoch applied yet
+
+		stream = new ByteArrayOutputStream();
+		Replicator.writeSnapshot(stream, 100, 1);
+		Replicator.writePut(stream, 100, "b", node("b", 100));
+		Replicator.writeHeartbeat(stream, 100);
+		apply(stream);
+		assertEquals(Set.of("b"), stations.keySet());
+		assertEquals(100, replicator.getApplied());
+		assertEquals(2, replicator.getEpoch());
+
+		stream = new ByteArrayOutputStream();
+		Replicator.writeSnapshot(stream, 90, 0); // same epoch: the snapshot still wins
+		apply(stream);
+		assertEquals(90, replicator.getApplied());
+	}
+
+	/**
+	 * Test a stream ending inside a record fails.
+	 */
+	@Test(expected = EOFException.class)
+	public void testTruncatedRecord() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write("put 5 5 1005 100 a\n{\"id\"".getBytes(StandardCharsets.UTF_8));
+		apply(stream);
+	}
+}
@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for ResponseCache
+ */
+public class ResponseCacheTest {
+
+	/**
+	 * Test the body has the same format as the GET response array
+	 */
+	@Test
+	public void testBuild() {
+		Map<String, WeatherNode> weather = new LinkedHashMap<>();
+		weather.put("a", new WeatherNode("{\n\"id\": \"a\"\n}", 1, 0L));
+		weather.put("b", new WeatherNode("{\n\"id\": \"b\"\n}", 2, 0L));
+
+		String body = new String(new ResponseCache().get(weather), StandardCharsets.UTF_8);
+		assertEquals("[\n    {\n    \"id\": \"a\"\n    },\n    {\n    \"id\": \"b\"\n    }\n]\n", body);
+	}
+
+	/**
+	 * Test an empty map gives an empty array
+	 */
+	@Test
+	public void testEmpty() {
+		assertEquals("[]\n", new String(new ResponseCache().get(new LinkedHashMap<>()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test the body is reused until the cache is invalidated
+	 */
+	@Test
+	public void testInvalidate() {
+		ResponseCache cache = new ResponseCache();
+		Map<String, WeatherNode> weather = new LinkedHashMap<>();
+		weather.put("a", new WeatherNode("{\"id\": \"a\"}", 1, 0L));
+
+		byte[] first = cache.get(weather);
+		assertSame(first, cache.get(weather));
+
+		weather.put("b", new WeatherNode("{\"id\": \"b\"}", 2, 0L));
+		long version = cache.getVersion();
+		cache.invalidate();
+		assertEquals(version + 1, cache.getVersion());
+		byte[] second = cache.get(weather);
+		assertNotSame(first, second);
+		assertTrue(new String(second, StandardCharsets.UTF_8).contains("\"id\": \"b\""));
+	}
+
+	/**
+	 * Test a different map is not answered from the cache of another
+	 */
+	@Test
+	public void testDifferentMap() {
+		ResponseCache cache = new ResponseCache();
+		Map<String, WeatherNode> weather = new LinkedHashMap<>();
+		weather.put("a", new WeatherNode("{\"id\": \"a\"}", 1, 0L));
+		cache.get(weather);
+
+		assertEquals("[]\n", new String(cache.get(new LinkedHashMap<>()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test the entity tag changes only when the map changes
+	 */
+	@Test
+	public void testETag() {
+		ResponseCache cache = new ResponseCache();
+		String etag = cache.getETag();
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertEquals(etag, cache.getETag());
+
+		cache.invalidate();
+		assertNotEquals(etag, cache.getETag());
+	}
+}
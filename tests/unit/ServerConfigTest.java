@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for ServerConfig
+ */
+public class ServerConfigTest {
+
+	/**
+	 * Test default values when no arguments are given
+	 */
+	@Test
+	public void testDefaults() {
+		ServerConfig config = ServerConfig.parse(new String[] {});
+		assertEquals(ServerConfig.DEFAULT_PORT, config.getPort());
+		assertEquals("virtual", config.getString("mode", "virtual"));
+		assertEquals(64, config.getInt("workers", 64));
+	}
+
+	/**
+	 * Test port and "--name=value" options are parsed
+	 */
+	@Test
+	public void testParseOptions() {
+		ServerConfig config = ServerConfig.parse(new String[] { "3333", "--mode=pool", "--workers=8", "--verbose" });
+		assertEquals(3333, config.getPort());
+		assertEquals("pool", config.getString("mode", "virtual"));
+		assertEquals(8, config.getInt("workers", 64));
+		assertTrue(config.getBoolean("verbose", false));
+	}
+
+	/**
+	 * Test options are parsed among other arguments, which are kept in order
+	 */
+	@Test
+	public void testParsePositional() {
+		List<String> positional = new ArrayList<>();
+		ServerConfig config = ServerConfig.parse(
+				new String[] { "http://localhost:4567", "--batch=10", "a.txt", "--watch", "b.txt" }, positional);
+		assertEquals(List.of("http://localhost:4567", "a.txt", "b.txt"), positional);
+		assertEquals(10, config.getInt("batch", 100));
+		assertTrue(config.getBoolean("watch", false));
+		assertEquals(ServerConfig.DEFAULT_PORT, config.getPort());
+	}
+
+	/**
+	 * Test invalid arguments throw IllegalArgumentException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPort() {
+		ServerConfig.parse(new String[] { "notaport" });
+	}
+
+	/**
+	 * Test invalid numeric option throws IllegalArgumentException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidNumber() {
+		ServerConfig.parse(new String[] { "--workers=many" }).getInt("workers", 64);
+	}
+}
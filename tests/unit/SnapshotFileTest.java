@@ -0,0 +1,91 @@
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for SnapshotFile
+ */
+public class SnapshotFileTest {
+	private Path snapshotPath = Paths.get("tests/mock_data/test_snapshot.bin");
+
+	@Before
+	public void setUp() throws Exception {
+		Files.deleteIfExists(snapshotPath);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(snapshotPath);
+		Files.deleteIfExists(Paths.get(snapshotPath + ".tmp"));
+	}
+
+	/**
+	 * Test a written snapshot is read back unchanged
+	 */
+	@Test
+	public void testWriteAndRead() throws Exception {
+		Map<String, WeatherNode> weather = new HashMap<>();
+		weather.put("a", new WeatherNode("{\n\"id\": \"a\",\n\"name\": \"Ad\u00e9la\u00efde\"\n}", 3, 1000L));
+		weather.put("b", new WeatherNode("{\"id\": \"b\"}", 7, 2000L));
+		assertEquals(2, SnapshotFile.write(snapshotPath, weather));
+		assertTrue(SnapshotFile.isSnapshot(snapshotPath));
+		assertFalse(Files.exists(Paths.get(snapshotPath + ".tmp")));
+
+		Map<String, WeatherNode> loaded = new HashMap<>();
+		assertEquals(2, SnapshotFile.read(snapshotPath, loaded));
+		assertEquals("{\n\"id\": \"a\",\n\"name\": \"Ad\u00e9la\u00efde\"\n}", loaded.get("a").getData());
+		assertEquals(3, loaded.get("a").getLamport());
+		assertEquals(1000L, loaded.get("a").getLastUpdate());
+		assertEquals(7, loaded.get("b").getLamport());
+	}
+
+	/**
+	 * Test a new snapshot replaces the previous one
+	 */
+	@Test
+	public void testReplace() throws Exception {
+		Map<String, WeatherNode> weather = new HashMap<>();
+		weather.put("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L));
+		weather.put("b", new WeatherNode("{\"id\": \"b\"}", 2, 2000L));
+		SnapshotFile.write(snapshotPath, weather);
+		weather.remove("b");
+		SnapshotFile.write(snapshotPath, weather);
+
+		Map<String, WeatherNode> loaded = new HashMap<>();
+		assertEquals(1, SnapshotFile.read(snapshotPath, loaded));
+		assertNull(loaded.get("b"));
+	}
+
+	/**
+	 * Test a corrupted snapshot is rejected instead of partially loaded
+	 */
+	@Test(expected = IOException.class)
+	public void testCorrupted() throws Exception {
+		Map<String, WeatherNode> weather = new HashMap<>();
+		weather.put("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L));
+		SnapshotFile.write(snapshotPath, weather);
+		try (RandomAccessFile file = new RandomAccessFile(snapshotPath.toFile(), "rw")) {
+			file.seek(12);
+			file.write('X');
+		}
+		SnapshotFile.read(snapshotPath, new HashMap<>());
+	}
+
+	/**
+	 * Test text backups are not mistaken for snapshots
+	 */
+	@Test
+	public void testIsSnapshot_TextBackup() throws Exception {
+		assertFalse(SnapshotFile.isSnapshot(Paths.get("tests/mock_data/test_load_backup.txt")));
+		assertFalse(SnapshotFile.isSnapshot(snapshotPath));
+	}
+}
@@ -0,0 +1,124 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Unit tests for StationHistory
+ */
+public class StationHistoryTest {
+
+	private static WeatherNode reading(String temp, int lamport, long lastUpdate) {
+		return new WeatherNode("{\"id\":\"a\",\"air_temp\":\"" + temp + "\"}", lamport, lastUpdate);
+	}
+
+	/**
+	 * Test readings are returned oldest first
+	 */
+	@Test
+	public void testOrder() {
+		StationHistory history = new StationHistory(5);
+		history.record("a", reading("1", 1, 100L));
+		history.record("a", reading("2", 2, 200L));
+		history.record("a", reading("3", 3, 300L));
+
+		List<StationHistory.Reading> readings = history.since("a", 0);
+		assertEquals(3, readings.size());
+		assertEquals(1, readings.get(0).getLamport());
+		assertEquals(3, readings.get(2).getLamport());
+		assertEquals(300L, readings.get(2).getLastUpdate());
+		assertEquals(3.0, readings.get(2).getObservation().getAirTemp(), 0);
+	}
+
+	/**
+	 * Test only the last depth readings are kept
+	 */
+	@Test
+	public void testBounded() {
+		StationHistory history = new StationHistory(3);
+		for (int i = 1; i <= 10; i++) {
+			history.record("a", reading(String.valueOf(i), i, i * 100L));
+		}
+
+		List<StationHistory.Reading> readings = history.since("a", 0);
+		assertEquals(3, readings.size());
+		assertEquals(8, readings.get(0).getLamport());
+		assertEquals(10, readings.get(2).getLamport());
+	}
+
+	/**
+	 * Test readings before since are left out
+	 */
+	@Test
+	public void testSince() {
+		StationHistory history = new StationHistory(10);
+		for (int i = 1; i <= 5; i++) {
+			history.record("a", reading(String.valueOf(i), i, i * 100L));
+		}
+
+		List<StationHistory.Reading> readings = history.since("a", 300L);
+		assertEquals(3, readings.size());
+		assertEquals(3, readings.get(0).getLamport());
+		assertTrue(history.since("a", 1000L).isEmpty());
+	}
+
+	/**
+	 * Test unknown and removed stations have no history
+	 */
+	@Test
+	public void testRemove() {
+		StationHistory history = new StationHistory(10);
+		history.record("a", reading("1", 1, 100L));
+		history.remove("a");
+
+		assertNull(history.since("a", 0));
+		assertNull(history.since("b", 0));
+		assertEquals(0, history.size());
+	}
+
+	/**
+	 * Test nothing is kept with depth 0, or for data that is not JSON
+	 */
+	@Test
+	public void testNotRecorded() {
+		StationHistory disabled = new StationHistory(0);
+		disabled.record("a", reading("1", 1, 100L));
+		assertNull(disabled.since("a", 0));
+
+		StationHistory history = new StationHistory(10);
+		history.record("b", new WeatherNode("not json", 1, 100L));
+		assertNull(history.since("b", 0));
+	}
+
+	/**
+	 * Test readings are written as a JSON array with last_update and lamport
+	 */
+	@Test
+	public void testToJson() {
+		StationHistory history = new StationHistory(10);
+		assertEquals("[]\n", new String(StationHistory.toJson(List.of()), StandardCharsets.UTF_8));
+
+		history.record("a", reading("13.3", 4, 100L));
+		String json = new String(StationHistory.toJson(history.since("a", 0)), StandardCharsets.UTF_8);
+		assertEquals("[\n    {\n        \"last_update\": \"100\",\n        \"lamport\": \"4\",\n"
+				+ "        \"id\": \"a\",\n        \"air_temp\": \"13.3\"\n    }\n]\n", json);
+	}
+
+	/**
+	 * Test write() streams the same JSON array as toJson(), one reading at a time
+	 */
+	@Test
+	public void testWrite() throws Exception {
+		StationHistory history = new StationHistory(10);
+		history.record("a", reading("13.3", 4, 100L));
+		history.record("a", reading("14.1", 5, 200L));
+		List<StationHistory.Reading> readings = history.since("a", 0);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StationHistory.write(readings, out);
+		assertArrayEquals(StationHistory.toJson(readings), out.toByteArray());
+		assertEquals(2, JsonParser.splitObjects(out.toString(StandardCharsets.UTF_8)).size());
+	}
+}
@@ -0,0 +1,191 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for StationIndex
+ */
+public class StationIndexTest {
+
+	private static Observation station(String id, String state, String lat, String lon) {
+		return Observation.parse("{\"id\":\"" + id + "\",\"state\":\"" + state + "\",\"lat\":\"" + lat
+				+ "\",\"lon\":\"" + lon + "\"}");
+	}
+
+	private static StationIndex sample() {
+		StationIndex index = new StationIndex();
+		index.update("c", station("c", "SA", "-34.9", "138.6"));
+		index.update("a", station("a", "VIC", "-37.8", "144.9"));
+		index.update("b", station("b", "SA", "-34.8", "138.5"));
+		index.update("d", station("d", "NSW", "-33.9", "151.2"));
+		return index;
+	}
+
+	/**
+	 * Test stations are found by state, in id order
+	 */
+	@Test
+	public void testState() {
+		StationIndex index = sample();
+		assertEquals(List.of("b", "c"), index.query("SA", null, null, 10));
+		assertEquals(List.of("a"), index.query("VIC", null, null, 10));
+		assertTrue(index.query("WA", null, null, 10).isEmpty());
+	}
+
+	/**
+	 * Test stations are found by bounding box, alone or with a state
+	 */
+	@Test
+	public void testBox() {
+		StationIndex index = sample();
+		StationIndex.Box adelaide = StationIndex.Box.parse("-35.5,138,-34,139");
+		assertEquals(List.of("b", "c"), index.query(null, adelaide, null, 10));
+
+		StationIndex.Box east = StationIndex.Box.parse("-30,150,-40,140");
+		assertEquals(List.of("a"), index.query(null, east, null, 10));
+		assertTrue(index.query("SA", east, null, 10).isEmpty());
+
+		StationIndex.Box world = new StationIndex.Box(-90, -180, 90, 180);
+		assertEquals(List.of("a", "b", "c", "d"), index.query(null, world, null, 10));
+	}
+
+	/**
+	 * Test invalid boxes are rejected
+	 */
+	@Test
+	public void testInvalidBox() {
+		for (String bbox : new String[] { "1,2,3", "1,2,3,x", "1,2,3,NaN", "" }) {
+			try {
+				StationIndex.Box.parse(bbox);
+				fail("Expected IllegalArgumentException for " + bbox);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test pages of all stations resume after the cursor
+	 */
+	@Test
+	public void testCursor() {
+		StationIndex index = sample();
+		assertEquals(List.of("a", "b"), index.query(null, null, null, 2));
+		assertEquals(List.of("c", "d"), index.query(null, null, "b", 2));
+		assertTrue(index.query(null, null, "d", 2).isEmpty());
+		assertEquals(List.of("c"), index.query("SA", null, "b", 2));
+	}
+
+	/**
+	 * Test paging through a box reads about one page of ids per query, not
+	 * every station in the box
+	 */
+	@Test
+	public void testBoxPagesBoundedWork() {
+		StationIndex index = new StationIndex();
+		for (int row = 0; row < 10; row++) {
+			for (int column = 0; column < 10; column++) {
+				for (int i = 0; i < 20; i++) {
+					String id = String.format("s%02d%02d%02d", i, row, column); // ids interleave across cells
+					index.update(id, station(id, "SA", (row + 0.5) + "", (column + 0.5) + ""));
+				}
+			}
+		}
+		StationIndex.Box box = StationIndex.Box.parse("0,0,9.9,9.9");
+		int cells = 100;
+		int limit = 10;
+
+		String cursor = null;
+		String previous = null;
+		int found = 0;
+		while (true) {
+			long before = index.examined.sum();
+			List<String> page = index.query(null, box, cursor, limit);
+			assertTrue(index.examined.sum() - before <= limit + cells);
+			if (page.isEmpty()) {
+				break;
+			}
+			for (String id : page) {
+				assertTrue(previous == null || previous.compareTo(id) < 0);
+				previous = id;
+			}
+			found += page.size();
+			cursor = page.get(page.size() - 1);
+		}
+		assertEquals(2000, found);
+	}
+
+	/**
+	 * Test a station is found by state whether indexed from its Observation or
+	 * its JSON once the dictionary is full and the state is kept as text
+	 */
+	@Test
+	public void testStateWithDictionaryFull() {
+		int filler = 0;
+		while (Observation.DICTIONARY.encode("filler" + filler) >= 0) {
+			filler++;
+		}
+		Observation observation = station("a", "full-state", "-34.9", "138.6");
+		assertNull(observation.getState());
+
+		StationIndex index = new StationIndex();
+		index.update("a", observation);
+		assertEquals(List.of("a"), index.query("full-state", null, null, 10));
+		index.updateFromJson("a", observation.toJson());
+		assertEquals(List.of("a"), index.query("full-state", null, null, 10));
+	}
+
+	/**
+	 * Test an update moves a station, and a removed station is not found
+	 */
+	@Test
+	public void testUpdateAndRemove() {
+		StationIndex index = sample();
+		index.update("c", station("c", "VIC", "-37.7", "145.0"));
+		assertEquals(List.of("b"), index.query("SA", null, null, 10));
+		assertEquals(List.of("a", "c"), index.query("VIC", null, null, 10));
+		assertEquals(List.of("b"), index.query(null, StationIndex.Box.parse("-35.5,138,-34,139"), null, 10));
+
+		index.remove("a");
+		assertEquals(List.of("c"), index.query("VIC", null, null, 10));
+		assertEquals(3, index.size());
+	}
+
+	/**
+	 * Test stations without a state or location are only found unfiltered,
+	 * and rebuild replaces everything indexed
+	 */
+	@Test
+	public void testMissingFieldsAndRebuild() {
+		StationIndex index = new StationIndex();
+		index.update("x", Observation.parse("{\"id\":\"x\",\"air_temp\":\"1\"}"));
+		index.update("y", null);
+		assertEquals(List.of("x", "y"), index.query(null, null, null, 10));
+		assertTrue(index.query(null, new StationIndex.Box(-90, -180, 90, 180), null, 10).isEmpty());
+
+		index.rebuild(Map.of("z", new WeatherNode("{\"id\":\"z\",\"state\":\"SA\"}", 1, 100L)));
+		assertEquals(List.of("z"), index.query(null, null, null, 10));
+		assertEquals(List.of("z"), index.query("SA", null, null, 10));
+	}
+
+	/**
+	 * Test rebuild indexes state and location from the stored JSON without
+	 * parsing the stations into Observations
+	 */
+	@Test
+	public void testRebuildScansData() {
+		WeatherNode node = new WeatherNode("{\"id\":\"b\",\"lat\":-34.8,\"state\":\"SA\",\"lon\":\"138.5\"}", 1, 100L) {
+			@Override
+			public Observation getObservation() {
+				throw new AssertionError("station parsed");
+			}
+		};
+		StationIndex index = new StationIndex();
+		index.rebuild(Map.of("b", node, "bad", new WeatherNode("not json", 1, 100L)));
+		assertEquals(List.of("b"), index.query("SA", null, null, 10));
+		assertEquals(List.of("b"), index.query(null, StationIndex.Box.parse("-35.5,138,-34,139"), null, 10));
+		assertEquals(List.of("b", "bad"), index.query(null, null, null, 10));
+	}
+}
@@ -0,0 +1,112 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Set;
+
+/**
+ * Unit tests for Subscriptions
+ */
+public class SubscriptionsTest {
+
+	private static Subscriptions.Event put(long lamport, String id) {
+		return new Subscriptions.Event(lamport, "put", id, "{\"id\":\"" + id + "\"}");
+	}
+
+	/**
+	 * Test subscribers receive the events of the stations they follow, in
+	 * order
+	 */
+	@Test
+	public void testFilter() throws Exception {
+		Subscriptions subscriptions = new Subscriptions(10, Subscriptions.OverflowPolicy.DROP);
+		Subscriptions.Subscriber all = subscriptions.subscribe(null);
+		Subscriptions.Subscriber onlyB = subscriptions.subscribe(Set.of("b"));
+
+		subscriptions.publish(put(1, "a"));
+		subscriptions.publish(put(2, "b"));
+		subscriptions.publish(new Subscriptions.Event(3, "expire", "b", null));
+
+		assertEquals("a", all.next(100).getId());
+		assertEquals("b", all.next(100).getId());
+		assertEquals("expire", all.next(100).getType());
+		assertEquals(2, onlyB.next(100).getLamport());
+		assertEquals(3, onlyB.next(100).getLamport());
+		assertNull(onlyB.next(10)); // timeout
+	}
+
+	/**
+	 * Test a full queue drops its oldest events and counts them
+	 */
+	@Test
+	public void testDropOldest() throws Exception {
+		Subscriptions subscriptions = new Subscriptions(2, Subscriptions.OverflowPolicy.DROP);
+		Subscriptions.Subscriber slow = subscriptions.subscribe(null);
+		for (int i = 1; i <= 5; i++) {
+			subscriptions.publish(put(i, "a"));
+		}
+
+		assertEquals(3, slow.takeDropped());
+		assertEquals(0, slow.takeDropped());
+		assertEquals(4, slow.next(100).getLamport());
+		assertEquals(5, slow.next(100).getLamport());
+		assertFalse(slow.isClosed());
+	}
+
+	/**
+	 * Test a full queue disconnects its subscriber with the disconnect policy,
+	 * without affecting others
+	 */
+	@Test
+	public void testDisconnect() throws Exception {
+		Subscriptions subscriptions = new Subscriptions(2, Subscriptions.OverflowPolicy.DISCONNECT);
+		Subscriptions.Subscriber slow = subscriptions.subscribe(null);
+		Subscriptions.Subscriber other = subscriptions.subscribe(Set.of("b"));
+		for (int i = 1; i <= 3; i++) {
+			subscriptions.publish(put(i, "a"));
+		}
+
+		assertTrue(slow.isClosed());
+		assertNull(slow.next(100));
+		assertFalse(other.isClosed());
+		assertEquals(1, subscriptions.size());
+	}
+
+	/**
+	 * Test closing wakes a waiting subscriber and unsubscribes it
+	 */
+	@Test
+	public void testCloseWakes() throws Exception {
+		Subscriptions subscriptions = new Subscriptions(10, Subscriptions.OverflowPolicy.DROP);
+		Subscriptions.Subscriber subscriber = subscriptions.subscribe(null);
+		Thread closer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			subscriptions.closeAll();
+		});
+		closer.start();
+
+		long start = System.currentTimeMillis();
+		assertNull(subscriber.next(10000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(subscriptions.isEmpty());
+		closer.join();
+	}
+
+	/**
+	 * Test overflow policies are parsed from option values
+	 */
+	@Test
+	public void testParsePolicy() {
+		assertEquals(Subscriptions.OverflowPolicy.DROP, Subscriptions.OverflowPolicy.parse("drop"));
+		assertEquals(Subscriptions.OverflowPolicy.DISCONNECT, Subscriptions.OverflowPolicy.parse("Disconnect"));
+		try {
+			Subscriptions.OverflowPolicy.parse("block");
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
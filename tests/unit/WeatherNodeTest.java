@@ -73,4 +73,29 @@ public class WeatherNodeTest {
 
         WeatherNode.toWeatherNode(invalidInput);
     }
+
+    /**
+     * Test ContentServer formatted data is kept only in typed form and still
+     * returned unchanged.
+     */
+    @Test
+    public void testObservationReplacesData() {
+        String data = "{\n    \"id\": \"IDS60901\",\n    \"state\": \"SA\",\n    \"air_temp\": \"13.3\"\n}";
+        WeatherNode node = new WeatherNode(Observation.parse(data), data, 5, 1628505600000L);
+
+        assertEquals(data, node.getData());
+        assertEquals("SA", node.getObservation().getState());
+        assertEquals(13.3, node.getObservation().getAirTemp(), 0.0);
+    }
+
+    /**
+     * Test data that is not a JSON object has no observation and is kept as is.
+     */
+    @Test
+    public void testObservationUnparsable() {
+        WeatherNode node = new WeatherNode("Hi CAMILLE", 5, 1628505600000L);
+
+        assertNull(node.getObservation());
+        assertEquals("Hi CAMILLE", node.getData());
+    }
 }
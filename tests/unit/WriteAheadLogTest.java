@@ -0,0 +1,123 @@
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for WriteAheadLog
+ */
+public class WriteAheadLogTest {
+	private Path logPath = Paths.get("tests/mock_data/test_wal.wal");
+
+	@Before
+	public void setUp() throws Exception {
+		Files.deleteIfExists(logPath);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(logPath);
+	}
+
+	/**
+	 * Test PUT and REMOVE records are replayed in order
+	 */
+	@Test
+	public void testAppendAndReplay() throws Exception {
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.ALWAYS, 100)) {
+			log.sync(log.appendPut("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L)));
+			log.sync(log.appendPut("b", new WeatherNode("{\"id\": \"b\"}", 2, 2000L)));
+			log.sync(log.appendPut("a", new WeatherNode("{\"id\": \"a\", \"v\": 2}", 3, 3000L)));
+			log.sync(log.appendRemove("b"));
+		}
+
+		Map<String, WeatherNode> weather = new HashMap<>();
+		assertEquals(4, WriteAheadLog.replay(logPath, weather));
+		assertEquals(1, weather.size());
+		assertEquals("{\"id\": \"a\", \"v\": 2}", weather.get("a").getData());
+		assertEquals(3, weather.get("a").getLamport());
+		assertEquals(3000L, weather.get("a").getLastUpdate());
+	}
+
+	/**
+	 * Test a torn record at the end of the log is ignored on replay and cut off
+	 * when the log is reopened
+	 */
+	@Test
+	public void testTornTail() throws Exception {
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.GROUP, 100)) {
+			log.sync(log.appendPut("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L)));
+			log.sync(log.appendPut("b", new WeatherNode("{\"id\": \"b\"}", 2, 2000L)));
+		}
+		long fullLength = Files.size(logPath);
+		try (RandomAccessFile file = new RandomAccessFile(logPath.toFile(), "rw")) {
+			file.setLength(fullLength - 3); // simulate crash during the last write
+		}
+
+		Map<String, WeatherNode> weather = new HashMap<>();
+		assertEquals(1, WriteAheadLog.replay(logPath, weather));
+		assertTrue(weather.containsKey("a"));
+
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.GROUP, 100)) {
+			assertTrue(log.size() < fullLength - 3);
+			log.sync(log.appendPut("c", new WeatherNode("{\"id\": \"c\"}", 3, 3000L)));
+		}
+		weather.clear();
+		assertEquals(2, WriteAheadLog.replay(logPath, weather));
+		assertTrue(weather.containsKey("c"));
+	}
+
+	/**
+	 * Test a record with a bad checksum ends the replay
+	 */
+	@Test
+	public void testCorruptedRecord() throws Exception {
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.ALWAYS, 100)) {
+			log.sync(log.appendPut("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L)));
+		}
+		try (RandomAccessFile file = new RandomAccessFile(logPath.toFile(), "rw")) {
+			file.seek(file.length() - 1);
+			file.write('X');
+		}
+		Map<String, WeatherNode> weather = new HashMap<>();
+		assertEquals(0, WriteAheadLog.replay(logPath, weather));
+	}
+
+	/**
+	 * Test truncate empties the log
+	 */
+	@Test
+	public void testTruncate() throws Exception {
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.INTERVAL, 10)) {
+			log.sync(log.appendPut("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L)));
+			assertTrue(log.size() > 0);
+			log.truncate();
+			assertEquals(0, log.size());
+		}
+		assertEquals(0, WriteAheadLog.replay(logPath, new HashMap<>()));
+	}
+
+	/**
+	 * Test truncating after a snapshot keeps the log when records were appended
+	 * since the snapshot was taken
+	 */
+	@Test
+	public void testTruncateCovered() throws Exception {
+		try (WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.INTERVAL, 10)) {
+			log.appendPut("a", new WeatherNode("{\"id\": \"a\"}", 1, 1000L));
+			long covered = log.size();
+			log.appendPut("b", new WeatherNode("{\"id\": \"b\"}", 2, 1000L));
+			assertFalse(log.truncate(covered));
+			assertTrue(log.size() > covered);
+			assertTrue(log.truncate(log.size()));
+			assertEquals(0, log.size());
+		}
+	}
+}